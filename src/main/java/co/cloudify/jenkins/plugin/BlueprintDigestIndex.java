@@ -0,0 +1,124 @@
+package co.cloudify.jenkins.plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import hudson.XmlFile;
+import jenkins.model.Jenkins;
+
+/**
+ * A controller-wide index of the content digests of blueprints uploaded by
+ * this plugin, keyed by manager, tenant and blueprint ID. It allows skipping
+ * the upload of a blueprint whose contents are identical to what was last
+ * uploaded under the same ID.
+ * <p>
+ * The index is only a hint: callers must verify that the blueprint still exists
+ * on the manager before relying on it. It is persisted in
+ * <code>JENKINS_HOME</code>, so it survives restarts.
+ *
+ * @author Isaac Shabtay
+ */
+public class BlueprintDigestIndex {
+    private static final Logger logger = LoggerFactory.getLogger(BlueprintDigestIndex.class);
+
+    private static BlueprintDigestIndex instance;
+
+    private final XmlFile file;
+    private final Map<String, String> digests;
+
+    BlueprintDigestIndex(final XmlFile file, final Map<String, String> digests) {
+        this.file = file;
+        this.digests = digests;
+    }
+
+    /**
+     * @return The index for this controller, loading it if necessary.
+     */
+    @SuppressWarnings("unchecked")
+    public static synchronized BlueprintDigestIndex get() {
+        if (instance == null) {
+            XmlFile file = new XmlFile(Jenkins.XSTREAM2,
+                    new File(Jenkins.get().getRootDir(), BlueprintDigestIndex.class.getName() + ".xml"));
+            Map<String, String> digests = new HashMap<>();
+            if (file.exists()) {
+                try {
+                    digests.putAll((Map<String, String>) file.read());
+                } catch (IOException | RuntimeException ex) {
+                    // Losing the index only means uploading again.
+                    logger.warn(String.format("Failed reading %s; starting with an empty index", file), ex);
+                }
+            }
+            instance = new BlueprintDigestIndex(file, digests);
+        }
+        return instance;
+    }
+
+    private static String key(final String host, final String tenant, final String blueprintId) {
+        return String.format("%s/%s/%s", host, tenant, blueprintId);
+    }
+
+    /**
+     * @param host        Cloudify Manager host
+     * @param tenant      tenant
+     * @param blueprintId blueprint ID
+     *
+     * @return The digest of the contents last uploaded under this ID, or
+     *         <code>null</code> if unknown.
+     */
+    public synchronized String getDigest(final String host, final String tenant, final String blueprintId) {
+        return digests.get(key(host, tenant, blueprintId));
+    }
+
+    /**
+     * Record the digest of a blueprint that was just uploaded.
+     *
+     * @param host        Cloudify Manager host
+     * @param tenant      tenant
+     * @param blueprintId blueprint ID
+     * @param digest      digest of the uploaded contents
+     */
+    public synchronized void record(final String host, final String tenant, final String blueprintId,
+            final String digest) {
+        if (!digest.equals(digests.put(key(host, tenant, blueprintId), digest))) {
+            save();
+        }
+    }
+
+    /**
+     * Forget a blueprint; for example, because it was deleted.
+     *
+     * @param host        Cloudify Manager host
+     * @param tenant      tenant
+     * @param blueprintId blueprint ID
+     */
+    public synchronized void forget(final String host, final String tenant, final String blueprintId) {
+        if (digests.remove(key(host, tenant, blueprintId)) != null) {
+            save();
+        }
+    }
+
+    private void save() {
+        if (file == null) {
+            return;
+        }
+        try {
+            file.write(new HashMap<>(digests));
+        } catch (IOException ex) {
+            logger.warn(String.format("Failed writing %s", file), ex);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("file", file)
+                .append("size", digests.size())
+                .toString();
+    }
+}
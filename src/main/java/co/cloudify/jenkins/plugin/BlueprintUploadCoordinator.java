@@ -0,0 +1,293 @@
+package co.cloudify.jenkins.plugin;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import co.cloudify.rest.model.Blueprint;
+
+/**
+ * Coordinates uploads of blueprints across all builds on this controller, so
+ * that concurrent uploads of the same blueprint (same manager, tenant,
+ * blueprint ID and contents) are done only once: the first caller uploads, and
+ * the others wait for it to finish and reuse the resulting {@link Blueprint}.
+ * Waiting is bounded; a caller that times out fails, rather than uploading on
+ * its own.
+ * <p>
+ * Callers whose contents may differ under the same blueprint ID (such as
+ * blueprints uploaded from workspaces) must provide a key identifying the
+ * contents, such as a digest; uploads of different contents are never
+ * coalesced.
+ * <p>
+ * Callers that delete the blueprint once done with it upload through
+ * {@link #uploadAndHold(String, String, String, String, Uploader)}, which
+ * counts the callers sharing the blueprint. Each such caller calls
+ * {@link #release(String, String, String)} when done, and only the last one
+ * deletes the blueprint, whoever uploaded it.
+ *
+ * @author Isaac Shabtay
+ */
+public class BlueprintUploadCoordinator {
+    private static final Logger logger = LoggerFactory.getLogger(BlueprintUploadCoordinator.class);
+
+    /** Maximum time to wait for a concurrent upload of the same blueprint. */
+    private static final long WAIT_TIMEOUT_MILLIS = Long.getLong(
+            BlueprintUploadCoordinator.class.getName() + ".waitTimeoutMinutes", 15) * TimeUnit.MINUTES.toMillis(1);
+
+    private static final BlueprintUploadCoordinator INSTANCE = new BlueprintUploadCoordinator(WAIT_TIMEOUT_MILLIS);
+
+    /**
+     * Does the actual upload (or whatever it takes to make the blueprint
+     * available).
+     */
+    public interface Uploader {
+        Blueprint upload() throws Exception;
+    }
+
+    /**
+     * Outcome of a coordinated upload.
+     */
+    public static class Result {
+        private final Blueprint blueprint;
+        private final boolean shared;
+
+        Result(final Blueprint blueprint, final boolean shared) {
+            this.blueprint = blueprint;
+            this.shared = shared;
+        }
+
+        public Blueprint getBlueprint() {
+            return blueprint;
+        }
+
+        /**
+         * @return <code>true</code> if the blueprint was uploaded by another
+         *         caller; unless holding the blueprint, such callers don't own
+         *         it, and shouldn't delete it.
+         */
+        public boolean isShared() {
+            return shared;
+        }
+    }
+
+    private final long waitTimeoutMillis;
+    private final ConcurrentMap<String, CompletableFuture<Blueprint>> inFlight = new ConcurrentHashMap<>();
+    /** Blueprint key -> number of callers holding the blueprint. */
+    private final ConcurrentMap<String, Integer> holders = new ConcurrentHashMap<>();
+    private final AtomicLong uploads = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    BlueprintUploadCoordinator(final long waitTimeoutMillis) {
+        this.waitTimeoutMillis = waitTimeoutMillis;
+    }
+
+    public static BlueprintUploadCoordinator get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Upload a blueprint, unless the same blueprint is already being uploaded,
+     * in which case wait for that upload to finish.
+     *
+     * @param host        Cloudify Manager host
+     * @param tenant      tenant
+     * @param blueprintId blueprint ID
+     * @param uploader    uploader to use if no upload is in progress
+     *
+     * @return The result.
+     *
+     * @throws Exception Anything thrown by the uploader (whether called by this
+     *                   thread or by the caller whose upload this call was
+     *                   coalesced with), or an {@link IOException} if waiting
+     *                   timed out.
+     */
+    public Result upload(final String host, final String tenant, final String blueprintId,
+            final Uploader uploader) throws Exception {
+        return upload(host, tenant, blueprintId, null, uploader);
+    }
+
+    /**
+     * Upload a blueprint, unless the same contents are already being uploaded
+     * under the same blueprint ID, in which case wait for that upload to
+     * finish.
+     *
+     * @param host        Cloudify Manager host
+     * @param tenant      tenant
+     * @param blueprintId blueprint ID
+     * @param contentKey  identifies the blueprint's contents (for example, a
+     *                    digest); <code>null</code> if the contents are known to
+     *                    be the same for all callers using this blueprint ID
+     * @param uploader    uploader to use if no upload is in progress
+     *
+     * @return The result.
+     *
+     * @throws Exception Anything thrown by the uploader (whether called by this
+     *                   thread or by the caller whose upload this call was
+     *                   coalesced with), or an {@link IOException} if waiting
+     *                   timed out.
+     */
+    public Result upload(final String host, final String tenant, final String blueprintId,
+            final String contentKey, final Uploader uploader) throws Exception {
+        return upload(host, tenant, blueprintId, contentKey, false, uploader);
+    }
+
+    /**
+     * Same as {@link #upload(String, String, String, String, Uploader)}, also
+     * holding the blueprint on behalf of the caller, until released through
+     * {@link #release(String, String, String)}. Callers waiting for a
+     * concurrent upload hold the blueprint from the moment they start
+     * waiting, so the uploading caller can't delete it before they get it.
+     *
+     * @param host        Cloudify Manager host
+     * @param tenant      tenant
+     * @param blueprintId blueprint ID
+     * @param contentKey  identifies the blueprint's contents; see
+     *                    {@link #upload(String, String, String, String, Uploader)}
+     * @param uploader    uploader to use if no upload is in progress
+     *
+     * @return The result.
+     *
+     * @throws Exception Same as
+     *                   {@link #upload(String, String, String, String, Uploader)};
+     *                   the blueprint isn't held in that case.
+     */
+    public Result uploadAndHold(final String host, final String tenant, final String blueprintId,
+            final String contentKey, final Uploader uploader) throws Exception {
+        return upload(host, tenant, blueprintId, contentKey, true, uploader);
+    }
+
+    /**
+     * Stop holding a blueprint.
+     *
+     * @param host        Cloudify Manager host
+     * @param tenant      tenant
+     * @param blueprintId blueprint ID
+     *
+     * @return <code>true</code> if no other caller holds the blueprint, so it
+     *         may be deleted.
+     */
+    public boolean release(final String host, final String tenant, final String blueprintId) {
+        return unhold(getBlueprintKey(host, tenant, blueprintId)) == 0;
+    }
+
+    /**
+     * @param host        Cloudify Manager host
+     * @param tenant      tenant
+     * @param blueprintId blueprint ID
+     *
+     * @return Number of callers holding the blueprint.
+     */
+    public int getHolders(final String host, final String tenant, final String blueprintId) {
+        return holders.getOrDefault(getBlueprintKey(host, tenant, blueprintId), 0);
+    }
+
+    private static String getBlueprintKey(final String host, final String tenant, final String blueprintId) {
+        return String.format("%s/%s/%s", host, tenant, blueprintId);
+    }
+
+    private void hold(final String blueprintKey) {
+        holders.merge(blueprintKey, 1, Integer::sum);
+    }
+
+    private int unhold(final String blueprintKey) {
+        Integer remaining = holders.computeIfPresent(blueprintKey, (k, v) -> v > 1 ? v - 1 : null);
+        return remaining != null ? remaining : 0;
+    }
+
+    private Result upload(final String host, final String tenant, final String blueprintId,
+            final String contentKey, final boolean hold, final Uploader uploader) throws Exception {
+        String blueprintKey = getBlueprintKey(host, tenant, blueprintId);
+        String key = contentKey != null ? String.format("%s#%s", blueprintKey, contentKey) : blueprintKey;
+        if (hold) {
+            hold(blueprintKey);
+        }
+        boolean succeeded = false;
+        try {
+            Result result = upload(key, blueprintId, uploader);
+            succeeded = true;
+            return result;
+        } finally {
+            if (hold && !succeeded) {
+                unhold(blueprintKey);
+            }
+        }
+    }
+
+    private Result upload(final String key, final String blueprintId, final Uploader uploader) throws Exception {
+        CompletableFuture<Blueprint> future = new CompletableFuture<>();
+        CompletableFuture<Blueprint> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            logger.info("Waiting for concurrent upload of {}", key);
+            coalesced.incrementAndGet();
+            try {
+                return new Result(existing.get(waitTimeoutMillis, TimeUnit.MILLISECONDS), true);
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+            } catch (TimeoutException ex) {
+                timeouts.incrementAndGet();
+                throw new IOException(String.format(
+                        "Timed out after %d ms waiting for a concurrent upload of blueprint '%s'", waitTimeoutMillis,
+                        blueprintId), ex);
+            }
+        }
+
+        uploads.incrementAndGet();
+        try {
+            Blueprint blueprint = uploader.upload();
+            future.complete(blueprint);
+            return new Result(blueprint, false);
+        } catch (Throwable ex) {
+            // Errors too; waiters would otherwise wait until they time out.
+            future.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * @return Number of uploads actually done.
+     */
+    public long getUploads() {
+        return uploads.get();
+    }
+
+    /**
+     * @return Number of callers that reused a concurrent upload.
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return Number of callers that timed out waiting for a concurrent upload.
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("inFlight", inFlight.size())
+                .append("held", holders.size())
+                .append("uploads", getUploads())
+                .append("coalesced", getCoalesced())
+                .append("timeouts", getTimeouts())
+                .toString();
+    }
+}
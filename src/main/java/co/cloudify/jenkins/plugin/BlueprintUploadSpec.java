@@ -3,6 +3,7 @@ package co.cloudify.jenkins.plugin;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.Serializable;
 import java.net.URL;
 import java.nio.file.Files;
@@ -13,6 +14,8 @@ import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import co.cloudify.jenkins.plugin.upload.AgentUploadClient;
+import co.cloudify.jenkins.plugin.upload.ManagerEndpoint;
 import co.cloudify.rest.client.BlueprintsClient;
 import co.cloudify.rest.model.Blueprint;
 
@@ -58,6 +61,24 @@ public class BlueprintUploadSpec implements Serializable, AutoCloseable {
     }
 
     public Blueprint upload(final BlueprintsClient client, final String id) throws IOException {
+        return upload(client, null, id);
+    }
+
+    /**
+     * Upload the blueprint. Archives are streamed through the endpoint, if
+     * provided, so they are read in a single, memory-mapped pass.
+     *
+     * @param client   client to upload with
+     * @param endpoint manager endpoint to stream archives to; may be
+     *                 <code>null</code>
+     * @param id       ID of blueprint to create
+     *
+     * @return The uploaded blueprint.
+     *
+     * @throws IOException If the upload failed.
+     */
+    public Blueprint upload(final BlueprintsClient client, final ManagerEndpoint endpoint, final String id)
+            throws IOException {
         if (blueprintResourceName != null) {
             tempBlueprintDir = Files.createTempDirectory("cfy").toFile();
             logger.info("Created temporary directory: {}", tempBlueprintDir);
@@ -76,6 +97,15 @@ public class BlueprintUploadSpec implements Serializable, AutoCloseable {
             logger.info("Uploading blueprint '{}' from {}, main filename: {}", id, archiveUrl, mainFileName);
             return client.upload(id, archiveUrl, mainFileName);
         }
+        if (endpoint != null) {
+            try {
+                return AgentUploadClient.get().newUploader(endpoint, null).uploadArchive(id, archivePath,
+                        mainFileName);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(String.format("Interrupted while uploading blueprint '%s'", id));
+            }
+        }
         return client.uploadArchive(id, archivePath, mainFileName);
     }
 
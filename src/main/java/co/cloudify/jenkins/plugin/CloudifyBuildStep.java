@@ -107,6 +107,8 @@ public abstract class CloudifyBuildStep extends Builder implements SimpleBuildSt
         } catch (Exception ex) {
             ex.printStackTrace(listener.getLogger());
             throw new AbortException("Failed performing step");
+        } finally {
+            CloudifyConfiguration.releaseCloudifyClient(client);
         }
     }
 
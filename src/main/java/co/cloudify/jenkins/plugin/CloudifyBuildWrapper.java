@@ -3,6 +3,7 @@ package co.cloudify.jenkins.plugin;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.net.URL;
+import java.util.Map;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.builder.ToStringBuilder;
@@ -13,9 +14,18 @@ import org.kohsuke.stapler.QueryParameter;
 import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
 
 import co.cloudify.jenkins.plugin.actions.EnvironmentBuildAction;
+import co.cloudify.jenkins.plugin.actions.TeardownBuildAction;
 import co.cloudify.jenkins.plugin.callables.BlueprintUploadDirFileCallable;
+import co.cloudify.jenkins.plugin.pool.EnvironmentPool;
+import co.cloudify.jenkins.plugin.pool.PoolSpec;
+import co.cloudify.jenkins.plugin.pool.ReleasePolicy;
+import co.cloudify.jenkins.plugin.teardown.EnvironmentOwner;
+import co.cloudify.jenkins.plugin.teardown.EnvironmentRegistry;
+import co.cloudify.jenkins.plugin.teardown.TeardownQueue;
+import co.cloudify.jenkins.plugin.teardown.TeardownTask;
 import co.cloudify.rest.client.BlueprintsClient;
 import co.cloudify.rest.client.CloudifyClient;
+import co.cloudify.rest.client.exceptions.BlueprintNotFoundException;
 import co.cloudify.rest.helpers.DeploymentsHelper;
 import co.cloudify.rest.model.Blueprint;
 import co.cloudify.rest.model.Deployment;
@@ -29,6 +39,7 @@ import hudson.model.TaskListener;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.BuildWrapperDescriptor;
 import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
 import jenkins.tasks.SimpleBuildWrapper;
 
 /**
@@ -38,17 +49,26 @@ import jenkins.tasks.SimpleBuildWrapper;
  * @author Isaac Shabtay
  */
 public class CloudifyBuildWrapper extends SimpleBuildWrapper {
+    private static final int DEFAULT_POOL_MIN_SIZE = 1;
+    private static final int DEFAULT_POOL_MAX_SIZE = 4;
+
     private String credentialsId;
     private String tenant;
     private String blueprintId;
     private String blueprintRootDirectory;
     private String blueprintArchiveUrl;
     private String blueprintMainFile;
+    private boolean skipUnchangedBlueprintUpload;
     private String deploymentId;
     private String inputs;
     private String inputsLocation;
     private String outputsLocation;
     private boolean ignoreFailureOnTeardown;
+    private boolean detachedTeardown;
+    private boolean pooled;
+    private int poolMinSize = DEFAULT_POOL_MIN_SIZE;
+    private int poolMaxSize = DEFAULT_POOL_MAX_SIZE;
+    private String releasePolicy = ReleasePolicy.RECYCLE.name();
     private boolean echoInputs;
     private boolean echoOutputs;
     private boolean debugOutput;
@@ -112,6 +132,60 @@ public class CloudifyBuildWrapper extends SimpleBuildWrapper {
         this.blueprintMainFile = blueprintMainFile;
     }
 
+    public boolean isSkipUnchangedBlueprintUpload() {
+        return skipUnchangedBlueprintUpload;
+    }
+
+    @DataBoundSetter
+    public void setSkipUnchangedBlueprintUpload(boolean skipUnchangedBlueprintUpload) {
+        this.skipUnchangedBlueprintUpload = skipUnchangedBlueprintUpload;
+    }
+
+    public boolean isDetachedTeardown() {
+        return detachedTeardown;
+    }
+
+    @DataBoundSetter
+    public void setDetachedTeardown(boolean detachedTeardown) {
+        this.detachedTeardown = detachedTeardown;
+    }
+
+    public boolean isPooled() {
+        return pooled;
+    }
+
+    @DataBoundSetter
+    public void setPooled(boolean pooled) {
+        this.pooled = pooled;
+    }
+
+    public int getPoolMinSize() {
+        return poolMinSize;
+    }
+
+    @DataBoundSetter
+    public void setPoolMinSize(int poolMinSize) {
+        this.poolMinSize = poolMinSize;
+    }
+
+    public int getPoolMaxSize() {
+        return poolMaxSize;
+    }
+
+    @DataBoundSetter
+    public void setPoolMaxSize(int poolMaxSize) {
+        this.poolMaxSize = poolMaxSize;
+    }
+
+    public String getReleasePolicy() {
+        return releasePolicy;
+    }
+
+    @DataBoundSetter
+    public void setReleasePolicy(String releasePolicy) {
+        this.releasePolicy = releasePolicy;
+    }
+
     public String getDeploymentId() {
         return deploymentId;
     }
@@ -207,41 +281,168 @@ public class CloudifyBuildWrapper extends SimpleBuildWrapper {
         build.addOrReplaceAction(action);
 
         CloudifyDisposer disposer = new CloudifyDisposer(credentialsId, tenant, debugOutput);
+        disposer.setDetached(detachedTeardown);
         context.setDisposer(disposer);
 
         StandardUsernamePasswordCredentials creds = CloudifyPluginUtilities
                 .getUsernamePasswordCredentials(credentialsId, build);
         CloudifyClient client = CloudifyConfiguration.getCloudifyClient(creds, tenant);
-        BlueprintsClient blueprintsClient = client.getBlueprintsClient();
-        PrintStream logger = listener.getLogger();
-
-        Blueprint blueprint;
-        if (blueprintMainFile == null) {
-            logger.println(String.format("Retrieving blueprint: %s", blueprintId));
-            blueprint = blueprintsClient.get(blueprintId);
-        } else {
-            if (blueprintArchiveUrl != null) {
-                logger.println(String.format("Uploading blueprint '%s' from %s (main filename: %s)", blueprintId,
-                        blueprintArchiveUrl, blueprintMainFile));
-                blueprint = blueprintsClient.upload(blueprintId, new URL(blueprintArchiveUrl), blueprintMainFile);
+        try {
+            BlueprintsClient blueprintsClient = client.getBlueprintsClient();
+            PrintStream logger = listener.getLogger();
+
+            Blueprint blueprint;
+            // Identifies the contents of a blueprint uploaded for pooled environments.
+            String contentDigest = null;
+            if (blueprintMainFile == null) {
+                logger.println(String.format("Retrieving blueprint: %s", blueprintId));
+                blueprint = blueprintsClient.get(blueprintId);
+            } else if (pooled) {
+                FilePath rootFilePath = blueprintArchiveUrl == null ? workspace.child(blueprintRootDirectory) : null;
+                contentDigest = rootFilePath != null
+                        ? CloudifyPluginUtilities.getBlueprintDigest(rootFilePath, blueprintMainFile)
+                        : blueprintArchiveUrl;
+                blueprint = getPoolBlueprint(logger, tenant, blueprintsClient,
+                        PoolSpec.getPoolBlueprintId(blueprintId, contentDigest), contentDigest, rootFilePath,
+                        blueprintArchiveUrl, blueprintMainFile);
             } else {
-                FilePath rootFilePath = workspace.child(blueprintRootDirectory);
-                logger.println(String.format("Uploading blueprint '%s' from %s (main filename: %s)", blueprintId,
-                        rootFilePath, blueprintMainFile));
+                // Uploaded blueprints are held by this build, along with any concurrent
+                // builds sharing the upload; the last of them disposes of the blueprint.
+                blueprint = null;
+                if (blueprintArchiveUrl != null) {
+                    logger.println(String.format("Uploading blueprint '%s' from %s (main filename: %s)", blueprintId,
+                            blueprintArchiveUrl, blueprintMainFile));
+                    blueprint = coordinatedUpload(tenant, blueprintId, blueprintArchiveUrl, true,
+                            () -> blueprintsClient.upload(blueprintId, new URL(blueprintArchiveUrl),
+                                    blueprintMainFile)).getBlueprint();
+                } else {
+                    FilePath rootFilePath = workspace.child(blueprintRootDirectory);
+                    String digest = null;
+                    if (skipUnchangedBlueprintUpload) {
+                        digest = CloudifyPluginUtilities.getBlueprintDigest(rootFilePath, blueprintMainFile);
+                        blueprint = CloudifyPluginUtilities.getUnchangedBlueprint(logger, client, tenant, blueprintId,
+                                digest);
+                        if (blueprint == null) {
+                            // A blueprint kept by an earlier build, with other contents, would make the
+                            // upload fail.
+                            CloudifyPluginUtilities.deleteStaleBlueprint(listener, client, tenant, blueprintId,
+                                    debugOutput);
+                        }
+                    }
+                    if (blueprint == null) {
+                        if (digest == null) {
+                            // Concurrent builds may upload different contents under the same ID;
+                            // only identical contents may be shared.
+                            digest = CloudifyPluginUtilities.getBlueprintDigest(rootFilePath, blueprintMainFile);
+                        }
+                        logger.println(String.format("Uploading blueprint '%s' from %s (main filename: %s)",
+                                blueprintId, rootFilePath, blueprintMainFile));
+                        // Blueprints kept for reuse are held for good, so builds sharing their
+                        // upload don't delete them.
+                        BlueprintUploadCoordinator.Result result = coordinatedUpload(tenant, blueprintId, digest,
+                                true, () -> rootFilePath.act(new BlueprintUploadDirFileCallable(blueprintsClient,
+                                        blueprintId, blueprintMainFile)));
+                        blueprint = result.getBlueprint();
+                        if (skipUnchangedBlueprintUpload && !result.isShared()) {
+                            CloudifyPluginUtilities.recordBlueprintDigest(tenant, blueprintId, digest);
+                        }
+                    }
+                }
+                // This blueprint will need to be disposed of, unless it is kept for
+                // reuse by later builds.
+                if (!skipUnchangedBlueprintUpload || blueprintArchiveUrl != null) {
+                    disposer.setBlueprint(blueprint);
+                }
+            }
 
-                blueprint = rootFilePath
-                        .act(new BlueprintUploadDirFileCallable(blueprintsClient, blueprintId, blueprintMainFile));
+            EnvironmentOwner owner = EnvironmentOwner.of(build, credentialsId, tenant);
+            if (pooled) {
+                Map<String, Object> inputsMap = CloudifyPluginUtilities.createInputsMap(workspace, listener, inputs,
+                        inputsLocation, null, null);
+                EnvironmentPool.Lease lease = EnvironmentPool.get()
+                        .lease(new PoolSpec(owner, blueprintId, contentDigest, inputsMap, poolMinSize, poolMaxSize));
+                if (lease != null) {
+                    action.setDeploymentId(lease.getDeploymentId());
+                    CloudifyEnvironmentData envData;
+                    if (lease.isReady()) {
+                        logger.println(String.format("Leased pooled environment: %s", lease.getDeploymentId()));
+                        envData = CloudifyPluginUtilities.getEnvironmentData(listener, workspace, client,
+                                blueprint.getId(), client.getDeploymentsClient().get(lease.getDeploymentId()),
+                                outputsLocation, echoOutputs);
+                    } else {
+                        logger.println("No pooled environment is ready; creating one");
+                        try {
+                            envData = CloudifyPluginUtilities.createEnvironment(listener, workspace, client,
+                                    blueprint.getId(), lease.getDeploymentId(), inputsMap, outputsLocation, false,
+                                    echoInputs, echoOutputs, debugOutput, x -> true, null);
+                        } catch (IOException | InterruptedException | RuntimeException ex) {
+                            EnvironmentPool.get().release(lease, ReleasePolicy.DISCARD);
+                            throw ex;
+                        }
+                    }
+                    disposer.setLease(lease, ReleasePolicy.valueOf(releasePolicy));
+                    action.applyEnvironmentData(envData);
+                    return;
+                }
+                logger.println(String.format("Environment pool is full; creating a dedicated environment: %s",
+                        deploymentId));
             }
-            // This blueprint will need to be disposed of.
-            disposer.setBlueprint(blueprint);
-        }
 
-        CloudifyEnvironmentData envData = CloudifyPluginUtilities.createEnvironment(listener, workspace, client,
-                blueprint.getId(), deploymentId, inputs, inputsLocation, null, null, outputsLocation, false, echoInputs,
-                echoOutputs, debugOutput, x -> true);
+            CloudifyEnvironmentData envData = CloudifyPluginUtilities.createEnvironment(listener, workspace, client,
+                    blueprint.getId(), deploymentId, inputs, inputsLocation, null, null, outputsLocation, false,
+                    echoInputs, echoOutputs, debugOutput, x -> true, owner);
 
-        disposer.setDeployment(envData.getDeployment(), ignoreFailureOnTeardown);
-        action.applyEnvironmentData(envData);
+            disposer.setDeployment(envData.getDeployment(), ignoreFailureOnTeardown);
+            action.applyEnvironmentData(envData);
+        } finally {
+            CloudifyConfiguration.releaseCloudifyClient(client);
+        }
+    }
+
+    /**
+     * Pooled environments keep depending on the blueprint they were created
+     * from, so it is owned by the pool rather than by any build. It is
+     * uploaded under an ID derived from its contents, once, by the first build
+     * using those contents; later builds use the same blueprint.
+     */
+    private static Blueprint getPoolBlueprint(final PrintStream logger, final String tenant,
+            final BlueprintsClient blueprintsClient, final String poolBlueprintId, final String contentDigest,
+            final FilePath rootFilePath, final String archiveUrl, final String mainFileName)
+            throws IOException, InterruptedException {
+        try {
+            Blueprint blueprint = blueprintsClient.get(poolBlueprintId);
+            logger.println(String.format("Using blueprint '%s', uploaded earlier for pooled environments",
+                    poolBlueprintId));
+            return blueprint;
+        } catch (BlueprintNotFoundException ex) {
+            // Uploaded below.
+        }
+        logger.println(String.format("Uploading blueprint '%s' for pooled environments from %s (main filename: %s)",
+                poolBlueprintId, archiveUrl != null ? archiveUrl : rootFilePath, mainFileName));
+        return coordinatedUpload(tenant, poolBlueprintId, contentDigest, false,
+                () -> archiveUrl != null
+                        ? blueprintsClient.upload(poolBlueprintId, new URL(archiveUrl), mainFileName)
+                        : rootFilePath.act(new BlueprintUploadDirFileCallable(blueprintsClient, poolBlueprintId,
+                                mainFileName)))
+                .getBlueprint();
+    }
+
+    private static BlueprintUploadCoordinator.Result coordinatedUpload(final String tenant, final String blueprintId,
+            final String contentKey, final boolean hold, final BlueprintUploadCoordinator.Uploader uploader)
+            throws IOException, InterruptedException {
+        CloudifyConfiguration config = CloudifyConfiguration.get();
+        String effectiveTenant = CloudifyConfiguration.getEffectiveTenant(config, tenant);
+        try {
+            return hold
+                    ? BlueprintUploadCoordinator.get().uploadAndHold(config.getHost(), effectiveTenant, blueprintId,
+                            contentKey, uploader)
+                    : BlueprintUploadCoordinator.get().upload(config.getHost(), effectiveTenant, blueprintId,
+                            contentKey, uploader);
+        } catch (IOException | InterruptedException | RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException(String.format("Failed uploading blueprint '%s'", blueprintId), ex);
+        }
     }
 
     public static class CloudifyDisposer extends Disposer {
@@ -254,6 +455,9 @@ public class CloudifyBuildWrapper extends SimpleBuildWrapper {
         private Deployment deployment;
         private Boolean ignoreFailure;
         private boolean debugOutput;
+        private boolean detached;
+        private EnvironmentPool.Lease lease;
+        private ReleasePolicy releasePolicy;
 
         public CloudifyDisposer(String credentialsId, String tenant, boolean debugOutput) {
             super();
@@ -271,24 +475,88 @@ public class CloudifyBuildWrapper extends SimpleBuildWrapper {
             this.ignoreFailure = ignoreFailure;
         }
 
+        public void setDetached(boolean detached) {
+            this.detached = detached;
+        }
+
+        public void setLease(EnvironmentPool.Lease lease, ReleasePolicy releasePolicy) {
+            this.lease = lease;
+            this.releasePolicy = releasePolicy;
+        }
+
         @Override
         public void tearDown(Run<?, ?> build, FilePath workspace, Launcher launcher, TaskListener listener)
                 throws IOException, InterruptedException {
+            if (lease != null) {
+                listener.getLogger().println(String.format("Releasing pooled environment '%s' (policy: %s)",
+                        lease.getDeploymentId(), releasePolicy));
+                EnvironmentPool.get().release(lease, releasePolicy);
+                return;
+            }
+
+            EnvironmentOwner owner = EnvironmentOwner.of(build, credentialsId, tenant);
+            PrintStream logger = listener.getLogger();
+            String blueprintId = blueprint != null && releaseBlueprint(owner, logger) ? blueprint.getId() : null;
+            if (detached) {
+                if (deployment == null && blueprintId == null) {
+                    return;
+                }
+                // Hand the teardown to the controller, and let the build finish.
+                TeardownTask task = TeardownQueue.get().submit(TeardownTask.forEnvironment(owner,
+                        deployment != null ? deployment.getId() : null, blueprintId, ignoreFailure, debugOutput));
+                if (deployment != null) {
+                    EnvironmentRegistry.get().teardownQueued(
+                            EnvironmentRegistry.key(owner.getHost(), owner.getTenant(), deployment.getId()),
+                            task.getId());
+                }
+                TeardownBuildAction action = new TeardownBuildAction(task.getId());
+                build.addAction(action);
+                listener.getLogger().println(String.format("Environment teardown queued; see %s%s",
+                        build.getUrl(), action.getUrlName()));
+                return;
+            }
+
             StandardUsernamePasswordCredentials creds = CloudifyPluginUtilities
                     .getUsernamePasswordCredentials(credentialsId, build);
             CloudifyClient client = CloudifyConfiguration.getCloudifyClient(creds, tenant);
-            PrintStream logger = listener.getLogger();
-
-            if (deployment != null) {
-                CloudifyPluginUtilities.deleteEnvironment(listener, client, deployment.getId(),
-                        DeploymentsHelper.DEFAULT_POLLING_INTERVAL, false, ignoreFailure, debugOutput);
+            try {
+                if (deployment != null) {
+                    CloudifyPluginUtilities.deleteEnvironment(listener, client, deployment.getId(),
+                            DeploymentsHelper.DEFAULT_POLLING_INTERVAL, false, ignoreFailure, debugOutput, owner);
+                }
+
+                if (blueprintId != null) {
+                    // Holders aren't known across restarts; the manager refuses to delete
+                    // blueprints that still have deployments.
+                    if (!client.getDeploymentsClient().list(blueprintId, null, null, false).getItems().isEmpty()) {
+                        logger.println(String.format(
+                                "Blueprint '%s' still has deployments of other builds; not deleting it",
+                                blueprintId));
+                        return;
+                    }
+                    logger.println(String.format("Deleting blueprint: %s", blueprintId));
+                    client.getBlueprintsClient().delete(blueprintId);
+                    CloudifyPluginUtilities.forgetBlueprintDigest(tenant, blueprintId);
+                }
+            } finally {
+                CloudifyConfiguration.releaseCloudifyClient(client);
             }
+        }
 
-            if (blueprint != null) {
-                String blueprintId = blueprint.getId();
-                logger.println(String.format("Deleting blueprint: %s", blueprintId));
-                client.getBlueprintsClient().delete(blueprintId);
+        /**
+         * Stop holding the blueprint, which was uploaded through the
+         * {@link BlueprintUploadCoordinator}.
+         *
+         * @return <code>true</code> if this build is the last to hold the
+         *         blueprint, and should delete it.
+         */
+        private boolean releaseBlueprint(final EnvironmentOwner owner, final PrintStream logger) {
+            if (BlueprintUploadCoordinator.get().release(owner.getHost(), owner.getTenant(), blueprint.getId())) {
+                return true;
             }
+            logger.println(String.format("Blueprint '%s' is still used by other builds; the last of them deletes it",
+                    blueprint.getId()));
+            return false;
         }
     }
 
@@ -336,6 +604,22 @@ public class CloudifyBuildWrapper extends SimpleBuildWrapper {
             return CloudifyPluginUtilities.validateStringIsYamlOrJson(value);
         }
 
+        public FormValidation doCheckPoolMinSize(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckPoolMaxSize(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+
+        public ListBoxModel doFillReleasePolicyItems() {
+            ListBoxModel items = new ListBoxModel();
+            for (ReleasePolicy policy : ReleasePolicy.values()) {
+                items.add(policy.name());
+            }
+            return items;
+        }
+
         @Override
         public String getDisplayName() {
             return Messages.CloudifyBuildWrapper_DescriptorImpl_displayName();
@@ -347,9 +631,13 @@ public class CloudifyBuildWrapper extends SimpleBuildWrapper {
         return new ToStringBuilder(this).appendSuper(super.toString()).append("credentialsId", credentialsId)
                 .append("tenant", tenant).append("blueprintId", blueprintId)
                 .append("blueprintMainFile", blueprintMainFile).append("blueprintRootDirectory", blueprintRootDirectory)
-                .append("blueprintArchiveUrl", blueprintArchiveUrl).append("deploymentId", deploymentId)
+                .append("blueprintArchiveUrl", blueprintArchiveUrl)
+                .append("skipUnchangedBlueprintUpload", skipUnchangedBlueprintUpload).append("deploymentId", deploymentId)
                 .append("inputs", inputs).append("inputsLocation", inputsLocation)
                 .append("outputsLocation", outputsLocation).append("ignoreFailureOnTeardown", ignoreFailureOnTeardown)
+                .append("detachedTeardown", detachedTeardown).append("pooled", pooled)
+                .append("poolMinSize", poolMinSize).append("poolMaxSize", poolMaxSize)
+                .append("releasePolicy", releasePolicy)
                 .append("echoInputs", echoInputs).append("echoOutputs", echoOutputs).append("debugOutput", debugOutput)
                 .toString();
     }
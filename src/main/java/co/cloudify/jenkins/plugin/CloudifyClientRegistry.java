@@ -0,0 +1,443 @@
+package co.cloudify.jenkins.plugin;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import co.cloudify.jenkins.plugin.upload.ManagerEndpoint;
+import co.cloudify.rest.client.CloudifyClient;
+
+/**
+ * A controller-wide registry of authenticated {@link CloudifyClient} instances.
+ * Creating a client involves setting up a new Jersey client and retrieving a
+ * token from Cloudify Manager; doing so for every build step puts considerable
+ * load on the manager. This registry caches clients per host, credentials and
+ * tenant, so all builds using the same combination share a single client (and,
+ * with it, a single connection pool and token).
+ *
+ * Cached clients are replaced before their token is due to expire, are evicted
+ * when the credentials they were created with change, and are dropped after
+ * being idle for a while.
+ *
+ * Clients obtained through {@link #getClient(String, String, String, boolean, String)}
+ * must be handed back through {@link #release(CloudifyClient)} once no longer
+ * needed. A client which is no longer cached is closed once all of its users
+ * have released it.
+ *
+ * Replacing a cached client doesn't renew the token of clients already handed
+ * out. Users holding a client for long (for example, while following an
+ * execution) should pass it through {@link #renew(CloudifyClient)} before each
+ * use, and switch to the client it returns.
+ *
+ * @author Isaac Shabtay
+ */
+public class CloudifyClientRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(CloudifyClientRegistry.class);
+
+    /**
+     * Age after which a cached client is replaced by one holding a fresh token.
+     * Cloudify Manager tokens are valid for 10 hours by default; refresh well
+     * before that.
+     */
+    private static final long TOKEN_REFRESH_MILLIS = Long.getLong(
+            CloudifyClientRegistry.class.getName() + ".tokenRefreshMinutes", TimeUnit.HOURS.toMinutes(8))
+            * TimeUnit.MINUTES.toMillis(1);
+    /** Period of inactivity after which a cached client is evicted. */
+    private static final long IDLE_TIMEOUT_MILLIS = Long.getLong(
+            CloudifyClientRegistry.class.getName() + ".idleTimeoutMinutes", 30) * TimeUnit.MINUTES.toMillis(1);
+
+    private static volatile CloudifyClientRegistry instance = new CloudifyClientRegistry(new ClientFactory() {
+        @Override
+        public CloudifyClient create(String host, String username, String password, boolean secured,
+                String tenant) {
+            return CloudifyClient.create(host, username, password, secured, tenant).withToken();
+        }
+
+        @Override
+        public void close(CloudifyClient client) throws Exception {
+            if (client instanceof AutoCloseable) {
+                ((AutoCloseable) client).close();
+            }
+        }
+    }, TOKEN_REFRESH_MILLIS, IDLE_TIMEOUT_MILLIS);
+
+    /**
+     * Creates new, authenticated clients, and closes them once they are no
+     * longer used. Exists mainly so tests can avoid contacting an actual manager.
+     */
+    interface ClientFactory {
+        CloudifyClient create(String host, String username, String password, boolean secured, String tenant);
+
+        /**
+         * @return An endpoint for requests that clients don't support, or
+         *         <code>null</code> if there is none.
+         */
+        default ManagerEndpoint createEndpoint(String host, String username, String password, boolean secured,
+                String tenant) {
+            return new ManagerEndpoint(host, secured, tenant, username, password);
+        }
+
+        /**
+         * Release the resources (such as the underlying Jersey client) held by a
+         * client.
+         *
+         * @param client client to close
+         *
+         * @throws Exception May be anything.
+         */
+        default void close(CloudifyClient client) throws Exception {
+            // Nothing to release by default.
+        }
+    }
+
+    private final ClientFactory factory;
+    private final long tokenRefreshMillis;
+    private final long idleTimeoutMillis;
+    private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<>();
+    /** Serializes creation of clients per key, without blocking other keys. */
+    private final ConcurrentMap<Key, Object> locks = new ConcurrentHashMap<>();
+    /** All clients not closed yet, whether cached or not; guarded by itself. */
+    private final Map<CloudifyClient, Entry> clients = new IdentityHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong closed = new AtomicLong();
+
+    CloudifyClientRegistry(final ClientFactory factory, final long tokenRefreshMillis, final long idleTimeoutMillis) {
+        this.factory = factory;
+        this.tokenRefreshMillis = tokenRefreshMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * @return The registry shared by all builds on this controller.
+     */
+    public static CloudifyClientRegistry get() {
+        return instance;
+    }
+
+    /**
+     * Replace the shared registry; for tests only.
+     *
+     * @param registry registry to use from now on
+     *
+     * @return The registry previously used.
+     */
+    static CloudifyClientRegistry setInstance(final CloudifyClientRegistry registry) {
+        CloudifyClientRegistry previous = instance;
+        instance = registry;
+        return previous;
+    }
+
+    /**
+     * Get an authenticated client, either from the cache or a newly created one.
+     * The client must be released through {@link #release(CloudifyClient)} once
+     * no longer needed.
+     *
+     * @param host     Cloudify Manager host
+     * @param username username to authenticate with
+     * @param password password to authenticate with
+     * @param secured  whether to use SSL
+     * @param tenant   tenant to operate on
+     *
+     * @return A {@link CloudifyClient} instance.
+     */
+    public CloudifyClient getClient(final String host, final String username, final String password,
+            final boolean secured, final String tenant) {
+        long now = System.currentTimeMillis();
+        evictExpired(now);
+
+        Key key = new Key(host, username, secured, tenant);
+        String passwordDigest = DigestUtils.sha256Hex(password.getBytes(StandardCharsets.UTF_8));
+        // Concurrent misses for the same key would otherwise each create a client.
+        synchronized (locks.computeIfAbsent(key, k -> new Object())) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.passwordDigest.equals(passwordDigest)
+                    && now - entry.createdAt < tokenRefreshMillis && entry.acquire(now)) {
+                hits.incrementAndGet();
+                return entry.client;
+            }
+
+            // Either no client, a client created with other credentials, or a client
+            // whose token is about to expire.
+            misses.incrementAndGet();
+            if (entry != null && entries.remove(key, entry)) {
+                logger.debug("Replacing cached client for {}", key);
+                evictions.incrementAndGet();
+                retire(entry);
+            }
+            CloudifyClient client = factory.create(host, username, password, secured, tenant);
+            Entry newEntry = new Entry(key, password, client,
+                    factory.createEndpoint(host, username, password, secured, tenant), passwordDigest, now);
+            newEntry.acquire(now);
+            synchronized (clients) {
+                clients.put(client, newEntry);
+            }
+            entries.put(key, newEntry);
+            return client;
+        }
+    }
+
+    /**
+     * Hand back a client obtained through
+     * {@link #getClient(String, String, String, boolean, String)}. If the client
+     * is no longer cached and this was its last user, it is closed.
+     *
+     * @param client client to release; may be <code>null</code>
+     */
+    public void release(final CloudifyClient client) {
+        if (client == null) {
+            return;
+        }
+        Entry entry;
+        synchronized (clients) {
+            entry = clients.get(client);
+        }
+        if (entry != null && entry.release(System.currentTimeMillis())) {
+            close(entry);
+        }
+    }
+
+    /**
+     * Check the age of a client's token, and get a client with a fresh token if
+     * it is due to expire. The client passed is not released; if a different
+     * client is returned, it must be released separately, through
+     * {@link #release(CloudifyClient)}.
+     *
+     * @param client a client obtained from this registry, and not released yet
+     *
+     * @return The same client, if its token is still fresh or the client wasn't
+     *         obtained from this registry; otherwise, a client for the same
+     *         manager, credentials and tenant, holding a fresh token.
+     */
+    public CloudifyClient renew(final CloudifyClient client) {
+        Entry entry;
+        synchronized (clients) {
+            entry = clients.get(client);
+        }
+        if (entry == null || System.currentTimeMillis() - entry.createdAt < tokenRefreshMillis) {
+            return client;
+        }
+        logger.debug("Renewing client for {}", entry.key);
+        return getClient(entry.key.host, entry.key.username, entry.password, entry.key.secured, entry.key.tenant);
+    }
+
+    /**
+     * @param client a client obtained from this registry, and not released yet
+     *
+     * @return An endpoint for the same manager, credentials and tenant as the
+     *         client, for requests the client doesn't support; or
+     *         <code>null</code> if there is none, or the client wasn't obtained
+     *         from this registry.
+     */
+    public ManagerEndpoint getEndpoint(final CloudifyClient client) {
+        synchronized (clients) {
+            Entry entry = clients.get(client);
+            return entry != null ? entry.endpoint : null;
+        }
+    }
+
+    private void evictExpired(final long now) {
+        List<Entry> evicted = new ArrayList<>();
+        for (Iterator<Map.Entry<Key, Entry>> iter = entries.entrySet().iterator(); iter.hasNext();) {
+            Map.Entry<Key, Entry> mapEntry = iter.next();
+            Entry entry = mapEntry.getValue();
+            // Clients in use are never idle.
+            boolean idle = entry.isUnused() && now - entry.lastAccessed >= idleTimeoutMillis;
+            if (idle || now - entry.createdAt >= tokenRefreshMillis) {
+                logger.debug("Evicting cached client for {}", mapEntry.getKey());
+                iter.remove();
+                evictions.incrementAndGet();
+                evicted.add(entry);
+            }
+        }
+        evicted.forEach(this::retire);
+    }
+
+    /**
+     * Mark a client, already removed from the cache, as retired; it is closed
+     * right away if unused, or otherwise once its last user releases it.
+     */
+    private void retire(final Entry entry) {
+        if (entry.retire()) {
+            close(entry);
+        }
+    }
+
+    private void close(final Entry entry) {
+        synchronized (clients) {
+            clients.remove(entry.client);
+        }
+        try {
+            factory.close(entry.client);
+            closed.incrementAndGet();
+        } catch (Exception ex) {
+            logger.warn("Failed closing Cloudify client", ex);
+        }
+    }
+
+    /**
+     * Drop all cached clients; for example, after the global configuration has
+     * changed.
+     */
+    public void invalidateAll() {
+        for (Iterator<Entry> iter = entries.values().iterator(); iter.hasNext();) {
+            Entry entry = iter.next();
+            iter.remove();
+            evictions.incrementAndGet();
+            retire(entry);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return Number of clients closed after being evicted and released.
+     */
+    public long getClosed() {
+        return closed.get();
+    }
+
+    public int getSize() {
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("size", getSize())
+                .append("hits", getHits())
+                .append("misses", getMisses())
+                .append("evictions", getEvictions())
+                .append("closed", getClosed())
+                .toString();
+    }
+
+    private static class Key {
+        private final String host;
+        private final String username;
+        private final boolean secured;
+        private final String tenant;
+
+        Key(final String host, final String username, final boolean secured, final String tenant) {
+            this.host = host;
+            this.username = username;
+            this.secured = secured;
+            this.tenant = tenant;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return secured == other.secured && Objects.equals(host, other.host)
+                    && Objects.equals(username, other.username) && Objects.equals(tenant, other.tenant);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(host, username, secured, tenant);
+        }
+
+        @Override
+        public String toString() {
+            return new ToStringBuilder(this)
+                    .append("host", host)
+                    .append("username", username)
+                    .append("secured", secured)
+                    .append("tenant", tenant)
+                    .toString();
+        }
+    }
+
+    private static class Entry {
+        private final Key key;
+        /** Kept for renewing the client; see {@link CloudifyClientRegistry#renew(CloudifyClient)}. */
+        private final String password;
+        private final CloudifyClient client;
+        private final ManagerEndpoint endpoint;
+        private final String passwordDigest;
+        private final long createdAt;
+        private volatile long lastAccessed;
+        private int users;
+        private boolean retired;
+
+        Entry(final Key key, final String password, final CloudifyClient client, final ManagerEndpoint endpoint,
+                final String passwordDigest, final long createdAt) {
+            this.key = key;
+            this.password = password;
+            this.client = client;
+            this.endpoint = endpoint;
+            this.passwordDigest = passwordDigest;
+            this.createdAt = createdAt;
+            this.lastAccessed = createdAt;
+        }
+
+        /**
+         * @return <code>false</code> if the client was already retired, and may
+         *         not be used anymore.
+         */
+        synchronized boolean acquire(final long now) {
+            if (retired) {
+                return false;
+            }
+            users++;
+            lastAccessed = now;
+            return true;
+        }
+
+        /**
+         * @return <code>true</code> if the client should be closed.
+         */
+        synchronized boolean release(final long now) {
+            if (users > 0) {
+                users--;
+            }
+            lastAccessed = now;
+            return retired && users == 0;
+        }
+
+        /**
+         * @return <code>true</code> if the client should be closed.
+         */
+        synchronized boolean retire() {
+            if (retired) {
+                return false;
+            }
+            retired = true;
+            return users == 0;
+        }
+
+        synchronized boolean isUnused() {
+            return users == 0;
+        }
+    }
+}
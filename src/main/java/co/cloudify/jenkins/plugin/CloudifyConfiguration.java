@@ -44,6 +44,7 @@ public class CloudifyConfiguration extends GlobalConfiguration {
     private Boolean trustAllCerts = Boolean.FALSE;
     private String defaultTenant;
     private URL integrationBlueprintsArchiveUrl;
+    private boolean sharedExecutionPoller;
 
     @DataBoundConstructor
     public CloudifyConfiguration() {
@@ -68,6 +69,7 @@ public class CloudifyConfiguration extends GlobalConfiguration {
     public void setHost(String host) {
         this.host = host;
         save();
+        CloudifyClientRegistry.get().invalidateAll();
     }
 
     public boolean isSecured() {
@@ -78,6 +80,7 @@ public class CloudifyConfiguration extends GlobalConfiguration {
     public void setSecured(boolean secured) {
         this.secured = secured;
         save();
+        CloudifyClientRegistry.get().invalidateAll();
     }
 
     public boolean isTrustAllCerts() {
@@ -109,6 +112,16 @@ public class CloudifyConfiguration extends GlobalConfiguration {
         save();
     }
 
+    public boolean isSharedExecutionPoller() {
+        return sharedExecutionPoller;
+    }
+
+    @DataBoundSetter
+    public void setSharedExecutionPoller(boolean sharedExecutionPoller) {
+        this.sharedExecutionPoller = sharedExecutionPoller;
+        save();
+    }
+
     public FormValidation doCheckHost(@QueryParameter String value) {
         return FormValidation.validateRequired(value);
     }
@@ -192,12 +205,31 @@ public class CloudifyConfiguration extends GlobalConfiguration {
         Validate.notBlank(username);
         Validate.notBlank(password);
 
-        String effectiveTenant = tenant != null ? tenant : StringUtils.trimToNull(config.getDefaultTenant());
-        effectiveTenant = StringUtils.defaultString(effectiveTenant, CloudifyClient.DEFAULT_TENANT_ID);
-        return CloudifyClient.create(
+        return CloudifyClientRegistry.get().getClient(
                 config.getHost(), username,
                 password,
-                config.isSecured(), effectiveTenant)
-                .withToken();
+                config.isSecured(), getEffectiveTenant(config, tenant));
+    }
+
+    /**
+     * Hand back a client obtained through one of the
+     * <code>getCloudifyClient</code> methods, once it is no longer needed.
+     * 
+     * @param client client to release; may be <code>null</code>
+     */
+    public static void releaseCloudifyClient(final CloudifyClient client) {
+        CloudifyClientRegistry.get().release(client);
+    }
+
+    /**
+     * @param config configuration to use
+     * @param tenant tenant specified by the user; may be <code>null</code>
+     * 
+     * @return The tenant actually operated on: the one specified, or the
+     *         configured default tenant, or Cloudify's default tenant.
+     */
+    public static String getEffectiveTenant(final CloudifyConfiguration config, final String tenant) {
+        String effectiveTenant = tenant != null ? tenant : StringUtils.trimToNull(config.getDefaultTenant());
+        return StringUtils.defaultString(effectiveTenant, CloudifyClient.DEFAULT_TENANT_ID);
     }
 }
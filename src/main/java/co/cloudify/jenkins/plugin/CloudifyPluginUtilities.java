@@ -1,16 +1,22 @@
 package co.cloudify.jenkins.plugin;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
@@ -21,6 +27,8 @@ import javax.json.JsonWriter;
 import javax.json.JsonWriterFactory;
 import javax.json.stream.JsonGenerator;
 
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
@@ -29,35 +37,58 @@ import org.jenkinsci.plugins.plaincredentials.StringCredentials;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
 import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.common.IdCredentials;
 import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 import com.fasterxml.jackson.module.jaxb.JaxbAnnotationModule;
 
+import co.cloudify.jenkins.plugin.callables.BlueprintDigestFileCallable;
+import co.cloudify.jenkins.plugin.callables.OutputsTransformFileCallable;
+import co.cloudify.jenkins.plugin.callables.YamlOrJsonReaderFileCallable;
+import co.cloudify.jenkins.plugin.executions.AdaptivePollingFollowStrategy;
+import co.cloudify.jenkins.plugin.executions.EventCountingExecutionFollower;
+import co.cloudify.jenkins.plugin.executions.ExecutionFollowStrategy;
+import co.cloudify.jenkins.plugin.executions.SharedPollerFollowStrategy;
+import co.cloudify.jenkins.plugin.teardown.EnvironmentOwner;
+import co.cloudify.jenkins.plugin.teardown.EnvironmentRegistry;
+import co.cloudify.jenkins.plugin.teardown.TeardownQueue;
+import co.cloudify.jenkins.plugin.teardown.TeardownTask;
+import co.cloudify.jenkins.plugin.upload.ManagerEndpoint;
+import co.cloudify.jenkins.plugin.upload.ManagerResponseException;
 import co.cloudify.rest.client.CloudifyClient;
 import co.cloudify.rest.client.DeploymentsClient;
+import co.cloudify.rest.client.exceptions.BlueprintNotFoundException;
 import co.cloudify.rest.helpers.DefaultExecutionFollowCallback;
 import co.cloudify.rest.helpers.DeploymentsHelper;
 import co.cloudify.rest.helpers.ExecutionFollowCallback;
 import co.cloudify.rest.helpers.ExecutionsHelper;
-import co.cloudify.rest.helpers.PrintStreamLogEmitterExecutionFollower;
+import co.cloudify.rest.model.Blueprint;
 import co.cloudify.rest.model.Deployment;
 import co.cloudify.rest.model.EventLevel;
 import co.cloudify.rest.model.Execution;
+import co.cloudify.rest.model.ListResponse;
 import hudson.AbortException;
 import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.Util;
+import hudson.model.Item;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
 import hudson.util.FormValidation;
 import hudson.util.VariableResolver;
+import jenkins.model.Jenkins;
 import net.sf.json.JSONException;
+import net.sf.json.JSONNull;
 import net.sf.json.JSONObject;
 
 /**
@@ -68,11 +99,62 @@ import net.sf.json.JSONObject;
 public class CloudifyPluginUtilities {
     private static final Logger logger = LoggerFactory.getLogger(CloudifyPluginUtilities.class);
 
+    /**
+     * Jackson readers and writers used by this class. Building an
+     * {@link ObjectMapper} (and populating its serializer caches) is expensive,
+     * so this is done once, lazily, on first use. {@link ObjectReader} and
+     * {@link ObjectWriter} instances are immutable and safe to share between
+     * threads.
+     */
+    private static class Mappers {
+        private static final ObjectReader YAML_READER = new ObjectMapper(new YAMLFactory())
+                .readerFor(JSONObject.class);
+        private static final ObjectReader JSON_READER = new ObjectMapper()
+                .readerFor(JSONObject.class);
+        private static final ObjectWriter JAXB_WRITER = new ObjectMapper()
+                .registerModule(new JaxbAnnotationModule())
+                .writer(SerializationFeature.INDENT_OUTPUT);
+        private static final ObjectWriter JSON_WRITER = new ObjectMapper().writer();
+    }
+
     public static StandardUsernamePasswordCredentials getUsernamePasswordCredentials(final String credentialsId,
             final Run<?, ?> run) {
         return getCredentials(credentialsId, StandardUsernamePasswordCredentials.class, run);
     }
 
+    /**
+     * Looks up credentials outside of any build; used for work done in the
+     * background on behalf of builds, which may have since been deleted.
+     * Credentials are looked up in the context of the build's job if it still
+     * exists, or else in the context of Jenkins itself.
+     *
+     * @param credentialsId ID of credentials to look up
+     * @param runId         externalizable ID of the build on whose behalf the
+     *                      credentials are used; may be <code>null</code>
+     *
+     * @return The credentials.
+     */
+    public @Nonnull static StandardUsernamePasswordCredentials getUsernamePasswordCredentials(
+            final String credentialsId, final String runId) {
+        Jenkins jenkins = Jenkins.get();
+        List<StandardUsernamePasswordCredentials> candidates;
+        try (ACLContext ctx = ACL.as(ACL.SYSTEM)) {
+            Item item = runId != null ? jenkins.getItemByFullName(StringUtils.substringBeforeLast(runId, "#"))
+                    : null;
+            candidates = item != null
+                    ? CredentialsProvider.lookupCredentials(StandardUsernamePasswordCredentials.class, item,
+                            ACL.SYSTEM, Collections.emptyList())
+                    : CredentialsProvider.lookupCredentials(StandardUsernamePasswordCredentials.class, jenkins,
+                            ACL.SYSTEM, Collections.emptyList());
+        }
+        StandardUsernamePasswordCredentials creds = CredentialsMatchers.firstOrNull(candidates,
+                CredentialsMatchers.withId(credentialsId));
+        if (creds == null) {
+            throw new IllegalArgumentException(String.format("Couldn't find credentials by ID: '%s'", credentialsId));
+        }
+        return creds;
+    }
+
     public static StringCredentials getStringCredentials(final String credentialsId, final Run<?, ?> run) {
         return getCredentials(credentialsId, StringCredentials.class, run);
     }
@@ -137,7 +219,28 @@ public class CloudifyPluginUtilities {
      */
     public static Map<String, Object> getCombinedMap(final FilePath workspace, final String filename, final String str,
             final Map<String, ?> map) throws IOException, InterruptedException {
-        Map<String, Object> m = readYamlOrJson(workspace, filename, str);
+        return getCombinedMap(workspace, filename, str, map, null);
+    }
+
+    /**
+     * Returns a combined map from file contents, string contents and an actual
+     * {@link Map}, reporting how much data reading the file kept from going over
+     * the remoting channel.
+     * 
+     * @param workspace  path to workspace
+     * @param filename   name of file to read map from
+     * @param str        string to parse for parameters
+     * @param map        of parameters, to add to the resultant map
+     * @param jenkinsLog log to report to; may be <code>null</code>
+     * 
+     * @return Combined map.
+     * 
+     * @throws IOException          A problem occurred accessing the map file
+     * @throws InterruptedException The build was interrupted during execution
+     */
+    public static Map<String, Object> getCombinedMap(final FilePath workspace, final String filename, final String str,
+            final Map<String, ?> map, final PrintStream jenkinsLog) throws IOException, InterruptedException {
+        Map<String, Object> m = readYamlOrJson(workspace, filename, str, jenkinsLog);
         if (map != null) {
             m.putAll(map);
         }
@@ -170,12 +273,67 @@ public class CloudifyPluginUtilities {
     public static ExecutionFollowCallback getExecutionFollowCallback(final boolean printLogs, final boolean debugOutput,
             final CloudifyClient cloudifyClient, final PrintStream jenkinsLog) {
         ExecutionFollowCallback callback = printLogs
-                ? new PrintStreamLogEmitterExecutionFollower(cloudifyClient, jenkinsLog,
+                ? EventCountingExecutionFollower.create(cloudifyClient, jenkinsLog,
                         debugOutput ? EventLevel.debug : EventLevel.info)
                 : DefaultExecutionFollowCallback.getInstance();
         return callback;
     }
 
+    /**
+     * @return The {@link ExecutionFollowStrategy} to use for following
+     *         executions, according to the plugin's configuration.
+     */
+    public static ExecutionFollowStrategy getExecutionFollowStrategy() {
+        CloudifyConfiguration config = CloudifyConfiguration.get();
+        return config != null && config.isSharedExecutionPoller()
+                ? new SharedPollerFollowStrategy()
+                : new AdaptivePollingFollowStrategy();
+    }
+
+    /**
+     * Start a workflow and follow its execution until it ends.
+     * 
+     * @param client       Cloudify client to use
+     * @param deploymentId deployment to execute the workflow on
+     * @param workflowId   workflow to execute
+     * @param parameters   execution parameters (may be <code>null</code>)
+     * @param follower     callback to invoke during following
+     * @param jenkinsLog   Jenkins' log stream
+     * 
+     * @return The execution, in its terminal state.
+     * 
+     * @throws InterruptedException The build was interrupted while waiting.
+     */
+    public static Execution executeAndFollow(final CloudifyClient client, final String deploymentId,
+            final String workflowId, final Map<String, Object> parameters, final ExecutionFollowCallback follower,
+            final PrintStream jenkinsLog) throws InterruptedException {
+        return executeAndFollow(client, deploymentId, workflowId, parameters, follower, jenkinsLog,
+                getExecutionFollowStrategy());
+    }
+
+    /**
+     * Start a workflow and follow its execution until it ends, using a specific
+     * strategy.
+     * 
+     * @param client         Cloudify client to use
+     * @param deploymentId   deployment to execute the workflow on
+     * @param workflowId     workflow to execute
+     * @param parameters     execution parameters (may be <code>null</code>)
+     * @param follower       callback to invoke during following
+     * @param jenkinsLog     Jenkins' log stream
+     * @param followStrategy strategy to follow the execution with
+     * 
+     * @return The execution, in its terminal state.
+     * 
+     * @throws InterruptedException The build was interrupted while waiting.
+     */
+    public static Execution executeAndFollow(final CloudifyClient client, final String deploymentId,
+            final String workflowId, final Map<String, Object> parameters, final ExecutionFollowCallback follower,
+            final PrintStream jenkinsLog, final ExecutionFollowStrategy followStrategy) throws InterruptedException {
+        Execution execution = client.getExecutionsClient().start(deploymentId, workflowId, parameters);
+        return followStrategy.follow(client, execution, follower, jenkinsLog);
+    }
+
     /**
      * Write a JAXB-annotated object to a file as JSON. We isolate this
      * functionality to one class only, as it uses facilities that are not a part of
@@ -189,11 +347,8 @@ public class CloudifyPluginUtilities {
      */
     public static void writeBoundObject(final Object object, final FilePath outputFile)
             throws IOException, InterruptedException {
-        ObjectMapper mapper = new ObjectMapper();
-        mapper.enable(SerializationFeature.INDENT_OUTPUT);
-        mapper.registerModule(new JaxbAnnotationModule());
         try (OutputStream os = outputFile.write()) {
-            mapper.writeValue(os, object);
+            Mappers.JAXB_WRITER.writeValue(os, object);
         }
     }
 
@@ -216,7 +371,9 @@ public class CloudifyPluginUtilities {
     }
 
     /**
-     * Reads a JSON file from a {@link FilePath}.
+     * Reads a YAML or a JSON file from a {@link FilePath}. The file is parsed on
+     * the machine where it resides, and only the parsed contents go over the
+     * remoting channel.
      * 
      * @param path path to the resource
      * 
@@ -226,24 +383,55 @@ public class CloudifyPluginUtilities {
      * @throws InterruptedException May be thrown by underlying framework.
      */
     public static Map<String, Object> readYamlOrJson(final FilePath path) throws IOException, InterruptedException {
-        ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
-        try (InputStream is = path.read()) {
-            return mapper.readValue(is, JSONObject.class);
-        } catch (JsonParseException | JsonMappingException yamlEx) {
-            try (InputStream is = path.read()) {
-                return JSONObject.fromObject(IOUtils.toString(is, StandardCharsets.UTF_8));
-            } catch (JSONException jEx) {
-                // We failed parsing as either YAML or JSON.
-                // Log the full stack traces of both exceptions, as we're going to lose them
-                // (we throw a RuntimeException from here, with no cause).
-                logger.error(String.format("Failed to parse %s as YAML", path), yamlEx);
-                logger.error(String.format("Failed to parse %s as JSON", path), jEx);
-                throw new RuntimeException(String.format(
-                        "Failed to parse %s as either YAML or JSON; YAML exception text: %s, JSON exception text: %s",
-                        path, yamlEx.getMessage(), jEx.getMessage()));
-            }
+        return readYamlOrJson(path, null);
+    }
+
+    /**
+     * Reads a YAML or a JSON file from a {@link FilePath}, reporting how much
+     * data was kept from going over the remoting channel.
+     * 
+     * @param path       path to the resource
+     * @param jenkinsLog log to report to; may be <code>null</code>
+     * 
+     * @return A JSON object.
+     * 
+     * @throws IOException          May be thrown by underlying framework.
+     * @throws InterruptedException May be thrown by underlying framework.
+     */
+    public static Map<String, Object> readYamlOrJson(final FilePath path, final PrintStream jenkinsLog)
+            throws IOException, InterruptedException {
+        YamlOrJsonReaderFileCallable.Result result = path.act(new YamlOrJsonReaderFileCallable());
+        logTransfer(jenkinsLog, String.format("Parsed %s", path), result.getBytesRead(),
+                result.getBytesReturned());
+        return result.getContents();
+    }
+
+    /**
+     * Report the amount of data returned by a file parsed in place.
+     */
+    private static void logTransfer(final PrintStream jenkinsLog, final String description, final long bytesRead,
+            final long bytesReturned) {
+        String message = String.format("%s: %d bytes parsed in place, ~%d bytes returned", description, bytesRead,
+                bytesReturned);
+        logger.debug(message);
+        if (jenkinsLog != null) {
+            jenkinsLog.println(message);
         }
-        // All other IOException's should percolate.
+    }
+
+    /**
+     * Reads a YAML or a JSON file from a local {@link File}. The file is read
+     * exactly once; all parsing attempts are done on the in-memory contents.
+     * 
+     * @param file file to read
+     * 
+     * @return A JSON object.
+     * 
+     * @throws IOException May be thrown by underlying framework.
+     */
+    public static Map<String, Object> readYamlOrJson(final File file) throws IOException {
+        // All IOException's should percolate.
+        return parseYamlOrJson(FileUtils.readFileToString(file, StandardCharsets.UTF_8), file.toString());
     }
 
     /**
@@ -260,21 +448,45 @@ public class CloudifyPluginUtilities {
         if (StringUtils.isBlank(str)) {
             return Collections.emptyMap();
         }
-        ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
+        return parseYamlOrJson(str, "string");
+    }
+
+    /**
+     * Parse contents that are either YAML or JSON. Contents that look like a JSON
+     * object are first given to the (cheaper, stricter) JSON parser; everything
+     * else, as well as JSON that failed strict parsing, goes through the YAML
+     * parser, with json-lib as the last resort.
+     * 
+     * @param contents    contents to parse
+     * @param description description of the contents' source, for error messages
+     * 
+     * @return A {@link JSONObject} containing the parsed data.
+     * 
+     * @throws IOException May be thrown by underlying framework.
+     */
+    private static Map<String, Object> parseYamlOrJson(final String contents, final String description)
+            throws IOException {
+        if (StringUtils.startsWith(StringUtils.stripStart(contents, null), "{")) {
+            try {
+                return Mappers.JSON_READER.readValue(contents);
+            } catch (JsonParseException | JsonMappingException ex) {
+                logger.debug(String.format("Failed to parse %s as strict JSON", description), ex);
+            }
+        }
         try {
-            return mapper.readValue(str, JSONObject.class);
+            return Mappers.YAML_READER.readValue(contents);
         } catch (JsonParseException | JsonMappingException yamlEx) {
             try {
-                return JSONObject.fromObject(str);
+                return JSONObject.fromObject(contents);
             } catch (JSONException jEx) {
                 // We failed parsing as either YAML or JSON.
                 // Log the full stack traces of both exceptions, as we're going to lose them
                 // (we throw a RuntimeException from here, with no cause).
-                logger.error("Failed to parse string as YAML", yamlEx);
-                logger.error("Failed to parse string as JSON", jEx);
+                logger.error(String.format("Failed to parse %s as YAML", description), yamlEx);
+                logger.error(String.format("Failed to parse %s as JSON", description), jEx);
                 throw new RuntimeException(String.format(
-                        "Failed to parse string as either YAML or JSON; YAML exception text: %s, JSON exception text: %s",
-                        yamlEx.getMessage(), jEx.getMessage()));
+                        "Failed to parse %s as either YAML or JSON; YAML exception text: %s, JSON exception text: %s",
+                        description, yamlEx.getMessage(), jEx.getMessage()));
             }
         }
     }
@@ -295,11 +507,33 @@ public class CloudifyPluginUtilities {
      */
     public static <T> Map<String, T> readYamlOrJson(final FilePath workspace, final String contentsFile,
             final String contents) throws IOException, InterruptedException {
+        return readYamlOrJson(workspace, contentsFile, contents, null);
+    }
+
+    /**
+     * Creates a {@link Map} from a combination of a file and string contents,
+     * reporting how much data reading the file kept from going over the remoting
+     * channel.
+     * 
+     * @param workspace    build's workspace root
+     * @param contents     YAML/JSON contents, as a string (may be
+     *                     <code>null</code>)
+     * @param contentsFile workspace location of a YAML/JSON file (may be
+     *                     <code>null</code>, may not exist)
+     * @param jenkinsLog   log to report to; may be <code>null</code>
+     * 
+     * @return Combined {@link Map}.
+     * 
+     * @throws IOException          Thrown by underlying code.
+     * @throws InterruptedException Thrown by underlying code.
+     */
+    public static <T> Map<String, T> readYamlOrJson(final FilePath workspace, final String contentsFile,
+            final String contents, final PrintStream jenkinsLog) throws IOException, InterruptedException {
         Map mapping = new LinkedHashMap<>();
         if (contentsFile != null) {
             Validate.notNull(workspace, "'contentsFile' was provided, but workspace location is null");
             FilePath contentsFilePath = workspace.child(contentsFile);
-            mapping.putAll(readYamlOrJson(contentsFilePath));
+            mapping.putAll(readYamlOrJson(contentsFilePath, jenkinsLog));
         }
         if (contents != null) {
             mapping.putAll(readYamlOrJson(contents));
@@ -317,7 +551,8 @@ public class CloudifyPluginUtilities {
     }
 
     /**
-     * Transform a standard outputs/capabilities file by using a mapping.
+     * Transform a standard outputs/capabilities file by using a mapping. The file
+     * is parsed and transformed on the machine where it resides.
      * 
      * @param outputsFile file containing outputs
      * @param mapping     mapping structure
@@ -328,7 +563,38 @@ public class CloudifyPluginUtilities {
      */
     public static void transformOutputsFile(final FilePath outputsFile, final Map<String, Map<String, String>> mapping,
             final Map<String, Object> results) throws IOException, InterruptedException {
-        Map<String, Object> outputsContents = readYamlOrJson(outputsFile);
+        transformOutputsFile(outputsFile, mapping, results, null);
+    }
+
+    /**
+     * Transform a standard outputs/capabilities file by using a mapping,
+     * reporting how much data was kept from going over the remoting channel.
+     * 
+     * @param outputsFile file containing outputs
+     * @param mapping     mapping structure
+     * @param results     {@link Map} to populate with results
+     * @param jenkinsLog  log to report to; may be <code>null</code>
+     * 
+     * @throws IOException          problem occurred reading the outputs file
+     * @throws InterruptedException The build was interrupted during execution
+     */
+    public static void transformOutputsFile(final FilePath outputsFile, final Map<String, Map<String, String>> mapping,
+            final Map<String, Object> results, final PrintStream jenkinsLog) throws IOException, InterruptedException {
+        OutputsTransformFileCallable.Result result = outputsFile.act(new OutputsTransformFileCallable(mapping));
+        logTransfer(jenkinsLog, String.format("Transformed %s", outputsFile), result.getBytesRead(),
+                result.getBytesReturned());
+        results.putAll(result.getValues());
+    }
+
+    /**
+     * Transform standard outputs/capabilities contents by using a mapping.
+     * 
+     * @param outputsContents parsed outputs/capabilities
+     * @param mapping         mapping structure
+     * @param results         {@link Map} to populate with results
+     */
+    public static void transformOutputs(final Map<String, Object> outputsContents,
+            final Map<String, Map<String, String>> mapping, final Map<String, Object> results) {
         for (Map.Entry<String, Map<String, String>> entry : mapping.entrySet()) {
             transform(entry.getValue(), results,
                     (Map<String, Object>) outputsContents.getOrDefault(entry.getKey(), Collections.EMPTY_MAP));
@@ -366,9 +632,10 @@ public class CloudifyPluginUtilities {
             FilePath expectedLocation = workspace.child(inputsFile);
             if (expectedLocation.exists()) {
                 jenkinsLog.println(String.format("Reading inputs from %s", expectedLocation));
-                Map<String, Map<String, String>> mappingJson = readYamlOrJson(workspace, mappingFile, mapping);
+                Map<String, Map<String, String>> mappingJson = readYamlOrJson(workspace, mappingFile, mapping,
+                        jenkinsLog);
                 if (mappingJson != null) {
-                    transformOutputsFile(expectedLocation, mappingJson, inputsMap);
+                    transformOutputsFile(expectedLocation, mappingJson, inputsMap, jenkinsLog);
                 }
             } else {
                 jenkinsLog.println(String.format("Deployment inputs file not found, skipping: %s", inputsFile));
@@ -380,7 +647,47 @@ public class CloudifyPluginUtilities {
     public static CloudifyEnvironmentData createEnvironment(TaskListener listener, FilePath workspace,
             CloudifyClient client, String blueprintId, String deploymentId, Map<String, Object> inputs,
             String outputsLocation, boolean skipInstall, boolean echoInputs, boolean echoOutputs, boolean debugOutput,
-            Predicate<String> inputPrintPredicate) throws IOException, InterruptedException {
+            Predicate<String> inputPrintPredicate, EnvironmentOwner owner) throws IOException, InterruptedException {
+        return createEnvironment(listener, workspace, client, blueprintId, deploymentId, inputs, outputsLocation,
+                skipInstall, echoInputs, echoOutputs, debugOutput, inputPrintPredicate, owner,
+                getExecutionFollowStrategy());
+    }
+
+    /**
+     * Create a Cloudify environment, following its installation with a
+     * specific strategy.
+     * 
+     * @param listener            Jenkins task listener
+     * @param workspace           Jenkins workspace location
+     * @param client              Cloudify client object
+     * @param blueprintId         ID of blueprint to create environment from
+     * @param deploymentId        ID of deployment to create
+     * @param inputs              deployment inputs
+     * @param outputsLocation     location of file to write environment data to;
+     *                            may be <code>null</code>
+     * @param skipInstall         if <code>true</code>, only create the
+     *                            deployment
+     * @param echoInputs          whether to print the inputs
+     * @param echoOutputs         whether to print environment data
+     * @param debugOutput         whether to emit debug-level logging
+     * @param inputPrintPredicate a predicate to test whether an input value should
+     *                            be printed
+     * @param owner               owner of the environment, for tracking it; may
+     *                            be <code>null</code>
+     * @param followStrategy      strategy to follow the installation with
+     * 
+     * @return A {@link CloudifyEnvironmentData} instance containing information
+     *         about the new environment.
+     * 
+     * @throws IOException          Percolated from called code
+     * @throws InterruptedException Percolated from called code
+     */
+    public static CloudifyEnvironmentData createEnvironment(final TaskListener listener, final FilePath workspace,
+            final CloudifyClient client, final String blueprintId, final String deploymentId,
+            final Map<String, Object> inputs, final String outputsLocation, final boolean skipInstall,
+            final boolean echoInputs, final boolean echoOutputs, final boolean debugOutput,
+            final Predicate<String> inputPrintPredicate, final EnvironmentOwner owner,
+            final ExecutionFollowStrategy followStrategy) throws IOException, InterruptedException {
         PrintStream logger = listener.getLogger();
         ExecutionFollowCallback follower = CloudifyPluginUtilities.getExecutionFollowCallback(true, debugOutput, client,
                 logger);
@@ -398,31 +705,20 @@ public class CloudifyPluginUtilities {
             logger.println(creatingMessage);
             Deployment deployment = DeploymentsHelper.createDeploymentAndWait(client, deploymentId, blueprintId, inputs,
                     follower, ExecutionsHelper.DEFAULT_POLLING_INTERVAL);
+            if (owner != null) {
+                // Tracked from now on, so it can be found even if installing it
+                // fails, or it is never deleted.
+                EnvironmentRegistry.get().track(owner, deploymentId, blueprintId);
+            }
             if (!skipInstall) {
                 logger.println("Executing the 'install' workflow");
-                Execution execution = ExecutionsHelper.install(client, deployment.getId(), follower,
-                        ExecutionsHelper.DEFAULT_POLLING_INTERVAL);
+                Execution execution = executeAndFollow(client, deployment.getId(), "install", null, follower,
+                        logger, followStrategy);
                 ExecutionsHelper.validateCompleted(execution, "Environment setup failed");
             }
 
-            DeploymentsClient deploymentsClient = client.getDeploymentsClient();
-            Map<String, Object> outputs = deploymentsClient.getOutputs(deployment);
-            Map<String, Object> capabilities = deploymentsClient.getCapabilities(deployment);
-
-            CloudifyEnvironmentData data = new CloudifyEnvironmentData(blueprintId, deployment, outputs, capabilities);
-
-            JsonObject dataJsonObject = data.toJson();
-
-            if (echoOutputs) {
-                logger.println(String.format("Environment data: %s", toString(dataJsonObject)));
-            }
-            if (outputsLocation != null) {
-                FilePath outputFilePath = workspace.child(outputsLocation);
-                logger.println(String.format("Writing environment data to %s", outputFilePath));
-                CloudifyPluginUtilities.writeJson(dataJsonObject, outputFilePath);
-            }
-
-            return data;
+            return getEnvironmentData(listener, workspace, client, blueprintId, deployment, outputsLocation,
+                    echoOutputs);
         } catch (IOException | InterruptedException ex) {
             throw ex;
         } catch (Exception ex) {
@@ -431,6 +727,49 @@ public class CloudifyPluginUtilities {
         }
     }
 
+    /**
+     * Collect the data of an existing environment: its outputs and
+     * capabilities.
+     * 
+     * @param listener        Jenkins task listener
+     * @param workspace       Jenkins workspace location
+     * @param client          Cloudify client object
+     * @param blueprintId     ID of the environment's blueprint
+     * @param deployment      the environment's deployment
+     * @param outputsLocation location of file to write environment data to; may
+     *                        be <code>null</code>
+     * @param echoOutputs     whether to print environment data
+     * 
+     * @return A {@link CloudifyEnvironmentData} instance containing information
+     *         about the environment.
+     * 
+     * @throws IOException          Percolated from called code
+     * @throws InterruptedException Percolated from called code
+     */
+    public static CloudifyEnvironmentData getEnvironmentData(final TaskListener listener, final FilePath workspace,
+            final CloudifyClient client, final String blueprintId, final Deployment deployment,
+            final String outputsLocation, final boolean echoOutputs) throws IOException, InterruptedException {
+        PrintStream logger = listener.getLogger();
+        DeploymentsClient deploymentsClient = client.getDeploymentsClient();
+        Map<String, Object> outputs = deploymentsClient.getOutputs(deployment);
+        Map<String, Object> capabilities = deploymentsClient.getCapabilities(deployment);
+
+        CloudifyEnvironmentData data = new CloudifyEnvironmentData(blueprintId, deployment, outputs, capabilities);
+
+        JsonObject dataJsonObject = data.toJson();
+
+        if (echoOutputs) {
+            logger.println(String.format("Environment data: %s", toString(dataJsonObject)));
+        }
+        if (outputsLocation != null) {
+            FilePath outputFilePath = workspace.child(outputsLocation);
+            logger.println(String.format("Writing environment data to %s", outputFilePath));
+            CloudifyPluginUtilities.writeJson(dataJsonObject, outputFilePath);
+        }
+
+        return data;
+    }
+
     /**
      * Create a Cloudify environment.
      * 
@@ -452,6 +791,8 @@ public class CloudifyPluginUtilities {
      * @param debugOutput         whether to emit debug-level logging
      * @param inputPrintPredicate a predicate to test whether an input value should
      *                            be printed
+     * @param owner               owner of the environment, for tracking it; may
+     *                            be <code>null</code>
      * 
      * @return A {@link CloudifyEnvironmentData} instance containing information
      *         about the new environment.
@@ -462,12 +803,12 @@ public class CloudifyPluginUtilities {
     public static CloudifyEnvironmentData createEnvironment(TaskListener listener, FilePath workspace,
             CloudifyClient client, String blueprintId, String deploymentId, String inputs, String inputsLocation,
             String mapping, String mappingLocation, String outputsLocation, boolean skipInstall, boolean echoInputs,
-            boolean echoOutputs, boolean debugOutput, Predicate<String> inputPrintPredicate)
+            boolean echoOutputs, boolean debugOutput, Predicate<String> inputPrintPredicate, EnvironmentOwner owner)
             throws IOException, InterruptedException {
         Map<String, Object> inputsMap = CloudifyPluginUtilities.createInputsMap(workspace, listener, inputs,
                 inputsLocation, mapping, mappingLocation);
         return createEnvironment(listener, workspace, client, blueprintId, deploymentId, inputsMap, outputsLocation,
-                skipInstall, echoInputs, echoOutputs, debugOutput, inputPrintPredicate);
+                skipInstall, echoInputs, echoOutputs, debugOutput, inputPrintPredicate, owner);
     }
 
     /**
@@ -481,21 +822,28 @@ public class CloudifyPluginUtilities {
      * @param skipUninstall   skip running the <code>uninstall</code> workflow
      * @param ignoreFailure   whether to ignore failures during deletion
      * @param debugOutput     emit debug statements
+     * @param owner           owner of the environment; if provided, the
+     *                        environment stops being tracked once deleted, and
+     *                        a failed deletion is retried in the background
      * 
      * @throws IOException          Percolated from called code
      * @throws InterruptedException Percolated from called code
      */
     public static void deleteEnvironment(final TaskListener listener, final CloudifyClient client,
             final String deploymentId, final long pollingInterval, final boolean skipUninstall,
-            final Boolean ignoreFailure, final boolean debugOutput) throws IOException, InterruptedException {
+            final Boolean ignoreFailure, final boolean debugOutput, final EnvironmentOwner owner)
+            throws IOException, InterruptedException {
         PrintStream logger = listener.getLogger();
         ExecutionFollowCallback follower = CloudifyPluginUtilities.getExecutionFollowCallback(true, debugOutput, client,
                 logger);
         try {
             if (!skipUninstall) {
                 logger.println("Executing the 'uninstall' workflow");
-                Execution execution = ExecutionsHelper.uninstall(client, deploymentId, ignoreFailure, follower,
-                        ExecutionsHelper.DEFAULT_POLLING_INTERVAL);
+                Map<String, Object> parameters = ignoreFailure != null
+                        ? Collections.singletonMap("ignore_failure", ignoreFailure)
+                        : null;
+                Execution execution = executeAndFollow(client, deploymentId, "uninstall", parameters, follower,
+                        logger);
                 ExecutionsHelper.validateCompleted(execution, "Failed tearing down environment");
             }
             logger.println(String.format("Deleting deployment: %s", deploymentId));
@@ -504,8 +852,244 @@ public class CloudifyPluginUtilities {
             // Print the stack trace, as AbortException doesn't support
             // root causes and we don't want to lose the root cause.
             ex.printStackTrace(logger);
+            if (owner != null) {
+                TeardownTask task = TeardownTask.forEnvironment(owner, deploymentId, null, ignoreFailure,
+                        debugOutput);
+                task.setSkipUninstall(skipUninstall);
+                TeardownQueue.get().submitRetry(task, String.valueOf(ex.getMessage()));
+                EnvironmentRegistry.get().teardownQueued(
+                        EnvironmentRegistry.key(owner.getHost(), owner.getTenant(), deploymentId), task.getId());
+                logger.println(String.format("Teardown of deployment '%s' will be retried in the background",
+                        deploymentId));
+            }
             throw new AbortException("Failed tearing down environment");
         }
+        if (owner != null) {
+            EnvironmentRegistry.get().untrack(owner.getHost(), owner.getTenant(), deploymentId);
+        }
+    }
+
+    /**
+     * Computes the digest of a blueprint, on the machine where it resides.
+     * 
+     * @param location     blueprint archive or root directory
+     * @param mainFileName blueprint's main file name
+     * 
+     * @return The digest, as a hex string.
+     * 
+     * @throws IOException          Percolated from called code
+     * @throws InterruptedException Percolated from called code
+     */
+    public static String getBlueprintDigest(final FilePath location, final String mainFileName)
+            throws IOException, InterruptedException {
+        return location.act(new BlueprintDigestFileCallable(mainFileName));
+    }
+
+    /**
+     * Looks up a blueprint whose contents are identical to those about to be
+     * uploaded, so the upload may be skipped.
+     * 
+     * @param jenkinsLog  Jenkins log to write to
+     * @param client      Cloudify client to use
+     * @param tenant      tenant specified by the user; may be <code>null</code>
+     * @param blueprintId ID of blueprint about to be uploaded
+     * @param digest      digest of the contents about to be uploaded
+     * 
+     * @return The existing blueprint, or <code>null</code> if the blueprint
+     *         should be uploaded.
+     */
+    public static Blueprint getUnchangedBlueprint(final PrintStream jenkinsLog, final CloudifyClient client,
+            final String tenant, final String blueprintId, final String digest) {
+        CloudifyConfiguration config = CloudifyConfiguration.get();
+        String effectiveTenant = CloudifyConfiguration.getEffectiveTenant(config, tenant);
+        if (!digest.equals(BlueprintDigestIndex.get().getDigest(config.getHost(), effectiveTenant, blueprintId))) {
+            return null;
+        }
+        try {
+            Blueprint blueprint = client.getBlueprintsClient().get(blueprintId);
+            jenkinsLog.println(String.format("Blueprint '%s' is unchanged since last uploaded (digest: %s); reusing it",
+                    blueprintId, digest));
+            return blueprint;
+        } catch (BlueprintNotFoundException ex) {
+            // Deleted behind our back.
+            BlueprintDigestIndex.get().forget(config.getHost(), effectiveTenant, blueprintId);
+            return null;
+        }
+    }
+
+    /**
+     * Deletes a blueprint that was kept for reuse (see
+     * {@link #getUnchangedBlueprint(PrintStream, CloudifyClient, String, String, String)}),
+     * but whose contents have changed since, so the new contents can be uploaded
+     * under the same ID. Deployments still created from the stale blueprint are
+     * deleted first. Blueprints that weren't kept for reuse are left alone.
+     * 
+     * @param listener    Jenkins task listener
+     * @param client      Cloudify client to use
+     * @param tenant      tenant specified by the user; may be <code>null</code>
+     * @param blueprintId ID of blueprint about to be uploaded
+     * @param debugOutput emit debug statements
+     * 
+     * @return <code>true</code> if a stale blueprint was deleted.
+     * 
+     * @throws IOException          Percolated from called code
+     * @throws InterruptedException Percolated from called code
+     */
+    public static boolean deleteStaleBlueprint(final TaskListener listener, final CloudifyClient client,
+            final String tenant, final String blueprintId, final boolean debugOutput)
+            throws IOException, InterruptedException {
+        CloudifyConfiguration config = CloudifyConfiguration.get();
+        String effectiveTenant = CloudifyConfiguration.getEffectiveTenant(config, tenant);
+        if (BlueprintDigestIndex.get().getDigest(config.getHost(), effectiveTenant, blueprintId) == null) {
+            return false;
+        }
+        PrintStream logger = listener.getLogger();
+        logger.println(String.format("Blueprint '%s' has changed since last uploaded; deleting the stale blueprint",
+                blueprintId));
+        ListResponse<Deployment> deployments = client.getDeploymentsClient().list(blueprintId, null, null, false);
+        for (Deployment deployment : deployments.getItems()) {
+            logger.println(String.format("Deleting deployment '%s', created from the stale blueprint",
+                    deployment.getId()));
+            deleteEnvironment(listener, client, deployment.getId(), DeploymentsHelper.DEFAULT_POLLING_INTERVAL,
+                    false, null, debugOutput, null);
+        }
+        try {
+            client.getBlueprintsClient().delete(blueprintId);
+        } catch (BlueprintNotFoundException ex) {
+            // Deleted behind our back.
+        }
+        BlueprintDigestIndex.get().forget(config.getHost(), effectiveTenant, blueprintId);
+        return true;
+    }
+
+    /**
+     * Records the digest of a blueprint that was just uploaded.
+     * 
+     * @param tenant      tenant specified by the user; may be <code>null</code>
+     * @param blueprintId ID of uploaded blueprint
+     * @param digest      digest of the uploaded contents
+     */
+    public static void recordBlueprintDigest(final String tenant, final String blueprintId, final String digest) {
+        CloudifyConfiguration config = CloudifyConfiguration.get();
+        BlueprintDigestIndex.get().record(config.getHost(), CloudifyConfiguration.getEffectiveTenant(config, tenant),
+                blueprintId, digest);
+    }
+
+    /**
+     * Forgets the digest of a blueprint that was deleted.
+     * 
+     * @param tenant      tenant specified by the user; may be <code>null</code>
+     * @param blueprintId ID of deleted blueprint
+     */
+    public static void forgetBlueprintDigest(final String tenant, final String blueprintId) {
+        CloudifyConfiguration config = CloudifyConfiguration.get();
+        BlueprintDigestIndex.get().forget(config.getHost(), CloudifyConfiguration.getEffectiveTenant(config, tenant),
+                blueprintId);
+    }
+
+    /**
+     * Computes a fingerprint of an environment's definition: its blueprint ID
+     * and inputs. The fingerprint doesn't depend on the inputs' order, or on
+     * how they were parsed.
+     * 
+     * @param blueprintId blueprint ID
+     * @param inputs      deployment inputs
+     * 
+     * @return The fingerprint, as a hex string.
+     * 
+     * @throws IOException If the inputs couldn't be serialized.
+     */
+    public static String getEnvironmentFingerprint(final String blueprintId, final Map<String, Object> inputs)
+            throws IOException {
+        return DigestUtils
+                .sha256Hex(blueprintId + '\n' + Mappers.JSON_WRITER.writeValueAsString(canonicalize(inputs)));
+    }
+
+    private static Object canonicalize(final Object value) {
+        if (value instanceof Map) {
+            Map<String, Object> map = new TreeMap<>();
+            ((Map<?, ?>) value).forEach((k, v) -> map.put(String.valueOf(k), canonicalize(v)));
+            return map;
+        }
+        if (value instanceof Collection) {
+            return ((Collection<?>) value).stream().map(CloudifyPluginUtilities::canonicalize)
+                    .collect(Collectors.toList());
+        }
+        return JSONNull.getInstance().equals(value) ? null : value;
+    }
+
+    /**
+     * Looks up an installed deployment, created from the given blueprint with
+     * the given inputs, so it may be reused instead of creating a new one.
+     * Inputs omitted by the caller are taken from the blueprint's defaults, as
+     * the manager does.
+     * 
+     * @param jenkinsLog   Jenkins log to write to
+     * @param client       Cloudify client to use
+     * @param endpoint     manager endpoint to use
+     * @param blueprintId  blueprint ID
+     * @param deploymentId deployment ID
+     * @param inputs       deployment inputs
+     * 
+     * @return The deployment, or <code>null</code> if it doesn't exist.
+     * 
+     * @throws AbortException If the deployment exists, but can't be reused.
+     * @throws IOException    If communicating with the manager failed.
+     */
+    public static Deployment getMatchingDeployment(final PrintStream jenkinsLog, final CloudifyClient client,
+            final ManagerEndpoint endpoint, final String blueprintId, final String deploymentId,
+            final Map<String, Object> inputs) throws IOException {
+        Map<String, Object> existing;
+        try {
+            existing = endpoint.getJson(String.format(
+                    "/deployments/%s?_include=id,blueprint_id,inputs,installation_status",
+                    URLEncoder.encode(deploymentId, StandardCharsets.UTF_8.name())));
+        } catch (ManagerResponseException ex) {
+            if (ex.getStatus() == HttpURLConnection.HTTP_NOT_FOUND) {
+                jenkinsLog.println(String.format("Deployment '%s' doesn't exist; will create it", deploymentId));
+                return null;
+            }
+            throw ex;
+        }
+        Object installationStatus = existing.get("installation_status");
+        if (installationStatus != null && !"active".equals(installationStatus)) {
+            throw new AbortException(String.format(
+                    "Deployment '%s' exists, but isn't installed (installation status: %s); delete it first",
+                    deploymentId, installationStatus));
+        }
+
+        String existingBlueprintId = (String) existing.get("blueprint_id");
+        @SuppressWarnings("unchecked")
+        Map<String, Object> existingInputs = (Map<String, Object>) existing.get("inputs");
+        Map<String, Object> effectiveInputs = new HashMap<>();
+        if (blueprintId.equals(existingBlueprintId)) {
+            Map<String, Object> blueprint = endpoint.getJson(String.format("/blueprints/%s?_include=id,plan",
+                    URLEncoder.encode(blueprintId, StandardCharsets.UTF_8.name())));
+            Object plan = blueprint.get("plan");
+            Object declaredInputs = plan instanceof Map ? ((Map<?, ?>) plan).get("inputs") : null;
+            if (declaredInputs instanceof Map) {
+                ((Map<?, ?>) declaredInputs).forEach((name, declaration) -> {
+                    if (declaration instanceof Map && ((Map<?, ?>) declaration).containsKey("default")) {
+                        effectiveInputs.put(String.valueOf(name), ((Map<?, ?>) declaration).get("default"));
+                    }
+                });
+            }
+        }
+        effectiveInputs.putAll(inputs);
+
+        String expected = getEnvironmentFingerprint(blueprintId, effectiveInputs);
+        String actual = getEnvironmentFingerprint(existingBlueprintId,
+                existingInputs != null ? existingInputs : Collections.emptyMap());
+        if (!expected.equals(actual)) {
+            throw new AbortException(String.format(
+                    "Deployment '%s' exists, but was created from a different blueprint or with different inputs "
+                            + "(blueprint: %s, fingerprint: %s; expected blueprint: %s, fingerprint: %s)",
+                    deploymentId, existingBlueprintId, actual, blueprintId, expected));
+        }
+        jenkinsLog.println(String.format(
+                "Deployment '%s' already exists with the same blueprint and inputs (fingerprint: %s); reusing it",
+                deploymentId, actual));
+        return client.getDeploymentsClient().get(deploymentId);
     }
 
     /**
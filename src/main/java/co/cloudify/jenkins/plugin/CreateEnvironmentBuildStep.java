@@ -1,5 +1,7 @@
 package co.cloudify.jenkins.plugin;
 
+import java.util.Map;
+
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.jenkinsci.Symbol;
@@ -8,7 +10,10 @@ import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 import co.cloudify.jenkins.plugin.actions.EnvironmentBuildAction;
+import co.cloudify.jenkins.plugin.teardown.EnvironmentOwner;
+import co.cloudify.jenkins.plugin.upload.ManagerEndpoint;
 import co.cloudify.rest.client.CloudifyClient;
+import co.cloudify.rest.model.Deployment;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
@@ -34,6 +39,7 @@ public class CreateEnvironmentBuildStep extends CloudifyBuildStep {
     private String mappingFile;
     private String outputFile;
     private boolean skipInstall;
+    private boolean reuseExisting;
     private boolean echoInputs;
     private boolean echoOutputs;
     private boolean debugOutput;
@@ -115,6 +121,15 @@ public class CreateEnvironmentBuildStep extends CloudifyBuildStep {
         this.skipInstall = skipInstall;
     }
 
+    public boolean isReuseExisting() {
+        return reuseExisting;
+    }
+
+    @DataBoundSetter
+    public void setReuseExisting(boolean reuseExisting) {
+        this.reuseExisting = reuseExisting;
+    }
+
     public boolean isEchoInputs() {
         return echoInputs;
     }
@@ -158,9 +173,23 @@ public class CreateEnvironmentBuildStep extends CloudifyBuildStep {
         action.setDeploymentId(deploymentId);
         run.addOrReplaceAction(action);
 
+        Map<String, Object> inputsMap = CloudifyPluginUtilities.createInputsMap(workspace, listener, inputs,
+                inputsFile, mapping, mappingFile);
+        if (reuseExisting) {
+            ManagerEndpoint endpoint = ManagerEndpoint.create(
+                    CloudifyPluginUtilities.getUsernamePasswordCredentials(getCredentialsId(), run),
+                    StringUtils.trimToNull(getTenant()));
+            Deployment existing = CloudifyPluginUtilities.getMatchingDeployment(listener.getLogger(),
+                    cloudifyClient, endpoint, blueprintId, deploymentId, inputsMap);
+            if (existing != null) {
+                action.applyEnvironmentData(CloudifyPluginUtilities.getEnvironmentData(listener, workspace,
+                        cloudifyClient, blueprintId, existing, outputFile, echoOutputs));
+                return;
+            }
+        }
         CloudifyEnvironmentData envData = CloudifyPluginUtilities.createEnvironment(listener, workspace, cloudifyClient,
-                blueprintId, deploymentId, inputs, inputsFile, mapping, mappingFile, outputFile, skipInstall,
-                echoInputs, echoOutputs, debugOutput, x -> true);
+                blueprintId, deploymentId, inputsMap, outputFile, skipInstall, echoInputs, echoOutputs, debugOutput,
+                x -> true, EnvironmentOwner.of(run, getCredentialsId(), getTenant()));
         action.applyEnvironmentData(envData);
     }
 
@@ -213,7 +242,8 @@ public class CreateEnvironmentBuildStep extends CloudifyBuildStep {
         return new ToStringBuilder(this).appendSuper(super.toString()).append("blueprintId", blueprintId)
                 .append("deploymentId", deploymentId).append("inputs", inputs).append("inputsFile", inputsFile)
                 .append("mapping", mapping).append("mappingFile", mappingFile).append("outputFile", outputFile)
-                .append("skipInstall", skipInstall).append("echoInputs", echoInputs).append("echoOutputs", echoOutputs)
+                .append("skipInstall", skipInstall).append("reuseExisting", reuseExisting)
+                .append("echoInputs", echoInputs).append("echoOutputs", echoOutputs)
                 .append("debugOutput", debugOutput).toString();
     }
 }
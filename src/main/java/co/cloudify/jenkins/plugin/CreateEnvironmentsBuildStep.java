@@ -0,0 +1,420 @@
+package co.cloudify.jenkins.plugin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import co.cloudify.jenkins.plugin.executions.ExecutionFollowStrategy;
+import co.cloudify.jenkins.plugin.executions.SharedPollerFollowStrategy;
+import co.cloudify.jenkins.plugin.teardown.EnvironmentOwner;
+import co.cloudify.rest.client.CloudifyClient;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractProject;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Builder;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.FormValidation;
+import hudson.util.NamingThreadFactory;
+import hudson.util.StreamTaskListener;
+
+/**
+ * A build step for creating multiple environments from a single blueprint,
+ * concurrently.
+ * <p>
+ * Environments are specified either explicitly, as a map of deployment IDs to
+ * their inputs, or as a matrix: a map of input names to lists of values, with
+ * one environment created for each combination. Inputs common to all
+ * environments may be provided as well.
+ * <p>
+ * All environments share the build's Cloudify client, and their installations
+ * are followed by the {@link SharedPollerFollowStrategy shared poller}, so
+ * following many installations doesn't multiply the load on Cloudify Manager.
+ * Each environment's log is buffered, and printed in one piece once the
+ * environment is ready (or failed).
+ *
+ * @author Isaac Shabtay
+ */
+public class CreateEnvironmentsBuildStep extends CloudifyBuildStep {
+    private static final int DEFAULT_PARALLELISM = 4;
+
+    private String blueprintId;
+    private String inputs;
+    private String environments;
+    private String environmentsFile;
+    private String matrix;
+    private String deploymentIdPrefix;
+    private int parallelism = DEFAULT_PARALLELISM;
+    private String outputFile;
+    private boolean skipInstall;
+    private boolean debugOutput;
+
+    @DataBoundConstructor
+    public CreateEnvironmentsBuildStep() {
+        super();
+    }
+
+    public String getBlueprintId() {
+        return blueprintId;
+    }
+
+    @DataBoundSetter
+    public void setBlueprintId(String blueprintId) {
+        this.blueprintId = blueprintId;
+    }
+
+    public String getInputs() {
+        return inputs;
+    }
+
+    @DataBoundSetter
+    public void setInputs(String inputs) {
+        this.inputs = inputs;
+    }
+
+    public String getEnvironments() {
+        return environments;
+    }
+
+    @DataBoundSetter
+    public void setEnvironments(String environments) {
+        this.environments = environments;
+    }
+
+    public String getEnvironmentsFile() {
+        return environmentsFile;
+    }
+
+    @DataBoundSetter
+    public void setEnvironmentsFile(String environmentsFile) {
+        this.environmentsFile = environmentsFile;
+    }
+
+    public String getMatrix() {
+        return matrix;
+    }
+
+    @DataBoundSetter
+    public void setMatrix(String matrix) {
+        this.matrix = matrix;
+    }
+
+    public String getDeploymentIdPrefix() {
+        return deploymentIdPrefix;
+    }
+
+    @DataBoundSetter
+    public void setDeploymentIdPrefix(String deploymentIdPrefix) {
+        this.deploymentIdPrefix = deploymentIdPrefix;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    @DataBoundSetter
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public String getOutputFile() {
+        return outputFile;
+    }
+
+    @DataBoundSetter
+    public void setOutputFile(String outputFile) {
+        this.outputFile = outputFile;
+    }
+
+    public boolean isSkipInstall() {
+        return skipInstall;
+    }
+
+    @DataBoundSetter
+    public void setSkipInstall(boolean skipInstall) {
+        this.skipInstall = skipInstall;
+    }
+
+    public boolean isDebugOutput() {
+        return debugOutput;
+    }
+
+    @DataBoundSetter
+    public void setDebugOutput(boolean debugOutput) {
+        this.debugOutput = debugOutput;
+    }
+
+    /**
+     * Outcome of a single environment's creation.
+     */
+    private static class CreationResult {
+        private final String deploymentId;
+        private final long elapsedMillis;
+        private final CloudifyEnvironmentData envData;
+        private final Exception error;
+
+        CreationResult(final String deploymentId, final long elapsedMillis, final CloudifyEnvironmentData envData,
+                final Exception error) {
+            this.deploymentId = deploymentId;
+            this.elapsedMillis = elapsedMillis;
+            this.envData = envData;
+            this.error = error;
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("deployment_id", deploymentId);
+            map.put("elapsed_ms", elapsedMillis);
+            map.put("succeeded", error == null);
+            if (error != null) {
+                map.put("error", String.valueOf(error.getMessage()));
+            }
+            if (envData != null) {
+                map.put("blueprint", envData.getBlueprintId());
+                map.put("outputs", envData.getOutputs());
+                map.put("capabilities", envData.getCapabilities());
+            }
+            return map;
+        }
+    }
+
+    /**
+     * Expand the step's specification into the environments to create.
+     *
+     * @param common       inputs common to all environments
+     * @param environments deployment IDs mapped to their own inputs
+     * @param matrix       input names mapped to lists of values; one environment
+     *                     is created for each combination
+     * @param prefix       prefix of deployment IDs of environments created from
+     *                     the matrix
+     *
+     * @return Deployment IDs mapped to their full inputs, in creation order.
+     *
+     * @throws AbortException The specification is invalid.
+     */
+    static Map<String, Map<String, Object>> expandEnvironments(final Map<String, Object> common,
+            final Map<String, Object> environments, final Map<String, Object> matrix, final String prefix)
+            throws AbortException {
+        Map<String, Map<String, Object>> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> entry : environments.entrySet()) {
+            Object value = entry.getValue();
+            if (value != null && !(value instanceof Map)) {
+                throw new AbortException(
+                        String.format("Inputs of deployment '%s' must be a map", entry.getKey()));
+            }
+            Map<String, Object> inputs = new LinkedHashMap<>(common);
+            if (value != null) {
+                for (Map.Entry<?, ?> input : ((Map<?, ?>) value).entrySet()) {
+                    inputs.put(String.valueOf(input.getKey()), input.getValue());
+                }
+            }
+            result.put(entry.getKey(), inputs);
+        }
+
+        List<Map<String, Object>> combinations = new ArrayList<>();
+        if (!matrix.isEmpty()) {
+            combinations.add(Collections.emptyMap());
+        }
+        for (Map.Entry<String, Object> axis : matrix.entrySet()) {
+            Object value = axis.getValue();
+            Collection<?> values = value instanceof Collection ? (Collection<?>) value
+                    : Collections.singletonList(value);
+            if (values.isEmpty()) {
+                throw new AbortException(String.format("Matrix input '%s' has no values", axis.getKey()));
+            }
+            List<Map<String, Object>> expanded = new ArrayList<>(combinations.size() * values.size());
+            for (Map<String, Object> combination : combinations) {
+                for (Object item : values) {
+                    Map<String, Object> next = new LinkedHashMap<>(combination);
+                    next.put(axis.getKey(), item);
+                    expanded.add(next);
+                }
+            }
+            combinations = expanded;
+        }
+        for (int i = 0; i < combinations.size(); i++) {
+            String deploymentId = String.format("%s-%d", prefix, i + 1);
+            Map<String, Object> inputs = new LinkedHashMap<>(common);
+            inputs.putAll(combinations.get(i));
+            if (result.put(deploymentId, inputs) != null) {
+                throw new AbortException(String.format("Deployment ID '%s' is specified more than once",
+                        deploymentId));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    protected void performImpl(final Run<?, ?> run, final Launcher launcher, final TaskListener listener,
+            final FilePath workspace,
+            final EnvVars envVars,
+            final CloudifyClient cloudifyClient) throws Exception {
+        String blueprintId = CloudifyPluginUtilities.expandString(envVars, this.blueprintId);
+        String inputs = CloudifyPluginUtilities.expandString(envVars, this.inputs);
+        String environments = CloudifyPluginUtilities.expandString(envVars, this.environments);
+        String environmentsFile = CloudifyPluginUtilities.expandString(envVars, this.environmentsFile);
+        String matrix = CloudifyPluginUtilities.expandString(envVars, this.matrix);
+        String deploymentIdPrefix = StringUtils.defaultIfBlank(
+                CloudifyPluginUtilities.expandString(envVars, this.deploymentIdPrefix), blueprintId);
+        String outputFile = CloudifyPluginUtilities.expandString(envVars, this.outputFile);
+
+        PrintStream jenkinsLog = listener.getLogger();
+        Map<String, Object> environmentsMap = new LinkedHashMap<>(CloudifyPluginUtilities.readYamlOrJson(environments));
+        if (StringUtils.isNotBlank(environmentsFile)) {
+            FilePath environmentsFilePath = workspace.child(environmentsFile);
+            jenkinsLog.println(String.format("Reading environments from %s", environmentsFilePath));
+            for (Map.Entry<String, Object> entry : CloudifyPluginUtilities
+                    .readYamlOrJson(environmentsFilePath, jenkinsLog).entrySet()) {
+                if (environmentsMap.put(entry.getKey(), entry.getValue()) != null) {
+                    throw new AbortException(String.format("Deployment ID '%s' is specified more than once",
+                            entry.getKey()));
+                }
+            }
+        }
+        Map<String, Map<String, Object>> specs = expandEnvironments(
+                CloudifyPluginUtilities.readYamlOrJson(inputs), environmentsMap,
+                CloudifyPluginUtilities.readYamlOrJson(matrix), deploymentIdPrefix);
+        if (specs.isEmpty()) {
+            throw new AbortException("No environments specified");
+        }
+
+        EnvironmentOwner owner = EnvironmentOwner.of(run, getCredentialsId(), getTenant());
+        ExecutionFollowStrategy followStrategy = new SharedPollerFollowStrategy();
+        int threads = Math.max(1, Math.min(parallelism, specs.size()));
+        jenkinsLog.println(String.format("Creating %d environments from blueprint '%s', %d at a time", specs.size(),
+                blueprintId, threads));
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new NamingThreadFactory(new DaemonThreadFactory(), "Cloudify environment creation"));
+        List<CreationResult> results = new ArrayList<>(specs.size());
+        long start = System.nanoTime();
+        try {
+            List<Future<CreationResult>> futures = new ArrayList<>(specs.size());
+            specs.forEach((deploymentId, deploymentInputs) -> futures.add(executor.submit(() -> {
+                long creationStart = System.nanoTime();
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                TaskListener deploymentListener = new StreamTaskListener(buffer, StandardCharsets.UTF_8);
+                CloudifyEnvironmentData envData = null;
+                Exception error = null;
+                try {
+                    envData = CloudifyPluginUtilities.createEnvironment(deploymentListener, workspace,
+                            cloudifyClient, blueprintId, deploymentId, deploymentInputs, null, skipInstall, false,
+                            false, debugOutput, x -> true, owner, followStrategy);
+                } catch (InterruptedException ex) {
+                    throw ex;
+                } catch (Exception ex) {
+                    error = ex;
+                    deploymentListener.getLogger().println(String.format("Failed creating environment '%s': %s",
+                            deploymentId, ex.getMessage()));
+                }
+                deploymentListener.getLogger().flush();
+                synchronized (jenkinsLog) {
+                    jenkinsLog.println(String.format("---- Environment '%s' ----", deploymentId));
+                    jenkinsLog.write(buffer.toByteArray());
+                    jenkinsLog.flush();
+                }
+                return new CreationResult(deploymentId,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - creationStart), envData, error);
+            })));
+            for (Future<CreationResult> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException ex) {
+                    // Creation tasks handle their own exceptions, except for
+                    // interruptions.
+                    throw new IllegalStateException(ex.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        long totalMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        long failed = results.stream().filter(x -> x.error != null).count();
+        jenkinsLog.println("Environment creation summary:");
+        for (CreationResult result : results) {
+            jenkinsLog.println(String.format("  %-40s %8d ms  %s", result.deploymentId, result.elapsedMillis,
+                    result.error == null ? "OK" : "FAILED"));
+        }
+        jenkinsLog.println(String.format("Created %d of %d environments in %d ms", results.size() - failed,
+                results.size(), totalMillis));
+
+        if (outputFile != null) {
+            List<Object> created = new ArrayList<>(results.size());
+            results.forEach(x -> created.add(x.toMap()));
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("elapsed_ms", totalMillis);
+            summary.put("succeeded", results.size() - failed);
+            summary.put("failed", failed);
+            summary.put("environments", created);
+            CloudifyPluginUtilities.writeJson(CloudifyPluginUtilities.jsonFromMap(summary),
+                    workspace.child(outputFile));
+        }
+        if (failed > 0) {
+            throw new AbortException(String.format("Failed creating %d of %d environments", failed,
+                    results.size()));
+        }
+    }
+
+    @Symbol("createCloudifyEnvs")
+    @Extension
+    public static class Descriptor extends BuildStepDescriptor<Builder> {
+        @Override
+        public boolean isApplicable(@SuppressWarnings("rawtypes") Class<? extends AbstractProject> jobType) {
+            return true;
+        }
+
+        public FormValidation doCheckBlueprintId(@QueryParameter String value) {
+            return FormValidation.validateRequired(value);
+        }
+
+        public FormValidation doCheckParallelism(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+
+        @Override
+        public String getDisplayName() {
+            return Messages.CreateEnvironmentsBuildStep_DescriptorImpl_displayName();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .appendSuper(super.toString())
+                .append("blueprintId", blueprintId)
+                .append("inputs", inputs)
+                .append("environments", environments)
+                .append("environmentsFile", environmentsFile)
+                .append("matrix", matrix)
+                .append("deploymentIdPrefix", deploymentIdPrefix)
+                .append("parallelism", parallelism)
+                .append("outputFile", outputFile)
+                .append("skipInstall", skipInstall)
+                .append("debugOutput", debugOutput)
+                .toString();
+    }
+}
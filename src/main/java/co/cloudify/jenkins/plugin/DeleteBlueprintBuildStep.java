@@ -2,12 +2,14 @@ package co.cloudify.jenkins.plugin;
 
 import java.io.PrintStream;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
+import co.cloudify.jenkins.plugin.integrations.KnownBlueprintsCache;
 import co.cloudify.rest.client.CloudifyClient;
 import hudson.EnvVars;
 import hudson.Extension;
@@ -52,6 +54,11 @@ public class DeleteBlueprintBuildStep extends CloudifyBuildStep {
         PrintStream jenkinsLog = listener.getLogger();
         jenkinsLog.println(String.format("Deleting blueprint: %s", blueprintId));
         cloudifyClient.getBlueprintsClient().delete(blueprintId);
+        String tenant = StringUtils.trimToNull(getTenant());
+        CloudifyPluginUtilities.forgetBlueprintDigest(tenant, blueprintId);
+        CloudifyConfiguration config = CloudifyConfiguration.get();
+        KnownBlueprintsCache.get().invalidate(config.getHost(), CloudifyConfiguration.getEffectiveTenant(config, tenant),
+                blueprintId);
     }
 
     @Symbol("deleteCloudifyBlueprint")
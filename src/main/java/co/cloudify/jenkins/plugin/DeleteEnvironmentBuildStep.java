@@ -8,6 +8,7 @@ import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
+import co.cloudify.jenkins.plugin.teardown.EnvironmentOwner;
 import co.cloudify.rest.client.CloudifyClient;
 import co.cloudify.rest.client.DeploymentsClient;
 import co.cloudify.rest.helpers.DeploymentsHelper;
@@ -96,7 +97,8 @@ public class DeleteEnvironmentBuildStep extends CloudifyBuildStep {
         DeploymentsClient deploymentsClient = cloudifyClient.getDeploymentsClient();
         Deployment deployment = deploymentsClient.get(deploymentId);
         CloudifyPluginUtilities.deleteEnvironment(listener, cloudifyClient, deploymentId,
-                DeploymentsHelper.DEFAULT_POLLING_INTERVAL, skipUninstall, ignoreFailure, debugOutput);
+                DeploymentsHelper.DEFAULT_POLLING_INTERVAL, skipUninstall, ignoreFailure, debugOutput,
+                EnvironmentOwner.of(run, getCredentialsId(), getTenant()));
 
         if (deleteBlueprintIfLast) {
             String blueprintId = deployment.getBlueprintId();
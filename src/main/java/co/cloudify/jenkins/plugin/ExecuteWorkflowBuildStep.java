@@ -122,8 +122,8 @@ public class ExecuteWorkflowBuildStep extends CloudifyBuildStep {
             jenkinsLog.println("Waiting for execution to end...");
             ExecutionFollowCallback callback = CloudifyPluginUtilities.getExecutionFollowCallback(printLogs,
                     debugOutput, cloudifyClient, jenkinsLog);
-            execution = ExecutionsHelper.followExecution(executionsClient, execution, callback,
-                    ExecutionsHelper.DEFAULT_POLLING_INTERVAL);
+            execution = CloudifyPluginUtilities.getExecutionFollowStrategy().follow(cloudifyClient, execution,
+                    callback, jenkinsLog);
             ExecutionsHelper.validateCompleted(execution, "Execution did not end successfully");
             jenkinsLog.println("Execution ended successfully");
         }
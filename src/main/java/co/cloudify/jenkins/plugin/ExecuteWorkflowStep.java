@@ -0,0 +1,418 @@
+package co.cloudify.jenkins.plugin;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+
+import co.cloudify.jenkins.plugin.executions.AdaptivePollingFollowStrategy;
+import co.cloudify.jenkins.plugin.executions.EventCountingExecutionFollower;
+import co.cloudify.jenkins.plugin.executions.ExecutionFollowStrategy;
+import co.cloudify.jenkins.plugin.executions.SharedExecutionPoller;
+import co.cloudify.rest.client.CloudifyClient;
+import co.cloudify.rest.helpers.DefaultExecutionFollowCallback;
+import co.cloudify.rest.helpers.ExecutionFollowCallback;
+import co.cloudify.rest.helpers.ExecutionsHelper;
+import co.cloudify.rest.model.EventLevel;
+import co.cloudify.rest.model.Execution;
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.FormValidation;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.Timer;
+
+/**
+ * A Pipeline step for executing a Cloudify workflow and waiting for it to end,
+ * without blocking a thread while waiting: the execution is started in the
+ * background, handed to the {@link SharedExecutionPoller}, and the step
+ * completes once the execution ends. If the shared poller is disabled in the
+ * global configuration, the execution is polled from a background thread
+ * instead, as build steps do. If Jenkins restarts while the execution is
+ * running, the step re-attaches to it on resume, without writing events that
+ * were already written to the build log.
+ * <p>
+ * The step requires no workspace, so it may be used outside of a
+ * <code>node</code> block, in which case no executor is held while waiting.
+ *
+ * @author Isaac Shabtay
+ */
+public class ExecuteWorkflowStep extends Step {
+    private String credentialsId;
+    private String tenant;
+    private String deploymentId;
+    private String workflowId;
+    private String executionParameters;
+    private boolean printLogs = true;
+    private boolean debugOutput;
+
+    @DataBoundConstructor
+    public ExecuteWorkflowStep() {
+        super();
+    }
+
+    public String getCredentialsId() {
+        return credentialsId;
+    }
+
+    @DataBoundSetter
+    public void setCredentialsId(String credentialsId) {
+        this.credentialsId = credentialsId;
+    }
+
+    public String getTenant() {
+        return tenant;
+    }
+
+    @DataBoundSetter
+    public void setTenant(String tenant) {
+        this.tenant = tenant;
+    }
+
+    public String getDeploymentId() {
+        return deploymentId;
+    }
+
+    @DataBoundSetter
+    public void setDeploymentId(String deploymentId) {
+        this.deploymentId = deploymentId;
+    }
+
+    public String getWorkflowId() {
+        return workflowId;
+    }
+
+    @DataBoundSetter
+    public void setWorkflowId(String workflowId) {
+        this.workflowId = workflowId;
+    }
+
+    public String getExecutionParameters() {
+        return executionParameters;
+    }
+
+    @DataBoundSetter
+    public void setExecutionParameters(String executionParameters) {
+        this.executionParameters = executionParameters;
+    }
+
+    public boolean isPrintLogs() {
+        return printLogs;
+    }
+
+    @DataBoundSetter
+    public void setPrintLogs(boolean printLogs) {
+        this.printLogs = printLogs;
+    }
+
+    public boolean isDebugOutput() {
+        return debugOutput;
+    }
+
+    @DataBoundSetter
+    public void setDebugOutput(boolean debugOutput) {
+        this.debugOutput = debugOutput;
+    }
+
+    @Override
+    public StepExecution start(StepContext context) throws Exception {
+        return new StepExecutionImpl(this, context);
+    }
+
+    private static class StepExecutionImpl extends StepExecution {
+        /** Serialization UID. */
+        private static final long serialVersionUID = 1L;
+
+        /** Milliseconds between saves of the number of event lines written. */
+        private static final long CHECKPOINT_INTERVAL = Long.getLong(
+                ExecuteWorkflowStep.class.getName() + ".checkpointInterval", 10000);
+
+        /**
+         * Runs the manager requests done when starting and resuming, so they don't
+         * hold up the Pipeline's CPS VM thread.
+         */
+        private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(
+                new NamingThreadFactory(new DaemonThreadFactory(), "Cloudify workflow step"));
+
+        private final String credentialsId;
+        private final String tenant;
+        private final String deploymentId;
+        private final String workflowId;
+        private final String executionParameters;
+        private final boolean printLogs;
+        private final boolean debugOutput;
+        /** ID of the execution being followed; persisted, to re-attach on resume. */
+        private volatile String executionId;
+        /**
+         * Number of event lines already written to the build log; persisted, so
+         * they aren't written again on resume.
+         */
+        private volatile long eventLines;
+        private transient boolean stopped;
+        private transient Future<?> pending;
+        private transient SharedExecutionPoller.Registration registration;
+        private transient EventCountingExecutionFollower follower;
+        private transient ScheduledFuture<?> checkpoint;
+
+        StepExecutionImpl(final ExecuteWorkflowStep step, final StepContext context) {
+            super(context);
+            this.credentialsId = step.credentialsId;
+            this.tenant = step.tenant;
+            this.deploymentId = step.deploymentId;
+            this.workflowId = step.workflowId;
+            this.executionParameters = step.executionParameters;
+            this.printLogs = step.printLogs;
+            this.debugOutput = step.debugOutput;
+        }
+
+        private CloudifyClient getCloudifyClient() throws Exception {
+            if (StringUtils.isBlank(credentialsId)) {
+                throw new AbortException("No credentialsId was provided");
+            }
+            StandardUsernamePasswordCredentials creds = CloudifyPluginUtilities
+                    .getUsernamePasswordCredentials(credentialsId, getContext().get(Run.class));
+            return CloudifyConfiguration.getCloudifyClient(StringUtils.trimToNull(creds.getUsername()),
+                    StringUtils.trimToNull(creds.getPassword().getPlainText()), StringUtils.trimToNull(tenant));
+        }
+
+        /**
+         * Run an action in the background, failing the step if it fails.
+         */
+        private synchronized void runInBackground(final Callable<Void> action) {
+            pending = EXECUTOR.submit(() -> {
+                try {
+                    return action.call();
+                } catch (Exception ex) {
+                    getContext().onFailure(ex);
+                    return null;
+                }
+            });
+        }
+
+        @Override
+        public boolean start() throws Exception {
+            PrintStream jenkinsLog = getContext().get(TaskListener.class).getLogger();
+            // Parsed here, so malformed parameters fail the step right away.
+            Map<String, Object> executionParametersAsMap = executionParameters != null
+                    ? CloudifyPluginUtilities.readYamlOrJson(executionParameters)
+                    : null;
+            runInBackground(() -> {
+                CloudifyClient client = getCloudifyClient();
+                Execution execution;
+                try {
+                    execution = client.getExecutionsClient().start(deploymentId, workflowId,
+                            executionParametersAsMap);
+                } catch (Exception ex) {
+                    CloudifyConfiguration.releaseCloudifyClient(client);
+                    throw ex;
+                }
+                executionId = execution.getId();
+                getContext().saveState();
+                jenkinsLog.println(String.format("Execution started; id=%s", executionId));
+                follow(client, execution, jenkinsLog);
+                return null;
+            });
+            return false;
+        }
+
+        @Override
+        public void onResume() {
+            if (executionId == null) {
+                getContext().onFailure(new AbortException(String.format(
+                        "Jenkins restarted while starting workflow '%s' on deployment '%s'; "
+                                + "the workflow may or may not have been started",
+                        workflowId, deploymentId)));
+                return;
+            }
+            runInBackground(() -> {
+                PrintStream jenkinsLog = getContext().get(TaskListener.class).getLogger();
+                CloudifyClient client = getCloudifyClient();
+                Execution execution;
+                try {
+                    jenkinsLog.println(String.format("Re-attaching to execution %s", executionId));
+                    execution = client.getExecutionsClient().get(executionId);
+                } catch (Exception ex) {
+                    CloudifyConfiguration.releaseCloudifyClient(client);
+                    throw ex;
+                }
+                follow(client, execution, jenkinsLog);
+                return null;
+            });
+        }
+
+        private void follow(final CloudifyClient client, final Execution execution, final PrintStream jenkinsLog)
+                throws Exception {
+            CloudifyConfiguration config = CloudifyConfiguration.get();
+            boolean shared = config != null && config.isSharedExecutionPoller();
+            ExecutionFollowCallback callback;
+            SharedExecutionPoller.Registration current = null;
+            synchronized (this) {
+                if (stopped) {
+                    CloudifyConfiguration.releaseCloudifyClient(client);
+                    return;
+                }
+                if (printLogs) {
+                    // Events written before a restart are retrieved again; don't write them twice.
+                    follower = EventCountingExecutionFollower.create(client, jenkinsLog,
+                            debugOutput ? EventLevel.debug : EventLevel.info, eventLines);
+                    callback = follower;
+                    checkpoint = Timer.get().scheduleWithFixedDelay(this::checkpoint, CHECKPOINT_INTERVAL,
+                            CHECKPOINT_INTERVAL, TimeUnit.MILLISECONDS);
+                } else {
+                    callback = DefaultExecutionFollowCallback.getInstance();
+                }
+                if (shared) {
+                    current = SharedExecutionPoller.get().register(client, execution, callback);
+                    registration = current;
+                }
+            }
+            if (!shared) {
+                // Poll from this background thread, as build steps do when the shared
+                // poller is disabled; stopping the step interrupts it.
+                Execution result;
+                try {
+                    result = new AdaptivePollingFollowStrategy().follow(client, execution, callback, jenkinsLog);
+                } catch (InterruptedException ex) {
+                    // We were stopped; the context has already been notified.
+                    return;
+                } finally {
+                    CloudifyConfiguration.releaseCloudifyClient(client);
+                    cancelCheckpoint();
+                }
+                complete(result, jenkinsLog);
+                return;
+            }
+            current.getFuture().whenComplete((result, error) -> {
+                // Make sure all events are in the log before the step completes.
+                ExecutionFollowStrategy.release(callback);
+                CloudifyConfiguration.releaseCloudifyClient(client);
+                cancelCheckpoint();
+                if (error instanceof CancellationException) {
+                    // We were stopped; the context has already been notified.
+                    return;
+                }
+                if (error != null) {
+                    getContext().onFailure(error);
+                    return;
+                }
+                complete(result, jenkinsLog);
+            });
+        }
+
+        private void complete(final Execution result, final PrintStream jenkinsLog) {
+            try {
+                ExecutionsHelper.validateCompleted(result, "Execution did not end successfully");
+                jenkinsLog.println("Execution ended successfully");
+                getContext().onSuccess(null);
+            } catch (Exception ex) {
+                getContext().onFailure(ex);
+            }
+        }
+
+        /**
+         * Save the number of event lines written so far, if it changed.
+         */
+        private void checkpoint() {
+            EventCountingExecutionFollower current = follower;
+            if (current == null) {
+                return;
+            }
+            long written = current.getWrittenLines();
+            if (written != eventLines) {
+                eventLines = written;
+                getContext().saveState();
+            }
+        }
+
+        private synchronized void cancelCheckpoint() {
+            if (checkpoint != null) {
+                checkpoint.cancel(false);
+                checkpoint = null;
+            }
+        }
+
+        @Override
+        public void stop(Throwable cause) throws Exception {
+            SharedExecutionPoller.Registration current;
+            synchronized (this) {
+                stopped = true;
+                if (pending != null) {
+                    // Interrupts following, if done from the background thread.
+                    pending.cancel(true);
+                }
+                current = registration;
+            }
+            if (current != null) {
+                SharedExecutionPoller.get().unregister(current);
+            }
+            cancelCheckpoint();
+            getContext().onFailure(cause);
+        }
+
+        @Override
+        public String getStatus() {
+            return executionId != null ? String.format("Waiting for execution %s", executionId) : null;
+        }
+    }
+
+    @Extension
+    public static class DescriptorImpl extends StepDescriptor {
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return new HashSet<>(Arrays.asList(Run.class, TaskListener.class));
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "cfyExecuteWorkflow";
+        }
+
+        public FormValidation doCheckDeploymentId(@QueryParameter String value) {
+            return FormValidation.validateRequired(value);
+        }
+
+        public FormValidation doCheckWorkflowId(@QueryParameter String value) {
+            return FormValidation.validateRequired(value);
+        }
+
+        @Override
+        public String getDisplayName() {
+            return Messages.ExecuteWorkflowStep_DescriptorImpl_displayName();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("credentialsId", credentialsId)
+                .append("tenant", tenant)
+                .append("deploymentId", deploymentId)
+                .append("workflowId", workflowId)
+                .append("executionParameters", executionParameters)
+                .append("printLogs", printLogs)
+                .append("debugOutput", debugOutput)
+                .toString();
+    }
+}
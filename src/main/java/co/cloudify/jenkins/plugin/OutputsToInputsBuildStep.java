@@ -11,6 +11,7 @@ import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 import co.cloudify.jenkins.plugin.callables.JsonFileWriterFileCallable;
+import co.cloudify.jenkins.plugin.callables.StreamingOutputsToInputsFileCallable;
 import co.cloudify.rest.client.CloudifyClient;
 import hudson.EnvVars;
 import hudson.Extension;
@@ -34,6 +35,7 @@ public class OutputsToInputsBuildStep extends CloudifyBuildStep {
     private String mapping;
     private String mappingLocation;
     private String inputsLocation;
+    private boolean streaming;
 
     @DataBoundConstructor
     public OutputsToInputsBuildStep() {
@@ -76,6 +78,15 @@ public class OutputsToInputsBuildStep extends CloudifyBuildStep {
         this.inputsLocation = inputsLocation;
     }
 
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    @DataBoundSetter
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
     /**
      * This step doesn't use Cloudify at all, so no client is needed.
      */
@@ -98,9 +109,14 @@ public class OutputsToInputsBuildStep extends CloudifyBuildStep {
         FilePath outputsFile = workspace.child(outputsLocation);
 
         Map<String, Map<String, String>> mappingAsMap = CloudifyPluginUtilities.readYamlOrJson(workspace,
-                mappingLocation, mapping);
+                mappingLocation, mapping, listener.getLogger());
+        if (streaming) {
+            // Both files are in the workspace, hence on the same machine.
+            outputsFile.act(new StreamingOutputsToInputsFileCallable(mappingAsMap, inputsFile.getRemote()));
+            return;
+        }
         Map<String, Object> results = new HashMap<String, Object>();
-        CloudifyPluginUtilities.transformOutputsFile(outputsFile, mappingAsMap, results);
+        CloudifyPluginUtilities.transformOutputsFile(outputsFile, mappingAsMap, results, listener.getLogger());
         inputsFile.act(new JsonFileWriterFileCallable(CloudifyPluginUtilities.jsonFromMap(results)));
     }
 
@@ -150,6 +166,7 @@ public class OutputsToInputsBuildStep extends CloudifyBuildStep {
                 .append("mapping", mapping)
                 .append("mappingLocation", mappingLocation)
                 .append("inputsLocation", inputsLocation)
+                .append("streaming", streaming)
                 .toString();
     }
 }
@@ -11,18 +11,22 @@ import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
+import co.cloudify.jenkins.plugin.callables.BlueprintStreamingUploadFileCallable;
 import co.cloudify.jenkins.plugin.callables.BlueprintUploadArchiveFileCallable;
 import co.cloudify.jenkins.plugin.callables.BlueprintUploadDirFileCallable;
-import co.cloudify.jenkins.plugin.callables.BlueprintUploadFileCallable;
+import co.cloudify.jenkins.plugin.upload.ManagerEndpoint;
 import co.cloudify.rest.client.BlueprintsClient;
 import co.cloudify.rest.client.CloudifyClient;
+import co.cloudify.rest.model.Blueprint;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
+import hudson.FilePath.FileCallable;
 import hudson.Launcher;
 import hudson.model.AbstractProject;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.slaves.WorkspaceList;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.util.FormValidation;
@@ -33,11 +37,16 @@ import hudson.util.FormValidation;
  * @author Isaac Shabtay
  */
 public class UploadBlueprintBuildStep extends CloudifyBuildStep {
+    private static final String BLUEPRINT_CACHE_DIR_NAME = "cloudify-blueprint-cache";
+
     private String blueprintId;
     private String archiveUrl;
     private String archivePath;
     private String rootDirectory;
     private String mainFileName;
+    private boolean skipUnchanged;
+    private boolean streamingUpload;
+    private boolean incrementalUpload;
 
     @DataBoundConstructor
     public UploadBlueprintBuildStep() {
@@ -89,6 +98,33 @@ public class UploadBlueprintBuildStep extends CloudifyBuildStep {
         this.mainFileName = mainFileName;
     }
 
+    public boolean isSkipUnchanged() {
+        return skipUnchanged;
+    }
+
+    @DataBoundSetter
+    public void setSkipUnchanged(boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+    }
+
+    public boolean isStreamingUpload() {
+        return streamingUpload;
+    }
+
+    @DataBoundSetter
+    public void setStreamingUpload(boolean streamingUpload) {
+        this.streamingUpload = streamingUpload;
+    }
+
+    public boolean isIncrementalUpload() {
+        return incrementalUpload;
+    }
+
+    @DataBoundSetter
+    public void setIncrementalUpload(boolean incrementalUpload) {
+        this.incrementalUpload = incrementalUpload;
+    }
+
     @Override
     protected void performImpl(final Run<?, ?> run, final Launcher launcher, final TaskListener listener,
             final FilePath workspace,
@@ -107,17 +143,45 @@ public class UploadBlueprintBuildStep extends CloudifyBuildStep {
             jenkinsLog.println(String.format("Uploading blueprint from %s", archiveUrl));
             blueprintsClient.upload(blueprintId, new URL(archiveUrl), mainFileName);
         } else {
-            FilePath opFile;
-            BlueprintUploadFileCallable callable;
-            if (archivePath != null) {
-                opFile = workspace.child(archivePath);
+            FilePath opFile = workspace.child(archivePath != null ? archivePath : rootDirectory);
+            String tenant = StringUtils.trimToNull(getTenant());
+            String digest = null;
+            if (skipUnchanged) {
+                digest = CloudifyPluginUtilities.getBlueprintDigest(opFile, mainFileName);
+                if (CloudifyPluginUtilities.getUnchangedBlueprint(jenkinsLog, cloudifyClient, tenant, blueprintId,
+                        digest) != null) {
+                    return;
+                }
+            }
+            // Only obtain a token for an upload that is actually going to happen.
+            FileCallable<Blueprint> callable;
+            boolean incremental = incrementalUpload && archivePath == null;
+            if (streamingUpload || incremental) {
+                // Uploaded directly from where the blueprint resides; the agent
+                // only gets a token.
+                ManagerEndpoint endpoint = ManagerEndpoint.create(
+                        CloudifyPluginUtilities.getUsernamePasswordCredentials(getCredentialsId(), run), tenant)
+                        .withToken();
+                BlueprintStreamingUploadFileCallable streamingCallable = new BlueprintStreamingUploadFileCallable(
+                        endpoint, blueprintId, mainFileName, listener);
+                FilePath tempDir = WorkspaceList.tempDir(workspace);
+                if (incremental && tempDir != null) {
+                    // Kept with the workspace, so it is per job (and per
+                    // concurrent build).
+                    streamingCallable.setCacheDirectory(
+                            tempDir.child(BLUEPRINT_CACHE_DIR_NAME).child(blueprintId).getRemote());
+                }
+                callable = streamingCallable;
+            } else if (archivePath != null) {
                 callable = new BlueprintUploadArchiveFileCallable(blueprintsClient, blueprintId, mainFileName);
             } else {
-                opFile = workspace.child(rootDirectory);
                 callable = new BlueprintUploadDirFileCallable(blueprintsClient, blueprintId, mainFileName);
             }
             jenkinsLog.println(String.format("Uploading blueprint from %s", opFile));
             opFile.act(callable);
+            if (digest != null) {
+                CloudifyPluginUtilities.recordBlueprintDigest(tenant, blueprintId, digest);
+            }
         }
         jenkinsLog.println("Blueprint uploaded successfully");
     }
@@ -181,6 +245,9 @@ public class UploadBlueprintBuildStep extends CloudifyBuildStep {
                 .append("archivePath", archivePath)
                 .append("rootDirectory", rootDirectory)
                 .append("mainFileName", mainFileName)
+                .append("skipUnchanged", skipUnchanged)
+                .append("streamingUpload", streamingUpload)
+                .append("incrementalUpload", incrementalUpload)
                 .toString();
     }
 }
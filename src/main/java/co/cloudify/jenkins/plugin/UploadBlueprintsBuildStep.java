@@ -0,0 +1,324 @@
+package co.cloudify.jenkins.plugin;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import co.cloudify.jenkins.plugin.callables.BlueprintStreamingUploadFileCallable;
+import co.cloudify.jenkins.plugin.upload.ManagerEndpoint;
+import co.cloudify.rest.client.CloudifyClient;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractProject;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Builder;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.FormValidation;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * A build step for uploading multiple blueprints, concurrently.
+ * <p>
+ * Blueprints are located using an Ant-style pattern, relative to the
+ * workspace. A matching YAML file is taken to be a blueprint's main file, with
+ * its directory being the blueprint's root directory; any other matching file
+ * is taken to be a blueprint archive. Blueprint IDs are derived from the root
+ * directories' names, or the archives' names without extensions.
+ * <p>
+ * All uploads share a single token, obtained once, and are streamed directly
+ * from where the blueprints reside (see
+ * {@link BlueprintStreamingUploadFileCallable}).
+ * <p>
+ * Besides the step's own parallelism, the number of uploads running at the
+ * same time to the same manager, by all builds on this controller, is limited
+ * through the {@code maxUploadsPerHost} system property.
+ *
+ * @author Isaac Shabtay
+ */
+public class UploadBlueprintsBuildStep extends CloudifyBuildStep {
+    private static final int DEFAULT_PARALLELISM = 4;
+    /** Maximum number of concurrent uploads to the same manager, across all builds. */
+    private static final int MAX_UPLOADS_PER_HOST = Integer.getInteger(
+            UploadBlueprintsBuildStep.class.getName() + ".maxUploadsPerHost", 8);
+    /** Host -> permits for uploading to that host. */
+    private static final ConcurrentMap<String, Semaphore> HOST_PERMITS = new ConcurrentHashMap<>();
+    private static final String[] YAML_EXTENSIONS = { ".yaml", ".yml" };
+    private static final String[] ARCHIVE_EXTENSIONS = { ".tar.gz", ".tar.bz2", ".tgz", ".tbz2", ".tar", ".zip" };
+
+    private String blueprintsPattern;
+    private String mainFileName;
+    private String blueprintIdPrefix;
+    private int parallelism = DEFAULT_PARALLELISM;
+    private String summaryLocation;
+
+    @DataBoundConstructor
+    public UploadBlueprintsBuildStep() {
+        super();
+    }
+
+    public String getBlueprintsPattern() {
+        return blueprintsPattern;
+    }
+
+    @DataBoundSetter
+    public void setBlueprintsPattern(String blueprintsPattern) {
+        this.blueprintsPattern = blueprintsPattern;
+    }
+
+    public String getMainFileName() {
+        return mainFileName;
+    }
+
+    @DataBoundSetter
+    public void setMainFileName(String mainFileName) {
+        this.mainFileName = mainFileName;
+    }
+
+    public String getBlueprintIdPrefix() {
+        return blueprintIdPrefix;
+    }
+
+    @DataBoundSetter
+    public void setBlueprintIdPrefix(String blueprintIdPrefix) {
+        this.blueprintIdPrefix = blueprintIdPrefix;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    @DataBoundSetter
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public String getSummaryLocation() {
+        return summaryLocation;
+    }
+
+    @DataBoundSetter
+    public void setSummaryLocation(String summaryLocation) {
+        this.summaryLocation = summaryLocation;
+    }
+
+    /**
+     * Outcome of a single blueprint's upload.
+     */
+    private static class UploadResult {
+        private final String blueprintId;
+        private final String source;
+        private final long elapsedMillis;
+        private final Exception error;
+
+        UploadResult(final String blueprintId, final String source, final long elapsedMillis,
+                final Exception error) {
+            this.blueprintId = blueprintId;
+            this.source = source;
+            this.elapsedMillis = elapsedMillis;
+            this.error = error;
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("blueprint_id", blueprintId);
+            map.put("source", source);
+            map.put("elapsed_ms", elapsedMillis);
+            map.put("succeeded", error == null);
+            if (error != null) {
+                map.put("error", String.valueOf(error.getMessage()));
+            }
+            return map;
+        }
+    }
+
+    @Override
+    protected void performImpl(final Run<?, ?> run, final Launcher launcher, final TaskListener listener,
+            final FilePath workspace,
+            final EnvVars envVars,
+            final CloudifyClient cloudifyClient) throws Exception {
+        String blueprintsPattern = CloudifyPluginUtilities.expandString(envVars, this.blueprintsPattern);
+        String mainFileName = CloudifyPluginUtilities.expandString(envVars, this.mainFileName);
+        String blueprintIdPrefix = StringUtils.defaultString(
+                CloudifyPluginUtilities.expandString(envVars, this.blueprintIdPrefix));
+        String summaryLocation = CloudifyPluginUtilities.expandString(envVars, this.summaryLocation);
+
+        PrintStream jenkinsLog = listener.getLogger();
+        // Blueprint ID -> upload source.
+        Map<String, FilePath> sources = new LinkedHashMap<>();
+        Map<String, String> mainFileNames = new HashMap<>();
+        for (FilePath match : workspace.list(blueprintsPattern)) {
+            String name = match.getName();
+            FilePath source;
+            String blueprintId;
+            String blueprintMainFile;
+            if (StringUtils.endsWithAny(name.toLowerCase(), YAML_EXTENSIONS)) {
+                source = match.getParent();
+                blueprintId = blueprintIdPrefix + source.getName();
+                blueprintMainFile = name;
+            } else {
+                if (mainFileName == null) {
+                    throw new AbortException(
+                            String.format("Main file name is required for uploading archives (%s)", match));
+                }
+                source = match;
+                blueprintId = blueprintIdPrefix + stripArchiveExtension(name);
+                blueprintMainFile = mainFileName;
+            }
+            FilePath existing = sources.put(blueprintId, source);
+            if (existing != null) {
+                throw new AbortException(String.format("Both %s and %s map to blueprint ID '%s'", existing,
+                        source, blueprintId));
+            }
+            mainFileNames.put(blueprintId, blueprintMainFile);
+        }
+        if (sources.isEmpty()) {
+            throw new AbortException(String.format("No blueprints match '%s'", blueprintsPattern));
+        }
+
+        ManagerEndpoint endpoint = ManagerEndpoint.create(
+                CloudifyPluginUtilities.getUsernamePasswordCredentials(getCredentialsId(), run),
+                StringUtils.trimToNull(getTenant())).withToken();
+        int threads = Math.max(1, Math.min(parallelism, sources.size()));
+        jenkinsLog.println(String.format("Uploading %d blueprints, %d at a time", sources.size(), threads));
+        Semaphore hostPermits = getHostPermits(CloudifyConfiguration.get().getHost());
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new NamingThreadFactory(new DaemonThreadFactory(), "Cloudify blueprint upload"));
+        List<UploadResult> results = new ArrayList<>(sources.size());
+        long start = System.nanoTime();
+        try {
+            List<Future<UploadResult>> futures = new ArrayList<>(sources.size());
+            sources.forEach((blueprintId, source) -> futures.add(executor.submit(() -> {
+                hostPermits.acquire();
+                long uploadStart = System.nanoTime();
+                Exception error = null;
+                try {
+                    jenkinsLog.println(String.format("Uploading blueprint '%s' from %s", blueprintId, source));
+                    source.act(new BlueprintStreamingUploadFileCallable(endpoint, blueprintId,
+                            mainFileNames.get(blueprintId), listener));
+                } catch (Exception ex) {
+                    error = ex;
+                    jenkinsLog.println(String.format("Failed uploading blueprint '%s': %s", blueprintId,
+                            ex.getMessage()));
+                } finally {
+                    hostPermits.release();
+                }
+                return new UploadResult(blueprintId, source.getRemote(),
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - uploadStart), error);
+            })));
+            for (Future<UploadResult> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException ex) {
+                    // Upload tasks handle their own exceptions.
+                    throw new IllegalStateException(ex.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        long totalMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        long failed = results.stream().filter(x -> x.error != null).count();
+        jenkinsLog.println("Blueprint upload summary:");
+        for (UploadResult result : results) {
+            jenkinsLog.println(String.format("  %-40s %8d ms  %s", result.blueprintId, result.elapsedMillis,
+                    result.error == null ? "OK" : "FAILED"));
+        }
+        jenkinsLog.println(String.format("Uploaded %d of %d blueprints in %d ms", results.size() - failed,
+                results.size(), totalMillis));
+
+        if (summaryLocation != null) {
+            List<Object> uploads = new ArrayList<>(results.size());
+            results.forEach(x -> uploads.add(x.toMap()));
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("elapsed_ms", totalMillis);
+            summary.put("succeeded", results.size() - failed);
+            summary.put("failed", failed);
+            summary.put("uploads", uploads);
+            CloudifyPluginUtilities.writeJson(CloudifyPluginUtilities.jsonFromMap(summary),
+                    workspace.child(summaryLocation));
+        }
+        if (failed > 0) {
+            throw new AbortException(String.format("Failed uploading %d of %d blueprints", failed, results.size()));
+        }
+    }
+
+    /**
+     * Returns the permits shared by all uploads to the given host.
+     *
+     * @param host manager host
+     *
+     * @return The host's upload permits.
+     */
+    static Semaphore getHostPermits(final String host) {
+        return HOST_PERMITS.computeIfAbsent(StringUtils.defaultString(host),
+                x -> new Semaphore(Math.max(1, MAX_UPLOADS_PER_HOST), true));
+    }
+
+    private static String stripArchiveExtension(final String name) {
+        for (String extension : ARCHIVE_EXTENSIONS) {
+            if (name.toLowerCase().endsWith(extension)) {
+                return name.substring(0, name.length() - extension.length());
+            }
+        }
+        return name;
+    }
+
+    @Symbol("uploadCloudifyBlueprints")
+    @Extension
+    public static class Descriptor extends BuildStepDescriptor<Builder> {
+        @Override
+        public boolean isApplicable(@SuppressWarnings("rawtypes") Class<? extends AbstractProject> jobType) {
+            return true;
+        }
+
+        public FormValidation doCheckBlueprintsPattern(@QueryParameter String value) {
+            return FormValidation.validateRequired(value);
+        }
+
+        public FormValidation doCheckParallelism(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+
+        @Override
+        public String getDisplayName() {
+            return Messages.UploadBlueprintsBuildStep_DescriptorImpl_displayName();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .appendSuper(super.toString())
+                .append("blueprintsPattern", blueprintsPattern)
+                .append("mainFileName", mainFileName)
+                .append("blueprintIdPrefix", blueprintIdPrefix)
+                .append("parallelism", parallelism)
+                .append("summaryLocation", summaryLocation)
+                .toString();
+    }
+}
@@ -0,0 +1,84 @@
+package co.cloudify.jenkins.plugin.actions;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import co.cloudify.jenkins.plugin.pool.EnvironmentPool;
+import co.cloudify.jenkins.plugin.teardown.EnvironmentRegistry;
+import co.cloudify.jenkins.plugin.teardown.TeardownQueue;
+import co.cloudify.jenkins.plugin.teardown.TeardownTask;
+import hudson.Extension;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+
+/**
+ * A controller-wide page listing environments created by builds and not
+ * deleted yet, highlighting orphaned ones, along with environment pools and
+ * background teardowns. Administrators may queue teardowns of listed
+ * environments.
+ */
+@Extension
+public class CloudifyEnvironmentsAction implements RootAction {
+    public List<EnvironmentRegistry.Environment> getEnvironments() {
+        return EnvironmentRegistry.get().getEnvironments();
+    }
+
+    public List<EnvironmentPool.Pool> getPools() {
+        return EnvironmentPool.get().getPools();
+    }
+
+    public List<TeardownTask> getTasks() {
+        return TeardownQueue.get().getTasks();
+    }
+
+    /**
+     * @param id task ID
+     *
+     * @return The task, or <code>null</code> if it doesn't exist.
+     */
+    public TeardownTask getTask(final String id) {
+        return id != null ? TeardownQueue.get().getTask(id) : null;
+    }
+
+    public HttpResponse doLog(@QueryParameter final String id) throws IOException {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        if (TeardownQueue.get().getTask(id) == null) {
+            return HttpResponses.notFound();
+        }
+        return HttpResponses.plainText(TeardownQueue.get().getLog(id));
+    }
+
+    @RequirePOST
+    public HttpResponse doTearDown(@QueryParameter final String key) {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        EnvironmentRegistry registry = EnvironmentRegistry.get();
+        EnvironmentRegistry.Environment environment = registry.getEnvironment(key);
+        if (environment == null) {
+            return HttpResponses.notFound();
+        }
+        TeardownTask task = TeardownQueue.get().submit(TeardownTask.forEnvironment(environment.getOwner(),
+                environment.getDeploymentId(), null, null, false));
+        registry.teardownQueued(key, task.getId());
+        return HttpResponses.redirectToDot();
+    }
+
+    @Override
+    public String getIconFileName() {
+        return Jenkins.get().hasPermission(Jenkins.ADMINISTER) ? "notepad.png" : null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Cloudify Environments";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "cloudify-environments";
+    }
+}
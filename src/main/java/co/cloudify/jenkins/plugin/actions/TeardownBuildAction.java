@@ -0,0 +1,76 @@
+package co.cloudify.jenkins.plugin.actions;
+
+import java.io.IOException;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+import co.cloudify.jenkins.plugin.teardown.TeardownQueue;
+import co.cloudify.jenkins.plugin.teardown.TeardownTask;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+
+/**
+ * Links a build to the detached teardown of the environment it created.
+ */
+public class TeardownBuildAction implements RunAction2 {
+    private transient Run<?, ?> run;
+
+    private String taskId;
+
+    public TeardownBuildAction(final String taskId) {
+        super();
+        this.taskId = taskId;
+    }
+
+    public String getTaskId() {
+        return taskId;
+    }
+
+    /**
+     * @return The teardown task, or <code>null</code> if it was discarded.
+     */
+    public TeardownTask getTask() {
+        return TeardownQueue.get().getTask(taskId);
+    }
+
+    public String getLog() throws IOException {
+        return TeardownQueue.get().getLog(taskId);
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @SuppressWarnings("rawtypes")
+    public Run getRun() {
+        return run;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "document.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Cloudify Teardown";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "cloudify-teardown";
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("taskId", taskId)
+                .toString();
+    }
+}
@@ -0,0 +1,82 @@
+package co.cloudify.jenkins.plugin.callables;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Computes a SHA-256 digest of a blueprint, where it resides: either of an
+ * archive file, or of a blueprint's root directory. For a directory, the digest
+ * covers the relative path and contents of every regular file, in sorted path
+ * order, so it doesn't depend on file system iteration order or on timestamps.
+ * The main file name is included as well, as uploading the same contents with a
+ * different main file results in a different blueprint.
+ *
+ * @author Isaac Shabtay
+ */
+public class BlueprintDigestFileCallable extends MasterToSlaveFileCallable<String> {
+    /** Serialization UID. */
+    private static final long serialVersionUID = 1L;
+
+    private String mainFileName;
+
+    public BlueprintDigestFileCallable(final String mainFileName) {
+        this.mainFileName = mainFileName;
+    }
+
+    @Override
+    public String invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+        MessageDigest digest = DigestUtils.getSha256Digest();
+        update(digest, StringUtils.defaultString(mainFileName));
+        if (f.isDirectory()) {
+            Path root = f.toPath();
+            List<Path> files;
+            try (Stream<Path> stream = Files.walk(root)) {
+                files = stream
+                        .filter(Files::isRegularFile)
+                        .sorted((p1, p2) -> relativeName(root, p1).compareTo(relativeName(root, p2)))
+                        .collect(Collectors.toList());
+            }
+            for (Path file : files) {
+                // The size makes the boundary between consecutive files unambiguous.
+                update(digest, String.format("%s:%d", relativeName(root, file), Files.size(file)));
+                updateContents(digest, file);
+            }
+        } else {
+            updateContents(digest, f.toPath());
+        }
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    private static String relativeName(final Path root, final Path file) {
+        // Use forward slashes, so the same directory yields the same digest on
+        // any agent.
+        return root.relativize(file).toString().replace(File.separatorChar, '/');
+    }
+
+    private static void update(final MessageDigest digest, final String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        // Separator, so "ab" + "c" and "a" + "bc" don't collide.
+        digest.update((byte) 0);
+    }
+
+    private static void updateContents(final MessageDigest digest, final Path file) throws IOException {
+        try (InputStream is = Files.newInputStream(file)) {
+            DigestUtils.updateDigest(digest, is);
+        }
+    }
+}
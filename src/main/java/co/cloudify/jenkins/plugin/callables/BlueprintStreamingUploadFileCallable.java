@@ -0,0 +1,65 @@
+package co.cloudify.jenkins.plugin.callables;
+
+import java.io.File;
+import java.io.IOException;
+
+import co.cloudify.jenkins.plugin.upload.AgentUploadClient;
+import co.cloudify.jenkins.plugin.upload.ManagerEndpoint;
+import co.cloudify.jenkins.plugin.upload.StreamingBlueprintUploader;
+import co.cloudify.jenkins.plugin.upload.ZipEntryCache;
+import co.cloudify.rest.model.Blueprint;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Uploads a blueprint directory or archive from where it resides, streaming it
+ * directly to the manager and retrying failed uploads. Directories are
+ * compressed in parallel while being sent.
+ * <p>
+ * Only a lightweight {@link ManagerEndpoint} is sent to the agent; it should be
+ * token-based (see {@link ManagerEndpoint#withToken()}), so credentials don't
+ * leave the controller.
+ *
+ * @author Isaac Shabtay
+ */
+public class BlueprintStreamingUploadFileCallable extends MasterToSlaveFileCallable<Blueprint> {
+    /** Serialization UID. */
+    private static final long serialVersionUID = 1L;
+
+    private ManagerEndpoint endpoint;
+    private String blueprintId;
+    private String blueprintMainFile;
+    private TaskListener listener;
+    private String cacheDirectory;
+
+    public BlueprintStreamingUploadFileCallable(
+            final ManagerEndpoint endpoint,
+            final String blueprintId,
+            final String blueprintMainFile,
+            final TaskListener listener) {
+        this.endpoint = endpoint;
+        this.blueprintId = blueprintId;
+        this.blueprintMainFile = blueprintMainFile;
+        this.listener = listener;
+    }
+
+    /**
+     * @param cacheDirectory directory (on the same machine) in which to cache
+     *                       compressed entries between uploads of a blueprint
+     *                       directory; may be <code>null</code>
+     */
+    public void setCacheDirectory(final String cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    @Override
+    public Blueprint invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+        StreamingBlueprintUploader uploader = AgentUploadClient.get().newUploader(endpoint, listener.getLogger());
+        if (!f.isDirectory()) {
+            return uploader.uploadArchive(blueprintId, f, blueprintMainFile);
+        }
+        return uploader.upload(blueprintId, f, blueprintMainFile,
+                cacheDirectory != null ? new ZipEntryCache(new File(cacheDirectory)) : null);
+    }
+}
@@ -0,0 +1,75 @@
+package co.cloudify.jenkins.plugin.callables;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import co.cloudify.jenkins.plugin.CloudifyPluginUtilities;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import net.sf.json.JSONObject;
+
+/**
+ * Parses an outputs/capabilities file and applies a mapping to it, where the
+ * file resides. Only the (typically small) mapped values are sent back over
+ * the remoting channel.
+ * 
+ * @author Isaac Shabtay
+ */
+public class OutputsTransformFileCallable extends MasterToSlaveFileCallable<OutputsTransformFileCallable.Result> {
+    /** Serialization UID. */
+    private static final long serialVersionUID = 1L;
+
+    private Map<String, Map<String, String>> mapping;
+
+    public OutputsTransformFileCallable(final Map<String, Map<String, String>> mapping) {
+        this.mapping = new LinkedHashMap<>(mapping);
+    }
+
+    @Override
+    public Result invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+        Map<String, Object> values = new LinkedHashMap<>();
+        CloudifyPluginUtilities.transformOutputs(CloudifyPluginUtilities.readYamlOrJson(f), mapping, values);
+        return new Result(values, f.length(), JSONObject.fromObject(values).toString().length());
+    }
+
+    /**
+     * Result of the transformation, along with some figures about how much data
+     * was saved from going over the channel.
+     */
+    public static class Result implements Serializable {
+        /** Serialization UID. */
+        private static final long serialVersionUID = 1L;
+
+        private Map<String, Object> values;
+        private long bytesRead;
+        private long bytesReturned;
+
+        public Result(final Map<String, Object> values, final long bytesRead, final long bytesReturned) {
+            this.values = values;
+            this.bytesRead = bytesRead;
+            this.bytesReturned = bytesReturned;
+        }
+
+        public Map<String, Object> getValues() {
+            return values;
+        }
+
+        /**
+         * @return Size of the file that was parsed; this is what would have been
+         *         sent over the channel had the file been parsed on the controller.
+         */
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        /**
+         * @return Approximate size (as JSON) of the mapped values.
+         */
+        public long getBytesReturned() {
+            return bytesReturned;
+        }
+    }
+}
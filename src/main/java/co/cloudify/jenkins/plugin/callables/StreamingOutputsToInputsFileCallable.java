@@ -0,0 +1,136 @@
+package co.cloudify.jenkins.plugin.callables;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Converts an outputs/capabilities file into an inputs file, by streaming
+ * through the outputs file and copying only mapped values to the inputs file.
+ * Unmapped sections and values are skipped without being materialized, so
+ * memory use doesn't depend on the size of the outputs file.
+ * <p>
+ * When several mappings write the same input, the one appearing last in the
+ * mapping wins, same as when transforming in memory.
+ *
+ * @author Isaac Shabtay
+ */
+public class StreamingOutputsToInputsFileCallable extends MasterToSlaveFileCallable<Void> {
+    /** Serialization UID. */
+    private static final long serialVersionUID = 1L;
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final YAMLFactory YAML_FACTORY = new YAMLFactory();
+    /** Maximum number of leading bytes to look at when sniffing the format. */
+    private static final int SNIFF_LIMIT = 1024;
+
+    private Map<String, Map<String, String>> mapping;
+    private String inputsFile;
+
+    /**
+     * @param mapping    mapping structure
+     * @param inputsFile absolute path, on the machine where the outputs file
+     *                   resides, of the inputs file to write
+     */
+    public StreamingOutputsToInputsFileCallable(final Map<String, Map<String, String>> mapping,
+            final String inputsFile) {
+        this.mapping = new LinkedHashMap<>(mapping);
+        this.inputsFile = inputsFile;
+    }
+
+    /**
+     * @return The mapping, without entries whose target is overwritten by a
+     *         later entry.
+     */
+    private Map<String, Map<String, String>> getEffectiveMapping() {
+        // Target -> [section, source key] of the last entry writing it.
+        Map<String, String[]> winners = new LinkedHashMap<>();
+        mapping.forEach((section, sectionMapping) -> sectionMapping
+                .forEach((from, to) -> winners.put(to, new String[] { section, from })));
+        Map<String, Map<String, String>> effective = new LinkedHashMap<>();
+        winners.forEach((to, source) -> effective.computeIfAbsent(source[0], k -> new LinkedHashMap<>())
+                .put(source[1], to));
+        return effective;
+    }
+
+    @Override
+    public Void invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+        Map<String, Map<String, String>> mapping = getEffectiveMapping();
+        File output = new File(inputsFile);
+        if (output.getParentFile() != null) {
+            Files.createDirectories(output.getParentFile().toPath());
+        }
+        try (InputStream is = new BufferedInputStream(new FileInputStream(f));
+                JsonParser parser = parserFor(is);
+                JsonGenerator generator = JSON_FACTORY
+                        .createGenerator(new FileOutputStream(output), JsonEncoding.UTF8)
+                        .useDefaultPrettyPrinter()) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException(String.format("%s doesn't contain an object", f));
+            }
+            Set<String> written = new HashSet<>();
+            generator.writeStartObject();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                Map<String, String> sectionMapping = mapping.get(parser.getCurrentName());
+                if (parser.nextToken() != JsonToken.START_OBJECT || sectionMapping == null) {
+                    parser.skipChildren();
+                    continue;
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String target = sectionMapping.get(parser.getCurrentName());
+                    parser.nextToken();
+                    if (target == null || !written.add(target)) {
+                        parser.skipChildren();
+                        continue;
+                    }
+                    generator.writeFieldName(target);
+                    generator.copyCurrentStructure(parser);
+                }
+            }
+            // Mapped values that weren't found are written as nulls, same as
+            // when transforming in memory (even if an overwritten entry was
+            // found).
+            for (Map<String, String> sectionMapping : mapping.values()) {
+                for (String target : sectionMapping.values()) {
+                    if (written.add(target)) {
+                        generator.writeNullField(target);
+                    }
+                }
+            }
+            generator.writeEndObject();
+        }
+        return null;
+    }
+
+    /**
+     * Outputs files written by this plugin are JSON; be lenient and accept YAML
+     * as well, deciding by the first non-whitespace character.
+     */
+    private static JsonParser parserFor(final InputStream is) throws IOException {
+        is.mark(SNIFF_LIMIT);
+        int c = is.read();
+        for (int read = 1; c != -1 && Character.isWhitespace(c) && read < SNIFF_LIMIT; read++) {
+            c = is.read();
+        }
+        is.reset();
+        return c == '{' ? JSON_FACTORY.createParser(is) : YAML_FACTORY.createParser(is);
+    }
+}
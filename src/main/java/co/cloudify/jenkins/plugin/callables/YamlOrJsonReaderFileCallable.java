@@ -0,0 +1,67 @@
+package co.cloudify.jenkins.plugin.callables;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Map;
+
+import co.cloudify.jenkins.plugin.CloudifyPluginUtilities;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import net.sf.json.JSONObject;
+
+/**
+ * Parses a YAML/JSON file where it resides, and returns the parsed contents.
+ * Comments, YAML formatting and whitespace are left behind, and the controller
+ * receives the contents ready for use, without parsing anything itself.
+ * 
+ * @author Isaac Shabtay
+ */
+public class YamlOrJsonReaderFileCallable extends MasterToSlaveFileCallable<YamlOrJsonReaderFileCallable.Result> {
+    /** Serialization UID. */
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public Result invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+        Map<String, Object> contents = CloudifyPluginUtilities.readYamlOrJson(f);
+        return new Result(contents, f.length(), JSONObject.fromObject(contents).toString().length());
+    }
+
+    /**
+     * Parsed contents, along with some figures about how much data was saved
+     * from going over the channel.
+     */
+    public static class Result implements Serializable {
+        /** Serialization UID. */
+        private static final long serialVersionUID = 1L;
+
+        private Map<String, Object> contents;
+        private long bytesRead;
+        private long bytesReturned;
+
+        public Result(final Map<String, Object> contents, final long bytesRead, final long bytesReturned) {
+            this.contents = contents;
+            this.bytesRead = bytesRead;
+            this.bytesReturned = bytesReturned;
+        }
+
+        public Map<String, Object> getContents() {
+            return contents;
+        }
+
+        /**
+         * @return Size of the file that was parsed; this is what would have been
+         *         sent over the channel had the file been parsed on the controller.
+         */
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        /**
+         * @return Approximate size (as compact JSON) of the parsed contents.
+         */
+        public long getBytesReturned() {
+            return bytesReturned;
+        }
+    }
+}
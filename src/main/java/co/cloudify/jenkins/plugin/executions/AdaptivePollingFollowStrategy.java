@@ -0,0 +1,87 @@
+package co.cloudify.jenkins.plugin.executions;
+
+import java.io.PrintStream;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+import co.cloudify.rest.client.CloudifyClient;
+import co.cloudify.rest.client.ExecutionsClient;
+import co.cloudify.rest.helpers.ExecutionFollowCallback;
+import co.cloudify.rest.model.Execution;
+import co.cloudify.rest.model.ExecutionStatus;
+
+/**
+ * Follows an execution by polling its status from the calling thread, with
+ * adaptive backoff: polling is fast at first, slows down for long-running
+ * executions, and speeds up again when the execution's status changes or new
+ * events are emitted.
+ * 
+ * @author Isaac Shabtay
+ */
+public class AdaptivePollingFollowStrategy implements ExecutionFollowStrategy {
+    private static final String PROPERTY_PREFIX = AdaptivePollingFollowStrategy.class.getName();
+
+    public static final long DEFAULT_MIN_INTERVAL = Long.getLong(PROPERTY_PREFIX + ".minInterval", 1000);
+    public static final long DEFAULT_MAX_INTERVAL = Long.getLong(PROPERTY_PREFIX + ".maxInterval", 15000);
+    public static final double DEFAULT_FACTOR = 1.5;
+
+    private final long minInterval;
+    private final long maxInterval;
+    private final double factor;
+
+    public AdaptivePollingFollowStrategy() {
+        this(DEFAULT_MIN_INTERVAL, DEFAULT_MAX_INTERVAL, DEFAULT_FACTOR);
+    }
+
+    public AdaptivePollingFollowStrategy(final long minInterval, final long maxInterval, final double factor) {
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        this.factor = factor;
+    }
+
+    @Override
+    public Execution follow(final CloudifyClient client, final Execution execution,
+            final ExecutionFollowCallback callback, final PrintStream jenkinsLog) throws InterruptedException {
+        ExecutionsClient executionsClient = client.getExecutionsClient();
+        PollingBackoff backoff = new PollingBackoff(minInterval, maxInterval, factor);
+        long requests = 0;
+        long emitted = emittedBytes(callback);
+        Execution current = execution;
+
+        try {
+            callback.start(current);
+            while (!ExecutionFollowStrategy.isTerminal(current)) {
+                Thread.sleep(backoff.getCurrent());
+                ExecutionStatus previousStatus = current.getStatus();
+                current = executionsClient.get(current.getId());
+                requests++;
+                callback.callback(current);
+                long nowEmitted = emittedBytes(callback);
+                backoff.next(current.getStatus() != previousStatus || nowEmitted != emitted);
+                emitted = nowEmitted;
+            }
+            callback.end(current);
+        } finally {
+            ExecutionFollowStrategy.release(callback);
+        }
+
+        jenkinsLog.println(String.format("Execution %s ended with status '%s' (%d status requests)", current.getId(),
+                current.getStatus(), requests));
+        return current;
+    }
+
+    private static long emittedBytes(final ExecutionFollowCallback callback) {
+        return callback instanceof EventCountingExecutionFollower
+                ? ((EventCountingExecutionFollower) callback).getEmittedBytes()
+                : 0;
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("minInterval", minInterval)
+                .append("maxInterval", maxInterval)
+                .append("factor", factor)
+                .toString();
+    }
+}
@@ -0,0 +1,254 @@
+package co.cloudify.jenkins.plugin.executions;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import co.cloudify.jenkins.plugin.CloudifyClientRegistry;
+import co.cloudify.jenkins.plugin.logging.AsyncEventLogWriter;
+import co.cloudify.jenkins.plugin.logging.EventLogBuffer;
+import co.cloudify.rest.client.CloudifyClient;
+import co.cloudify.rest.helpers.ExecutionFollowCallback;
+import co.cloudify.rest.helpers.PrintStreamLogEmitterExecutionFollower;
+import co.cloudify.rest.model.EventLevel;
+import co.cloudify.rest.model.Execution;
+
+/**
+ * An {@link ExecutionFollowCallback} that emits events through a
+ * {@link PrintStreamLogEmitterExecutionFollower}, keeps track of how much
+ * output it has emitted, and writes its output asynchronously. Follow
+ * strategies use the amount of output as a cheap signal for new events having
+ * arrived.
+ * <p>
+ * Events are handed to an {@link AsyncEventLogWriter}, which writes them to the
+ * build log in the background. The writer is closed, flushing everything, when
+ * the execution ends or when {@link #close()} is called.
+ * <p>
+ * A follower re-attaching to an execution after a restart retrieves the
+ * execution's events from the start; it can be told how many event lines were
+ * already written to the build log, so they aren't written again.
+ * <p>
+ * Executions may run for longer than a token is valid. Before retrieving
+ * events, the follower has the {@link CloudifyClientRegistry} check the age of
+ * its client's token; once the registry hands out a renewed client, events are
+ * retrieved through it, again from the start, skipping the lines already
+ * emitted. Renewed clients are released when the follower is closed; the
+ * original client remains its caller's to release.
+ * 
+ * @author Isaac Shabtay
+ */
+public class EventCountingExecutionFollower implements ExecutionFollowCallback, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(EventCountingExecutionFollower.class);
+
+    private final PrintStream stream;
+    private final EventLevel level;
+    private final CountingOutputStream counter;
+    private final LineSkippingOutputStream lines;
+    private final AsyncEventLogWriter writer;
+    /** Number of event lines written to the build log before this follower was created. */
+    private final long skipLines;
+    private CloudifyClient client;
+    /** A client obtained through renewal, to release when done. */
+    private CloudifyClient renewed;
+    private PrintStreamLogEmitterExecutionFollower delegate;
+    private Execution started;
+
+    public static EventCountingExecutionFollower create(final CloudifyClient client, final PrintStream jenkinsLog,
+            final EventLevel level) {
+        return create(client, jenkinsLog, level, 0);
+    }
+
+    /**
+     * @param client     client to retrieve events with
+     * @param jenkinsLog build log to write events to
+     * @param level      minimum level of events to write
+     * @param skipLines  number of event lines to discard, as they were already
+     *                   written (see {@link #getWrittenLines()})
+     *
+     * @return A new follower.
+     */
+    public static EventCountingExecutionFollower create(final CloudifyClient client, final PrintStream jenkinsLog,
+            final EventLevel level, final long skipLines) {
+        AsyncEventLogWriter writer = new AsyncEventLogWriter(jenkinsLog, EventLogBuffer.DEFAULT_CAPACITY);
+        LineSkippingOutputStream lines = new LineSkippingOutputStream(writer.getBuffer(), skipLines);
+        CountingOutputStream counter = new CountingOutputStream(lines);
+        try {
+            // No auto-flushing; the buffer is drained by the writer.
+            return new EventCountingExecutionFollower(client, new PrintStream(counter, false,
+                    StandardCharsets.UTF_8.name()), level, counter, lines, writer, skipLines);
+        } catch (UnsupportedEncodingException ex) {
+            // Can't happen; UTF-8 is always supported.
+            writer.close();
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private EventCountingExecutionFollower(final CloudifyClient client, final PrintStream stream,
+            final EventLevel level, final CountingOutputStream counter, final LineSkippingOutputStream lines,
+            final AsyncEventLogWriter writer, final long skipLines) {
+        this.stream = stream;
+        this.level = level;
+        this.counter = counter;
+        this.lines = lines;
+        this.writer = writer;
+        this.skipLines = skipLines;
+        this.client = client;
+        this.delegate = new PrintStreamLogEmitterExecutionFollower(client, stream, level);
+    }
+
+    @Override
+    public synchronized void start(final Execution execution) {
+        started = execution;
+        delegate.start(execution);
+    }
+
+    @Override
+    public synchronized void callback(final Execution execution) {
+        renewClient();
+        delegate.callback(execution);
+    }
+
+    @Override
+    public synchronized void end(final Execution execution) {
+        delegate.end(execution);
+        close();
+    }
+
+    /**
+     * Switch to a client with a fresh token, if the current one's is due to
+     * expire.
+     */
+    private void renewClient() {
+        CloudifyClient current;
+        try {
+            current = CloudifyClientRegistry.get().renew(client);
+        } catch (RuntimeException ex) {
+            // Keep using the current client; its token may still be valid.
+            logger.warn("Failed renewing Cloudify client", ex);
+            return;
+        }
+        if (current == client) {
+            return;
+        }
+        CloudifyClientRegistry.get().release(renewed);
+        client = current;
+        renewed = current;
+        // The new follower retrieves the execution's events from the start;
+        // don't write them twice.
+        lines.rewind();
+        delegate = new PrintStreamLogEmitterExecutionFollower(current, stream, level);
+        if (started != null) {
+            delegate.start(started);
+        }
+    }
+
+    /**
+     * Flush all buffered events to the build log and stop the background writer.
+     */
+    @Override
+    public void close() {
+        writer.close();
+        CloudifyClient toRelease;
+        synchronized (this) {
+            toRelease = renewed;
+            renewed = null;
+        }
+        CloudifyClientRegistry.get().release(toRelease);
+    }
+
+    /**
+     * @return Number of bytes emitted so far.
+     */
+    public long getEmittedBytes() {
+        return counter.getByteCount();
+    }
+
+    /**
+     * @return Number of event lines written to the build log so far, including
+     *         any skipped lines; lines still waiting to be written, or being
+     *         written, are not counted.
+     */
+    public long getWrittenLines() {
+        return skipLines + writer.getBuffer().getDrainedLines();
+    }
+
+    /**
+     * @return The writer used for emitting events, for its metrics.
+     */
+    public AsyncEventLogWriter getWriter() {
+        return writer;
+    }
+
+    /**
+     * Counts the lines passing through it, discarding a given number of lines
+     * at the start.
+     */
+    static class LineSkippingOutputStream extends FilterOutputStream {
+        private long skip;
+        private long lines;
+
+        LineSkippingOutputStream(final OutputStream out, final long skip) {
+            super(out);
+            this.skip = skip;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            if (lines >= skip) {
+                out.write(b);
+            }
+            if (b == '\n') {
+                lines++;
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            int start = off;
+            int end = off + len;
+            for (int i = off; i < end && lines < skip; i++) {
+                if (b[i] == '\n') {
+                    lines++;
+                    start = i + 1;
+                }
+            }
+            if (lines < skip) {
+                return;
+            }
+            for (int i = start; i < end; i++) {
+                if (b[i] == '\n') {
+                    lines++;
+                }
+            }
+            out.write(b, start, end - start);
+        }
+
+        /**
+         * Start counting lines again, discarding as many lines as passed through
+         * the stream so far.
+         */
+        synchronized void rewind() {
+            skip = Math.max(skip, lines);
+            lines = 0;
+        }
+
+        synchronized long getSkip() {
+            return skip;
+        }
+
+        /**
+         * @return Number of complete lines passed through the stream, including
+         *         skipped ones.
+         */
+        synchronized long getLines() {
+            return lines;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package co.cloudify.jenkins.plugin.executions;
+
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import co.cloudify.rest.client.CloudifyClient;
+import co.cloudify.rest.helpers.ExecutionFollowCallback;
+import co.cloudify.rest.model.Execution;
+import co.cloudify.rest.model.ExecutionStatus;
+
+/**
+ * A strategy for following a Cloudify execution until it ends.
+ * 
+ * @author Isaac Shabtay
+ */
+public interface ExecutionFollowStrategy {
+    /** Statuses after which an execution will not change anymore. */
+    Set<ExecutionStatus> TERMINAL_STATUSES = Collections.unmodifiableSet(
+            EnumSet.of(ExecutionStatus.terminated, ExecutionStatus.failed, ExecutionStatus.cancelled));
+
+    /**
+     * Follow an execution until it ends.
+     * 
+     * @param client     Cloudify client to use
+     * @param execution  execution to follow
+     * @param callback   callback to invoke during following
+     * @param jenkinsLog Jenkins' log stream, for reporting
+     * 
+     * @return The execution, in its terminal state.
+     * 
+     * @throws InterruptedException The build was interrupted while waiting.
+     */
+    Execution follow(CloudifyClient client, Execution execution, ExecutionFollowCallback callback,
+            PrintStream jenkinsLog) throws InterruptedException;
+
+    static boolean isTerminal(final Execution execution) {
+        return TERMINAL_STATUSES.contains(execution.getStatus());
+    }
+
+    /**
+     * Release resources held by a callback, flushing any output it still holds.
+     * Strategies call this however following ended; it is a no-op for callbacks
+     * that hold no resources.
+     * 
+     * @param callback callback to release
+     */
+    static void release(final ExecutionFollowCallback callback) {
+        if (callback instanceof EventCountingExecutionFollower) {
+            ((EventCountingExecutionFollower) callback).close();
+        }
+    }
+}
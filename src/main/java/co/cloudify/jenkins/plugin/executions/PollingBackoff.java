@@ -0,0 +1,56 @@
+package co.cloudify.jenkins.plugin.executions;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+/**
+ * Computes polling intervals for following an execution. Polling starts fast,
+ * backs off geometrically while nothing happens (long-running executions are
+ * polled rarely), and goes back to fast polling whenever activity is seen.
+ * 
+ * @author Isaac Shabtay
+ */
+public class PollingBackoff {
+    private final long minInterval;
+    private final long maxInterval;
+    private final double factor;
+    private long current;
+
+    public PollingBackoff(final long minInterval, final long maxInterval, final double factor) {
+        Validate.isTrue(minInterval > 0 && minInterval <= maxInterval, "Invalid interval range: [%d, %d]",
+                minInterval, maxInterval);
+        Validate.isTrue(factor >= 1, "Factor must be at least 1: %f", factor);
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        this.factor = factor;
+        this.current = minInterval;
+    }
+
+    /**
+     * @param activity whether any activity was observed since the last poll
+     * 
+     * @return Number of milliseconds to wait before the next poll.
+     */
+    public long next(final boolean activity) {
+        if (activity) {
+            current = minInterval;
+        } else {
+            current = Math.min(maxInterval, (long) Math.ceil(current * factor));
+        }
+        return current;
+    }
+
+    public long getCurrent() {
+        return current;
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("minInterval", minInterval)
+                .append("maxInterval", maxInterval)
+                .append("factor", factor)
+                .append("current", current)
+                .toString();
+    }
+}
@@ -0,0 +1,429 @@
+package co.cloudify.jenkins.plugin.executions;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.module.jaxb.JaxbAnnotationModule;
+
+import co.cloudify.jenkins.plugin.CloudifyClientRegistry;
+import co.cloudify.jenkins.plugin.upload.ManagerEndpoint;
+import co.cloudify.rest.client.CloudifyClient;
+import co.cloudify.rest.helpers.ExecutionFollowCallback;
+import co.cloudify.rest.model.Execution;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * A controller-wide poller that tracks all in-flight executions that builds
+ * are waiting on. Instead of each build running its own polling loop, a single
+ * scheduled task polls all executions, grouped by client (that is, by manager,
+ * credentials and tenant; see {@link co.cloudify.jenkins.plugin.CloudifyClientRegistry}),
+ * and completes each waiter's future once its execution ends.
+ * <p>
+ * Builds waiting on the same execution share its status requests. For clients
+ * obtained from the {@link CloudifyClientRegistry}, the status of all of a
+ * group's executions is retrieved with a single, ID-filtered list request per
+ * polling round, so manager load scales with the number of managers rather
+ * than with the number of builds.
+ * These requests authenticate with the client's credentials rather than with
+ * its token, so groups keep polling after the token expires; event retrieval,
+ * which does go through the client, renews it as needed (see
+ * {@link EventCountingExecutionFollower}).
+ * <p>
+ * Polling rounds are scheduled on a dedicated thread, and each group is polled
+ * on a worker thread, outside of any lock: a slow manager, or a slow callback
+ * (callbacks retrieve events and write to build logs), only delays the
+ * executions of its own group.
+ *
+ * @author Isaac Shabtay
+ */
+public class SharedExecutionPoller {
+    private static final Logger logger = LoggerFactory.getLogger(SharedExecutionPoller.class);
+
+    private static final String PROPERTY_PREFIX = SharedExecutionPoller.class.getName();
+    /** Milliseconds between polling rounds. */
+    private static final long POLLING_INTERVAL = Long.getLong(PROPERTY_PREFIX + ".interval", 2000);
+    /** Maximum number of executions of a single group polled per round. */
+    private static final int MAX_EXECUTIONS_PER_ROUND = Integer.getInteger(
+            PROPERTY_PREFIX + ".maxExecutionsPerRound", 50);
+    /** Number of consecutive failed status retrievals after which waiters are failed. */
+    private static final int MAX_CONSECUTIVE_FAILURES = Integer.getInteger(PROPERTY_PREFIX + ".maxFailures", 10);
+    /** Number of groups polled concurrently. */
+    private static final int THREADS = Integer.getInteger(PROPERTY_PREFIX + ".threads", 4);
+
+    private static final SharedExecutionPoller INSTANCE = new SharedExecutionPoller(POLLING_INTERVAL,
+            MAX_EXECUTIONS_PER_ROUND, MAX_CONSECUTIVE_FAILURES,
+            Executors.newSingleThreadScheduledExecutor(
+                    new NamingThreadFactory(new DaemonThreadFactory(), "Cloudify execution poller")),
+            Executors.newFixedThreadPool(THREADS,
+                    new NamingThreadFactory(new DaemonThreadFactory(), "Cloudify execution poller worker")),
+            SharedExecutionPoller::createStatusSource);
+
+    /**
+     * Retrieves the status of executions.
+     */
+    interface StatusSource {
+        /**
+         * @param ids     IDs of executions to retrieve
+         * @param results map to populate with the executions retrieved, by ID;
+         *                executions that could not be retrieved are left out
+         *
+         * @return Number of requests sent to the manager.
+         *
+         * @throws Exception Retrieval failed altogether.
+         */
+        int fetch(List<String> ids, Map<String, Execution> results) throws Exception;
+    }
+
+    private final long pollingInterval;
+    private final int maxExecutionsPerRound;
+    private final int maxConsecutiveFailures;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService workers;
+    private final Function<CloudifyClient, StatusSource> sources;
+    /** In-flight executions, per client. */
+    private final Map<CloudifyClient, Group> tracked = new IdentityHashMap<>();
+    private final AtomicLong totalRequests = new AtomicLong();
+    private ScheduledFuture<?> task;
+
+    SharedExecutionPoller(final long pollingInterval, final int maxExecutionsPerRound,
+            final int maxConsecutiveFailures, final ScheduledExecutorService scheduler,
+            final ExecutorService workers, final Function<CloudifyClient, StatusSource> sources) {
+        this.pollingInterval = pollingInterval;
+        this.maxExecutionsPerRound = maxExecutionsPerRound;
+        this.maxConsecutiveFailures = maxConsecutiveFailures;
+        this.scheduler = scheduler;
+        this.workers = workers;
+        this.sources = sources;
+    }
+
+    public static SharedExecutionPoller get() {
+        return INSTANCE;
+    }
+
+    private static StatusSource createStatusSource(final CloudifyClient client) {
+        ManagerEndpoint endpoint = CloudifyClientRegistry.get().getEndpoint(client);
+        return endpoint != null ? new EndpointStatusSource(endpoint) : new ClientStatusSource(client);
+    }
+
+    /**
+     * Register interest in an execution.
+     *
+     * @param client    client to poll with
+     * @param execution execution to follow
+     * @param callback  callback to invoke during following; called from one of
+     *                  the poller's threads
+     *
+     * @return A {@link Registration}, whose future is completed once the
+     *         execution ends.
+     */
+    public Registration register(final CloudifyClient client, final Execution execution,
+            final ExecutionFollowCallback callback) {
+        callback.start(execution);
+        Registration registration = new Registration(execution.getId(), callback);
+        if (ExecutionFollowStrategy.isTerminal(execution)) {
+            callback.end(execution);
+            registration.future.complete(execution);
+            return registration;
+        }
+        synchronized (this) {
+            tracked.computeIfAbsent(client, k -> new Group(sources.apply(k))).executions
+                    .computeIfAbsent(execution.getId(), k -> new TrackedExecution())
+                    .registrations.add(registration);
+            if (task == null) {
+                task = scheduler.scheduleWithFixedDelay(this::poll, pollingInterval, pollingInterval,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+        return registration;
+    }
+
+    /**
+     * Stop following an execution on behalf of a specific registration (for
+     * example, because the waiting build was aborted).
+     *
+     * @param registration registration to cancel
+     */
+    public synchronized void unregister(final Registration registration) {
+        registration.future.cancel(false);
+        for (Group group : tracked.values()) {
+            TrackedExecution trackedExecution = group.executions.get(registration.executionId);
+            if (trackedExecution != null) {
+                trackedExecution.registrations.remove(registration);
+                if (trackedExecution.registrations.isEmpty()) {
+                    group.executions.remove(registration.executionId);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Total number of status requests sent by the poller.
+     */
+    public long getTotalRequests() {
+        return totalRequests.get();
+    }
+
+    /**
+     * @return Number of executions currently being followed.
+     */
+    public synchronized int getTrackedCount() {
+        return tracked.values().stream().mapToInt(x -> x.executions.size()).sum();
+    }
+
+    /**
+     * Start a polling round: hand each group that isn't being polled already
+     * to a worker.
+     */
+    private void poll() {
+        Map<CloudifyClient, List<String>> batches = new IdentityHashMap<>();
+        synchronized (this) {
+            Iterator<Map.Entry<CloudifyClient, Group>> iter = tracked.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry<CloudifyClient, Group> entry = iter.next();
+                Group group = entry.getValue();
+                if (group.polling) {
+                    continue;
+                }
+                if (group.executions.isEmpty()) {
+                    iter.remove();
+                    continue;
+                }
+                List<String> ids = new ArrayList<>(maxExecutionsPerRound);
+                for (String id : group.executions.keySet()) {
+                    if (ids.size() >= maxExecutionsPerRound) {
+                        break;
+                    }
+                    ids.add(id);
+                }
+                group.polling = true;
+                batches.put(entry.getKey(), ids);
+            }
+            if (tracked.isEmpty() && task != null) {
+                task.cancel(false);
+                task = null;
+            }
+        }
+        batches.forEach((client, ids) -> workers.execute(() -> pollGroup(client, ids)));
+    }
+
+    private void pollGroup(final CloudifyClient client, final List<String> ids) {
+        Group group;
+        synchronized (this) {
+            group = tracked.get(client);
+        }
+        try {
+            Map<String, Execution> results = new LinkedHashMap<>();
+            Exception failure = null;
+            try {
+                totalRequests.addAndGet(group.source.fetch(ids, results));
+            } catch (Exception ex) {
+                logger.warn(String.format("Failed retrieving status of executions %s", ids), ex);
+                failure = ex;
+            }
+
+            // Decide what to do with each execution under the lock, and notify
+            // waiters outside of it.
+            List<Runnable> notifications = new ArrayList<>();
+            synchronized (this) {
+                for (String id : ids) {
+                    // Executions are polled in round-robin order: polled executions are
+                    // moved to the end of the (insertion-ordered) map.
+                    TrackedExecution trackedExecution = group.executions.remove(id);
+                    if (trackedExecution == null) {
+                        // Unregistered while polling.
+                        continue;
+                    }
+                    Execution execution = results.get(id);
+                    if (execution == null) {
+                        if (++trackedExecution.consecutiveFailures >= maxConsecutiveFailures) {
+                            Exception error = failure != null ? failure
+                                    : new IllegalStateException(String.format("Execution %s not found", id));
+                            List<Registration> registrations = new ArrayList<>(trackedExecution.registrations);
+                            notifications.add(() -> registrations.forEach(x -> x.future.completeExceptionally(error)));
+                        } else {
+                            group.executions.put(id, trackedExecution);
+                        }
+                        continue;
+                    }
+                    trackedExecution.consecutiveFailures = 0;
+                    boolean terminal = ExecutionFollowStrategy.isTerminal(execution);
+                    if (!terminal) {
+                        group.executions.put(id, trackedExecution);
+                    }
+                    List<Registration> registrations = new ArrayList<>(trackedExecution.registrations);
+                    notifications.add(() -> notifyWaiters(registrations, execution, terminal));
+                }
+            }
+            notifications.forEach(Runnable::run);
+        } catch (RuntimeException ex) {
+            logger.error("Polling round failed", ex);
+        } finally {
+            synchronized (this) {
+                group.polling = false;
+            }
+        }
+    }
+
+    private static void notifyWaiters(final List<Registration> registrations, final Execution execution,
+            final boolean terminal) {
+        for (Registration registration : registrations) {
+            if (registration.future.isDone()) {
+                continue;
+            }
+            registration.requests++;
+            try {
+                registration.callback.callback(execution);
+                if (terminal) {
+                    registration.callback.end(execution);
+                }
+            } catch (RuntimeException ex) {
+                logger.warn(String.format("Callback failed for execution %s", execution.getId()), ex);
+            }
+            if (terminal) {
+                registration.future.complete(execution);
+            }
+        }
+    }
+
+    /**
+     * Retrieves executions one at a time, through a {@link CloudifyClient}; used
+     * for clients the {@link CloudifyClientRegistry} doesn't know of.
+     */
+    private static class ClientStatusSource implements StatusSource {
+        private final CloudifyClient client;
+
+        ClientStatusSource(final CloudifyClient client) {
+            this.client = client;
+        }
+
+        @Override
+        public int fetch(final List<String> ids, final Map<String, Execution> results) {
+            int requests = 0;
+            for (String id : ids) {
+                requests++;
+                try {
+                    results.put(id, client.getExecutionsClient().get(id));
+                } catch (RuntimeException ex) {
+                    logger.warn(String.format("Failed retrieving status of execution %s", id), ex);
+                }
+            }
+            return requests;
+        }
+    }
+
+    /**
+     * Retrieves all executions with a single, ID-filtered list request.
+     */
+    static class EndpointStatusSource implements StatusSource {
+        private static final ObjectMapper MAPPER = new ObjectMapper()
+                .registerModule(new JaxbAnnotationModule())
+                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+        private final ManagerEndpoint endpoint;
+
+        EndpointStatusSource(final ManagerEndpoint endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        /**
+         * @param ids execution IDs
+         *
+         * @return Path of the list request for these executions.
+         */
+        static String getPath(final List<String> ids) throws UnsupportedEncodingException {
+            StringBuilder path = new StringBuilder("/executions?_size=").append(ids.size());
+            for (String id : ids) {
+                path.append("&id=").append(URLEncoder.encode(id, StandardCharsets.UTF_8.name()));
+            }
+            return path.toString();
+        }
+
+        @Override
+        public int fetch(final List<String> ids, final Map<String, Execution> results) throws Exception {
+            JsonNode response = MAPPER.readTree(ManagerEndpoint.readResponse(
+                    endpoint.openConnection(getPath(ids), "GET")));
+            for (JsonNode item : response.path("items")) {
+                Execution execution = MAPPER.treeToValue(item, Execution.class);
+                results.put(execution.getId(), execution);
+            }
+            return 1;
+        }
+    }
+
+    /**
+     * The executions followed through a single client.
+     */
+    private static class Group {
+        private final StatusSource source;
+        private final Map<String, TrackedExecution> executions = new LinkedHashMap<>();
+        /** Whether a worker is polling this group's executions. */
+        private boolean polling;
+
+        Group(final StatusSource source) {
+            this.source = source;
+        }
+    }
+
+    private static class TrackedExecution {
+        private final List<Registration> registrations = new ArrayList<>();
+        private int consecutiveFailures;
+    }
+
+    /**
+     * A single waiter's interest in an execution.
+     */
+    public static class Registration {
+        private final String executionId;
+        private final ExecutionFollowCallback callback;
+        private final CompletableFuture<Execution> future = new CompletableFuture<>();
+        private volatile long requests;
+
+        private Registration(final String executionId, final ExecutionFollowCallback callback) {
+            this.executionId = executionId;
+            this.callback = callback;
+        }
+
+        public String getExecutionId() {
+            return executionId;
+        }
+
+        /**
+         * @return A future that is completed with the execution, in its terminal
+         *         state.
+         */
+        public CompletableFuture<Execution> getFuture() {
+            return future;
+        }
+
+        /**
+         * @return Number of status requests done on behalf of this registration
+         *         (shared with other registrations for the same execution, and
+         *         with other executions of the same group).
+         */
+        public long getRequests() {
+            return requests;
+        }
+    }
+}
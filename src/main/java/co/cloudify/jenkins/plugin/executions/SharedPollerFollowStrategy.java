@@ -0,0 +1,38 @@
+package co.cloudify.jenkins.plugin.executions;
+
+import java.io.PrintStream;
+import java.util.concurrent.ExecutionException;
+
+import co.cloudify.rest.client.CloudifyClient;
+import co.cloudify.rest.helpers.ExecutionFollowCallback;
+import co.cloudify.rest.model.Execution;
+
+/**
+ * Follows an execution by handing it to the {@link SharedExecutionPoller} and
+ * waiting for it to end. The calling thread doesn't poll at all.
+ * 
+ * @author Isaac Shabtay
+ */
+public class SharedPollerFollowStrategy implements ExecutionFollowStrategy {
+    @Override
+    public Execution follow(final CloudifyClient client, final Execution execution,
+            final ExecutionFollowCallback callback, final PrintStream jenkinsLog) throws InterruptedException {
+        SharedExecutionPoller poller = SharedExecutionPoller.get();
+        SharedExecutionPoller.Registration registration = poller.register(client, execution, callback);
+        Execution result;
+        try {
+            result = registration.getFuture().get();
+        } catch (InterruptedException ex) {
+            poller.unregister(registration);
+            throw ex;
+        } catch (ExecutionException ex) {
+            throw new RuntimeException(String.format("Failed following execution %s", execution.getId()),
+                    ex.getCause());
+        } finally {
+            ExecutionFollowStrategy.release(callback);
+        }
+        jenkinsLog.println(String.format("Execution %s ended with status '%s' (%d shared status requests)",
+                result.getId(), result.getStatus(), registration.getRequests()));
+        return result;
+    }
+}
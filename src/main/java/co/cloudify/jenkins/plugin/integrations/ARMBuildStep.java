@@ -118,7 +118,7 @@ public class ARMBuildStep extends IntegrationBuildStep {
 
         Map<String, Object> variablesMap = CloudifyPluginUtilities.getCombinedMap(workspace, parametersFile,
                 parametersAsString,
-                this.parameters);
+                this.parameters, listener.getLogger());
 
         AzureCredentials azureCreds = CloudifyPluginUtilities.getCredentials(azureCredentialsId, AzureCredentials.class,
                 run);
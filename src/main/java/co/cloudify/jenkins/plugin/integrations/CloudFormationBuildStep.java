@@ -188,7 +188,7 @@ public class CloudFormationBuildStep extends IntegrationBuildStep {
 
         Map<String, Object> parametersMap = CloudifyPluginUtilities.getCombinedMap(workspace, parametersFile,
                 parametersAsString,
-                this.parameters);
+                this.parameters, listener.getLogger());
 
         // As of AWS plugin 2.3.2, we need to convert the parameters to a list.
         // There's probably a more elegant way to do this without using commons-collections,
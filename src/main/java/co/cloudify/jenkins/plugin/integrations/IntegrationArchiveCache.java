@@ -0,0 +1,166 @@
+package co.cloudify.jenkins.plugin.integrations;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import hudson.ProxyConfiguration;
+import jenkins.model.Jenkins;
+
+/**
+ * A controller-side cache of the integration blueprints archive. The archive
+ * is downloaded once per version (that is, per URL) and kept under
+ * <code>JENKINS_HOME</code>, along with its SHA-256 checksum, which is verified
+ * whenever the cached archive is used. Archives of other versions are evicted
+ * once a new version has been downloaded.
+ * <p>
+ * On air-gapped installations, an administrator may point the archive URL at a
+ * <code>file:</code> URL, or pre-populate the cache.
+ * <p>
+ * Downloading and verifying are serialized per archive only, so a slow
+ * download of one version doesn't hold up builds using another.
+ *
+ * @author Isaac Shabtay
+ */
+public class IntegrationArchiveCache {
+    private static final Logger logger = LoggerFactory.getLogger(IntegrationArchiveCache.class);
+
+    private static final String ARCHIVE_SUFFIX = ".zip";
+    private static final String CHECKSUM_SUFFIX = ".sha256";
+    private static final int TIMEOUT_MILLIS = (int) TimeUnit.MINUTES.toMillis(1);
+
+    private static IntegrationArchiveCache instance;
+
+    private final File directory;
+    /** Guards each archive's files, by key. */
+    private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<>();
+
+    IntegrationArchiveCache(final File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return The cache for this controller.
+     */
+    public static synchronized IntegrationArchiveCache get() {
+        if (instance == null) {
+            instance = new IntegrationArchiveCache(
+                    new File(Jenkins.get().getRootDir(), IntegrationArchiveCache.class.getName()));
+        }
+        return instance;
+    }
+
+    /**
+     * Get a local copy of an archive, downloading it if it isn't cached yet, or
+     * if the cached copy is corrupt.
+     *
+     * @param url archive URL
+     *
+     * @return Path to the cached archive.
+     *
+     * @throws IOException If downloading the archive failed.
+     */
+    public File getArchive(final URL url) throws IOException {
+        String key = DigestUtils.sha256Hex(url.toExternalForm());
+        File archive = new File(directory, key + ARCHIVE_SUFFIX);
+        File checksum = new File(directory, key + CHECKSUM_SUFFIX);
+
+        synchronized (getLock(key)) {
+            if (archive.isFile() && checksum.isFile()) {
+                String expected = StringUtils.trim(FileUtils.readFileToString(checksum, StandardCharsets.UTF_8));
+                String actual;
+                try (InputStream is = new FileInputStream(archive)) {
+                    actual = DigestUtils.sha256Hex(is);
+                }
+                if (actual.equals(expected)) {
+                    logger.debug("Using cached archive {} for {}", archive, url);
+                    return archive;
+                }
+                logger.warn("Cached archive {} for {} is corrupt (expected checksum {}, got {}); downloading again",
+                        archive, url, expected, actual);
+            }
+
+            download(url, archive, checksum);
+        }
+        // Outside of this key's lock, as other keys' locks are taken.
+        evictOthers(key);
+        return archive;
+    }
+
+    private Object getLock(final String key) {
+        return locks.computeIfAbsent(key, k -> new Object());
+    }
+
+    private void download(final URL url, final File archive, final File checksum) throws IOException {
+        Files.createDirectories(directory.toPath());
+        File temp = File.createTempFile("download", ".tmp", directory);
+        try {
+            logger.info("Downloading {} into {}", url, archive);
+            URLConnection connection = ProxyConfiguration.open(url);
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            MessageDigest digest = DigestUtils.getSha256Digest();
+            try (InputStream is = new DigestInputStream(connection.getInputStream(), digest);
+                    OutputStream os = Files.newOutputStream(temp.toPath())) {
+                IOUtils.copyLarge(is, os);
+            }
+            // Checksum first: an archive without a checksum is ignored, while
+            // a checksum without an archive is harmless.
+            FileUtils.writeStringToFile(checksum, Hex.encodeHexString(digest.digest()), StandardCharsets.UTF_8);
+            Files.move(temp.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    private void evictOthers(final String key) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            // Temporary files belong to downloads in progress, which clean up after
+            // themselves.
+            if (!name.endsWith(ARCHIVE_SUFFIX) && !name.endsWith(CHECKSUM_SUFFIX)) {
+                continue;
+            }
+            String fileKey = StringUtils.substringBefore(name, ".");
+            if (!fileKey.equals(key)) {
+                synchronized (getLock(fileKey)) {
+                    logger.info("Evicting stale cache entry: {}", file);
+                    FileUtils.deleteQuietly(file);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("directory", directory)
+                .toString();
+    }
+}
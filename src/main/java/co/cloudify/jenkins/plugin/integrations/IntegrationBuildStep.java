@@ -1,11 +1,13 @@
 package co.cloudify.jenkins.plugin.integrations;
 
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.ResourceBundle;
 import java.util.function.Predicate;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.kohsuke.stapler.DataBoundSetter;
 
@@ -13,6 +15,8 @@ import co.cloudify.jenkins.plugin.BlueprintUploadSpec;
 import co.cloudify.jenkins.plugin.CloudifyBuildStep;
 import co.cloudify.jenkins.plugin.CloudifyConfiguration;
 import co.cloudify.jenkins.plugin.CloudifyPluginUtilities;
+import co.cloudify.jenkins.plugin.teardown.EnvironmentOwner;
+import co.cloudify.jenkins.plugin.upload.ManagerEndpoint;
 import co.cloudify.rest.client.BlueprintsClient;
 import co.cloudify.rest.client.CloudifyClient;
 import co.cloudify.rest.client.exceptions.BlueprintNotFoundException;
@@ -86,8 +90,11 @@ public abstract class IntegrationBuildStep extends CloudifyBuildStep {
     }
 
     protected BlueprintUploadSpec getBlueprintUploadSpec() throws Exception {
+        // Upload from a local copy, rather than having the manager download the
+        // archive every time.
         return new BlueprintUploadSpec(
-                CloudifyConfiguration.get().getIntegrationBlueprintsArchiveUrl(),
+                IntegrationArchiveCache.get().getArchive(
+                        CloudifyConfiguration.get().getIntegrationBlueprintsArchiveUrl()),
                 INTEGRATION_BUNDLE.getString(String.format("integration.%s.blueprint-file", getIntegrationName())));
     }
 
@@ -99,23 +106,39 @@ public abstract class IntegrationBuildStep extends CloudifyBuildStep {
         String blueprintId = generateBlueprintId();
         String deploymentId = CloudifyPluginUtilities.expandString(envVars, this.deploymentId);
 
+        CloudifyConfiguration config = CloudifyConfiguration.get();
+        String host = config.getHost();
+        String tenant = CloudifyConfiguration.getEffectiveTenant(config, StringUtils.trimToNull(getTenant()));
         BlueprintsClient blueprintsClient = cloudifyClient.getBlueprintsClient();
-        Blueprint blueprint;
-        try {
-            logger.println(String.format("Loading blueprint: %s", blueprintId));
-            blueprint = blueprintsClient.get(blueprintId);
-        } catch (BlueprintNotFoundException ex) {
-            logger.println(String.format("Blueprint '%s' doesn't exist; will try to upload it", blueprintId));
-            try (BlueprintUploadSpec uploadSpec = getBlueprintUploadSpec()) {
-                blueprint = uploadSpec.upload(blueprintsClient, blueprintId);
+        ManagerEndpoint endpoint = ManagerEndpoint.create(
+                CloudifyPluginUtilities.getUsernamePasswordCredentials(getCredentialsId(), run),
+                StringUtils.trimToNull(getTenant()));
+        logger.println(String.format("Loading blueprint: %s", blueprintId));
+        Blueprint blueprint = KnownBlueprintsCache.get().getOrLoad(host, tenant, blueprintId, () -> {
+            try {
+                return blueprintsClient.get(blueprintId);
+            } catch (BlueprintNotFoundException ex) {
+                logger.println(String.format("Blueprint '%s' doesn't exist; will try to upload it", blueprintId));
+                try (BlueprintUploadSpec uploadSpec = getBlueprintUploadSpec()) {
+                    Blueprint uploaded = uploadSpec.upload(blueprintsClient, endpoint, blueprintId);
+                    logger.println(String.format("Blueprint '%s' uploaded", blueprintId));
+                    return uploaded;
+                }
             }
-            logger.println(String.format("Blueprint '%s' uploaded", blueprintId));
-        }
+        });
 
         String envDataLocation = CloudifyPluginUtilities.expandString(envVars, this.envDataLocation);
-        CloudifyPluginUtilities.createEnvironment(listener, workspace, cloudifyClient, blueprint.getId(), deploymentId,
-                operationInputs, envDataLocation, false, echoInputs, echoEnvData, debugOutput,
-                inputPrintPredicate != null ? inputPrintPredicate : x -> true);
+        try {
+            CloudifyPluginUtilities.createEnvironment(listener, workspace, cloudifyClient, blueprint.getId(),
+                    deploymentId, operationInputs, envDataLocation, false, echoInputs, echoEnvData, debugOutput,
+                    inputPrintPredicate != null ? inputPrintPredicate : x -> true,
+                    EnvironmentOwner.of(run, getCredentialsId(), getTenant()));
+        } catch (IOException | RuntimeException ex) {
+            // The cached blueprint may have been deleted behind our back; don't
+            // trust the cache next time.
+            KnownBlueprintsCache.get().invalidate(host, tenant, blueprintId);
+            throw ex;
+        }
     }
 
     protected void putIfNonNullValue(final Map<String, Object> map, final String key, final Object value) {
@@ -0,0 +1,133 @@
+package co.cloudify.jenkins.plugin.integrations;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import co.cloudify.jenkins.plugin.BlueprintUploadCoordinator;
+import co.cloudify.rest.model.Blueprint;
+
+/**
+ * A controller-wide cache of blueprints known to exist on a manager, per
+ * manager and tenant. Integration steps use well-known blueprint IDs which
+ * hardly ever change, so there's no need to ask the manager about them on every
+ * build.
+ * <p>
+ * Entries expire after a while, and may be invalidated explicitly (for
+ * example, when using a cached blueprint fails). Concurrent loads of the same
+ * blueprint are coalesced through the {@link BlueprintUploadCoordinator}: one
+ * caller loads (and, if needed, uploads) the blueprint, while the others wait
+ * for its result.
+ *
+ * @author Isaac Shabtay
+ */
+public class KnownBlueprintsCache {
+    private static final Logger logger = LoggerFactory.getLogger(KnownBlueprintsCache.class);
+
+    /** Time after which a cached blueprint is checked again. */
+    private static final long TTL_MILLIS = Long.getLong(KnownBlueprintsCache.class.getName() + ".ttlMinutes", 10)
+            * TimeUnit.MINUTES.toMillis(1);
+
+    private static final KnownBlueprintsCache INSTANCE = new KnownBlueprintsCache(TTL_MILLIS,
+            BlueprintUploadCoordinator.get());
+
+    /**
+     * Loads a blueprint: retrieves it from the manager, uploading it first if it
+     * doesn't exist.
+     */
+    public interface Loader {
+        Blueprint load() throws Exception;
+    }
+
+    private final long ttlMillis;
+    private final BlueprintUploadCoordinator coordinator;
+    private final ConcurrentMap<String, Entry> known = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    KnownBlueprintsCache(final long ttlMillis, final BlueprintUploadCoordinator coordinator) {
+        this.ttlMillis = ttlMillis;
+        this.coordinator = coordinator;
+    }
+
+    public static KnownBlueprintsCache get() {
+        return INSTANCE;
+    }
+
+    private static String key(final String host, final String tenant, final String blueprintId) {
+        return String.format("%s/%s/%s", host, tenant, blueprintId);
+    }
+
+    /**
+     * Get a blueprint, either from the cache or by loading it.
+     *
+     * @param host        Cloudify Manager host
+     * @param tenant      tenant
+     * @param blueprintId blueprint ID
+     * @param loader      loader to use if the blueprint isn't cached
+     *
+     * @return The blueprint.
+     *
+     * @throws Exception Anything thrown by the loader, or by the
+     *                   {@link BlueprintUploadCoordinator}.
+     */
+    public Blueprint getOrLoad(final String host, final String tenant, final String blueprintId,
+            final Loader loader) throws Exception {
+        String key = key(host, tenant, blueprintId);
+        Entry entry = known.get(key);
+        if (entry != null && System.currentTimeMillis() - entry.loadedAt < ttlMillis) {
+            hits.incrementAndGet();
+            return entry.blueprint;
+        }
+
+        misses.incrementAndGet();
+        Blueprint blueprint = coordinator.upload(host, tenant, blueprintId, loader::load).getBlueprint();
+        known.put(key, new Entry(blueprint, System.currentTimeMillis()));
+        return blueprint;
+    }
+
+    /**
+     * Forget a blueprint, so the next request for it goes to the manager.
+     *
+     * @param host        Cloudify Manager host
+     * @param tenant      tenant
+     * @param blueprintId blueprint ID
+     */
+    public void invalidate(final String host, final String tenant, final String blueprintId) {
+        if (known.remove(key(host, tenant, blueprintId)) != null) {
+            logger.debug("Invalidated {}/{}/{}", host, tenant, blueprintId);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("size", known.size())
+                .append("hits", getHits())
+                .append("misses", getMisses())
+                .toString();
+    }
+
+    private static class Entry {
+        private final Blueprint blueprint;
+        private final long loadedAt;
+
+        Entry(final Blueprint blueprint, final long loadedAt) {
+            this.blueprint = blueprint;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
@@ -251,9 +251,9 @@ public class KubernetesBuildStep extends IntegrationBuildStep {
         String namespace = CloudifyPluginUtilities.expandString(envVars, this.namespace);
 
         Map<String, Object> definitionMap = CloudifyPluginUtilities.getCombinedMap(workspace, definitionFile,
-                definitionAsString, this.definition);
+                definitionAsString, this.definition, listener.getLogger());
         Map<String, Object> optionsMap = CloudifyPluginUtilities.getCombinedMap(workspace, optionsFile,
-                optionsAsString, this.options);
+                optionsAsString, this.options, listener.getLogger());
 
         // Prepare the Client Config.
 
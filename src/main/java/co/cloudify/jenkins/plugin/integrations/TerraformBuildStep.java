@@ -152,10 +152,10 @@ public class TerraformBuildStep extends IntegrationBuildStep {
 
         Map<String, Object> variablesMap = CloudifyPluginUtilities.getCombinedMap(workspace, variablesFile,
                 variablesAsString,
-                this.variables);
+                this.variables, listener.getLogger());
         Map<String, String> envVariablesMap = CloudifyPluginUtilities
                 .getCombinedMap(workspace, environmentVariablesFile, environmentVariablesAsString,
-                        this.environmentVariables)
+                        this.environmentVariables, listener.getLogger())
                 .entrySet()
                 .stream()
                 .collect(Collectors.toMap(Map.Entry::getKey,
@@ -0,0 +1,196 @@
+package co.cloudify.jenkins.plugin.logging;
+
+import java.io.PrintStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Writes execution events to the build log asynchronously. Events are
+ * collected in an {@link EventLogBuffer}, and a background flusher drains the
+ * buffer into the build log periodically, so a slow log (large console logs,
+ * remote log storage) doesn't slow down execution following.
+ * <p>
+ * {@link #close()} stops the flusher and writes out whatever is still
+ * buffered; it must be called before the step that created the writer
+ * returns.
+ * <p>
+ * Besides each writer's own counters, controller-wide totals across all
+ * writers are available through static getters.
+ *
+ * @author Isaac Shabtay
+ */
+public class AsyncEventLogWriter implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncEventLogWriter.class);
+
+    /** Milliseconds between flushes. */
+    private static final long FLUSH_INTERVAL = Long.getLong(AsyncEventLogWriter.class.getName() + ".flushInterval",
+            250);
+
+    /**
+     * Flushing threads are shared by all writers, and kept apart from Jenkins'
+     * general-purpose timer so slow logs can't starve other periodic tasks.
+     */
+    private static final ScheduledExecutorService FLUSHER = Executors.newScheduledThreadPool(2,
+            new NamingThreadFactory(new DaemonThreadFactory(), "Cloudify event log flusher"));
+
+    private static final AtomicLong TOTAL_LINES_WRITTEN = new AtomicLong();
+    private static final AtomicLong TOTAL_FLUSHES = new AtomicLong();
+    private static final AtomicLong TOTAL_DROPPED = new AtomicLong();
+    private static final AtomicLong MAX_FLUSH_NANOS = new AtomicLong();
+
+    private final EventLogBuffer buffer;
+    private final ScheduledFuture<?> task;
+    private long linesWritten;
+    private long flushes;
+    private long maxFlushNanos;
+    private int maxQueueDepth;
+    /** Number of dropped lines already added to the controller-wide total. */
+    private long droppedCounted;
+    private boolean closed;
+
+    public AsyncEventLogWriter(final PrintStream target, final int capacity) {
+        this(target, capacity, FLUSH_INTERVAL);
+    }
+
+    AsyncEventLogWriter(final PrintStream target, final int capacity, final long flushInterval) {
+        this.buffer = new EventLogBuffer(target, capacity);
+        this.task = FLUSHER.scheduleWithFixedDelay(() -> flush(false), flushInterval, flushInterval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return The buffer that event lines should be written to.
+     */
+    public EventLogBuffer getBuffer() {
+        return buffer;
+    }
+
+    private synchronized void flush(final boolean includePartial) {
+        try {
+            maxQueueDepth = Math.max(maxQueueDepth, buffer.getQueuedLines());
+            long start = System.nanoTime();
+            int written = buffer.drain(includePartial);
+            if (written > 0) {
+                long elapsed = System.nanoTime() - start;
+                maxFlushNanos = Math.max(maxFlushNanos, elapsed);
+                MAX_FLUSH_NANOS.accumulateAndGet(elapsed, Math::max);
+                linesWritten += written;
+                flushes++;
+                TOTAL_LINES_WRITTEN.addAndGet(written);
+                TOTAL_FLUSHES.incrementAndGet();
+            }
+            long dropped = buffer.getTotalDropped();
+            TOTAL_DROPPED.addAndGet(dropped - droppedCounted);
+            droppedCounted = dropped;
+        } catch (RuntimeException ex) {
+            // Don't let the scheduled task die silently.
+            logger.warn("Failed flushing events to the build log", ex);
+        }
+    }
+
+    /**
+     * Stop the background flusher and write all buffered lines. Safe to call
+     * more than once.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        task.cancel(false);
+        flush(true);
+        logger.debug("Event log writer closed: {}", this);
+    }
+
+    /**
+     * @return Number of lines currently waiting to be written.
+     */
+    public int getQueueDepth() {
+        return buffer.getQueuedLines();
+    }
+
+    /**
+     * @return Largest number of lines seen waiting at the time of a flush.
+     */
+    public synchronized int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * @return Longest time taken by a single flush.
+     */
+    public synchronized long getMaxFlushLatencyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxFlushNanos);
+    }
+
+    /**
+     * @return Number of lines written to the build log.
+     */
+    public synchronized long getLinesWritten() {
+        return linesWritten;
+    }
+
+    /**
+     * @return Number of flushes that wrote anything.
+     */
+    public synchronized long getFlushes() {
+        return flushes;
+    }
+
+    /**
+     * @return Number of lines dropped because the buffer was full.
+     */
+    public long getDropped() {
+        return buffer.getTotalDropped();
+    }
+
+    /**
+     * @return Number of lines written to build logs by all writers.
+     */
+    public static long getTotalLinesWritten() {
+        return TOTAL_LINES_WRITTEN.get();
+    }
+
+    /**
+     * @return Number of flushes that wrote anything, by all writers.
+     */
+    public static long getTotalFlushes() {
+        return TOTAL_FLUSHES.get();
+    }
+
+    /**
+     * @return Number of lines dropped by all writers.
+     */
+    public static long getTotalDropped() {
+        return TOTAL_DROPPED.get();
+    }
+
+    /**
+     * @return Longest time taken by a single flush, of all writers.
+     */
+    public static long getOverallMaxFlushLatencyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(MAX_FLUSH_NANOS.get());
+    }
+
+    @Override
+    public synchronized String toString() {
+        return new ToStringBuilder(this)
+                .append("linesWritten", linesWritten)
+                .append("flushes", flushes)
+                .append("maxQueueDepth", maxQueueDepth)
+                .append("maxFlushLatencyMillis", getMaxFlushLatencyMillis())
+                .append("dropped", getDropped())
+                .toString();
+    }
+}
@@ -0,0 +1,149 @@
+package co.cloudify.jenkins.plugin.logging;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+/**
+ * Collects event lines emitted while following an execution, and writes them
+ * to the build log in batches rather than one line at a time. The buffer is
+ * bounded: when more lines arrive than the log can absorb, the oldest buffered
+ * lines are dropped, so the most recent events (typically the ones explaining
+ * how an execution ended) are kept. Dropped lines are replaced by a summary
+ * line stating how many were dropped.
+ * <p>
+ * Lines are only written to the target stream when {@link #drain(boolean)} is
+ * called.
+ *
+ * @author Isaac Shabtay
+ */
+public class EventLogBuffer extends OutputStream {
+    /** Default maximum number of lines held in the buffer. */
+    public static final int DEFAULT_CAPACITY = Integer.getInteger(EventLogBuffer.class.getName() + ".capacity",
+            10000);
+
+    private final PrintStream target;
+    private final int capacity;
+    private final Deque<String> lines = new ArrayDeque<>();
+    private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream(256);
+    private int queuedChars;
+    private long dropped;
+    private long totalDropped;
+    private long drainedLines;
+
+    public EventLogBuffer(final PrintStream target, final int capacity) {
+        this.target = target;
+        this.capacity = capacity;
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        if (b == '\n') {
+            enqueue(new String(partialLine.toByteArray(), StandardCharsets.UTF_8));
+            partialLine.reset();
+        } else {
+            partialLine.write(b);
+        }
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        int start = off;
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            if (b[i] == '\n') {
+                partialLine.write(b, start, i - start);
+                enqueue(new String(partialLine.toByteArray(), StandardCharsets.UTF_8));
+                partialLine.reset();
+                start = i + 1;
+            }
+        }
+        partialLine.write(b, start, end - start);
+    }
+
+    private void enqueue(final String line) {
+        if (lines.size() >= capacity) {
+            String oldest = lines.poll();
+            queuedChars -= oldest.length() + 1;
+            dropped++;
+            totalDropped++;
+        }
+        lines.add(line);
+        queuedChars += line.length() + 1;
+    }
+
+    /**
+     * Write all buffered lines to the target stream, in a single write.
+     *
+     * @param includePartial whether to also write a trailing, incomplete line
+     *
+     * @return Number of lines written.
+     */
+    public int drain(final boolean includePartial) {
+        String batch;
+        int count;
+        long droppedNow;
+        synchronized (this) {
+            if (includePartial && partialLine.size() > 0) {
+                enqueue(new String(partialLine.toByteArray(), StandardCharsets.UTF_8));
+                partialLine.reset();
+            }
+            if (lines.isEmpty() && dropped == 0) {
+                return 0;
+            }
+            count = lines.size();
+            droppedNow = dropped;
+            StringBuilder sb = new StringBuilder(queuedChars + 128);
+            if (dropped > 0) {
+                // Dropped lines preceded the ones still buffered.
+                sb.append(String.format("[%d event lines were dropped, as they arrived faster than they could be "
+                        + "written to the build log]", dropped)).append('\n');
+            }
+            for (String line : lines) {
+                sb.append(line).append('\n');
+            }
+            lines.clear();
+            queuedChars = 0;
+            dropped = 0;
+            batch = sb.toString();
+        }
+        // Write outside the lock, so producers aren't held up by a slow log.
+        target.print(batch);
+        target.flush();
+        synchronized (this) {
+            drainedLines += count + droppedNow;
+        }
+        return count;
+    }
+
+    public synchronized int getQueuedLines() {
+        return lines.size();
+    }
+
+    public synchronized long getTotalDropped() {
+        return totalDropped;
+    }
+
+    /**
+     * @return Number of lines accounted for in the target stream: lines written
+     *         to it, and lines dropped and summarized in it. Lines are counted
+     *         only once the write is done.
+     */
+    public synchronized long getDrainedLines() {
+        return drainedLines;
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("capacity", capacity)
+                .append("queuedLines", getQueuedLines())
+                .append("totalDropped", getTotalDropped())
+                .toString();
+    }
+}
@@ -0,0 +1,692 @@
+package co.cloudify.jenkins.plugin.pool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+
+import co.cloudify.jenkins.plugin.CloudifyConfiguration;
+import co.cloudify.jenkins.plugin.CloudifyPluginUtilities;
+import co.cloudify.jenkins.plugin.teardown.EnvironmentOwner;
+import co.cloudify.jenkins.plugin.teardown.TeardownQueue;
+import co.cloudify.jenkins.plugin.teardown.TeardownTask;
+import co.cloudify.rest.client.CloudifyClient;
+import co.cloudify.rest.helpers.ExecutionFollowCallback;
+import co.cloudify.rest.helpers.ExecutionsHelper;
+import co.cloudify.rest.model.Execution;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.StreamTaskListener;
+import jenkins.model.Jenkins;
+
+/**
+ * Controller-wide pools of installed environments, which builds lease instead
+ * of creating environments of their own.
+ * <p>
+ * A pool holds environments created from the same blueprint with the same
+ * inputs (see {@link PoolSpec}). It keeps a minimum number of idle
+ * environments ready, provisioning new ones in the background as environments
+ * are leased, and never holds more than a maximum number of environments. A
+ * build that finds no idle environment provisions one itself, if the pool has
+ * room. Once a build is done with an environment, it is handled according to
+ * a {@link ReleasePolicy}.
+ * <p>
+ * Once a build leases from a pool of newer blueprint contents (see
+ * {@link PoolSpec}), older pools of the same lineage are retired: they
+ * provision no more environments, and their environments are discarded as soon
+ * as they are idle. A retired pool is removed once it is empty, along with the
+ * blueprint uploaded for it.
+ * <p>
+ * Pools are persisted in <code>JENKINS_HOME</code>. Environments that were
+ * being provisioned or reset when Jenkins stopped, or whose builds are gone,
+ * are discarded when it starts. Background provisioning uses the credentials
+ * and tenant of the build that leased from the pool last, which are stored
+ * with the pool.
+ *
+ * @author Isaac Shabtay
+ */
+public class EnvironmentPool {
+    private static final Logger logger = LoggerFactory.getLogger(EnvironmentPool.class);
+
+    private static final String PROPERTY_PREFIX = EnvironmentPool.class.getName();
+    /** Maximum number of environments provisioned or reset concurrently. */
+    private static final int CONCURRENCY = Integer.getInteger(PROPERTY_PREFIX + ".concurrency", 2);
+    /** Time to wait before provisioning again, after provisioning failed. */
+    private static final long FAILURE_DELAY_MILLIS = Long.getLong(PROPERTY_PREFIX + ".failureDelayMinutes", 5)
+            * TimeUnit.MINUTES.toMillis(1);
+
+    private static EnvironmentPool instance;
+
+    /**
+     * Performs operations on pooled environments.
+     */
+    public interface Provisioner {
+        /**
+         * Create and install an environment.
+         */
+        void create(Pool pool, String deploymentId, TaskListener listener) throws Exception;
+
+        /**
+         * Bring an environment back to its freshly-installed state.
+         */
+        void reset(Pool pool, String deploymentId, TaskListener listener) throws Exception;
+
+        /**
+         * Get rid of an environment; mustn't block.
+         */
+        void discard(Pool pool, String deploymentId);
+
+        /**
+         * Get rid of a removed pool's blueprint, if it was uploaded for the
+         * pool; mustn't block.
+         */
+        void retire(Pool pool);
+    }
+
+    private interface Operation {
+        void run(Pool pool, String deploymentId, TaskListener listener) throws Exception;
+    }
+
+    /**
+     * An environment held by a pool.
+     */
+    public static class PooledEnvironment {
+        public enum State {
+            PROVISIONING, READY, LEASED, RESETTING
+        }
+
+        private final String deploymentId;
+        private final long createdAt;
+        private State state;
+        private String leasedBy;
+        private int leases;
+
+        PooledEnvironment(final String deploymentId, final State state) {
+            this.deploymentId = deploymentId;
+            this.state = state;
+            this.createdAt = System.currentTimeMillis();
+        }
+
+        public String getDeploymentId() {
+            return deploymentId;
+        }
+
+        public long getCreatedAt() {
+            return createdAt;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * @return Externalizable ID of the build that leased this environment
+         *         last.
+         */
+        public String getLeasedBy() {
+            return leasedBy;
+        }
+
+        /**
+         * @return Number of times this environment was leased.
+         */
+        public int getLeases() {
+            return leases;
+        }
+
+        void leased(final String runId) {
+            state = State.LEASED;
+            leasedBy = runId;
+            leases++;
+        }
+
+        @Override
+        public String toString() {
+            return new ToStringBuilder(this)
+                    .append("deploymentId", deploymentId)
+                    .append("createdAt", createdAt)
+                    .append("state", state)
+                    .append("leasedBy", leasedBy)
+                    .append("leases", leases)
+                    .toString();
+        }
+    }
+
+    /**
+     * A pool of interchangeable environments.
+     */
+    public static class Pool {
+        private final String key;
+        private final String fingerprint;
+        private final String lineage;
+        private final String blueprintId;
+        private final boolean blueprintOwned;
+        private boolean retired;
+        private EnvironmentOwner owner;
+        private Map<String, Object> inputs;
+        private int minSize;
+        private int maxSize;
+        private long replenishAfter;
+        // Modified while holding the EnvironmentPool's lock; read without it.
+        private final List<PooledEnvironment> environments = new CopyOnWriteArrayList<>();
+
+        Pool(final String key, final String fingerprint, final String lineage, final String blueprintId,
+                final boolean blueprintOwned) {
+            this.key = key;
+            this.fingerprint = fingerprint;
+            this.lineage = lineage;
+            this.blueprintId = blueprintId;
+            this.blueprintOwned = blueprintOwned;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        /**
+         * @return Key shared by all pools of the same blueprint and inputs,
+         *         regardless of the blueprint's contents.
+         */
+        public String getLineage() {
+            // Pools created before lineages were introduced were keyed by
+            // their lineage.
+            return lineage != null ? lineage : key;
+        }
+
+        public String getBlueprintId() {
+            return blueprintId;
+        }
+
+        /**
+         * @return <code>true</code> if the blueprint was uploaded for this
+         *         pool, and is to be deleted along with it.
+         */
+        public boolean isBlueprintOwned() {
+            return blueprintOwned;
+        }
+
+        /**
+         * @return <code>true</code> if the pool was superseded by a pool of
+         *         newer blueprint contents, and is being drained.
+         */
+        public boolean isRetired() {
+            return retired;
+        }
+
+        public EnvironmentOwner getOwner() {
+            return owner;
+        }
+
+        public Map<String, Object> getInputs() {
+            return inputs;
+        }
+
+        public int getMinSize() {
+            return minSize;
+        }
+
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        public List<PooledEnvironment> getEnvironments() {
+            return Collections.unmodifiableList(environments);
+        }
+
+        /**
+         * @param states states to count
+         *
+         * @return Number of environments in any of the given states.
+         */
+        public int count(final PooledEnvironment.State... states) {
+            List<PooledEnvironment.State> list = Arrays.asList(states);
+            return (int) environments.stream().filter(x -> list.contains(x.state)).count();
+        }
+
+        PooledEnvironment find(final String deploymentId) {
+            return environments.stream().filter(x -> x.deploymentId.equals(deploymentId)).findFirst().orElse(null);
+        }
+
+        void update(final PoolSpec spec) {
+            owner = spec.getOwner();
+            inputs = spec.getInputs();
+            minSize = spec.getMinSize();
+            maxSize = spec.getMaxSize();
+        }
+
+        @Override
+        public String toString() {
+            return new ToStringBuilder(this)
+                    .append("key", key)
+                    .append("lineage", lineage)
+                    .append("blueprintId", blueprintId)
+                    .append("blueprintOwned", blueprintOwned)
+                    .append("retired", retired)
+                    .append("owner", owner)
+                    .append("minSize", minSize)
+                    .append("maxSize", maxSize)
+                    .append("environments", environments)
+                    .toString();
+        }
+    }
+
+    /**
+     * A build's hold on a pooled environment.
+     */
+    public static class Lease implements Serializable {
+        /** Serialization UID. */
+        private static final long serialVersionUID = 1L;
+
+        private final String poolKey;
+        private final String deploymentId;
+        private final boolean ready;
+
+        Lease(final String poolKey, final String deploymentId, final boolean ready) {
+            this.poolKey = poolKey;
+            this.deploymentId = deploymentId;
+            this.ready = ready;
+        }
+
+        public String getPoolKey() {
+            return poolKey;
+        }
+
+        public String getDeploymentId() {
+            return deploymentId;
+        }
+
+        /**
+         * @return <code>true</code> if the environment is installed;
+         *         otherwise, the leasing build must create it, and release it
+         *         with {@link ReleasePolicy#DISCARD} if that fails.
+         */
+        public boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public String toString() {
+            return new ToStringBuilder(this)
+                    .append("poolKey", poolKey)
+                    .append("deploymentId", deploymentId)
+                    .append("ready", ready)
+                    .toString();
+        }
+    }
+
+    private final XmlFile file;
+    private final File logDir;
+    private final Provisioner provisioner;
+    private final long failureDelayMillis;
+    private final Map<String, Pool> pools = new LinkedHashMap<>();
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "Cloudify environment pool scheduler"));
+
+    @SuppressWarnings("unchecked")
+    EnvironmentPool(final XmlFile file, final File logDir, final int concurrency, final long failureDelayMillis,
+            final Provisioner provisioner) {
+        this.file = file;
+        this.logDir = logDir;
+        this.failureDelayMillis = failureDelayMillis;
+        this.provisioner = provisioner;
+        this.executor = Executors.newFixedThreadPool(concurrency,
+                new NamingThreadFactory(new DaemonThreadFactory(), "Cloudify environment pool"));
+        if (file.exists()) {
+            try {
+                for (Pool pool : (List<Pool>) file.read()) {
+                    pools.put(pool.getKey(), pool);
+                }
+            } catch (IOException | RuntimeException ex) {
+                logger.error(String.format("Failed reading %s; pooled environments are lost", file), ex);
+            }
+        }
+    }
+
+    /**
+     * @return The pools of this controller, loading them if necessary.
+     */
+    public static synchronized EnvironmentPool get() {
+        if (instance == null) {
+            File dir = new File(Jenkins.get().getRootDir(), EnvironmentPool.class.getName());
+            instance = new EnvironmentPool(new XmlFile(Jenkins.XSTREAM2, new File(dir, "pools.xml")), dir,
+                    CONCURRENCY, FAILURE_DELAY_MILLIS, new CloudifyProvisioner());
+        }
+        return instance;
+    }
+
+    /**
+     * Discard environments left in an unknown state when Jenkins stopped, and
+     * replenish the pools. Jobs must be loaded first, as leasing builds are
+     * checked, and credentials are looked up in the jobs' context.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void resumeAll() {
+        get().resume();
+    }
+
+    synchronized void resume() {
+        for (Pool pool : pools.values()) {
+            for (PooledEnvironment environment : new ArrayList<>(pool.environments)) {
+                boolean stale;
+                switch (environment.state) {
+                case PROVISIONING:
+                case RESETTING:
+                    stale = true;
+                    break;
+                case LEASED:
+                    Run<?, ?> run = Run.fromExternalizableId(environment.leasedBy);
+                    stale = run == null || !run.isBuilding();
+                    break;
+                default:
+                    stale = pool.retired;
+                }
+                if (stale) {
+                    logger.info("Discarding stale pooled environment: {}", environment);
+                    discard(pool, environment);
+                }
+            }
+            replenish(pool);
+        }
+        new ArrayList<>(pools.values()).forEach(this::removeIfDrained);
+        save();
+    }
+
+    /**
+     * @param host        Cloudify Manager host
+     * @param tenant      effective tenant
+     * @param fingerprint pool fingerprint
+     *
+     * @return Key of the pool.
+     */
+    public static String key(final String host, final String tenant, final String fingerprint) {
+        return String.format("%s/%s/%s", host, tenant, fingerprint);
+    }
+
+    /**
+     * Lease an environment from a pool, creating the pool if it doesn't exist.
+     * The pool's settings are updated to those of the given spec.
+     *
+     * @param spec describes the pool
+     *
+     * @return A lease, or <code>null</code> if the pool has no idle
+     *         environment and no room for another one.
+     *
+     * @throws IOException If fingerprinting the spec failed.
+     */
+    public synchronized Lease lease(final PoolSpec spec) throws IOException {
+        String fingerprint = spec.getFingerprint();
+        EnvironmentOwner owner = spec.getOwner();
+        String key = key(owner.getHost(), owner.getTenant(), fingerprint);
+        String lineage = key(owner.getHost(), owner.getTenant(), spec.getLineage());
+        Pool pool = pools.computeIfAbsent(key, k -> new Pool(k, fingerprint, lineage, spec.getBlueprintId(),
+                spec.getContentDigest() != null));
+        pool.update(spec);
+        pool.retired = false;
+        for (Pool other : new ArrayList<>(pools.values())) {
+            if (other != pool && !other.retired && other.getLineage().equals(lineage)) {
+                retire(other);
+            }
+        }
+
+        PooledEnvironment environment = pool.environments.stream()
+                .filter(x -> x.state == PooledEnvironment.State.READY).findFirst().orElse(null);
+        boolean ready = environment != null;
+        if (environment == null) {
+            if (pool.environments.size() >= pool.maxSize) {
+                replenish(pool);
+                save();
+                return null;
+            }
+            environment = new PooledEnvironment(newDeploymentId(pool), PooledEnvironment.State.LEASED);
+            pool.environments.add(environment);
+        }
+        environment.leased(owner.getRunId());
+        replenish(pool);
+        save();
+        return new Lease(key, environment.deploymentId, ready);
+    }
+
+    /**
+     * Return a leased environment.
+     *
+     * @param lease  the lease
+     * @param policy what to do with the environment
+     */
+    public synchronized void release(final Lease lease, final ReleasePolicy policy) {
+        Pool pool = pools.get(lease.getPoolKey());
+        PooledEnvironment environment = pool != null ? pool.find(lease.getDeploymentId()) : null;
+        if (environment == null || environment.state != PooledEnvironment.State.LEASED) {
+            logger.warn("Released environment isn't leased: {}", lease);
+            return;
+        }
+        if (policy == ReleasePolicy.DISCARD || pool.retired || pool.environments.size() > pool.maxSize) {
+            discard(pool, environment);
+        } else if (policy == ReleasePolicy.RESET) {
+            environment.state = PooledEnvironment.State.RESETTING;
+            execute(pool, environment, provisioner::reset);
+        } else {
+            environment.state = PooledEnvironment.State.READY;
+        }
+        replenish(pool);
+        removeIfDrained(pool);
+        save();
+    }
+
+    /**
+     * @return All pools.
+     */
+    public synchronized List<Pool> getPools() {
+        return new ArrayList<>(pools.values());
+    }
+
+    /**
+     * @param deploymentId deployment ID
+     *
+     * @return The log of the last background operation on the environment,
+     *         or an empty string if there is none.
+     *
+     * @throws IOException If reading the log failed.
+     */
+    public String getLog(final String deploymentId) throws IOException {
+        File logFile = getLogFile(deploymentId);
+        return logFile.isFile() ? FileUtils.readFileToString(logFile, StandardCharsets.UTF_8) : "";
+    }
+
+    private File getLogFile(final String deploymentId) {
+        return new File(logDir, deploymentId + ".log");
+    }
+
+    private static String newDeploymentId(final Pool pool) {
+        return String.format("%s-pool-%s", pool.blueprintId, UUID.randomUUID().toString().substring(0, 8));
+    }
+
+    private void replenish(final Pool pool) {
+        if (pool.retired || System.currentTimeMillis() < pool.replenishAfter) {
+            return;
+        }
+        while (pool.count(PooledEnvironment.State.READY, PooledEnvironment.State.PROVISIONING,
+                PooledEnvironment.State.RESETTING) < pool.minSize && pool.environments.size() < pool.maxSize) {
+            PooledEnvironment environment = new PooledEnvironment(newDeploymentId(pool),
+                    PooledEnvironment.State.PROVISIONING);
+            pool.environments.add(environment);
+            logger.info("Provisioning pooled environment {} for pool {}", environment.deploymentId, pool.key);
+            execute(pool, environment, provisioner::create);
+        }
+    }
+
+    private synchronized void replenishLater(final Pool pool) {
+        replenish(pool);
+        save();
+    }
+
+    private void retire(final Pool pool) {
+        logger.info("Retiring pool {}, superseded by newer blueprint contents", pool.key);
+        pool.retired = true;
+        for (PooledEnvironment environment : new ArrayList<>(pool.environments)) {
+            if (environment.state == PooledEnvironment.State.READY) {
+                discard(pool, environment);
+            }
+        }
+        removeIfDrained(pool);
+    }
+
+    private void removeIfDrained(final Pool pool) {
+        if (pool.retired && pool.environments.isEmpty() && pools.remove(pool.key, pool)) {
+            logger.info("Removing drained pool {}", pool.key);
+            provisioner.retire(pool);
+        }
+    }
+
+    private void discard(final Pool pool, final PooledEnvironment environment) {
+        pool.environments.remove(environment);
+        FileUtils.deleteQuietly(getLogFile(environment.deploymentId));
+        provisioner.discard(pool, environment.deploymentId);
+    }
+
+    private void execute(final Pool pool, final PooledEnvironment environment, final Operation operation) {
+        executor.submit(() -> {
+            String error = null;
+            try {
+                FileUtils.forceMkdir(logDir);
+                StreamTaskListener listener = new StreamTaskListener(getLogFile(environment.deploymentId), true,
+                        StandardCharsets.UTF_8);
+                try {
+                    operation.run(pool, environment.deploymentId, listener);
+                } catch (Exception ex) {
+                    ex.printStackTrace(listener.getLogger());
+                    error = String.valueOf(ex.getMessage());
+                } finally {
+                    listener.close();
+                }
+            } catch (IOException ex) {
+                error = String.valueOf(ex.getMessage());
+            }
+            synchronized (this) {
+                if (error == null && pool.retired) {
+                    discard(pool, environment);
+                } else if (error == null) {
+                    environment.state = PooledEnvironment.State.READY;
+                } else {
+                    logger.warn("Failed preparing pooled environment {}; discarding it: {}",
+                            environment.deploymentId, error);
+                    discard(pool, environment);
+                    // Don't keep failing; give whatever is wrong time to be
+                    // fixed.
+                    pool.replenishAfter = System.currentTimeMillis() + failureDelayMillis;
+                    scheduler.schedule(() -> replenishLater(pool), failureDelayMillis, TimeUnit.MILLISECONDS);
+                }
+                replenish(pool);
+                removeIfDrained(pool);
+                save();
+            }
+        });
+    }
+
+    private void save() {
+        try {
+            file.write(new ArrayList<>(pools.values()));
+        } catch (IOException ex) {
+            logger.error(String.format("Failed saving %s", file), ex);
+        }
+    }
+
+    /**
+     * Operates on pooled environments in Cloudify Manager, using the
+     * credentials and tenant of the pool's owner. Credentials are looked up in
+     * the context of the owner's job rather than of its build.
+     */
+    private static class CloudifyProvisioner implements Provisioner {
+        private static CloudifyClient getClient(final Pool pool) {
+            EnvironmentOwner owner = pool.getOwner();
+            // The build may have been deleted since.
+            StandardUsernamePasswordCredentials creds = CloudifyPluginUtilities
+                    .getUsernamePasswordCredentials(owner.getCredentialsId(), owner.getRunId());
+            return CloudifyConfiguration.getCloudifyClient(creds, owner.getTenant());
+        }
+
+        @Override
+        public void create(final Pool pool, final String deploymentId, final TaskListener listener)
+                throws Exception {
+            CloudifyClient client = getClient(pool);
+            try {
+                CloudifyPluginUtilities.createEnvironment(listener, null, client, pool.getBlueprintId(),
+                        deploymentId, pool.getInputs(), null, false, false, false, false, x -> true, null);
+            } finally {
+                CloudifyConfiguration.releaseCloudifyClient(client);
+            }
+        }
+
+        @Override
+        public void reset(final Pool pool, final String deploymentId, final TaskListener listener)
+                throws Exception {
+            CloudifyClient client = getClient(pool);
+            try {
+                PrintStream logger = listener.getLogger();
+                ExecutionFollowCallback follower = CloudifyPluginUtilities.getExecutionFollowCallback(true, false,
+                        client, logger);
+                for (String workflowId : new String[] { "uninstall", "install" }) {
+                    logger.println(String.format("Executing the '%s' workflow", workflowId));
+                    Execution execution = CloudifyPluginUtilities.executeAndFollow(client, deploymentId,
+                            workflowId, null, follower, logger);
+                    ExecutionsHelper.validateCompleted(execution,
+                            String.format("Failed executing '%s'", workflowId));
+                }
+            } finally {
+                CloudifyConfiguration.releaseCloudifyClient(client);
+            }
+        }
+
+        @Override
+        public void discard(final Pool pool, final String deploymentId) {
+            TeardownQueue.get().submit(TeardownTask.forEnvironment(pool.getOwner(), deploymentId, null, null, false));
+        }
+
+        @Override
+        public void retire(final Pool pool) {
+            if (pool.isBlueprintOwned()) {
+                // Queued after the pool's environments' teardowns; retried
+                // if any of them is still running.
+                TeardownQueue.get().submit(TeardownTask.forEnvironment(pool.getOwner(), null, pool.getBlueprintId(),
+                        null, false));
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return new ToStringBuilder(this)
+                .append("file", file)
+                .append("pools", pools.size())
+                .toString();
+    }
+}
@@ -0,0 +1,127 @@
+package co.cloudify.jenkins.plugin.pool;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+import co.cloudify.jenkins.plugin.CloudifyPluginUtilities;
+import co.cloudify.jenkins.plugin.teardown.EnvironmentOwner;
+
+/**
+ * Describes the environments a pool holds, and the pool's size limits.
+ * Environments are interchangeable if they are created from the same
+ * blueprint contents, with the same inputs; the pool is identified by a
+ * fingerprint of all of these. Pools created from different contents of the
+ * same blueprint, with the same inputs, belong to the same lineage; only the
+ * newest pool of a lineage is kept, and older ones are drained.
+ * <p>
+ * Blueprints uploaded for pools are uploaded under an ID derived from their
+ * contents (see {@link #getPoolBlueprintId(String, String)}), so contents
+ * uploaded for one pool are never mistaken for those of another.
+ *
+ * @author Isaac Shabtay
+ */
+public class PoolSpec {
+    private final EnvironmentOwner owner;
+    private final String blueprintId;
+    private final String contentDigest;
+    private final Map<String, Object> inputs;
+    private final int minSize;
+    private final int maxSize;
+
+    /**
+     * @param owner         owner of environments provisioned for the pool;
+     *                      its credentials and tenant are used for
+     *                      provisioning
+     * @param blueprintId   blueprint ID specified by the user
+     * @param contentDigest digest of the blueprint's contents (or the URL of
+     *                      its archive); <code>null</code> if the blueprint
+     *                      wasn't uploaded for the pool
+     * @param inputs        deployment inputs
+     * @param minSize       number of idle environments to keep ready
+     * @param maxSize       maximum number of environments, idle or leased
+     */
+    public PoolSpec(final EnvironmentOwner owner, final String blueprintId, final String contentDigest,
+            final Map<String, Object> inputs, final int minSize, final int maxSize) {
+        this.owner = owner;
+        this.blueprintId = blueprintId;
+        this.contentDigest = contentDigest;
+        this.inputs = new TreeMap<>(inputs);
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param blueprintId   blueprint ID specified by the user
+     * @param contentDigest digest of the blueprint's contents, or the URL of
+     *                      its archive
+     *
+     * @return The ID to upload the blueprint under, for pooled environments.
+     */
+    public static String getPoolBlueprintId(final String blueprintId, final String contentDigest) {
+        return String.format("%s-%s", blueprintId, DigestUtils.sha256Hex(contentDigest).substring(0, 12));
+    }
+
+    /**
+     * @return The fingerprint identifying the pool.
+     *
+     * @throws IOException If the inputs couldn't be serialized.
+     *
+     * @see CloudifyPluginUtilities#getEnvironmentFingerprint(String, Map)
+     */
+    public String getFingerprint() throws IOException {
+        return DigestUtils.sha256Hex(getLineage() + '\n' + StringUtils.defaultString(contentDigest));
+    }
+
+    /**
+     * @return The fingerprint shared by all pools of the same blueprint and
+     *         inputs, regardless of the blueprint's contents.
+     *
+     * @throws IOException If the inputs couldn't be serialized.
+     */
+    public String getLineage() throws IOException {
+        return CloudifyPluginUtilities.getEnvironmentFingerprint(blueprintId, inputs);
+    }
+
+    public EnvironmentOwner getOwner() {
+        return owner;
+    }
+
+    /**
+     * @return ID of the blueprint environments are created from.
+     */
+    public String getBlueprintId() {
+        return contentDigest != null ? getPoolBlueprintId(blueprintId, contentDigest) : blueprintId;
+    }
+
+    public String getContentDigest() {
+        return contentDigest;
+    }
+
+    public Map<String, Object> getInputs() {
+        return inputs;
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("owner", owner)
+                .append("blueprintId", blueprintId)
+                .append("contentDigest", contentDigest)
+                .append("minSize", minSize)
+                .append("maxSize", maxSize)
+                .toString();
+    }
+}
@@ -0,0 +1,18 @@
+package co.cloudify.jenkins.plugin.pool;
+
+/**
+ * What to do with a pooled environment once a build is done with it.
+ *
+ * @author Isaac Shabtay
+ */
+public enum ReleasePolicy {
+    /** Return the environment to the pool as is. */
+    RECYCLE,
+    /**
+     * Run <code>uninstall</code> and then <code>install</code> on the
+     * environment, and return it to the pool.
+     */
+    RESET,
+    /** Tear the environment down, and provision a new one instead. */
+    DISCARD
+}
@@ -0,0 +1,76 @@
+package co.cloudify.jenkins.plugin.teardown;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+import co.cloudify.jenkins.plugin.CloudifyConfiguration;
+import hudson.model.Run;
+
+/**
+ * Identifies who created an environment, and how to access it: the manager,
+ * tenant, credentials and build. Used for tracking environments, and for
+ * tearing them down when their creator can't.
+ *
+ * @author Isaac Shabtay
+ */
+public class EnvironmentOwner {
+    private final String host;
+    private final String tenant;
+    private final String credentialsId;
+    private final String runId;
+
+    public EnvironmentOwner(final String host, final String tenant, final String credentialsId,
+            final String runId) {
+        this.host = host;
+        this.tenant = tenant;
+        this.credentialsId = credentialsId;
+        this.runId = runId;
+    }
+
+    /**
+     * @param run           build operating on the environment
+     * @param credentialsId ID of credentials used by the build
+     * @param tenant        tenant specified by the user; may be
+     *                      <code>null</code>
+     *
+     * @return An owner on the manager configured for this Jenkins installation.
+     */
+    public static EnvironmentOwner of(final Run<?, ?> run, final String credentialsId, final String tenant) {
+        CloudifyConfiguration config = CloudifyConfiguration.get();
+        return new EnvironmentOwner(config.getHost(),
+                CloudifyConfiguration.getEffectiveTenant(config, StringUtils.trimToNull(tenant)), credentialsId,
+                run.getExternalizableId());
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return The effective tenant.
+     */
+    public String getTenant() {
+        return tenant;
+    }
+
+    public String getCredentialsId() {
+        return credentialsId;
+    }
+
+    /**
+     * @return Externalizable ID of the build.
+     */
+    public String getRunId() {
+        return runId;
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("host", host)
+                .append("tenant", tenant)
+                .append("credentialsId", credentialsId)
+                .append("runId", runId)
+                .toString();
+    }
+}
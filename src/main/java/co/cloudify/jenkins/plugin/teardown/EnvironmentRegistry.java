@@ -0,0 +1,217 @@
+package co.cloudify.jenkins.plugin.teardown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import hudson.XmlFile;
+import hudson.model.Run;
+import jenkins.model.Jenkins;
+
+/**
+ * A controller-wide record of environments created by builds, which haven't
+ * been deleted yet. It allows finding environments left behind, for example
+ * when their teardown failed, and tearing them down later.
+ * <p>
+ * The registry is persisted in <code>JENKINS_HOME</code>. It only knows about
+ * deletions done through this plugin.
+ *
+ * @author Isaac Shabtay
+ */
+public class EnvironmentRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(EnvironmentRegistry.class);
+
+    private static EnvironmentRegistry instance;
+
+    /**
+     * An environment created by a build.
+     */
+    public static class Environment {
+        private final EnvironmentOwner owner;
+        private final String deploymentId;
+        private final String blueprintId;
+        private final long createdAt;
+        private String teardownTaskId;
+
+        Environment(final EnvironmentOwner owner, final String deploymentId, final String blueprintId) {
+            this.owner = owner;
+            this.deploymentId = deploymentId;
+            this.blueprintId = blueprintId;
+            this.createdAt = System.currentTimeMillis();
+        }
+
+        public String getKey() {
+            return key(owner.getHost(), owner.getTenant(), deploymentId);
+        }
+
+        public EnvironmentOwner getOwner() {
+            return owner;
+        }
+
+        public String getDeploymentId() {
+            return deploymentId;
+        }
+
+        public String getBlueprintId() {
+            return blueprintId;
+        }
+
+        public long getCreatedAt() {
+            return createdAt;
+        }
+
+        /**
+         * @return ID of the last teardown queued for this environment, if any.
+         */
+        public String getTeardownTaskId() {
+            return teardownTaskId;
+        }
+
+        /**
+         * @return The build that created this environment, or <code>null</code>
+         *         if it no longer exists.
+         */
+        public Run<?, ?> getRun() {
+            return Run.fromExternalizableId(owner.getRunId());
+        }
+
+        /**
+         * @return <code>true</code> if the build that created this environment
+         *         is over (or gone), yet the environment still exists.
+         */
+        public boolean isOrphaned() {
+            Run<?, ?> run = getRun();
+            return run == null || !run.isBuilding();
+        }
+
+        @Override
+        public String toString() {
+            return new ToStringBuilder(this)
+                    .append("owner", owner)
+                    .append("deploymentId", deploymentId)
+                    .append("blueprintId", blueprintId)
+                    .append("createdAt", createdAt)
+                    .append("teardownTaskId", teardownTaskId)
+                    .toString();
+        }
+    }
+
+    private final XmlFile file;
+    private final Map<String, Environment> environments = new LinkedHashMap<>();
+
+    @SuppressWarnings("unchecked")
+    EnvironmentRegistry(final XmlFile file) {
+        this.file = file;
+        if (file.exists()) {
+            try {
+                for (Environment environment : (List<Environment>) file.read()) {
+                    environments.put(environment.getKey(), environment);
+                }
+            } catch (IOException | RuntimeException ex) {
+                logger.error(String.format("Failed reading %s; starting with an empty registry", file), ex);
+            }
+        }
+    }
+
+    /**
+     * @return The registry for this controller, loading it if necessary.
+     */
+    public static synchronized EnvironmentRegistry get() {
+        if (instance == null) {
+            instance = new EnvironmentRegistry(new XmlFile(Jenkins.XSTREAM2,
+                    new File(Jenkins.get().getRootDir(), EnvironmentRegistry.class.getName() + ".xml")));
+        }
+        return instance;
+    }
+
+    /**
+     * @param host         Cloudify Manager host
+     * @param tenant       effective tenant
+     * @param deploymentId deployment ID
+     *
+     * @return Key of the environment.
+     */
+    public static String key(final String host, final String tenant, final String deploymentId) {
+        return String.format("%s/%s/%s", host, tenant, deploymentId);
+    }
+
+    /**
+     * Record a newly-created environment.
+     *
+     * @param owner        owner of the environment
+     * @param deploymentId deployment ID
+     * @param blueprintId  blueprint ID
+     */
+    public synchronized void track(final EnvironmentOwner owner, final String deploymentId,
+            final String blueprintId) {
+        Environment environment = new Environment(owner, deploymentId, blueprintId);
+        environments.put(environment.getKey(), environment);
+        save();
+    }
+
+    /**
+     * Forget an environment, once it was deleted.
+     *
+     * @param host         Cloudify Manager host
+     * @param tenant       effective tenant
+     * @param deploymentId deployment ID
+     */
+    public synchronized void untrack(final String host, final String tenant, final String deploymentId) {
+        if (environments.remove(key(host, tenant, deploymentId)) != null) {
+            save();
+        }
+    }
+
+    /**
+     * Record a teardown queued for an environment.
+     *
+     * @param key    environment key
+     * @param taskId teardown task ID
+     */
+    public synchronized void teardownQueued(final String key, final String taskId) {
+        Environment environment = environments.get(key);
+        if (environment != null) {
+            environment.teardownTaskId = taskId;
+            save();
+        }
+    }
+
+    /**
+     * @param key environment key
+     *
+     * @return The environment, or <code>null</code> if it isn't tracked.
+     */
+    public synchronized Environment getEnvironment(final String key) {
+        return environments.get(key);
+    }
+
+    /**
+     * @return All tracked environments, oldest first.
+     */
+    public synchronized List<Environment> getEnvironments() {
+        return new ArrayList<>(environments.values());
+    }
+
+    private void save() {
+        try {
+            file.write(new ArrayList<>(environments.values()));
+        } catch (IOException ex) {
+            logger.error(String.format("Failed saving %s", file), ex);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return new ToStringBuilder(this)
+                .append("file", file)
+                .append("environments", environments.size())
+                .toString();
+    }
+}
@@ -0,0 +1,385 @@
+package co.cloudify.jenkins.plugin.teardown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+
+import co.cloudify.jenkins.plugin.CloudifyConfiguration;
+import co.cloudify.jenkins.plugin.CloudifyPluginUtilities;
+import co.cloudify.jenkins.plugin.upload.ManagerEndpoint;
+import co.cloudify.rest.client.CloudifyClient;
+import co.cloudify.rest.client.exceptions.BlueprintNotFoundException;
+import co.cloudify.rest.helpers.DeploymentsHelper;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.StreamTaskListener;
+import jenkins.model.Jenkins;
+
+/**
+ * A controller-wide queue of environment teardowns, run in the background so
+ * builds don't have to wait for them.
+ * <p>
+ * Teardowns run on a bounded pool of threads, shared by all managers; the
+ * number of teardowns running against each manager is limited as well, so a
+ * burst of teardowns doesn't overwhelm a manager. Failed teardowns are attempted again, with
+ * exponentially increasing delays, up to a maximum number of attempts; as
+ * teardowns may fail midway, they skip whatever was already deleted.
+ * <p>
+ * Tasks are persisted in <code>JENKINS_HOME</code>; tasks that were queued,
+ * running or waiting to be retried when Jenkins stopped are resumed when it
+ * starts. Each task's log is written to its own file. Finished tasks are kept
+ * for a while, so builds can link to them, and are then discarded along with
+ * their logs.
+ *
+ * @author Isaac Shabtay
+ */
+public class TeardownQueue {
+    private static final Logger logger = LoggerFactory.getLogger(TeardownQueue.class);
+
+    private static final String PROPERTY_PREFIX = TeardownQueue.class.getName();
+    /** Maximum number of teardowns running against a single manager. */
+    private static final int CONCURRENCY_PER_MANAGER = Integer.getInteger(PROPERTY_PREFIX + ".concurrencyPerManager",
+            2);
+    /** Maximum number of teardowns running, against all managers. */
+    private static final int MAX_THREADS = Integer.getInteger(PROPERTY_PREFIX + ".maxThreads", 8);
+    /** Maximum number of attempts to tear down an environment. */
+    private static final int MAX_ATTEMPTS = Integer.getInteger(PROPERTY_PREFIX + ".maxAttempts", 6);
+    /** Delay before the first retry; doubled for every retry. */
+    private static final long INITIAL_RETRY_DELAY_MILLIS = Long.getLong(PROPERTY_PREFIX + ".retryDelayMinutes", 2)
+            * TimeUnit.MINUTES.toMillis(1);
+    /** Maximum delay between attempts. */
+    private static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.HOURS.toMillis(1);
+    /** Time to keep finished tasks for. */
+    private static final long RETENTION_MILLIS = Long.getLong(PROPERTY_PREFIX + ".retentionDays", 30)
+            * TimeUnit.DAYS.toMillis(1);
+
+    private static TeardownQueue instance;
+
+    /**
+     * Performs a teardown.
+     */
+    public interface Runner {
+        void run(TeardownTask task, TaskListener listener) throws Exception;
+    }
+
+    private final XmlFile file;
+    private final File logDir;
+    private final int concurrencyPerManager;
+    private final int maxThreads;
+    private final int maxAttempts;
+    private final long initialRetryDelayMillis;
+    private final Runner runner;
+    private final Map<String, TeardownTask> tasks = new LinkedHashMap<>();
+    private final ExecutorService executor;
+    /** Host -> number of teardowns running against it. */
+    private final Map<String, Integer> running = new HashMap<>();
+    /** Host -> teardowns waiting for others against it to finish. */
+    private final Map<String, Deque<TeardownTask>> waiting = new HashMap<>();
+    private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "Cloudify teardown retries"));
+
+    @SuppressWarnings("unchecked")
+    TeardownQueue(final XmlFile file, final File logDir, final int concurrencyPerManager, final int maxThreads,
+            final int maxAttempts, final long initialRetryDelayMillis, final Runner runner) {
+        this.file = file;
+        this.logDir = logDir;
+        this.concurrencyPerManager = concurrencyPerManager;
+        this.maxThreads = maxThreads;
+        this.maxAttempts = maxAttempts;
+        this.initialRetryDelayMillis = initialRetryDelayMillis;
+        this.runner = runner;
+        // Idle threads are let go, so no threads are kept while there's
+        // nothing to tear down.
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads, 1, TimeUnit.MINUTES,
+                new LinkedBlockingQueue<>(), new NamingThreadFactory(new DaemonThreadFactory(), "Cloudify teardown"));
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = pool;
+        if (file.exists()) {
+            try {
+                for (TeardownTask task : (List<TeardownTask>) file.read()) {
+                    tasks.put(task.getId(), task);
+                }
+            } catch (IOException | RuntimeException ex) {
+                logger.error(String.format("Failed reading %s; pending teardowns are lost", file), ex);
+            }
+        }
+    }
+
+    /**
+     * @return The queue for this controller, loading it if necessary.
+     */
+    public static synchronized TeardownQueue get() {
+        if (instance == null) {
+            File dir = new File(Jenkins.get().getRootDir(), TeardownQueue.class.getName());
+            instance = new TeardownQueue(new XmlFile(Jenkins.XSTREAM2, new File(dir, "tasks.xml")), dir,
+                    CONCURRENCY_PER_MANAGER, MAX_THREADS, MAX_ATTEMPTS, INITIAL_RETRY_DELAY_MILLIS,
+                    TeardownQueue::tearDown);
+        }
+        return instance;
+    }
+
+    /**
+     * Resume teardowns that didn't finish before Jenkins stopped. Jobs must be
+     * loaded first, as credentials are looked up in their context.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void resumeAll() {
+        get().resume();
+    }
+
+    synchronized void resume() {
+        for (TeardownTask task : tasks.values()) {
+            if (!task.isFinished()) {
+                logger.info("Resuming teardown: {}", task);
+                schedule(task);
+            }
+        }
+    }
+
+    /**
+     * Queue a teardown.
+     *
+     * @param task task to queue
+     *
+     * @return The queued task.
+     */
+    public synchronized TeardownTask submit(final TeardownTask task) {
+        tasks.put(task.getId(), task);
+        save();
+        schedule(task);
+        return task;
+    }
+
+    /**
+     * Queue a teardown that has just failed elsewhere (for example, in a
+     * build), to be attempted again after a delay.
+     *
+     * @param task  task to queue
+     * @param error the failure
+     *
+     * @return The queued task.
+     */
+    public synchronized TeardownTask submitRetry(final TeardownTask task, final String error) {
+        task.failedElsewhere();
+        task.retryAt(System.currentTimeMillis() + getRetryDelay(task.getAttempts()), error);
+        return submit(task);
+    }
+
+    /**
+     * @param id task ID
+     *
+     * @return The task, or <code>null</code> if it doesn't exist (for example,
+     *         if it was discarded).
+     */
+    public synchronized TeardownTask getTask(final String id) {
+        return tasks.get(id);
+    }
+
+    /**
+     * @return All known tasks, oldest first.
+     */
+    public synchronized List<TeardownTask> getTasks() {
+        return new ArrayList<>(tasks.values());
+    }
+
+    /**
+     * @param id task ID
+     *
+     * @return The task's log, or an empty string if there is none.
+     *
+     * @throws IOException If reading the log failed.
+     */
+    public String getLog(final String id) throws IOException {
+        File logFile = getLogFile(id);
+        return logFile.isFile() ? FileUtils.readFileToString(logFile, StandardCharsets.UTF_8) : "";
+    }
+
+    private File getLogFile(final String id) {
+        return new File(logDir, id + ".log");
+    }
+
+    private long getRetryDelay(final int attempts) {
+        return Math.min(initialRetryDelayMillis << Math.min(attempts - 1, 20), MAX_RETRY_DELAY_MILLIS);
+    }
+
+    private void schedule(final TeardownTask task) {
+        long delay = task.getNextAttemptAt() - System.currentTimeMillis();
+        if (task.getState() == TeardownTask.State.WAITING_TO_RETRY && delay > 0) {
+            retryScheduler.schedule(() -> run(task), delay, TimeUnit.MILLISECONDS);
+        } else {
+            run(task);
+        }
+    }
+
+    private synchronized void run(final TeardownTask task) {
+        String host = task.getHost();
+        int count = running.getOrDefault(host, 0);
+        if (count < concurrencyPerManager) {
+            running.put(host, count + 1);
+            executor.submit(() -> execute(task));
+        } else {
+            waiting.computeIfAbsent(host, x -> new ArrayDeque<>()).add(task);
+        }
+    }
+
+    /**
+     * Called when a teardown against a host ends; starts the next teardown
+     * waiting for that host, if any.
+     */
+    private void release(final String host) {
+        Deque<TeardownTask> queue = waiting.get(host);
+        TeardownTask next = queue != null ? queue.poll() : null;
+        if (queue != null && queue.isEmpty()) {
+            waiting.remove(host);
+        }
+        if (next != null) {
+            // Takes over the ended teardown's place.
+            executor.submit(() -> execute(next));
+        } else {
+            int count = running.get(host) - 1;
+            if (count > 0) {
+                running.put(host, count);
+            } else {
+                running.remove(host);
+            }
+        }
+    }
+
+    private void execute(final TeardownTask task) {
+        synchronized (this) {
+            task.started();
+            save();
+        }
+        String error = null;
+        try {
+            FileUtils.forceMkdir(logDir);
+            StreamTaskListener listener = new StreamTaskListener(getLogFile(task.getId()), true,
+                    StandardCharsets.UTF_8);
+            try {
+                runner.run(task, listener);
+            } catch (Exception ex) {
+                ex.printStackTrace(listener.getLogger());
+                error = String.valueOf(ex.getMessage());
+            } finally {
+                listener.close();
+            }
+        } catch (IOException ex) {
+            logger.error(String.format("Failed writing log of teardown %s", task.getId()), ex);
+            error = String.valueOf(ex.getMessage());
+        }
+        synchronized (this) {
+            release(task.getHost());
+            if (error != null && task.getAttempts() < maxAttempts) {
+                long delay = getRetryDelay(task.getAttempts());
+                task.retryAt(System.currentTimeMillis() + delay, error);
+                logger.warn("Teardown failed (attempt {} of {}); retrying in {} ms: {}", task.getAttempts(),
+                        maxAttempts, delay, task);
+                schedule(task);
+            } else {
+                task.finished(error);
+                purge();
+                logger.info("Teardown finished: {}", task);
+            }
+            save();
+        }
+    }
+
+    /**
+     * Discard tasks that finished long ago, along with their logs.
+     */
+    private void purge() {
+        long threshold = System.currentTimeMillis() - RETENTION_MILLIS;
+        for (Iterator<TeardownTask> iter = tasks.values().iterator(); iter.hasNext();) {
+            TeardownTask task = iter.next();
+            if (task.isFinished() && task.getFinishedAt() < threshold) {
+                iter.remove();
+                FileUtils.deleteQuietly(getLogFile(task.getId()));
+            }
+        }
+    }
+
+    private void save() {
+        try {
+            file.write(new ArrayList<>(tasks.values()));
+        } catch (IOException ex) {
+            logger.error(String.format("Failed saving %s", file), ex);
+        }
+    }
+
+    /**
+     * Tears down an environment the same way
+     * {@link co.cloudify.jenkins.plugin.CloudifyBuildWrapper}
+     * does.
+     */
+    private static void tearDown(final TeardownTask task, final TaskListener listener) throws Exception {
+        // The build may have been deleted since.
+        StandardUsernamePasswordCredentials creds = CloudifyPluginUtilities
+                .getUsernamePasswordCredentials(task.getCredentialsId(), task.getRunId());
+        CloudifyClient client = CloudifyConfiguration.getCloudifyClient(creds, task.getTenant());
+        try {
+            PrintStream logger = listener.getLogger();
+            if (task.getDeploymentId() != null) {
+                String deploymentId = task.getDeploymentId();
+                ManagerEndpoint endpoint = ManagerEndpoint.create(creds, task.getTenant());
+                if (endpoint.exists(String.format("/deployments/%s",
+                        URLEncoder.encode(deploymentId, StandardCharsets.UTF_8.name())))) {
+                    CloudifyPluginUtilities.deleteEnvironment(listener, client, deploymentId,
+                            DeploymentsHelper.DEFAULT_POLLING_INTERVAL, task.isSkipUninstall(), task.getIgnoreFailure(),
+                            task.isDebugOutput(), null);
+                } else {
+                    logger.println(String.format("Deployment '%s' no longer exists", deploymentId));
+                }
+                EnvironmentRegistry.get().untrack(task.getHost(), endpoint.getTenant(), deploymentId);
+            }
+            if (task.getBlueprintId() != null) {
+                logger.println(String.format("Deleting blueprint: %s", task.getBlueprintId()));
+                try {
+                    client.getBlueprintsClient().delete(task.getBlueprintId());
+                } catch (BlueprintNotFoundException ex) {
+                    logger.println(String.format("Blueprint '%s' no longer exists", task.getBlueprintId()));
+                }
+                CloudifyPluginUtilities.forgetBlueprintDigest(task.getTenant(), task.getBlueprintId());
+            }
+        } finally {
+            CloudifyConfiguration.releaseCloudifyClient(client);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("file", file)
+                .append("concurrencyPerManager", concurrencyPerManager)
+                .append("maxThreads", maxThreads)
+                .append("maxAttempts", maxAttempts)
+                .append("initialRetryDelayMillis", initialRetryDelayMillis)
+                .toString();
+    }
+}
@@ -0,0 +1,207 @@
+package co.cloudify.jenkins.plugin.teardown;
+
+import java.util.UUID;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+/**
+ * A request to tear down a Cloudify environment in the background: uninstall
+ * and delete a deployment, and then delete its blueprint. Either may be
+ * omitted. Failed teardowns are attempted again, a limited number of times.
+ *
+ * @author Isaac Shabtay
+ */
+public class TeardownTask {
+    public enum State {
+        QUEUED, RUNNING, WAITING_TO_RETRY, SUCCEEDED, FAILED
+    }
+
+    private final String id;
+    private final String host;
+    private final String tenant;
+    private final String credentialsId;
+    private final String runId;
+    private final String deploymentId;
+    private final String blueprintId;
+    private final Boolean ignoreFailure;
+    private final boolean debugOutput;
+    private boolean skipUninstall;
+    private State state = State.QUEUED;
+    private int attempts;
+    private long nextAttemptAt;
+    private long queuedAt;
+    private long startedAt;
+    private long finishedAt;
+    private String error;
+
+    /**
+     * @param host          Cloudify Manager host
+     * @param tenant        tenant specified by the user; may be
+     *                      <code>null</code>
+     * @param credentialsId ID of credentials to use
+     * @param runId         externalizable ID of the build that created the
+     *                      environment; credentials are looked up in the
+     *                      context of its job, which may outlive the build
+     * @param deploymentId  deployment to delete; may be <code>null</code>
+     * @param blueprintId   blueprint to delete; may be <code>null</code>
+     * @param ignoreFailure value of the <code>ignore_failure</code> parameter
+     *                      of the <code>uninstall</code> workflow; may be
+     *                      <code>null</code>
+     * @param debugOutput   emit debug statements
+     */
+    public TeardownTask(final String host, final String tenant, final String credentialsId, final String runId,
+            final String deploymentId, final String blueprintId, final Boolean ignoreFailure,
+            final boolean debugOutput) {
+        this.id = UUID.randomUUID().toString();
+        this.host = host;
+        this.tenant = tenant;
+        this.credentialsId = credentialsId;
+        this.runId = runId;
+        this.deploymentId = deploymentId;
+        this.blueprintId = blueprintId;
+        this.ignoreFailure = ignoreFailure;
+        this.debugOutput = debugOutput;
+        this.queuedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * @param owner         owner of the environment
+     * @param deploymentId  deployment to delete; may be <code>null</code>
+     * @param blueprintId   blueprint to delete; may be <code>null</code>
+     * @param ignoreFailure value of the <code>ignore_failure</code> parameter
+     *                      of the <code>uninstall</code> workflow; may be
+     *                      <code>null</code>
+     * @param debugOutput   emit debug statements
+     *
+     * @return A task tearing down an environment using its owner's details.
+     */
+    public static TeardownTask forEnvironment(final EnvironmentOwner owner, final String deploymentId,
+            final String blueprintId, final Boolean ignoreFailure, final boolean debugOutput) {
+        return new TeardownTask(owner.getHost(), owner.getTenant(), owner.getCredentialsId(), owner.getRunId(),
+                deploymentId, blueprintId, ignoreFailure, debugOutput);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public String getTenant() {
+        return tenant;
+    }
+
+    public String getCredentialsId() {
+        return credentialsId;
+    }
+
+    public String getRunId() {
+        return runId;
+    }
+
+    public String getDeploymentId() {
+        return deploymentId;
+    }
+
+    public String getBlueprintId() {
+        return blueprintId;
+    }
+
+    public Boolean getIgnoreFailure() {
+        return ignoreFailure;
+    }
+
+    public boolean isDebugOutput() {
+        return debugOutput;
+    }
+
+    public boolean isSkipUninstall() {
+        return skipUninstall;
+    }
+
+    public void setSkipUninstall(boolean skipUninstall) {
+        this.skipUninstall = skipUninstall;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public long getQueuedAt() {
+        return queuedAt;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return Time of the next attempt, if waiting to retry.
+     */
+    public long getNextAttemptAt() {
+        return nextAttemptAt;
+    }
+
+    public boolean isFinished() {
+        return state == State.SUCCEEDED || state == State.FAILED;
+    }
+
+    void started() {
+        state = State.RUNNING;
+        attempts++;
+        startedAt = System.currentTimeMillis();
+    }
+
+    void failedElsewhere() {
+        attempts++;
+    }
+
+    void retryAt(final long nextAttemptAt, final String error) {
+        state = State.WAITING_TO_RETRY;
+        this.error = error;
+        this.nextAttemptAt = nextAttemptAt;
+    }
+
+    void finished(final String error) {
+        state = error == null ? State.SUCCEEDED : State.FAILED;
+        this.error = error;
+        finishedAt = System.currentTimeMillis();
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("id", id)
+                .append("host", host)
+                .append("tenant", tenant)
+                .append("credentialsId", credentialsId)
+                .append("runId", runId)
+                .append("deploymentId", deploymentId)
+                .append("blueprintId", blueprintId)
+                .append("ignoreFailure", ignoreFailure)
+                .append("debugOutput", debugOutput)
+                .append("skipUninstall", skipUninstall)
+                .append("state", state)
+                .append("attempts", attempts)
+                .append("nextAttemptAt", nextAttemptAt)
+                .append("queuedAt", queuedAt)
+                .append("startedAt", startedAt)
+                .append("finishedAt", finishedAt)
+                .append("error", error)
+                .toString();
+    }
+}
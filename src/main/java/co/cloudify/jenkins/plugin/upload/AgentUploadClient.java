@@ -0,0 +1,59 @@
+package co.cloudify.jenkins.plugin.upload;
+
+import java.io.PrintStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Per-JVM resources for uploading blueprints, kept across builds. Used on
+ * agents (and on the controller, for blueprints it uploads itself), so each
+ * JVM uploads with warm resources rather than creating them for every upload:
+ * <ul>
+ * <li>A shared pool of compression threads.</li>
+ * <li>Pooled HTTP connections: {@link ManagerEndpoint} uses
+ * {@link java.net.HttpURLConnection}, whose keep-alive cache is per JVM.</li>
+ * </ul>
+ *
+ * @author Isaac Shabtay
+ */
+public final class AgentUploadClient {
+    private static final int PARALLELISM = Integer.getInteger(AgentUploadClient.class.getName() + ".parallelism",
+            Runtime.getRuntime().availableProcessors());
+
+    private static final AgentUploadClient INSTANCE = new AgentUploadClient();
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(PARALLELISM,
+            new NamingThreadFactory(new DaemonThreadFactory(), "Cloudify blueprint compression"));
+
+    private AgentUploadClient() {
+    }
+
+    /**
+     * @return The instance for this JVM.
+     */
+    public static AgentUploadClient get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param endpoint   manager to upload to
+     * @param jenkinsLog log to report progress to
+     *
+     * @return An uploader using this JVM's shared resources.
+     */
+    public StreamingBlueprintUploader newUploader(final ManagerEndpoint endpoint, final PrintStream jenkinsLog) {
+        return new StreamingBlueprintUploader(endpoint, executor, PARALLELISM * 4, jenkinsLog);
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("parallelism", PARALLELISM)
+                .toString();
+    }
+}
@@ -0,0 +1,206 @@
+package co.cloudify.jenkins.plugin.upload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import co.cloudify.jenkins.plugin.CloudifyConfiguration;
+
+/**
+ * Everything needed to talk to a Cloudify Manager's REST API directly, without
+ * a {@link co.cloudify.rest.client.CloudifyClient}. Being small and
+ * serializable, it can be sent to agents, so agents may send data to the
+ * manager directly rather than through the controller.
+ * <p>
+ * Before sending an endpoint to an agent, use {@link #withToken()} to exchange
+ * the password for a token, so the password never leaves the controller.
+ * <p>
+ * Connections are opened with {@link HttpURLConnection}, whose keep-alive cache
+ * is per JVM: connections are pooled per agent, and reused across builds, as
+ * long as responses are fully read (see {@link #readResponse(HttpURLConnection)}).
+ *
+ * @author Isaac Shabtay
+ */
+public class ManagerEndpoint implements Serializable {
+    /** Serialization UID. */
+    private static final long serialVersionUID = 1L;
+
+    private static final String API_PREFIX = "/api/v3.1";
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private String host;
+    private boolean secured;
+    private String tenant;
+    private String username;
+    private String password;
+    private String token;
+
+    public ManagerEndpoint(final String host, final boolean secured, final String tenant, final String username,
+            final String password) {
+        this.host = host;
+        this.secured = secured;
+        this.tenant = tenant;
+        this.username = username;
+        this.password = password;
+    }
+
+    private ManagerEndpoint(final ManagerEndpoint other, final String token) {
+        this.host = other.host;
+        this.secured = other.secured;
+        this.tenant = other.tenant;
+        this.username = other.username;
+        this.token = token;
+    }
+
+    /**
+     * @param creds  credentials to authenticate with
+     * @param tenant tenant specified by the user; may be <code>null</code>
+     *
+     * @return An endpoint for the manager configured for this Jenkins
+     *         installation.
+     */
+    public static ManagerEndpoint create(final StandardUsernamePasswordCredentials creds, final String tenant) {
+        CloudifyConfiguration config = CloudifyConfiguration.get();
+        return new ManagerEndpoint(config.getHost(), config.isSecured(),
+                CloudifyConfiguration.getEffectiveTenant(config, tenant), creds.getUsername(),
+                creds.getPassword().getPlainText());
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public boolean isSecured() {
+        return secured;
+    }
+
+    public String getTenant() {
+        return tenant;
+    }
+
+    /**
+     * Obtain a token from the manager, and return an endpoint that
+     * authenticates with it instead of with a password.
+     *
+     * @return A token-based endpoint, which holds no password.
+     *
+     * @throws IOException If obtaining a token failed.
+     */
+    public ManagerEndpoint withToken() throws IOException {
+        JsonNode response = MAPPER.readTree(readResponse(openConnection("/tokens", "GET")));
+        String value = response.path("value").asText(null);
+        if (value == null) {
+            throw new IOException(String.format("No token in response from %s", host));
+        }
+        return new ManagerEndpoint(this, value);
+    }
+
+    /**
+     * Open an authenticated connection to a REST API resource.
+     *
+     * @param path   resource path, relative to the API root, including a query
+     *               string if needed
+     * @param method HTTP method
+     *
+     * @return A connection, not yet connected.
+     *
+     * @throws IOException If opening the connection failed.
+     */
+    public HttpURLConnection openConnection(final String path, final String method) throws IOException {
+        URL url = new URL(String.format("%s://%s%s%s", secured ? "https" : "http", host, API_PREFIX, path));
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        if (token != null) {
+            connection.setRequestProperty("Authentication-Token", token);
+        } else {
+            connection.setRequestProperty("Authorization", "Basic " + Base64.getEncoder()
+                    .encodeToString(String.format("%s:%s", username, password).getBytes(StandardCharsets.UTF_8)));
+        }
+        connection.setRequestProperty("Tenant", tenant);
+        connection.setRequestProperty("Accept", "application/json");
+        return connection;
+    }
+
+    /**
+     * @param path resource path, relative to the API's root, including a query
+     *             string if needed
+     *
+     * @return The resource, as a map.
+     *
+     * @throws ManagerResponseException If the response isn't successful; for
+     *                                  example, if the resource doesn't exist.
+     * @throws IOException              If retrieving the resource failed.
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> getJson(final String path) throws IOException {
+        return MAPPER.readValue(readResponse(openConnection(path, "GET")), Map.class);
+    }
+
+    /**
+     * @param path resource path, relative to the API's root
+     *
+     * @return <code>true</code> if the resource exists.
+     *
+     * @throws IOException If checking failed.
+     */
+    public boolean exists(final String path) throws IOException {
+        try {
+            readResponse(openConnection(path, "GET"));
+            return true;
+        } catch (ManagerResponseException ex) {
+            if (ex.getStatus() == HttpURLConnection.HTTP_NOT_FOUND) {
+                return false;
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Read a response, failing if it isn't successful.
+     *
+     * @param connection connection to read the response of
+     *
+     * @return Response body.
+     *
+     * @throws ManagerResponseException If the response isn't successful.
+     * @throws IOException              If reading the response failed.
+     */
+    public static String readResponse(final HttpURLConnection connection) throws IOException {
+        int status = connection.getResponseCode();
+        String body = "";
+        try (InputStream is = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            if (is != null) {
+                body = IOUtils.toString(is, StandardCharsets.UTF_8);
+            }
+        }
+        if (status >= 300) {
+            throw new ManagerResponseException(String.format("%s %s failed with status %d: %s",
+                    connection.getRequestMethod(), connection.getURL(), status, body), status);
+        }
+        return body;
+    }
+
+    @Override
+    public String toString() {
+        // Password and token intentionally omitted.
+        return new ToStringBuilder(this)
+                .append("host", host)
+                .append("secured", secured)
+                .append("tenant", tenant)
+                .append("username", username)
+                .append("tokenBased", token != null)
+                .toString();
+    }
+}
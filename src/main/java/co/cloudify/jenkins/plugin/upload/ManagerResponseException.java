@@ -0,0 +1,33 @@
+package co.cloudify.jenkins.plugin.upload;
+
+import java.io.IOException;
+
+/**
+ * Thrown when Cloudify Manager responds to a request with an unsuccessful
+ * status.
+ *
+ * @author Isaac Shabtay
+ */
+public class ManagerResponseException extends IOException {
+    /** Serialization UID. */
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    public ManagerResponseException(final String message, final int status) {
+        super(message);
+        this.status = status;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return <code>true</code> if the failure is on the manager's side, and
+     *         the request may succeed if retried.
+     */
+    public boolean isRetryable() {
+        return status >= 500;
+    }
+}
@@ -0,0 +1,454 @@
+package co.cloudify.jenkins.plugin.upload;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+/**
+ * Writes a directory tree as a ZIP archive into an arbitrary output stream,
+ * compressing entries in parallel. Each file is read and deflated by a worker
+ * thread; entries are then written, in order, as soon as they are ready, so
+ * compression overlaps with writing (typically, sending over the network) and
+ * no temporary archive is ever created.
+ * <p>
+ * Both the number of entries compressed ahead of the writer and their total
+ * size are bounded, which bounds memory use. Large files are not read into
+ * memory at all: once all entries before them are written, they are streamed
+ * through a deflater by the writing thread, with their CRC and sizes following
+ * the data in a data descriptor. Empty directories are archived as directory
+ * entries.
+ * <p>
+ * Optionally, compressed entries of files that aren't streamed are cached in a
+ * {@link ZipEntryCache}, so only changed files are compressed again. ZIP64
+ * isn't supported; archives are limited to 65535 entries and 4GB.
+ *
+ * @author Isaac Shabtay
+ */
+public class ParallelZipWriter {
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int VERSION = 20;
+    /** General purpose flag: CRC and sizes follow the data. */
+    private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+    /** General purpose flag: names are UTF-8 encoded. */
+    private static final int FLAG_UTF8 = 0x0800;
+    /** MS-DOS directory attribute, set in central headers of directory entries. */
+    private static final int DOS_DIRECTORY_ATTRIBUTE = 0x10;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final long MAX_ZIP32_VALUE = 0xFFFFFFFFL;
+    private static final int MAX_ZIP32_ENTRIES = 0xFFFF;
+    private static final long MEGABYTE = 1024 * 1024;
+
+    /** Maximum total size of files being compressed ahead of the writer. */
+    private static final long MAX_IN_FLIGHT_BYTES = Long.getLong(
+            ParallelZipWriter.class.getName() + ".maxInFlightMegabytes", 64) * MEGABYTE;
+    /** Size from which files are streamed rather than read into memory. */
+    private static final long STREAMING_THRESHOLD = Long.getLong(
+            ParallelZipWriter.class.getName() + ".streamingThresholdMegabytes", 16) * MEGABYTE;
+
+    private final ExecutorService executor;
+    private final int window;
+    private final long maxInFlightBytes;
+    private final long streamingThreshold;
+
+    /**
+     * @param executor executor to compress entries on
+     * @param window   maximum number of entries compressed ahead of the writer
+     */
+    public ParallelZipWriter(final ExecutorService executor, final int window) {
+        this(executor, window, MAX_IN_FLIGHT_BYTES, STREAMING_THRESHOLD);
+    }
+
+    ParallelZipWriter(final ExecutorService executor, final int window, final long maxInFlightBytes,
+            final long streamingThreshold) {
+        this.executor = executor;
+        this.window = window;
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.streamingThreshold = streamingThreshold;
+    }
+
+    /**
+     * Write a directory tree as a ZIP archive. The stream isn't closed.
+     *
+     * @param root   directory to archive
+     * @param prefix prefix for all entry names (for example, the directory's
+     *               name followed by a slash); may be empty
+     * @param out    stream to write to
+     *
+     * @return Number of bytes written.
+     *
+     * @throws IOException          If reading a file or writing to the stream
+     *                              failed.
+     * @throws InterruptedException If interrupted while waiting for a worker.
+     */
+    public long write(final File root, final String prefix, final OutputStream out)
+            throws IOException, InterruptedException {
+        return write(root, prefix, out, null);
+    }
+
+    /**
+     * Write a directory tree as a ZIP archive, reusing compressed entries of
+     * unchanged files from a cache. The stream isn't closed.
+     *
+     * @param root   directory to archive
+     * @param prefix prefix for all entry names (for example, the directory's
+     *               name followed by a slash); may be empty
+     * @param out    stream to write to
+     * @param cache  cache of compressed entries; may be <code>null</code>
+     *
+     * @return Number of bytes written.
+     *
+     * @throws IOException          If reading a file or writing to the stream
+     *                              failed.
+     * @throws InterruptedException If interrupted while waiting for a worker.
+     */
+    public long write(final File root, final String prefix, final OutputStream out, final ZipEntryCache cache)
+            throws IOException, InterruptedException {
+        Path rootPath = root.toPath();
+        List<Path> paths = new ArrayList<>();
+        try (Stream<Path> stream = Files.walk(rootPath)) {
+            for (Iterator<Path> iter = stream.iterator(); iter.hasNext();) {
+                Path path = iter.next();
+                if (Files.isRegularFile(path) || (!path.equals(rootPath) && isEmptyDirectory(path))) {
+                    paths.add(path);
+                }
+            }
+        }
+        Collections.sort(paths);
+        if (paths.size() > MAX_ZIP32_ENTRIES) {
+            throw new IOException(String.format("Too many files to archive: %d", paths.size()));
+        }
+
+        CountingOutputStream counter = new CountingOutputStream(out);
+        List<CentralEntry> central = new ArrayList<>(paths.size());
+        Deque<PendingEntry> pending = new ArrayDeque<>(window);
+        long inFlightBytes = 0;
+        int next = 0;
+        try {
+            while (next < paths.size() || !pending.isEmpty()) {
+                while (next < paths.size() && pending.size() < window) {
+                    Path path = paths.get(next);
+                    long size = Files.isDirectory(path) ? 0 : Files.size(path);
+                    if (size >= streamingThreshold || (!pending.isEmpty() && inFlightBytes + size > maxInFlightBytes)) {
+                        break;
+                    }
+                    String name = getEntryName(rootPath, prefix, path);
+                    pending.add(new PendingEntry(executor.submit(() -> compress(path, name, cache)), size));
+                    inFlightBytes += size;
+                    next++;
+                }
+                long offset = counter.getByteCount();
+                if (offset > MAX_ZIP32_VALUE) {
+                    throw new IOException("Archive too large");
+                }
+                if (pending.isEmpty()) {
+                    // Nothing queued ahead of a large file; stream it.
+                    Path path = paths.get(next++);
+                    central.add(new CentralEntry(stream(counter, path, getEntryName(rootPath, prefix, path)), offset));
+                    continue;
+                }
+                PendingEntry pendingEntry = pending.poll();
+                CompressedEntry entry = pendingEntry.future.get();
+                inFlightBytes -= pendingEntry.size;
+                writeLocalHeader(counter, entry);
+                entry.data.writeTo(counter);
+                // Only the header fields are needed from now on.
+                entry.data = null;
+                central.add(new CentralEntry(entry, offset));
+            }
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } finally {
+            pending.forEach(x -> x.future.cancel(true));
+        }
+
+        long centralOffset = counter.getByteCount();
+        for (CentralEntry entry : central) {
+            writeCentralHeader(counter, entry);
+        }
+        long centralSize = counter.getByteCount() - centralOffset;
+        if (centralOffset > MAX_ZIP32_VALUE) {
+            throw new IOException("Archive too large");
+        }
+        writeInt(counter, END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+        writeShort(counter, 0);
+        writeShort(counter, 0);
+        writeShort(counter, central.size());
+        writeShort(counter, central.size());
+        writeInt(counter, centralSize);
+        writeInt(counter, centralOffset);
+        writeShort(counter, 0);
+        counter.flush();
+        return counter.getByteCount();
+    }
+
+    private static boolean isEmptyDirectory(final Path path) throws IOException {
+        if (!Files.isDirectory(path)) {
+            return false;
+        }
+        try (Stream<Path> children = Files.list(path)) {
+            return !children.findAny().isPresent();
+        }
+    }
+
+    private static String getEntryName(final Path rootPath, final String prefix, final Path path) {
+        String name = prefix + rootPath.relativize(path).toString().replace(File.separatorChar, '/');
+        return Files.isDirectory(path) ? name + '/' : name;
+    }
+
+    private static CompressedEntry compress(final Path file, final String name, final ZipEntryCache cache)
+            throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+        long dosTime = toDosTime(lastModified);
+        if (Files.isDirectory(file)) {
+            return new CompressedEntry(nameBytes, METHOD_STORED, 0, 0, new ByteArrayOutputStream(0), dosTime);
+        }
+        if (cache == null) {
+            return compress(nameBytes, Files.readAllBytes(file), dosTime);
+        }
+        // Only read files whose size or time changed; only compress files whose
+        // contents changed.
+        ZipEntryCache.ManifestEntry cached = cache.find(name, Files.size(file), lastModified);
+        byte[] contents = null;
+        String digest = null;
+        if (cached == null) {
+            contents = Files.readAllBytes(file);
+            digest = DigestUtils.sha256Hex(contents);
+            cached = cache.findByDigest(digest);
+        }
+        if (cached != null) {
+            return new CompressedEntry(nameBytes, cached.getMethod(), cached.getCrc(), cached.getSize(),
+                    cache.reuse(name, lastModified, cached), dosTime);
+        }
+        CompressedEntry entry = compress(nameBytes, contents, dosTime);
+        cache.store(name, new ZipEntryCache.ManifestEntry(entry.size, lastModified, digest, entry.method, entry.crc),
+                entry.data);
+        return entry;
+    }
+
+    private static CompressedEntry compress(final byte[] name, final byte[] contents, final long dosTime) {
+        CRC32 crc = new CRC32();
+        crc.update(contents);
+        ByteArrayOutputStream data = new ByteArrayOutputStream(Math.max(contents.length / 2, 64));
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(contents);
+            deflater.finish();
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                data.write(buffer, 0, deflater.deflate(buffer));
+            }
+        } finally {
+            deflater.end();
+        }
+        int method = METHOD_DEFLATED;
+        if (data.size() >= contents.length) {
+            // Incompressible; store as is.
+            method = METHOD_STORED;
+            data = new ByteArrayOutputStream(contents.length);
+            data.write(contents, 0, contents.length);
+        }
+        return new CompressedEntry(name, method, crc.getValue(), contents.length, data, dosTime);
+    }
+
+    /**
+     * Write a file's entry by streaming it through a deflater, without reading
+     * it into memory. The CRC and sizes are written after the data.
+     */
+    private static CompressedEntry stream(final CountingOutputStream out, final Path file, final String name)
+            throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        long dosTime = toDosTime(Files.getLastModifiedTime(file).toMillis());
+        writeLocalHeader(out, new CompressedEntry(nameBytes, FLAG_UTF8 | FLAG_DATA_DESCRIPTOR, METHOD_DEFLATED, 0,
+                0, 0, dosTime));
+        long start = out.getByteCount();
+        CRC32 crc = new CRC32();
+        long size = 0;
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try (InputStream is = Files.newInputStream(file)) {
+            // Not closed, as that would close the target stream.
+            DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, 65536);
+            byte[] buffer = new byte[65536];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+                deflated.write(buffer, 0, read);
+                size += read;
+            }
+            deflated.finish();
+        } finally {
+            deflater.end();
+        }
+        CompressedEntry entry = new CompressedEntry(nameBytes, FLAG_UTF8 | FLAG_DATA_DESCRIPTOR, METHOD_DEFLATED,
+                crc.getValue(), size, out.getByteCount() - start, dosTime);
+        checkZip32(entry);
+        writeInt(out, DATA_DESCRIPTOR_SIGNATURE);
+        writeInt(out, entry.crc);
+        writeInt(out, entry.compressedSize);
+        writeInt(out, entry.size);
+        return entry;
+    }
+
+    private static void writeLocalHeader(final OutputStream out, final CompressedEntry entry) throws IOException {
+        writeInt(out, LOCAL_HEADER_SIGNATURE);
+        writeShort(out, VERSION);
+        writeCommonHeaderFields(out, entry);
+        writeShort(out, 0);
+        out.write(entry.name);
+    }
+
+    private static void writeCentralHeader(final OutputStream out, final CentralEntry central) throws IOException {
+        writeInt(out, CENTRAL_HEADER_SIGNATURE);
+        writeShort(out, VERSION);
+        writeShort(out, VERSION);
+        writeCommonHeaderFields(out, central.entry);
+        writeShort(out, 0);
+        writeShort(out, 0);
+        writeShort(out, 0);
+        writeShort(out, 0);
+        writeInt(out, central.entry.isDirectory() ? DOS_DIRECTORY_ATTRIBUTE : 0);
+        writeInt(out, central.offset);
+        out.write(central.entry.name);
+    }
+
+    /**
+     * Fields shared by local and central headers: flags, method, time, CRC,
+     * sizes and name length.
+     */
+    private static void writeCommonHeaderFields(final OutputStream out, final CompressedEntry entry)
+            throws IOException {
+        checkZip32(entry);
+        writeShort(out, entry.flags);
+        writeShort(out, entry.method);
+        writeInt(out, entry.dosTime);
+        writeInt(out, entry.crc);
+        writeInt(out, entry.compressedSize);
+        writeInt(out, entry.size);
+        writeShort(out, entry.name.length);
+    }
+
+    private static void checkZip32(final CompressedEntry entry) throws IOException {
+        if (entry.compressedSize > MAX_ZIP32_VALUE || entry.size > MAX_ZIP32_VALUE) {
+            throw new IOException(String.format("File too large to archive: %s",
+                    new String(entry.name, StandardCharsets.UTF_8)));
+        }
+    }
+
+    private static void writeShort(final OutputStream out, final int value) throws IOException {
+        out.write(value & 0xFF);
+        out.write((value >>> 8) & 0xFF);
+    }
+
+    private static void writeInt(final OutputStream out, final long value) throws IOException {
+        writeShort(out, (int) (value & 0xFFFF));
+        writeShort(out, (int) ((value >>> 16) & 0xFFFF));
+    }
+
+    private static long toDosTime(final long millis) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(millis);
+        int year = cal.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return ((year - 1980) << 25)
+                | ((cal.get(Calendar.MONTH) + 1) << 21)
+                | (cal.get(Calendar.DAY_OF_MONTH) << 16)
+                | (cal.get(Calendar.HOUR_OF_DAY) << 11)
+                | (cal.get(Calendar.MINUTE) << 5)
+                | (cal.get(Calendar.SECOND) >> 1);
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("window", window)
+                .append("maxInFlightBytes", maxInFlightBytes)
+                .append("streamingThreshold", streamingThreshold)
+                .toString();
+    }
+
+    private static class CompressedEntry {
+        private final byte[] name;
+        private final int flags;
+        private final int method;
+        private final long crc;
+        private final long size;
+        private final long compressedSize;
+        private final long dosTime;
+        private ByteArrayOutputStream data;
+
+        CompressedEntry(final byte[] name, final int method, final long crc, final long size,
+                final ByteArrayOutputStream data, final long dosTime) {
+            this(name, FLAG_UTF8, method, crc, size, data.size(), dosTime);
+            this.data = data;
+        }
+
+        /**
+         * An entry whose data isn't held in memory.
+         */
+        CompressedEntry(final byte[] name, final int flags, final int method, final long crc, final long size,
+                final long compressedSize, final long dosTime) {
+            this.name = name;
+            this.flags = flags;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.dosTime = dosTime;
+        }
+
+        boolean isDirectory() {
+            return name.length > 0 && name[name.length - 1] == '/';
+        }
+    }
+
+    private static class PendingEntry {
+        private final Future<CompressedEntry> future;
+        /** Size of the file being compressed, counted against the in-flight limit. */
+        private final long size;
+
+        PendingEntry(final Future<CompressedEntry> future, final long size) {
+            this.future = future;
+            this.size = size;
+        }
+    }
+
+    private static class CentralEntry {
+        private final CompressedEntry entry;
+        private final long offset;
+
+        CentralEntry(final CompressedEntry entry, final long offset) {
+            this.entry = entry;
+            this.offset = offset;
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package co.cloudify.jenkins.plugin.upload;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URLEncoder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.module.jaxb.JaxbAnnotationModule;
+
+import co.cloudify.rest.model.Blueprint;
+
+/**
+ * Uploads a blueprint to Cloudify Manager as a stream, using chunked transfer
+ * encoding. Blueprint directories are archived by a {@link ParallelZipWriter}
+ * straight into the request body, so compression and transfer overlap, and no
+ * temporary archive is written to disk. Blueprint archives are memory-mapped
+ * and read in a single pass, which both feeds the request body and computes the
+ * archive's checksum. The request body is an {@link HttpURLConnection} stream,
+ * so the archive is still copied through a fixed-size heap buffer on its way
+ * to the socket; heap use doesn't grow with the archive's size, though.
+ * <p>
+ * Uploads that fail due to network errors or server-side errors are retried,
+ * with exponential backoff. Cloudify Manager doesn't support resuming uploads,
+ * so each attempt sends the blueprint in full; before retrying, the manager is
+ * checked for the blueprint, in case the failed attempt actually succeeded and
+ * only its response was lost. A blueprint found there is only taken as the
+ * failed attempt's if it was created after the upload started; if it failed
+ * processing, it is deleted, so it doesn't block the retry (or later uploads).
+ *
+ * @author Isaac Shabtay
+ */
+public class StreamingBlueprintUploader {
+    private static final Logger logger = LoggerFactory.getLogger(StreamingBlueprintUploader.class);
+
+    private static final String PROPERTY_PREFIX = StreamingBlueprintUploader.class.getName();
+    /** Size of HTTP chunks. */
+    private static final int CHUNK_SIZE = Integer.getInteger(PROPERTY_PREFIX + ".chunkSize", 64 * 1024);
+    /** Size of archive regions mapped into memory at a time. */
+    private static final long MAPPED_REGION_SIZE = Long.getLong(PROPERTY_PREFIX + ".mappedRegionSize",
+            64L * 1024 * 1024);
+    /** Maximum number of upload attempts. */
+    private static final int MAX_ATTEMPTS = Integer.getInteger(PROPERTY_PREFIX + ".maxAttempts", 5);
+    /** Milliseconds to wait before the first retry; doubled for every retry. */
+    private static final long INITIAL_RETRY_DELAY = Long.getLong(PROPERTY_PREFIX + ".retryDelay", 2000);
+    /** Milliseconds between checks of the state of a blueprint being processed. */
+    private static final long STATE_POLLING_INTERVAL = Long.getLong(PROPERTY_PREFIX + ".statePollingInterval", 1000);
+    /** Maximum milliseconds to wait for the manager to process an uploaded blueprint. */
+    private static final long STATE_TIMEOUT = Long.getLong(PROPERTY_PREFIX + ".stateTimeout",
+            TimeUnit.MINUTES.toMillis(10));
+    /**
+     * Milliseconds by which the manager's clock may be behind ours, when telling
+     * whether a blueprint was created by a failed attempt.
+     */
+    private static final long CLOCK_SKEW = Long.getLong(PROPERTY_PREFIX + ".clockSkew", 60000);
+
+    private static final String STATE_UPLOADED = "uploaded";
+    private static final Set<String> FAILED_STATES = new HashSet<>(
+            Arrays.asList("failed_uploading", "failed_extracting", "failed_parsing", "invalid"));
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .registerModule(new JaxbAnnotationModule())
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    /**
+     * Writes the request body.
+     */
+    private interface BodyWriter {
+        void write(OutputStream os) throws IOException, InterruptedException;
+    }
+
+    private final ManagerEndpoint endpoint;
+    private final ParallelZipWriter zipWriter;
+    private final PrintStream jenkinsLog;
+    private long retryDelay = INITIAL_RETRY_DELAY;
+
+    /**
+     * @param endpoint   manager to upload to
+     * @param executor   executor to compress files on
+     * @param window     maximum number of files compressed ahead of the upload
+     * @param jenkinsLog log to report progress to
+     */
+    public StreamingBlueprintUploader(final ManagerEndpoint endpoint, final ExecutorService executor,
+            final int window, final PrintStream jenkinsLog) {
+        this.endpoint = endpoint;
+        this.zipWriter = new ParallelZipWriter(executor, window);
+        this.jenkinsLog = jenkinsLog;
+    }
+
+    /**
+     * Override the delay before the first retry.
+     *
+     * @param retryDelay delay, in milliseconds
+     */
+    void setRetryDelay(final long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * Upload a blueprint directory, and wait for the manager to finish
+     * processing it.
+     *
+     * @param blueprintId  ID of blueprint to create
+     * @param root         blueprint's root directory
+     * @param mainFileName blueprint's main file name
+     *
+     * @return The uploaded blueprint.
+     *
+     * @throws IOException          If reading files or the upload failed.
+     * @throws InterruptedException If interrupted while uploading.
+     */
+    public Blueprint upload(final String blueprintId, final File root, final String mainFileName)
+            throws IOException, InterruptedException {
+        return upload(blueprintId, root, mainFileName, null);
+    }
+
+    /**
+     * Upload a blueprint directory, reusing compressed entries of files that
+     * haven't changed since the last successful upload, and wait for the manager
+     * to finish processing it. The cache is committed once the upload succeeds.
+     *
+     * @param blueprintId  ID of blueprint to create
+     * @param root         blueprint's root directory
+     * @param mainFileName blueprint's main file name
+     * @param cache        cache of compressed entries; may be <code>null</code>
+     *
+     * @return The uploaded blueprint.
+     *
+     * @throws IOException          If reading files or the upload failed.
+     * @throws InterruptedException If interrupted while uploading.
+     */
+    public Blueprint upload(final String blueprintId, final File root, final String mainFileName,
+            final ZipEntryCache cache) throws IOException, InterruptedException {
+        // Cloudify expects the archive to contain a single top-level directory.
+        Blueprint blueprint = upload(blueprintId, mainFileName,
+                os -> zipWriter.write(root, root.getName() + "/", os, cache));
+        if (cache != null) {
+            log("Blueprint '%s': %d files reused from cache, %d compressed", blueprintId, cache.getReused(),
+                    cache.getCompressed());
+            cache.commit();
+        }
+        return blueprint;
+    }
+
+    /**
+     * Upload a blueprint archive, and wait for the manager to finish processing
+     * it.
+     *
+     * @param blueprintId  ID of blueprint to create
+     * @param archive      blueprint archive
+     * @param mainFileName blueprint's main file name
+     *
+     * @return The uploaded blueprint.
+     *
+     * @throws IOException          If reading the archive or the upload failed.
+     * @throws InterruptedException If interrupted while uploading.
+     */
+    public Blueprint uploadArchive(final String blueprintId, final File archive, final String mainFileName)
+            throws IOException, InterruptedException {
+        // Checksum of the first attempt; retries must send the same contents.
+        String[] expectedChecksum = new String[1];
+        Blueprint blueprint = upload(blueprintId, mainFileName, os -> {
+            long size = archive.length();
+            long lastModified = archive.lastModified();
+            MessageDigest digest = DigestUtils.getSha256Digest();
+            transfer(archive, os, digest);
+            // Don't let the manager accept an archive that changed while being
+            // uploaded, or between attempts; failing here aborts the request.
+            if (archive.length() != size || archive.lastModified() != lastModified) {
+                throw new IOException(String.format("%s changed while being uploaded", archive));
+            }
+            String checksum = Hex.encodeHexString(digest.digest());
+            if (expectedChecksum[0] == null) {
+                expectedChecksum[0] = checksum;
+            } else if (!checksum.equals(expectedChecksum[0])) {
+                throw new IOException(String.format("%s changed between upload attempts (checksum %s, expected %s)",
+                        archive, checksum, expectedChecksum[0]));
+            }
+        });
+        log("Blueprint '%s': archive checksum (SHA-256) %s", blueprintId, expectedChecksum[0]);
+        return blueprint;
+    }
+
+    /**
+     * Memory-map a file, region by region, writing it to a stream and updating a
+     * digest with it. Each chunk is copied once, from the mapped region into a
+     * buffer that is both digested and written; writes of a full buffer bypass
+     * the request's own buffering.
+     */
+    private static void transfer(final File file, final OutputStream target, final MessageDigest digest)
+            throws IOException {
+        byte[] buffer = new byte[CHUNK_SIZE];
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = source.size();
+            for (long position = 0; position < size; position += MAPPED_REGION_SIZE) {
+                MappedByteBuffer region = source.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MAPPED_REGION_SIZE, size - position));
+                while (region.hasRemaining()) {
+                    int length = Math.min(buffer.length, region.remaining());
+                    region.get(buffer, 0, length);
+                    digest.update(buffer, 0, length);
+                    target.write(buffer, 0, length);
+                }
+            }
+        }
+    }
+
+    private Blueprint upload(final String blueprintId, final String mainFileName, final BodyWriter bodyWriter)
+            throws IOException, InterruptedException {
+        long started = System.currentTimeMillis();
+        long delay = retryDelay;
+        for (int attempt = 1;; attempt++) {
+            try {
+                JsonNode response = put(blueprintId, mainFileName, bodyWriter);
+                return MAPPER.treeToValue(waitForProcessingOrDelete(blueprintId, response), Blueprint.class);
+            } catch (IOException ex) {
+                if (ex instanceof ManagerResponseException && !((ManagerResponseException) ex).isRetryable()) {
+                    throw ex;
+                }
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw new IOException(String.format("Failed uploading blueprint '%s' after %d attempts",
+                            blueprintId, attempt), ex);
+                }
+                log("Upload attempt %d of blueprint '%s' failed (%s); retrying in %d ms", attempt, blueprintId,
+                        ex.getMessage(), delay);
+                Thread.sleep(delay);
+                delay *= 2;
+                JsonNode existing = getExisting(blueprintId);
+                if (existing == null) {
+                    continue;
+                }
+                if (!isCreatedSince(existing, started)) {
+                    throw new ManagerResponseException(String.format(
+                            "Blueprint '%s' was created by someone else while being uploaded (created at %s)",
+                            blueprintId, existing.path("created_at").asText()), HttpURLConnection.HTTP_CONFLICT);
+                }
+                JsonNode processed = waitForProcessing(blueprintId, existing);
+                if (isFailed(processed)) {
+                    log("Blueprint '%s' was left in state '%s' by the failed attempt; deleting it", blueprintId,
+                            processed.path("state").asText());
+                    delete(blueprintId);
+                    continue;
+                }
+                log("Blueprint '%s' was uploaded by the failed attempt", blueprintId);
+                return MAPPER.treeToValue(processed, Blueprint.class);
+            }
+        }
+    }
+
+    private JsonNode put(final String blueprintId, final String mainFileName, final BodyWriter bodyWriter)
+            throws IOException, InterruptedException {
+        HttpURLConnection connection = endpoint.openConnection(
+                String.format("/blueprints/%s?application_file_name=%s", encode(blueprintId), encode(mainFileName)),
+                "PUT");
+        connection.setDoOutput(true);
+        connection.setChunkedStreamingMode(CHUNK_SIZE);
+        connection.setRequestProperty("Content-Type", "application/octet-stream");
+
+        long start = System.nanoTime();
+        CountingOutputStream counter;
+        try (OutputStream os = new BufferedOutputStream(connection.getOutputStream(), CHUNK_SIZE)) {
+            counter = new CountingOutputStream(os);
+            bodyWriter.write(counter);
+        } catch (IOException | InterruptedException | RuntimeException ex) {
+            connection.disconnect();
+            throw ex;
+        }
+        JsonNode response = MAPPER.readTree(ManagerEndpoint.readResponse(connection));
+        long elapsedNanos = Math.max(System.nanoTime() - start, 1);
+        long bytes = counter.getByteCount();
+        log("Uploaded blueprint '%s': %d bytes in %d ms (%.2f MB/s)", blueprintId, bytes,
+                TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                bytes / (1024.0 * 1024.0) / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1)));
+        return response;
+    }
+
+    /**
+     * @return The blueprint, or <code>null</code> if it doesn't exist.
+     */
+    private JsonNode getExisting(final String blueprintId) throws IOException {
+        try {
+            return MAPPER.readTree(ManagerEndpoint.readResponse(
+                    endpoint.openConnection(String.format("/blueprints/%s", encode(blueprintId)), "GET")));
+        } catch (ManagerResponseException ex) {
+            if (ex.getStatus() == HttpURLConnection.HTTP_NOT_FOUND) {
+                return null;
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * @param blueprint blueprint, as returned by the manager
+     * @param since     time, in milliseconds since the epoch
+     *
+     * @return <code>true</code> if the blueprint was created at or after the
+     *         given time, allowing for {@link #CLOCK_SKEW}.
+     */
+    static boolean isCreatedSince(final JsonNode blueprint, final long since) {
+        String createdAt = blueprint.path("created_at").asText(null);
+        if (createdAt == null) {
+            return false;
+        }
+        Instant instant;
+        try {
+            instant = Instant.parse(createdAt);
+        } catch (DateTimeParseException ex) {
+            try {
+                // Older managers omit the time zone, and use UTC.
+                instant = LocalDateTime.parse(createdAt.replace(' ', 'T')).toInstant(ZoneOffset.UTC);
+            } catch (DateTimeParseException ex2) {
+                logger.warn("Unrecognized blueprint creation time: {}", createdAt);
+                return false;
+            }
+        }
+        return instant.toEpochMilli() >= since - CLOCK_SKEW;
+    }
+
+    private static boolean isFailed(final JsonNode blueprint) {
+        return FAILED_STATES.contains(blueprint.path("state").asText(null));
+    }
+
+    private void delete(final String blueprintId) throws IOException {
+        try {
+            ManagerEndpoint.readResponse(
+                    endpoint.openConnection(String.format("/blueprints/%s", encode(blueprintId)), "DELETE"));
+        } catch (ManagerResponseException ex) {
+            if (ex.getStatus() != HttpURLConnection.HTTP_NOT_FOUND) {
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Wait for the manager to process an uploaded blueprint; if processing
+     * fails, delete the blueprint, so it doesn't block later uploads.
+     */
+    private JsonNode waitForProcessingOrDelete(final String blueprintId, final JsonNode initial)
+            throws IOException, InterruptedException {
+        JsonNode processed = waitForProcessing(blueprintId, initial);
+        if (isFailed(processed)) {
+            try {
+                delete(blueprintId);
+            } catch (IOException ex) {
+                logger.warn(String.format("Failed deleting blueprint '%s'", blueprintId), ex);
+            }
+            // Not retryable: the manager received the blueprint, but rejected it.
+            throw new ManagerResponseException(String.format("Blueprint '%s' failed processing (state: %s): %s",
+                    blueprintId, processed.path("state").asText(), processed.path("error").asText()),
+                    HttpURLConnection.HTTP_BAD_REQUEST);
+        }
+        return processed;
+    }
+
+    /**
+     * Newer managers process uploaded blueprints asynchronously; wait until
+     * processing is done, successfully or not. Responses without a state are
+     * returned as is.
+     */
+    private JsonNode waitForProcessing(final String blueprintId, final JsonNode initial)
+            throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + STATE_TIMEOUT;
+        JsonNode current = initial;
+        while (true) {
+            String state = current.path("state").asText(null);
+            if (state == null || STATE_UPLOADED.equals(state) || FAILED_STATES.contains(state)) {
+                return current;
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                throw new IOException(String.format("Timed out waiting for blueprint '%s' to be processed (state: %s)",
+                        blueprintId, state));
+            }
+            Thread.sleep(STATE_POLLING_INTERVAL);
+            current = MAPPER.readTree(ManagerEndpoint.readResponse(
+                    endpoint.openConnection(String.format("/blueprints/%s", encode(blueprintId)), "GET")));
+        }
+    }
+
+    private void log(final String format, final Object... args) {
+        String message = String.format(format, args);
+        logger.info(message);
+        if (jenkinsLog != null) {
+            jenkinsLog.println(message);
+        }
+    }
+
+    private static String encode(final String value) throws UnsupportedEncodingException {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("endpoint", endpoint)
+                .append("zipWriter", zipWriter)
+                .toString();
+    }
+}
@@ -0,0 +1,265 @@
+package co.cloudify.jenkins.plugin.upload;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A cache of compressed ZIP entries, used by {@link ParallelZipWriter} so that
+ * only files that changed since the last upload are compressed again.
+ * <p>
+ * The cache directory holds a manifest, mapping each entry name to the size,
+ * modification time and SHA-256 digest of the file it was made of, and the
+ * compressed data of each entry, named by digest. A file is reused without
+ * being read if its size and modification time match the manifest; otherwise,
+ * it is read and hashed, and reused if any cached entry has the same contents
+ * (so, for example, fresh checkouts don't invalidate the cache).
+ * <p>
+ * Entries used while writing an archive make up a new manifest, which only
+ * replaces the old one when {@link #commit()} is called (normally, after the
+ * archive was uploaded successfully); unused entries are deleted then.
+ *
+ * @author Isaac Shabtay
+ */
+public class ZipEntryCache {
+    private static final Logger logger = LoggerFactory.getLogger(ZipEntryCache.class);
+
+    private static final String MANIFEST_FILE_NAME = "manifest.json";
+    private static final String ENTRIES_DIR_NAME = "entries";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final TypeReference<Map<String, ManifestEntry>> MANIFEST_TYPE = new TypeReference<Map<String, ManifestEntry>>() {
+    };
+
+    /**
+     * Describes a file, and the cached entry made of it.
+     */
+    public static class ManifestEntry {
+        private long size;
+        private long lastModified;
+        private String digest;
+        private int method;
+        private long crc;
+
+        public ManifestEntry() {
+            super();
+        }
+
+        ManifestEntry(final long size, final long lastModified, final String digest, final int method,
+                final long crc) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.digest = digest;
+            this.method = method;
+            this.crc = crc;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public void setSize(long size) {
+            this.size = size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public void setLastModified(long lastModified) {
+            this.lastModified = lastModified;
+        }
+
+        public String getDigest() {
+            return digest;
+        }
+
+        public void setDigest(String digest) {
+            this.digest = digest;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        public void setMethod(int method) {
+            this.method = method;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public void setCrc(long crc) {
+            this.crc = crc;
+        }
+
+        @Override
+        public String toString() {
+            return new ToStringBuilder(this)
+                    .append("size", size)
+                    .append("lastModified", lastModified)
+                    .append("digest", digest)
+                    .append("method", method)
+                    .append("crc", crc)
+                    .toString();
+        }
+    }
+
+    private final Path manifestFile;
+    private final Path entriesDir;
+    private final Map<String, ManifestEntry> previous;
+    private final Map<String, ManifestEntry> previousByDigest = new HashMap<>();
+    private final ConcurrentMap<String, ManifestEntry> current = new ConcurrentHashMap<>();
+    private final AtomicInteger reused = new AtomicInteger();
+    private final AtomicInteger compressed = new AtomicInteger();
+
+    /**
+     * @param directory cache directory; created if it doesn't exist
+     *
+     * @throws IOException If the directory couldn't be created.
+     */
+    public ZipEntryCache(final File directory) throws IOException {
+        Path dir = directory.toPath();
+        this.manifestFile = dir.resolve(MANIFEST_FILE_NAME);
+        this.entriesDir = dir.resolve(ENTRIES_DIR_NAME);
+        Files.createDirectories(entriesDir);
+        this.previous = readManifest(manifestFile);
+        previous.values().forEach(x -> previousByDigest.put(x.getDigest(), x));
+    }
+
+    private static Map<String, ManifestEntry> readManifest(final Path manifestFile) {
+        if (!Files.isRegularFile(manifestFile)) {
+            return Collections.emptyMap();
+        }
+        try {
+            return MAPPER.readValue(manifestFile.toFile(), MANIFEST_TYPE);
+        } catch (IOException ex) {
+            // Start over; worst case, everything is compressed again.
+            logger.warn(String.format("Failed reading %s; ignoring it", manifestFile), ex);
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * @return The cached entry of an unmodified file, or <code>null</code>.
+     */
+    ManifestEntry find(final String name, final long size, final long lastModified) {
+        ManifestEntry entry = previous.get(name);
+        return entry != null && entry.getSize() == size && entry.getLastModified() == lastModified
+                && Files.isRegularFile(dataFile(entry.getDigest())) ? entry : null;
+    }
+
+    /**
+     * @return A cached entry of a file with the given contents, or
+     *         <code>null</code>.
+     */
+    ManifestEntry findByDigest(final String digest) {
+        ManifestEntry entry = previousByDigest.get(digest);
+        return entry != null && Files.isRegularFile(dataFile(digest)) ? entry : null;
+    }
+
+    /**
+     * Reuse a cached entry for a file.
+     *
+     * @return The entry's compressed data.
+     */
+    ByteArrayOutputStream reuse(final String name, final long lastModified, final ManifestEntry cached)
+            throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream((int) Files.size(dataFile(cached.getDigest())));
+        Files.copy(dataFile(cached.getDigest()), data);
+        current.put(name, new ManifestEntry(cached.getSize(), lastModified, cached.getDigest(), cached.getMethod(),
+                cached.getCrc()));
+        reused.incrementAndGet();
+        return data;
+    }
+
+    /**
+     * Cache a newly-compressed entry.
+     */
+    void store(final String name, final ManifestEntry entry, final ByteArrayOutputStream data) throws IOException {
+        Path target = dataFile(entry.getDigest());
+        if (!Files.isRegularFile(target)) {
+            Path temp = Files.createTempFile(entriesDir, entry.getDigest(), ".tmp");
+            try {
+                Files.write(temp, data.toByteArray());
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+        current.put(name, entry);
+        compressed.incrementAndGet();
+    }
+
+    /**
+     * Make the entries used since this cache was opened the cache's contents,
+     * deleting all other entries.
+     *
+     * @throws IOException If writing the manifest failed.
+     */
+    public void commit() throws IOException {
+        Path temp = Files.createTempFile(manifestFile.getParent(), MANIFEST_FILE_NAME, ".tmp");
+        try {
+            MAPPER.writeValue(temp.toFile(), current);
+            Files.move(temp, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        Set<String> used = new HashSet<>();
+        current.values().forEach(x -> used.add(x.getDigest()));
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(entriesDir)) {
+            for (Path path : stream) {
+                if (!used.contains(path.getFileName().toString())) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+    }
+
+    private Path dataFile(final String digest) {
+        return entriesDir.resolve(digest);
+    }
+
+    /**
+     * @return Number of entries reused so far.
+     */
+    public int getReused() {
+        return reused.get();
+    }
+
+    /**
+     * @return Number of entries compressed (and cached) so far.
+     */
+    public int getCompressed() {
+        return compressed.get();
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("manifestFile", manifestFile)
+                .append("reused", reused)
+                .append("compressed", compressed)
+                .toString();
+    }
+}
@@ -0,0 +1,227 @@
+package co.cloudify.jenkins.plugin;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import co.cloudify.rest.model.Blueprint;
+
+public class BlueprintUploadCoordinatorTest {
+    private static final String HOST = "manager.example.com";
+    private static final String TENANT = "default_tenant";
+    private static final String BLUEPRINT_ID = "blueprint-id";
+
+    private ExecutorService executor;
+
+    @BeforeEach
+    public void initTest() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterEach
+    public void cleanup() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testConcurrentUploadsCoalesced() throws Exception {
+        BlueprintUploadCoordinator coordinator = new BlueprintUploadCoordinator(TimeUnit.MINUTES.toMillis(1));
+        AtomicInteger uploads = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        Blueprint blueprint = mock(Blueprint.class);
+        BlueprintUploadCoordinator.Uploader uploader = () -> {
+            uploads.incrementAndGet();
+            release.await();
+            return blueprint;
+        };
+
+        int callers = 8;
+        List<Future<BlueprintUploadCoordinator.Result>> futures = new ArrayList<>();
+        for (int i = 0; i < callers; i++) {
+            futures.add(executor.submit(() -> coordinator.upload(HOST, TENANT, BLUEPRINT_ID, uploader)));
+        }
+        while (coordinator.getCoalesced() < callers - 1) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+
+        int owners = 0;
+        for (Future<BlueprintUploadCoordinator.Result> future : futures) {
+            BlueprintUploadCoordinator.Result result = future.get();
+            assertSame(blueprint, result.getBlueprint());
+            if (!result.isShared()) {
+                owners++;
+            }
+        }
+        assertEquals(1, owners);
+        assertEquals(1, uploads.get());
+        assertEquals(1, coordinator.getUploads());
+    }
+
+    @Test
+    public void testWaitingTimesOut() throws Exception {
+        BlueprintUploadCoordinator coordinator = new BlueprintUploadCoordinator(50);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.submit(() -> coordinator.upload(HOST, TENANT, BLUEPRINT_ID, () -> {
+            started.countDown();
+            release.await();
+            return mock(Blueprint.class);
+        }));
+        started.await();
+        try {
+            assertThrows(IOException.class,
+                    () -> coordinator.upload(HOST, TENANT, BLUEPRINT_ID, () -> mock(Blueprint.class)));
+            assertEquals(1, coordinator.getTimeouts());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testSequentialUploadsNotShared() throws Exception {
+        BlueprintUploadCoordinator coordinator = new BlueprintUploadCoordinator(TimeUnit.MINUTES.toMillis(1));
+        assertFalse(coordinator.upload(HOST, TENANT, BLUEPRINT_ID, () -> mock(Blueprint.class)).isShared());
+        assertFalse(coordinator.upload(HOST, TENANT, BLUEPRINT_ID, () -> mock(Blueprint.class)).isShared());
+        assertEquals(0, coordinator.getCoalesced());
+    }
+
+    @Test
+    public void testDifferentContentsNotCoalesced() throws Exception {
+        BlueprintUploadCoordinator coordinator = new BlueprintUploadCoordinator(TimeUnit.MINUTES.toMillis(1));
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Blueprint first = mock(Blueprint.class);
+        Blueprint second = mock(Blueprint.class);
+        Future<BlueprintUploadCoordinator.Result> future = executor.submit(
+                () -> coordinator.upload(HOST, TENANT, BLUEPRINT_ID, "digest-a", () -> {
+                    started.countDown();
+                    release.await();
+                    return first;
+                }));
+        started.await();
+        try {
+            // Same ID, other contents: uploaded on its own, while the first upload is in progress.
+            BlueprintUploadCoordinator.Result result = coordinator.upload(HOST, TENANT, BLUEPRINT_ID, "digest-b",
+                    () -> second);
+            assertSame(second, result.getBlueprint());
+            assertFalse(result.isShared());
+        } finally {
+            release.countDown();
+        }
+        assertSame(first, future.get().getBlueprint());
+        assertFalse(future.get().isShared());
+        assertEquals(2, coordinator.getUploads());
+        assertEquals(0, coordinator.getCoalesced());
+    }
+
+    @Test
+    public void testSameContentsCoalesced() throws Exception {
+        BlueprintUploadCoordinator coordinator = new BlueprintUploadCoordinator(TimeUnit.MINUTES.toMillis(1));
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Blueprint blueprint = mock(Blueprint.class);
+        Future<BlueprintUploadCoordinator.Result> future = executor.submit(
+                () -> coordinator.upload(HOST, TENANT, BLUEPRINT_ID, "digest-a", () -> {
+                    started.countDown();
+                    release.await();
+                    return blueprint;
+                }));
+        started.await();
+        Future<BlueprintUploadCoordinator.Result> waiter = executor.submit(
+                () -> coordinator.upload(HOST, TENANT, BLUEPRINT_ID, "digest-a", () -> mock(Blueprint.class)));
+        while (coordinator.getCoalesced() < 1) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+        assertFalse(future.get().isShared());
+        assertSame(blueprint, waiter.get().getBlueprint());
+        assertTrue(waiter.get().isShared());
+        assertEquals(1, coordinator.getUploads());
+    }
+
+    @Test
+    public void testErrorPropagatedToWaiters() throws Exception {
+        BlueprintUploadCoordinator coordinator = new BlueprintUploadCoordinator(TimeUnit.MINUTES.toMillis(1));
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        NoClassDefFoundError error = new NoClassDefFoundError("missing");
+        Future<BlueprintUploadCoordinator.Result> future = executor.submit(
+                () -> coordinator.upload(HOST, TENANT, BLUEPRINT_ID, () -> {
+                    started.countDown();
+                    release.await();
+                    throw error;
+                }));
+        started.await();
+        Future<BlueprintUploadCoordinator.Result> waiter = executor.submit(
+                () -> coordinator.upload(HOST, TENANT, BLUEPRINT_ID, () -> mock(Blueprint.class)));
+        while (coordinator.getCoalesced() < 1) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+        // Fails right away, rather than when waiting times out.
+        ExecutionException ex = assertThrows(ExecutionException.class, () -> waiter.get(30, TimeUnit.SECONDS));
+        assertSame(error, ex.getCause());
+        ex = assertThrows(ExecutionException.class, () -> future.get(30, TimeUnit.SECONDS));
+        assertSame(error, ex.getCause());
+        assertEquals(0, coordinator.getTimeouts());
+    }
+
+    @Test
+    public void testLastHolderDeletes() throws Exception {
+        BlueprintUploadCoordinator coordinator = new BlueprintUploadCoordinator(TimeUnit.MINUTES.toMillis(1));
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<BlueprintUploadCoordinator.Result> future = executor.submit(
+                () -> coordinator.uploadAndHold(HOST, TENANT, BLUEPRINT_ID, "digest-a", () -> {
+                    started.countDown();
+                    release.await();
+                    return mock(Blueprint.class);
+                }));
+        started.await();
+        Future<BlueprintUploadCoordinator.Result> waiter = executor.submit(
+                () -> coordinator.uploadAndHold(HOST, TENANT, BLUEPRINT_ID, "digest-a", () -> mock(Blueprint.class)));
+        while (coordinator.getCoalesced() < 1) {
+            Thread.sleep(10);
+        }
+        // Held by the waiter as well, before it gets the blueprint.
+        assertEquals(2, coordinator.getHolders(HOST, TENANT, BLUEPRINT_ID));
+        release.countDown();
+        assertFalse(future.get().isShared());
+        assertTrue(waiter.get().isShared());
+
+        // The uploading build is done first; the sharing build deletes the blueprint.
+        assertFalse(coordinator.release(HOST, TENANT, BLUEPRINT_ID));
+        assertTrue(coordinator.release(HOST, TENANT, BLUEPRINT_ID));
+        assertEquals(0, coordinator.getHolders(HOST, TENANT, BLUEPRINT_ID));
+    }
+
+    @Test
+    public void testFailedUploadNotHeld() throws Exception {
+        BlueprintUploadCoordinator coordinator = new BlueprintUploadCoordinator(TimeUnit.MINUTES.toMillis(1));
+        assertThrows(IOException.class, () -> coordinator.uploadAndHold(HOST, TENANT, BLUEPRINT_ID, null, () -> {
+            throw new IOException("upload failed");
+        }));
+        assertEquals(0, coordinator.getHolders(HOST, TENANT, BLUEPRINT_ID));
+        // Unknown blueprints (for example, after a restart) may be deleted.
+        assertTrue(coordinator.release(HOST, TENANT, BLUEPRINT_ID));
+    }
+}
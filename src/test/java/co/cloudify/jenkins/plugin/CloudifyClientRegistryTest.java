@@ -0,0 +1,196 @@
+package co.cloudify.jenkins.plugin;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import co.cloudify.rest.client.CloudifyClient;
+
+public class CloudifyClientRegistryTest {
+    private static final String HOST = "manager.example.com";
+    private static final String USERNAME = "admin";
+    private static final String PASSWORD = "password";
+    private static final String TENANT = "default_tenant";
+
+    private AtomicInteger created;
+    private List<CloudifyClient> closed;
+    private CloudifyClientRegistry registry;
+
+    private CloudifyClientRegistry newRegistry(final long idleTimeoutMillis) {
+        return newRegistry(TimeUnit.HOURS.toMillis(1), idleTimeoutMillis);
+    }
+
+    private CloudifyClientRegistry newRegistry(final long tokenRefreshMillis, final long idleTimeoutMillis) {
+        return new CloudifyClientRegistry(new CloudifyClientRegistry.ClientFactory() {
+            @Override
+            public CloudifyClient create(String host, String username, String password, boolean secured,
+                    String tenant) {
+                created.incrementAndGet();
+                return mock(CloudifyClient.class);
+            }
+
+            @Override
+            public void close(CloudifyClient client) {
+                synchronized (closed) {
+                    closed.add(client);
+                }
+            }
+        }, tokenRefreshMillis, idleTimeoutMillis);
+    }
+
+    @BeforeEach
+    public void initTest() {
+        created = new AtomicInteger();
+        closed = new ArrayList<>();
+        registry = newRegistry(TimeUnit.HOURS.toMillis(1));
+    }
+
+    @Test
+    public void testCachedClientReused() {
+        CloudifyClient first = registry.getClient(HOST, USERNAME, PASSWORD, true, TENANT);
+        CloudifyClient second = registry.getClient(HOST, USERNAME, PASSWORD, true, TENANT);
+        assertSame(first, second);
+        assertEquals(1, created.get());
+        assertEquals(1, registry.getHits());
+        assertEquals(1, registry.getMisses());
+    }
+
+    @Test
+    public void testDifferentTenantsNotShared() {
+        CloudifyClient first = registry.getClient(HOST, USERNAME, PASSWORD, true, TENANT);
+        CloudifyClient second = registry.getClient(HOST, USERNAME, PASSWORD, true, "other_tenant");
+        assertNotSame(first, second);
+        assertEquals(2, registry.getSize());
+    }
+
+    @Test
+    public void testCredentialsChangeEvicts() {
+        CloudifyClient first = registry.getClient(HOST, USERNAME, PASSWORD, true, TENANT);
+        CloudifyClient second = registry.getClient(HOST, USERNAME, "new-password", true, TENANT);
+        assertNotSame(first, second);
+        assertEquals(1, registry.getSize());
+        assertEquals(1, registry.getEvictions());
+    }
+
+    @Test
+    public void testIdleClientsEvicted() {
+        registry = newRegistry(0);
+        CloudifyClient first = registry.getClient(HOST, USERNAME, PASSWORD, true, TENANT);
+        registry.release(first);
+        registry.getClient(HOST, USERNAME, PASSWORD, true, TENANT);
+        assertEquals(2, created.get());
+        assertEquals(0, registry.getHits());
+        assertEquals(1, closed.size());
+        assertSame(first, closed.get(0));
+    }
+
+    @Test
+    public void testClientsInUseNotIdle() {
+        registry = newRegistry(0);
+        CloudifyClient first = registry.getClient(HOST, USERNAME, PASSWORD, true, TENANT);
+        assertSame(first, registry.getClient(HOST, USERNAME, PASSWORD, true, TENANT));
+        assertEquals(1, created.get());
+    }
+
+    @Test
+    public void testReplacedClientClosedWhenReleased() {
+        CloudifyClient first = registry.getClient(HOST, USERNAME, PASSWORD, true, TENANT);
+        CloudifyClient again = registry.getClient(HOST, USERNAME, PASSWORD, true, TENANT);
+        registry.getClient(HOST, USERNAME, "new-password", true, TENANT);
+        assertEquals(0, closed.size());
+
+        registry.release(first);
+        assertEquals(0, closed.size());
+        registry.release(again);
+        assertEquals(1, closed.size());
+        assertSame(first, closed.get(0));
+        assertEquals(1, registry.getClosed());
+    }
+
+    @Test
+    public void testRenewKeepsFreshClient() {
+        CloudifyClient client = registry.getClient(HOST, USERNAME, PASSWORD, true, TENANT);
+        assertSame(client, registry.renew(client));
+        assertEquals(1, created.get());
+    }
+
+    @Test
+    public void testRenewReplacesAgedClient() {
+        registry = newRegistry(0, TimeUnit.HOURS.toMillis(1));
+        CloudifyClient client = registry.getClient(HOST, USERNAME, PASSWORD, true, TENANT);
+        CloudifyClient renewed = registry.renew(client);
+        assertNotSame(client, renewed);
+        assertEquals(2, created.get());
+        // The aged client remains usable until its holder releases it.
+        assertEquals(0, closed.size());
+        registry.release(client);
+        assertEquals(1, closed.size());
+        assertSame(client, closed.get(0));
+    }
+
+    @Test
+    public void testRenewIgnoresUnknownClients() {
+        CloudifyClient client = mock(CloudifyClient.class);
+        assertSame(client, registry.renew(client));
+        assertEquals(0, created.get());
+    }
+
+    @Test
+    public void testInvalidateAllClosesUnusedClients() {
+        CloudifyClient unused = registry.getClient(HOST, USERNAME, PASSWORD, true, TENANT);
+        registry.release(unused);
+        CloudifyClient used = registry.getClient(HOST, USERNAME, PASSWORD, true, "other_tenant");
+        registry.invalidateAll();
+        assertEquals(0, registry.getSize());
+        assertEquals(1, closed.size());
+        assertSame(unused, closed.get(0));
+
+        registry.release(used);
+        assertEquals(2, closed.size());
+        assertNotSame(used, registry.getClient(HOST, USERNAME, PASSWORD, true, "other_tenant"));
+    }
+
+    @Test
+    public void testConcurrentMissesCreateOneClient() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        registry = new CloudifyClientRegistry((host, username, password, secured, tenant) -> {
+            created.incrementAndGet();
+            try {
+                gate.await();
+            } catch (InterruptedException ex) {
+                throw new IllegalStateException(ex);
+            }
+            return mock(CloudifyClient.class);
+        }, TimeUnit.HOURS.toMillis(1), TimeUnit.HOURS.toMillis(1));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<CloudifyClient>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(() -> registry.getClient(HOST, USERNAME, PASSWORD, true, TENANT)));
+            }
+            Thread.sleep(100);
+            gate.countDown();
+            CloudifyClient client = futures.get(0).get();
+            for (Future<CloudifyClient> future : futures) {
+                assertSame(client, future.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, created.get());
+        assertEquals(3, registry.getHits());
+    }
+}
@@ -1,6 +1,7 @@
 package co.cloudify.jenkins.plugin;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -47,6 +48,23 @@ public class CloudifyPluginUtilitiesTest {
         assertEquals(input, result);
     }
 
+    @Test
+    public void testEnvironmentFingerprint() throws Exception {
+        Map<String, Object> inputs = new LinkedHashMap<>();
+        inputs.put("a", 1);
+        inputs.put("b", Collections.singletonMap("c", "d"));
+        Map<String, Object> reordered = new LinkedHashMap<>();
+        reordered.put("b", Collections.singletonMap("c", "d"));
+        reordered.put("a", 1);
+        String fingerprint = CloudifyPluginUtilities.getEnvironmentFingerprint("bp", inputs);
+        assertEquals(fingerprint, CloudifyPluginUtilities.getEnvironmentFingerprint("bp", reordered));
+        assertEquals(fingerprint, CloudifyPluginUtilities.getEnvironmentFingerprint("bp",
+                CloudifyPluginUtilities.readYamlOrJson("b:\n  c: d\na: 1")));
+        assertNotEquals(fingerprint, CloudifyPluginUtilities.getEnvironmentFingerprint("bp2", inputs));
+        reordered.put("a", 2);
+        assertNotEquals(fingerprint, CloudifyPluginUtilities.getEnvironmentFingerprint("bp", reordered));
+    }
+
     @Test
     public void testWriteJson() throws Exception {
         JsonObject jsonObj = Json.createObjectBuilder().add("key", "value").build();
@@ -75,6 +93,14 @@ public class CloudifyPluginUtilitiesTest {
         assertEquals(Collections.singletonMap("key", "value"), result);
     }
 
+    @Test
+    public void testReadNonStrictJson() throws Exception {
+        File outputFile = new File(tempDir, "testReadNonStrictJson.json");
+        FileUtils.write(outputFile, "  {key: value}", StandardCharsets.UTF_8);
+        Map<String, Object> result = CloudifyPluginUtilities.readYamlOrJson(new FilePath(outputFile));
+        assertEquals(Collections.singletonMap("key", "value"), result);
+    }
+
     @Test
     public void testReadYamlFromString() throws Exception {
         assertEquals(Collections.singletonMap("key", "value"), CloudifyPluginUtilities.readYamlOrJson("key: value"));
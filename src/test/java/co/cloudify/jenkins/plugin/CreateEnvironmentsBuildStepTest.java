@@ -0,0 +1,65 @@
+package co.cloudify.jenkins.plugin;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import hudson.AbortException;
+
+public class CreateEnvironmentsBuildStepTest {
+    private static Map<String, Object> map(final Object... keysAndValues) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            map.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return map;
+    }
+
+    @Test
+    public void testExplicitEnvironments() throws Exception {
+        Map<String, Map<String, Object>> result = CreateEnvironmentsBuildStep.expandEnvironments(
+                map("region", "eu-west-1", "size", 1),
+                map("small", null, "large", map("size", 8)),
+                Collections.emptyMap(), "bp");
+        assertEquals(Arrays.asList("small", "large"), new ArrayList<>(result.keySet()));
+        assertEquals(map("region", "eu-west-1", "size", 1), result.get("small"));
+        assertEquals(map("region", "eu-west-1", "size", 8), result.get("large"));
+    }
+
+    @Test
+    public void testMatrix() throws Exception {
+        Map<String, Map<String, Object>> result = CreateEnvironmentsBuildStep.expandEnvironments(
+                map("size", 1),
+                Collections.emptyMap(),
+                map("region", Arrays.asList("eu-west-1", "us-east-1"), "size", Arrays.asList(2, 8), "tier", "db"),
+                "env");
+        assertEquals(Arrays.asList("env-1", "env-2", "env-3", "env-4"), new ArrayList<>(result.keySet()));
+        assertEquals(map("size", 2, "region", "eu-west-1", "tier", "db"), result.get("env-1"));
+        assertEquals(map("size", 8, "region", "eu-west-1", "tier", "db"), result.get("env-2"));
+        assertEquals(map("size", 2, "region", "us-east-1", "tier", "db"), result.get("env-3"));
+        assertEquals(map("size", 8, "region", "us-east-1", "tier", "db"), result.get("env-4"));
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        assertEquals(Collections.emptyMap(), CreateEnvironmentsBuildStep.expandEnvironments(map("size", 1),
+                Collections.emptyMap(), Collections.emptyMap(), "env"));
+    }
+
+    @Test
+    public void testInvalid() {
+        assertThrows(AbortException.class, () -> CreateEnvironmentsBuildStep.expandEnvironments(
+                Collections.emptyMap(), map("env-1", null), map("size", Arrays.asList(1)), "env"));
+        assertThrows(AbortException.class, () -> CreateEnvironmentsBuildStep.expandEnvironments(
+                Collections.emptyMap(), Collections.emptyMap(), map("size", Collections.emptyList()), "env"));
+        assertThrows(AbortException.class, () -> CreateEnvironmentsBuildStep.expandEnvironments(
+                Collections.emptyMap(), map("env", "size=1"), Collections.emptyMap(), "env"));
+    }
+}
@@ -0,0 +1,162 @@
+package co.cloudify.jenkins.plugin;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.RestartableJenkinsRule;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.domains.Domain;
+import com.cloudbees.plugins.credentials.impl.UsernamePasswordCredentialsImpl;
+
+import co.cloudify.jenkins.plugin.upload.ManagerEndpoint;
+import co.cloudify.rest.client.CloudifyClient;
+import co.cloudify.rest.client.ExecutionsClient;
+import co.cloudify.rest.model.Execution;
+import co.cloudify.rest.model.ExecutionStatus;
+import hudson.model.Result;
+import jenkins.model.Jenkins;
+
+public class ExecuteWorkflowStepTest {
+    @Rule
+    public RestartableJenkinsRule story = new RestartableJenkinsRule();
+
+    private final AtomicReference<ExecutionStatus> status = new AtomicReference<>(ExecutionStatus.started);
+    private CloudifyClient client;
+    private ExecutionsClient executionsClient;
+    private CloudifyClientRegistry previousRegistry;
+
+    @Before
+    public void initTest() {
+        client = mock(CloudifyClient.class);
+        executionsClient = mock(ExecutionsClient.class);
+        when(client.getExecutionsClient()).thenReturn(executionsClient);
+        when(executionsClient.start(eq("dep"), eq("install"), any())).thenAnswer(x -> execution());
+        when(executionsClient.get("ex1")).thenAnswer(x -> execution());
+        previousRegistry = CloudifyClientRegistry.setInstance(new CloudifyClientRegistry(
+                new CloudifyClientRegistry.ClientFactory() {
+                    @Override
+                    public CloudifyClient create(String host, String username, String password, boolean secured,
+                            String tenant) {
+                        return client;
+                    }
+
+                    @Override
+                    public ManagerEndpoint createEndpoint(String host, String username, String password,
+                            boolean secured, String tenant) {
+                        // Executions are polled through the client.
+                        return null;
+                    }
+                }, TimeUnit.HOURS.toMillis(1), TimeUnit.HOURS.toMillis(1)));
+    }
+
+    @After
+    public void tearDown() {
+        CloudifyClientRegistry.setInstance(previousRegistry);
+    }
+
+    private Execution execution() {
+        Execution execution = mock(Execution.class);
+        when(execution.getId()).thenReturn("ex1");
+        when(execution.getStatus()).thenReturn(status.get());
+        return execution;
+    }
+
+    private static WorkflowJob createJob(final Jenkins jenkins) throws Exception {
+        CloudifyConfiguration.get().setHost("manager");
+        CredentialsProvider.lookupStores(jenkins).iterator().next().addCredentials(Domain.global(),
+                new UsernamePasswordCredentialsImpl(CredentialsScope.GLOBAL, "cfy", null, "admin", "secret"));
+        WorkflowJob job = jenkins.createProject(WorkflowJob.class, "p");
+        job.setDefinition(new CpsFlowDefinition(
+                "cfyExecuteWorkflow credentialsId: 'cfy', deploymentId: 'dep', workflowId: 'install', "
+                        + "printLogs: false",
+                true));
+        return job;
+    }
+
+    @Test
+    public void testExecutionCompleted() {
+        story.then(r -> {
+            WorkflowJob job = createJob(r.jenkins);
+            WorkflowRun run = job.scheduleBuild2(0).waitForStart();
+            r.waitForMessage("Execution started; id=ex1", run);
+            status.set(ExecutionStatus.terminated);
+            r.assertBuildStatusSuccess(r.waitForCompletion(run));
+            r.assertLogContains("Execution ended successfully", run);
+            // The shared poller is disabled by default; the step polls by itself.
+            r.assertLogContains("Execution ex1 ended with status 'terminated'", run);
+            verify(executionsClient).start(eq("dep"), eq("install"), any());
+        });
+    }
+
+    @Test
+    public void testExecutionCompletedSharedPoller() {
+        story.then(r -> {
+            WorkflowJob job = createJob(r.jenkins);
+            CloudifyConfiguration.get().setSharedExecutionPoller(true);
+            WorkflowRun run = job.scheduleBuild2(0).waitForStart();
+            r.waitForMessage("Execution started; id=ex1", run);
+            status.set(ExecutionStatus.terminated);
+            r.assertBuildStatusSuccess(r.waitForCompletion(run));
+            r.assertLogContains("Execution ended successfully", run);
+            // Polled by the shared poller, which doesn't report per-build request counts.
+            r.assertLogNotContains("status requests", run);
+        });
+    }
+
+    @Test
+    public void testExecutionFailed() {
+        story.then(r -> {
+            WorkflowJob job = createJob(r.jenkins);
+            WorkflowRun run = job.scheduleBuild2(0).waitForStart();
+            r.waitForMessage("Execution started; id=ex1", run);
+            status.set(ExecutionStatus.failed);
+            r.assertBuildStatus(Result.FAILURE, r.waitForCompletion(run));
+            r.assertLogContains("Execution did not end successfully", run);
+        });
+    }
+
+    @Test
+    public void testStartFailed() {
+        when(executionsClient.start(eq("dep"), eq("install"), any()))
+                .thenThrow(new IllegalStateException("manager unavailable"));
+        story.then(r -> {
+            WorkflowJob job = createJob(r.jenkins);
+            WorkflowRun run = r.assertBuildStatus(Result.FAILURE, job.scheduleBuild2(0));
+            r.assertLogContains("manager unavailable", run);
+        });
+    }
+
+    @Test
+    public void testResume() {
+        story.then(r -> {
+            WorkflowJob job = createJob(r.jenkins);
+            WorkflowRun run = job.scheduleBuild2(0).waitForStart();
+            r.waitForMessage("Execution started; id=ex1", run);
+        });
+        story.then(r -> {
+            WorkflowRun run = r.jenkins.getItemByFullName("p", WorkflowJob.class).getBuildByNumber(1);
+            r.waitForMessage("Re-attaching to execution ex1", run);
+            status.set(ExecutionStatus.terminated);
+            r.assertBuildStatusSuccess(r.waitForCompletion(run));
+            r.assertLogContains("Execution ended successfully", run);
+            // Re-attached to the execution rather than starting a new one.
+            verify(executionsClient, times(1)).start(eq("dep"), eq("install"), any());
+        });
+    }
+}
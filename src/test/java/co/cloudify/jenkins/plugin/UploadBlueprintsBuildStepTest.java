@@ -0,0 +1,19 @@
+package co.cloudify.jenkins.plugin;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.concurrent.Semaphore;
+
+import org.junit.jupiter.api.Test;
+
+public class UploadBlueprintsBuildStepTest {
+    @Test
+    public void testHostPermitsShared() {
+        Semaphore permits = UploadBlueprintsBuildStep.getHostPermits("manager1");
+        assertSame(permits, UploadBlueprintsBuildStep.getHostPermits("manager1"));
+        assertNotSame(permits, UploadBlueprintsBuildStep.getHostPermits("manager2"));
+        assertEquals(8, permits.availablePermits());
+    }
+}
@@ -0,0 +1,50 @@
+package co.cloudify.jenkins.plugin.callables;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import hudson.FilePath;
+
+public class BlueprintDigestFileCallableTest {
+    @TempDir
+    public File tempDir;
+
+    private File blueprint(final String name, final String mainContents) throws Exception {
+        File root = new File(tempDir, name);
+        FileUtils.write(new File(root, "blueprint.yaml"), mainContents, StandardCharsets.UTF_8);
+        FileUtils.write(new File(root, "scripts/create.sh"), "#!/bin/bash\necho create\n", StandardCharsets.UTF_8);
+        return root;
+    }
+
+    private static String digest(final File file, final String mainFileName) throws Exception {
+        return new FilePath(file).act(new BlueprintDigestFileCallable(mainFileName));
+    }
+
+    @Test
+    public void testIdenticalContentsSameDigest() throws Exception {
+        File first = blueprint("first", "tosca_definitions_version: cloudify_dsl_1_3\n");
+        File second = blueprint("second", "tosca_definitions_version: cloudify_dsl_1_3\n");
+        assertEquals(digest(first, "blueprint.yaml"), digest(second, "blueprint.yaml"));
+    }
+
+    @Test
+    public void testChangedContentsDifferentDigest() throws Exception {
+        File root = blueprint("changed", "tosca_definitions_version: cloudify_dsl_1_3\n");
+        String before = digest(root, "blueprint.yaml");
+        FileUtils.write(new File(root, "scripts/create.sh"), "#!/bin/bash\necho changed\n", StandardCharsets.UTF_8);
+        assertNotEquals(before, digest(root, "blueprint.yaml"));
+    }
+
+    @Test
+    public void testMainFileNameIncluded() throws Exception {
+        File root = blueprint("main", "tosca_definitions_version: cloudify_dsl_1_3\n");
+        assertNotEquals(digest(root, "blueprint.yaml"), digest(root, "other.yaml"));
+    }
+}
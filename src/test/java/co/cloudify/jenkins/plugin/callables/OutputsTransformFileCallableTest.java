@@ -0,0 +1,61 @@
+package co.cloudify.jenkins.plugin.callables;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import hudson.FilePath;
+
+public class OutputsTransformFileCallableTest {
+    private static final String OUTPUTS = "{\n"
+            + "  \"outputs\": {\"endpoint\": \"10.0.0.1\", \"unused\": \"" + StringUtils.repeat('x', 1000) + "\"},\n"
+            + "  \"capabilities\": {\"port\": 8080}\n"
+            + "}\n";
+
+    @TempDir
+    public File tempDir;
+
+    private static Map<String, Map<String, String>> mapping() {
+        Map<String, Map<String, String>> mapping = new LinkedHashMap<>();
+        mapping.put("outputs", Collections.singletonMap("endpoint", "host"));
+        mapping.put("capabilities", Collections.singletonMap("port", "service_port"));
+        return mapping;
+    }
+
+    @Test
+    public void testOnlyMappedValuesReturned() throws Exception {
+        File file = new File(tempDir, "outputs.json");
+        FileUtils.write(file, OUTPUTS, StandardCharsets.UTF_8);
+        OutputsTransformFileCallable.Result result = new FilePath(file)
+                .act(new OutputsTransformFileCallable(mapping()));
+
+        Map<String, Object> expected = new LinkedHashMap<>();
+        expected.put("host", "10.0.0.1");
+        expected.put("service_port", 8080);
+        assertEquals(expected, result.getValues());
+        assertEquals(file.length(), result.getBytesRead());
+        assertTrue(result.getBytesReturned() < result.getBytesRead() / 10);
+    }
+
+    @Test
+    public void testMissingSectionsMapToNull() throws Exception {
+        File file = new File(tempDir, "outputs.yaml");
+        FileUtils.write(file, "outputs:\n  endpoint: 10.0.0.1\n", StandardCharsets.UTF_8);
+        OutputsTransformFileCallable.Result result = new FilePath(file)
+                .act(new OutputsTransformFileCallable(mapping()));
+        assertEquals("10.0.0.1", result.getValues().get("host"));
+        assertTrue(result.getValues().containsKey("service_port"));
+        assertNull(result.getValues().get("service_port"));
+    }
+}
@@ -0,0 +1,107 @@
+package co.cloudify.jenkins.plugin.callables;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import co.cloudify.jenkins.plugin.CloudifyPluginUtilities;
+import hudson.FilePath;
+
+public class StreamingOutputsToInputsFileCallableTest {
+    @TempDir
+    public static File tempDir;
+
+    private static Map<String, Map<String, String>> mapping() {
+        Map<String, Map<String, String>> mapping = new LinkedHashMap<>();
+        mapping.put("outputs", Collections.singletonMap("outputKey1", "ip_address"));
+        mapping.put("capabilities", Collections.singletonMap("capKey2", "port_number"));
+        return mapping;
+    }
+
+    private static JsonObject transform(final String name, final String contents) throws Exception {
+        return transform(name, contents, mapping(), new File(tempDir, name + ".inputs.json"));
+    }
+
+    private static JsonObject transform(final String name, final String contents,
+            final Map<String, Map<String, String>> mapping, final File inputsFile) throws Exception {
+        File outputsFile = new File(tempDir, name);
+        FileUtils.write(outputsFile, contents, StandardCharsets.UTF_8);
+        new FilePath(outputsFile).act(new StreamingOutputsToInputsFileCallable(mapping, inputsFile.getPath()));
+        try (InputStream is = new FileInputStream(inputsFile)) {
+            return Json.createReader(is).readObject();
+        }
+    }
+
+    @Test
+    public void testTransformJson() throws Exception {
+        JsonObject result = transform("testTransformJson.json",
+                "{\"blueprint\": \"bp\", \"deployment\": {\"id\": \"dep\"}, "
+                        + "\"outputs\": {\"outputKey1\": {\"nested\": [1, 2]}, \"outputKey2\": \"outputValue2\"}, "
+                        + "\"capabilities\": {\"capKey1\": \"capValue1\", \"capKey2\": 8080}}");
+        assertEquals(Json.createObjectBuilder()
+                .add("ip_address", Json.createObjectBuilder().add("nested", Json.createArrayBuilder().add(1).add(2)))
+                .add("port_number", 8080)
+                .build(), result);
+    }
+
+    @Test
+    public void testTransformYamlWithMissingValue() throws Exception {
+        JsonObject result = transform("testTransformYamlWithMissingValue.yaml",
+                "outputs:\n  outputKey1: outputValue1\n");
+        assertEquals(Json.createObjectBuilder()
+                .add("ip_address", "outputValue1")
+                .addNull("port_number")
+                .build(), result);
+    }
+
+    @Test
+    public void testSameTargetLastMappingWins() throws Exception {
+        Map<String, Map<String, String>> mapping = new LinkedHashMap<>();
+        mapping.put("outputs", Collections.singletonMap("outputKey1", "address"));
+        mapping.put("capabilities", Collections.singletonMap("capKey1", "address"));
+        String contents = "{\"capabilities\": {\"capKey1\": \"capValue1\"}, "
+                + "\"outputs\": {\"outputKey1\": \"outputValue1\"}}";
+
+        JsonObject result = transform("testSameTargetLastMappingWins.json", contents, mapping,
+                new File(tempDir, "testSameTargetLastMappingWins.inputs.json"));
+        assertEquals(Json.createObjectBuilder().add("address", "capValue1").build(), result);
+
+        // Same as the in-memory transformation.
+        Map<String, Object> inMemory = new LinkedHashMap<>();
+        CloudifyPluginUtilities.transformOutputs(CloudifyPluginUtilities.readYamlOrJson(contents), mapping,
+                inMemory);
+        assertEquals(Collections.singletonMap("address", "capValue1"), inMemory);
+    }
+
+    @Test
+    public void testSameTargetLastMappingMissing() throws Exception {
+        Map<String, Map<String, String>> mapping = new LinkedHashMap<>();
+        mapping.put("outputs", Collections.singletonMap("outputKey1", "address"));
+        mapping.put("capabilities", Collections.singletonMap("capKey1", "address"));
+        JsonObject result = transform("testSameTargetLastMappingMissing.json",
+                "{\"outputs\": {\"outputKey1\": \"outputValue1\"}}", mapping,
+                new File(tempDir, "testSameTargetLastMappingMissing.inputs.json"));
+        assertEquals(Json.createObjectBuilder().addNull("address").build(), result);
+    }
+
+    @Test
+    public void testInputsFileDirectoryCreated() throws Exception {
+        File inputsFile = new File(tempDir, "missing/dir/inputs.json");
+        JsonObject result = transform("testInputsFileDirectoryCreated.yaml", "outputs:\n  outputKey1: value\n",
+                mapping(), inputsFile);
+        assertEquals("value", result.getString("ip_address"));
+    }
+}
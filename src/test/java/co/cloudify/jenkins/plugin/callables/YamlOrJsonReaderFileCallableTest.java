@@ -0,0 +1,76 @@
+package co.cloudify.jenkins.plugin.callables;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import co.cloudify.jenkins.plugin.CloudifyPluginUtilities;
+import hudson.FilePath;
+
+public class YamlOrJsonReaderFileCallableTest {
+    private static final String YAML = "# Deployment inputs\n"
+            + "region: eu-west-1\n"
+            + "size: 2\n"
+            + "zones:\n"
+            + "  - a\n"
+            + "  - b\n";
+
+    @TempDir
+    public File tempDir;
+
+    private FilePath file(final String name, final String contents) throws Exception {
+        File file = new File(tempDir, name);
+        FileUtils.write(file, contents, StandardCharsets.UTF_8);
+        return new FilePath(file);
+    }
+
+    @Test
+    public void testYamlReturnedParsed() throws Exception {
+        FilePath path = file("inputs.yaml", YAML);
+        YamlOrJsonReaderFileCallable.Result result = path.act(new YamlOrJsonReaderFileCallable());
+        assertEquals("eu-west-1", result.getContents().get("region"));
+        assertEquals(Arrays.asList("a", "b"), result.getContents().get("zones"));
+        assertEquals(YAML.length(), result.getBytesRead());
+        assertEquals("{\"region\":\"eu-west-1\",\"size\":2,\"zones\":[\"a\",\"b\"]}".length(),
+                result.getBytesReturned());
+    }
+
+    @Test
+    public void testTransferReported() throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        FilePath path = file("inputs.yaml", YAML);
+        CloudifyPluginUtilities.readYamlOrJson(path, new PrintStream(log, true, StandardCharsets.UTF_8.name()));
+        String output = log.toString(StandardCharsets.UTF_8.name());
+        assertTrue(output.contains(String.format("%d bytes parsed in place", YAML.length())), output);
+    }
+
+    @Test
+    public void testReadYamlOrJson() throws Exception {
+        Map<String, Object> yaml = CloudifyPluginUtilities.readYamlOrJson(file("inputs.yaml", YAML));
+        assertEquals("eu-west-1", yaml.get("region"));
+        assertEquals(2, yaml.get("size"));
+        assertEquals(Arrays.asList("a", "b"), yaml.get("zones"));
+
+        Map<String, Object> json = CloudifyPluginUtilities.readYamlOrJson(file("inputs.json",
+                "{\n  \"region\": \"eu-west-1\",\n  \"nested\": {\"key\": \"value\"}\n}\n"));
+        assertEquals("eu-west-1", json.get("region"));
+        assertEquals("value", ((Map<?, ?>) json.get("nested")).get("key"));
+    }
+
+    @Test
+    public void testInvalidContents() throws Exception {
+        FilePath path = file("invalid.yaml", "key: [unterminated\n");
+        assertThrows(RuntimeException.class, () -> path.act(new YamlOrJsonReaderFileCallable()));
+    }
+}
@@ -0,0 +1,63 @@
+package co.cloudify.jenkins.plugin.executions;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import co.cloudify.jenkins.plugin.executions.EventCountingExecutionFollower.LineSkippingOutputStream;
+
+public class EventCountingExecutionFollowerTest {
+    private static void write(final LineSkippingOutputStream stream, final String text) throws Exception {
+        stream.write(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testNothingSkipped() throws Exception {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        LineSkippingOutputStream stream = new LineSkippingOutputStream(target, 0);
+        write(stream, "one\ntwo\nthr");
+        assertEquals("one\ntwo\nthr", target.toString(StandardCharsets.UTF_8.name()));
+        assertEquals(2, stream.getLines());
+    }
+
+    @Test
+    public void testLinesSkippedAcrossWrites() throws Exception {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        LineSkippingOutputStream stream = new LineSkippingOutputStream(target, 3);
+        write(stream, "one\ntw");
+        write(stream, "o\nthree");
+        assertEquals("", target.toString(StandardCharsets.UTF_8.name()));
+        write(stream, "\nfour\nfi");
+        stream.write('v');
+        stream.write('e');
+        stream.write('\n');
+        assertEquals("four\nfive\n", target.toString(StandardCharsets.UTF_8.name()));
+        assertEquals(5, stream.getLines());
+    }
+
+    @Test
+    public void testSingleBytesSkipped() throws Exception {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        LineSkippingOutputStream stream = new LineSkippingOutputStream(target, 1);
+        for (byte b : "a\nb\n".getBytes(StandardCharsets.UTF_8)) {
+            stream.write(b);
+        }
+        assertEquals("b\n", target.toString(StandardCharsets.UTF_8.name()));
+        assertEquals(2, stream.getLines());
+    }
+
+    @Test
+    public void testRewindSkipsLinesAlreadyWritten() throws Exception {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        LineSkippingOutputStream stream = new LineSkippingOutputStream(target, 1);
+        write(stream, "one\ntwo\n");
+        stream.rewind();
+        write(stream, "one\ntwo\nthree\n");
+        assertEquals("two\nthree\n", target.toString(StandardCharsets.UTF_8.name()));
+        assertEquals(2, stream.getSkip());
+        assertEquals(3, stream.getLines());
+    }
+}
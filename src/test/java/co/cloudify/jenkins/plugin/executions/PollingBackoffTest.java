@@ -0,0 +1,31 @@
+package co.cloudify.jenkins.plugin.executions;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+public class PollingBackoffTest {
+    @Test
+    public void testBacksOffToMaximum() {
+        PollingBackoff backoff = new PollingBackoff(1000, 4000, 2);
+        assertEquals(1000, backoff.getCurrent());
+        assertEquals(2000, backoff.next(false));
+        assertEquals(4000, backoff.next(false));
+        assertEquals(4000, backoff.next(false));
+    }
+
+    @Test
+    public void testActivityResets() {
+        PollingBackoff backoff = new PollingBackoff(1000, 4000, 2);
+        backoff.next(false);
+        backoff.next(false);
+        assertEquals(1000, backoff.next(true));
+        assertEquals(2000, backoff.next(false));
+    }
+
+    @Test
+    public void testInvalidRange() {
+        assertThrows(IllegalArgumentException.class, () -> new PollingBackoff(5000, 1000, 2));
+    }
+}
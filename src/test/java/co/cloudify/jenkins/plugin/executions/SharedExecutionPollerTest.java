@@ -0,0 +1,231 @@
+package co.cloudify.jenkins.plugin.executions;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import co.cloudify.rest.client.CloudifyClient;
+import co.cloudify.rest.helpers.ExecutionFollowCallback;
+import co.cloudify.rest.model.Execution;
+import co.cloudify.rest.model.ExecutionStatus;
+
+public class SharedExecutionPollerTest {
+    /**
+     * Serves execution statuses from a map, recording every fetch.
+     */
+    private static class FakeStatusSource implements SharedExecutionPoller.StatusSource {
+        private final Map<String, ExecutionStatus> statuses = new ConcurrentHashMap<>();
+        private final List<List<String>> fetches = new CopyOnWriteArrayList<>();
+        private volatile RuntimeException failure;
+
+        @Override
+        public int fetch(final List<String> ids, final Map<String, Execution> results) {
+            fetches.add(new ArrayList<>(ids));
+            if (failure != null) {
+                throw failure;
+            }
+            for (String id : ids) {
+                ExecutionStatus status = statuses.get(id);
+                if (status != null) {
+                    results.put(id, execution(id, status));
+                }
+            }
+            return 1;
+        }
+    }
+
+    private ScheduledExecutorService scheduler;
+    private ExecutorService workers;
+
+    @BeforeEach
+    public void initTest() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        workers = Executors.newFixedThreadPool(2);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        scheduler.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    private static Execution execution(final String id, final ExecutionStatus status) {
+        Execution execution = mock(Execution.class);
+        when(execution.getId()).thenReturn(id);
+        when(execution.getStatus()).thenReturn(status);
+        return execution;
+    }
+
+    private SharedExecutionPoller newPoller(final int maxExecutionsPerRound,
+            final Map<CloudifyClient, FakeStatusSource> sources) {
+        return new SharedExecutionPoller(10, maxExecutionsPerRound, 3, scheduler, workers, sources::get);
+    }
+
+    @Test
+    public void testOneRequestPerGroup() throws Exception {
+        CloudifyClient client = mock(CloudifyClient.class);
+        FakeStatusSource source = new FakeStatusSource();
+        source.statuses.put("ex1", ExecutionStatus.started);
+        source.statuses.put("ex2", ExecutionStatus.started);
+        Map<CloudifyClient, FakeStatusSource> sources = new ConcurrentHashMap<>();
+        sources.put(client, source);
+        SharedExecutionPoller poller = newPoller(50, sources);
+
+        ExecutionFollowCallback callback1 = mock(ExecutionFollowCallback.class);
+        ExecutionFollowCallback callback2 = mock(ExecutionFollowCallback.class);
+        SharedExecutionPoller.Registration first = poller.register(client,
+                execution("ex1", ExecutionStatus.started), callback1);
+        SharedExecutionPoller.Registration second = poller.register(client,
+                execution("ex2", ExecutionStatus.started), callback2);
+        // Both waiting on the same execution.
+        SharedExecutionPoller.Registration third = poller.register(client,
+                execution("ex2", ExecutionStatus.started), mock(ExecutionFollowCallback.class));
+        assertEquals(2, poller.getTrackedCount());
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (source.fetches.isEmpty()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        source.statuses.put("ex1", ExecutionStatus.terminated);
+        source.statuses.put("ex2", ExecutionStatus.failed);
+
+        assertEquals(ExecutionStatus.terminated, first.getFuture().get(30, TimeUnit.SECONDS).getStatus());
+        assertEquals(ExecutionStatus.failed, second.getFuture().get(30, TimeUnit.SECONDS).getStatus());
+        assertEquals(ExecutionStatus.failed, third.getFuture().get(30, TimeUnit.SECONDS).getStatus());
+        // Both executions' statuses retrieved by a single request.
+        assertEquals(Arrays.asList("ex1", "ex2"), source.fetches.get(0));
+        assertEquals(source.fetches.size(), poller.getTotalRequests());
+        verify(callback1).end(first.getFuture().get());
+        verify(callback2).end(second.getFuture().get());
+        assertEquals(0, poller.getTrackedCount());
+    }
+
+    @Test
+    public void testRoundRobinWithinLimit() throws Exception {
+        CloudifyClient client = mock(CloudifyClient.class);
+        FakeStatusSource source = new FakeStatusSource();
+        Map<CloudifyClient, FakeStatusSource> sources = new ConcurrentHashMap<>();
+        sources.put(client, source);
+        SharedExecutionPoller poller = newPoller(2, sources);
+        for (String id : new String[] { "ex1", "ex2", "ex3" }) {
+            source.statuses.put(id, ExecutionStatus.started);
+            poller.register(client, execution(id, ExecutionStatus.started), mock(ExecutionFollowCallback.class));
+        }
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (source.fetches.size() < 2) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        assertEquals(Arrays.asList("ex1", "ex2"), source.fetches.get(0));
+        assertEquals(Arrays.asList("ex3", "ex1"), source.fetches.get(1));
+    }
+
+    @Test
+    public void testSlowGroupDoesNotBlockOthers() throws Exception {
+        CloudifyClient slowClient = mock(CloudifyClient.class);
+        CloudifyClient fastClient = mock(CloudifyClient.class);
+        FakeStatusSource slowSource = new FakeStatusSource();
+        FakeStatusSource fastSource = new FakeStatusSource();
+        slowSource.statuses.put("slow", ExecutionStatus.terminated);
+        fastSource.statuses.put("fast", ExecutionStatus.terminated);
+        Map<CloudifyClient, FakeStatusSource> sources = new ConcurrentHashMap<>();
+        sources.put(slowClient, slowSource);
+        sources.put(fastClient, fastSource);
+        SharedExecutionPoller poller = newPoller(50, sources);
+
+        CountDownLatch blocked = new CountDownLatch(1);
+        ExecutionFollowCallback slowCallback = mock(ExecutionFollowCallback.class);
+        doAnswer(invocation -> {
+            blocked.await();
+            return null;
+        }).when(slowCallback).callback(any());
+        SharedExecutionPoller.Registration slow = poller.register(slowClient,
+                execution("slow", ExecutionStatus.started), slowCallback);
+        SharedExecutionPoller.Registration fast = poller.register(fastClient,
+                execution("fast", ExecutionStatus.started), mock(ExecutionFollowCallback.class));
+
+        assertEquals("fast", fast.getFuture().get(30, TimeUnit.SECONDS).getId());
+        // Registering isn't blocked by the slow callback either.
+        poller.register(fastClient, execution("other", ExecutionStatus.started), mock(ExecutionFollowCallback.class));
+        blocked.countDown();
+        assertEquals("slow", slow.getFuture().get(30, TimeUnit.SECONDS).getId());
+    }
+
+    @Test
+    public void testFailuresLimited() throws Exception {
+        CloudifyClient client = mock(CloudifyClient.class);
+        FakeStatusSource source = new FakeStatusSource();
+        IllegalStateException failure = new IllegalStateException("manager unavailable");
+        source.failure = failure;
+        Map<CloudifyClient, FakeStatusSource> sources = new ConcurrentHashMap<>();
+        sources.put(client, source);
+        SharedExecutionPoller poller = newPoller(50, sources);
+
+        SharedExecutionPoller.Registration registration = poller.register(client,
+                execution("ex1", ExecutionStatus.started), mock(ExecutionFollowCallback.class));
+        ExecutionException ex = assertThrows(ExecutionException.class,
+                () -> registration.getFuture().get(30, TimeUnit.SECONDS));
+        assertSame(failure, ex.getCause());
+        assertEquals(3, source.fetches.size());
+    }
+
+    @Test
+    public void testUnregister() throws Exception {
+        CloudifyClient client = mock(CloudifyClient.class);
+        FakeStatusSource source = new FakeStatusSource();
+        source.statuses.put("ex1", ExecutionStatus.started);
+        Map<CloudifyClient, FakeStatusSource> sources = new ConcurrentHashMap<>();
+        sources.put(client, source);
+        SharedExecutionPoller poller = newPoller(50, sources);
+
+        SharedExecutionPoller.Registration registration = poller.register(client,
+                execution("ex1", ExecutionStatus.started), mock(ExecutionFollowCallback.class));
+        poller.unregister(registration);
+        assertTrue(registration.getFuture().isCancelled());
+        assertEquals(0, poller.getTrackedCount());
+    }
+
+    @Test
+    public void testTerminalExecutionNotPolled() throws Exception {
+        Map<CloudifyClient, FakeStatusSource> sources = new ConcurrentHashMap<>();
+        SharedExecutionPoller poller = newPoller(50, sources);
+        ExecutionFollowCallback callback = mock(ExecutionFollowCallback.class);
+        Execution execution = execution("ex1", ExecutionStatus.terminated);
+        SharedExecutionPoller.Registration registration = poller.register(mock(CloudifyClient.class), execution,
+                callback);
+        assertSame(execution, registration.getFuture().get());
+        verify(callback).end(execution);
+        assertEquals(0, poller.getTrackedCount());
+    }
+
+    @Test
+    public void testEndpointRequestPath() throws Exception {
+        assertEquals("/executions?_size=2&id=ex1&id=ex+2",
+                SharedExecutionPoller.EndpointStatusSource.getPath(Arrays.asList("ex1", "ex 2")));
+    }
+}
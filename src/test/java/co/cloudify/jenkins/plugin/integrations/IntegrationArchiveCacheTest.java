@@ -0,0 +1,114 @@
+package co.cloudify.jenkins.plugin.integrations;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class IntegrationArchiveCacheTest {
+    @TempDir
+    public File tempDir;
+
+    private IntegrationArchiveCache cache;
+
+    @BeforeEach
+    public void initTest() {
+        cache = new IntegrationArchiveCache(new File(tempDir, "cache"));
+    }
+
+    private URL source(final String name, final String contents) throws Exception {
+        File file = new File(tempDir, name);
+        FileUtils.write(file, contents, StandardCharsets.UTF_8);
+        return file.toURI().toURL();
+    }
+
+    @Test
+    public void testCachedCopyUsedWhenSourceGone() throws Exception {
+        URL url = source("1.0.zip", "version 1.0");
+        File archive = cache.getArchive(url);
+        FileUtils.forceDelete(new File(url.toURI()));
+        assertEquals(archive, cache.getArchive(url));
+        assertEquals("version 1.0", FileUtils.readFileToString(archive, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testCorruptCopyDownloadedAgain() throws Exception {
+        URL url = source("1.0.zip", "version 1.0");
+        File archive = cache.getArchive(url);
+        FileUtils.write(archive, "garbage", StandardCharsets.UTF_8);
+        assertEquals("version 1.0", FileUtils.readFileToString(cache.getArchive(url), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testStaleVersionEvicted() throws Exception {
+        File oldArchive = cache.getArchive(source("1.0.zip", "version 1.0"));
+        File newArchive = cache.getArchive(source("1.1.zip", "version 1.1"));
+        assertFalse(oldArchive.exists());
+        assertEquals("version 1.1", FileUtils.readFileToString(newArchive, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return A URL whose contents can only be read once the latch is released.
+     */
+    private static URL blockingSource(final String contents, final CountDownLatch latch) throws Exception {
+        return new URL(null, "blocking://archive/" + contents, new URLStreamHandler() {
+            @Override
+            protected URLConnection openConnection(final URL u) {
+                return new URLConnection(u) {
+                    @Override
+                    public void connect() {
+                        // Nothing to connect to.
+                    }
+
+                    @Override
+                    public InputStream getInputStream() throws IOException {
+                        try {
+                            latch.await();
+                        } catch (InterruptedException ex) {
+                            throw new IOException(ex);
+                        }
+                        return new ByteArrayInputStream(contents.getBytes(StandardCharsets.UTF_8));
+                    }
+                };
+            }
+        });
+    }
+
+    @Test
+    public void testSlowDownloadDoesNotBlockOtherArchives() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<File> slow = executor.submit(() -> cache.getArchive(blockingSource("version 1.1", latch)));
+            // Completes while the other archive is still being downloaded.
+            File archive = executor.submit(() -> cache.getArchive(source("1.0.zip", "version 1.0")))
+                    .get(30, TimeUnit.SECONDS);
+            assertEquals("version 1.0", FileUtils.readFileToString(archive, StandardCharsets.UTF_8));
+            assertFalse(slow.isDone());
+
+            latch.countDown();
+            assertEquals("version 1.1",
+                    FileUtils.readFileToString(slow.get(30, TimeUnit.SECONDS), StandardCharsets.UTF_8));
+        } finally {
+            latch.countDown();
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package co.cloudify.jenkins.plugin.integrations;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.mock;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import co.cloudify.jenkins.plugin.BlueprintUploadCoordinator;
+import co.cloudify.rest.model.Blueprint;
+
+public class KnownBlueprintsCacheTest {
+    private static final String HOST = "manager.example.com";
+    private static final String TENANT = "default_tenant";
+    private static final String BLUEPRINT_ID = "cfy-terraform-1.0";
+
+    @Test
+    public void testCachedWithinTtl() throws Exception {
+        KnownBlueprintsCache cache = new KnownBlueprintsCache(TimeUnit.HOURS.toMillis(1),
+                BlueprintUploadCoordinator.get());
+        AtomicInteger loads = new AtomicInteger();
+        Blueprint blueprint = mock(Blueprint.class);
+        KnownBlueprintsCache.Loader loader = () -> {
+            loads.incrementAndGet();
+            return blueprint;
+        };
+        assertSame(blueprint, cache.getOrLoad(HOST, TENANT, BLUEPRINT_ID, loader));
+        assertSame(blueprint, cache.getOrLoad(HOST, TENANT, BLUEPRINT_ID, loader));
+        assertEquals(1, loads.get());
+
+        cache.invalidate(HOST, TENANT, BLUEPRINT_ID);
+        cache.getOrLoad(HOST, TENANT, BLUEPRINT_ID, loader);
+        assertEquals(2, loads.get());
+    }
+}
@@ -0,0 +1,93 @@
+package co.cloudify.jenkins.plugin.logging;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class AsyncEventLogWriterTest {
+    private ByteArrayOutputStream target;
+    private PrintStream targetStream;
+
+    @BeforeEach
+    public void initTest() throws Exception {
+        target = new ByteArrayOutputStream();
+        targetStream = new PrintStream(target, false, StandardCharsets.UTF_8.name());
+    }
+
+    private String written() throws Exception {
+        return target.toString(StandardCharsets.UTF_8.name());
+    }
+
+    private static void write(final AsyncEventLogWriter writer, final String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        writer.getBuffer().write(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void testPeriodicFlushKeepsOrder() throws Exception {
+        StringBuilder expected = new StringBuilder();
+        try (AsyncEventLogWriter writer = new AsyncEventLogWriter(targetStream, 1000, 5)) {
+            for (int i = 0; i < 200; i++) {
+                String line = String.format("line %d\n", i);
+                expected.append(line);
+                write(writer, line);
+                if (i % 20 == 0) {
+                    Thread.sleep(10);
+                }
+            }
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+            while (writer.getLinesWritten() < 200) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(5);
+            }
+            // Written by the background flusher, before closing.
+            assertEquals(expected.toString(), written());
+            assertTrue(writer.getFlushes() > 1);
+            assertEquals(0, writer.getQueueDepth());
+        }
+    }
+
+    @Test
+    public void testCloseFlushesEverything() throws Exception {
+        AsyncEventLogWriter writer = new AsyncEventLogWriter(targetStream, 1000, TimeUnit.HOURS.toMillis(1));
+        write(writer, "first\nsecond\nincomplete");
+        assertEquals("", written());
+        assertEquals(2, writer.getQueueDepth());
+
+        writer.close();
+        assertEquals("first\nsecond\nincomplete\n", written());
+        assertEquals(3, writer.getLinesWritten());
+        assertEquals(1, writer.getFlushes());
+        assertEquals(0, writer.getQueueDepth());
+
+        // Closing again writes nothing more.
+        writer.close();
+        assertEquals(1, writer.getFlushes());
+    }
+
+    @Test
+    public void testCounters() throws Exception {
+        long totalLines = AsyncEventLogWriter.getTotalLinesWritten();
+        long totalDropped = AsyncEventLogWriter.getTotalDropped();
+        AsyncEventLogWriter writer = new AsyncEventLogWriter(targetStream, 2, TimeUnit.HOURS.toMillis(1));
+        write(writer, "a\nb\nc\nd\n");
+        assertEquals(2, writer.getQueueDepth());
+        assertEquals(2, writer.getDropped());
+
+        writer.close();
+        assertEquals(2, writer.getLinesWritten());
+        assertEquals(2, writer.getMaxQueueDepth());
+        assertTrue(written().endsWith("c\nd\n"));
+        // Other tests' writers may add to the totals concurrently.
+        assertTrue(AsyncEventLogWriter.getTotalLinesWritten() >= totalLines + 2);
+        assertTrue(AsyncEventLogWriter.getTotalDropped() >= totalDropped + 2);
+        assertTrue(AsyncEventLogWriter.getTotalFlushes() >= 1);
+    }
+}
@@ -0,0 +1,113 @@
+package co.cloudify.jenkins.plugin.logging;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class EventLogBufferTest {
+    private ByteArrayOutputStream target;
+
+    @BeforeEach
+    public void initTest() {
+        target = new ByteArrayOutputStream();
+    }
+
+    private EventLogBuffer newBuffer(final int capacity) throws Exception {
+        return new EventLogBuffer(new PrintStream(target, false, StandardCharsets.UTF_8.name()), capacity);
+    }
+
+    private String written() throws Exception {
+        return target.toString(StandardCharsets.UTF_8.name());
+    }
+
+    private static void write(final EventLogBuffer buffer, final String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        buffer.write(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void testPartialLinesJoined() throws Exception {
+        EventLogBuffer buffer = newBuffer(10);
+        write(buffer, "first li");
+        write(buffer, "ne\nsecond");
+        assertEquals(1, buffer.getQueuedLines());
+        buffer.write(' ');
+        buffer.write('l');
+        write(buffer, "ine\nthi");
+
+        assertEquals(2, buffer.drain(false));
+        assertEquals("first line\nsecond line\n", written());
+        // The incomplete line is kept until completed, or until drained explicitly.
+        write(buffer, "rd");
+        assertEquals(1, buffer.drain(true));
+        assertEquals("first line\nsecond line\nthird\n", written());
+        assertEquals(0, buffer.drain(true));
+    }
+
+    @Test
+    public void testMultiByteCharactersAcrossWrites() throws Exception {
+        EventLogBuffer buffer = newBuffer(10);
+        byte[] bytes = "café\n".getBytes(StandardCharsets.UTF_8);
+        buffer.write(bytes, 0, 4);
+        buffer.write(bytes, 4, bytes.length - 4);
+        buffer.drain(false);
+        assertEquals("café\n", written());
+    }
+
+    @Test
+    public void testNewestLinesKept() throws Exception {
+        EventLogBuffer buffer = newBuffer(3);
+        for (int i = 1; i <= 5; i++) {
+            write(buffer, "line " + i + "\n");
+        }
+        assertEquals(3, buffer.getQueuedLines());
+        assertEquals(2, buffer.getTotalDropped());
+
+        assertEquals(3, buffer.drain(false));
+        String[] lines = written().split("\n");
+        assertEquals(4, lines.length);
+        assertTrue(lines[0].startsWith("[2 event lines were dropped"));
+        assertEquals("line 3", lines[1]);
+        assertEquals("line 5", lines[3]);
+    }
+
+    @Test
+    public void testDropSummaryPerDrain() throws Exception {
+        EventLogBuffer buffer = newBuffer(1);
+        write(buffer, "a\nb\n");
+        buffer.drain(false);
+        write(buffer, "c\nd\ne\n");
+        buffer.drain(false);
+        write(buffer, "f\n");
+        buffer.drain(false);
+
+        String[] lines = written().split("\n");
+        assertEquals(5, lines.length);
+        assertTrue(lines[0].startsWith("[1 event lines were dropped"));
+        assertEquals("b", lines[1]);
+        assertTrue(lines[2].startsWith("[2 event lines were dropped"));
+        assertEquals("e", lines[3]);
+        // No summary when nothing was dropped.
+        assertEquals("f", lines[4]);
+        assertEquals(3, buffer.getTotalDropped());
+    }
+
+    @Test
+    public void testDrainedLinesCountedOnceWritten() throws Exception {
+        EventLogBuffer buffer = newBuffer(3);
+        for (int i = 1; i <= 5; i++) {
+            write(buffer, "line " + i + "\n");
+        }
+        write(buffer, "partial");
+        assertEquals(0, buffer.getDrainedLines());
+        buffer.drain(false);
+        // Dropped lines are accounted for by the summary.
+        assertEquals(5, buffer.getDrainedLines());
+    }
+}
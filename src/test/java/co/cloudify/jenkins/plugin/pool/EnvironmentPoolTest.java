@@ -0,0 +1,247 @@
+package co.cloudify.jenkins.plugin.pool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import co.cloudify.jenkins.plugin.pool.EnvironmentPool.PooledEnvironment.State;
+import co.cloudify.jenkins.plugin.teardown.EnvironmentOwner;
+import hudson.XmlFile;
+import hudson.model.TaskListener;
+
+public class EnvironmentPoolTest {
+    private static final EnvironmentOwner OWNER = new EnvironmentOwner("manager.example.com", "default_tenant",
+            "creds", "job#1");
+
+    @TempDir
+    public File tempDir;
+
+    /**
+     * Records operations, optionally failing or blocking creations.
+     */
+    private static class FakeProvisioner implements EnvironmentPool.Provisioner {
+        private final List<String> created = new CopyOnWriteArrayList<>();
+        private final List<String> reset = new CopyOnWriteArrayList<>();
+        private final List<String> discarded = new CopyOnWriteArrayList<>();
+        private final List<EnvironmentOwner> owners = new CopyOnWriteArrayList<>();
+        private final List<String> retired = new CopyOnWriteArrayList<>();
+        private volatile boolean failCreation;
+        private volatile CountDownLatch creationGate;
+
+        @Override
+        public void create(final EnvironmentPool.Pool pool, final String deploymentId, final TaskListener listener)
+                throws Exception {
+            if (creationGate != null) {
+                creationGate.await();
+            }
+            if (failCreation) {
+                throw new IllegalStateException("install failed");
+            }
+            created.add(deploymentId);
+            owners.add(pool.getOwner());
+        }
+
+        @Override
+        public void reset(final EnvironmentPool.Pool pool, final String deploymentId, final TaskListener listener) {
+            reset.add(deploymentId);
+        }
+
+        @Override
+        public void discard(final EnvironmentPool.Pool pool, final String deploymentId) {
+            discarded.add(deploymentId);
+        }
+
+        @Override
+        public void retire(final EnvironmentPool.Pool pool) {
+            retired.add(pool.getBlueprintId());
+        }
+    }
+
+    private EnvironmentPool newPool(final FakeProvisioner provisioner) {
+        return new EnvironmentPool(new XmlFile(new File(tempDir, "pools.xml")), tempDir, 2,
+                TimeUnit.MINUTES.toMillis(1), provisioner);
+    }
+
+    private static PoolSpec newSpec(final int minSize, final int maxSize) {
+        return newSpec("digest1", minSize, maxSize);
+    }
+
+    private static PoolSpec newSpec(final String contentDigest, final int minSize, final int maxSize) {
+        Map<String, Object> inputs = new LinkedHashMap<>();
+        inputs.put("region", "eu-west-1");
+        inputs.put("size", 2);
+        return new PoolSpec(OWNER, "bp", contentDigest, inputs, minSize, maxSize);
+    }
+
+    private static void await(final BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for the pool");
+            Thread.sleep(10);
+        }
+    }
+
+    private static EnvironmentPool.Pool onlyPool(final EnvironmentPool pool) {
+        assertEquals(1, pool.getPools().size());
+        return pool.getPools().get(0);
+    }
+
+    @Test
+    public void testFirstLeaseProvisionedByBuild() throws Exception {
+        FakeProvisioner provisioner = new FakeProvisioner();
+        EnvironmentPool pool = newPool(provisioner);
+        EnvironmentPool.Lease lease = pool.lease(newSpec(1, 4));
+        assertFalse(lease.isReady());
+        // Replenished in the background, regardless.
+        await(() -> onlyPool(pool).count(State.READY) == 1);
+        assertEquals(1, provisioner.created.size());
+        assertFalse(provisioner.created.contains(lease.getDeploymentId()));
+    }
+
+    @Test
+    public void testLeaseReadyAndRecycle() throws Exception {
+        FakeProvisioner provisioner = new FakeProvisioner();
+        EnvironmentPool pool = newPool(provisioner);
+        pool.release(pool.lease(newSpec(1, 4)), ReleasePolicy.RECYCLE);
+        await(() -> onlyPool(pool).count(State.READY) == 2);
+
+        EnvironmentPool.Lease lease = pool.lease(newSpec(1, 4));
+        assertTrue(lease.isReady());
+        assertEquals(1, onlyPool(pool).count(State.LEASED));
+        pool.release(lease, ReleasePolicy.RECYCLE);
+        assertEquals(0, onlyPool(pool).count(State.LEASED));
+        assertTrue(provisioner.discarded.isEmpty());
+    }
+
+    @Test
+    public void testResetAndDiscard() throws Exception {
+        FakeProvisioner provisioner = new FakeProvisioner();
+        EnvironmentPool pool = newPool(provisioner);
+        EnvironmentPool.Lease lease = pool.lease(newSpec(1, 4));
+        pool.release(lease, ReleasePolicy.RESET);
+        await(() -> onlyPool(pool).count(State.RESETTING, State.PROVISIONING) == 0);
+        assertEquals(Collections.singletonList(lease.getDeploymentId()), provisioner.reset);
+
+        lease = pool.lease(newSpec(1, 4));
+        pool.release(lease, ReleasePolicy.DISCARD);
+        assertEquals(Collections.singletonList(lease.getDeploymentId()), provisioner.discarded);
+        assertNull(onlyPool(pool).getEnvironments().stream()
+                .filter(x -> x.getDeploymentId().equals(provisioner.discarded.get(0))).findFirst().orElse(null));
+    }
+
+    @Test
+    public void testMaxSizeEnforced() throws Exception {
+        FakeProvisioner provisioner = new FakeProvisioner();
+        EnvironmentPool pool = newPool(provisioner);
+        EnvironmentPool.Lease first = pool.lease(newSpec(0, 2));
+        EnvironmentPool.Lease second = pool.lease(newSpec(0, 2));
+        assertNull(pool.lease(newSpec(0, 2)));
+
+        pool.release(first, ReleasePolicy.RECYCLE);
+        EnvironmentPool.Lease third = pool.lease(newSpec(0, 2));
+        assertEquals(first.getDeploymentId(), third.getDeploymentId());
+        assertTrue(third.isReady());
+        assertNotEquals(first.getDeploymentId(), second.getDeploymentId());
+        assertTrue(provisioner.created.isEmpty());
+    }
+
+    @Test
+    public void testFailedProvisioningDiscarded() throws Exception {
+        FakeProvisioner provisioner = new FakeProvisioner();
+        provisioner.failCreation = true;
+        EnvironmentPool pool = newPool(provisioner);
+        pool.lease(newSpec(2, 4));
+        await(() -> provisioner.discarded.size() == 2);
+        // Not attempted again until the failure delay passes.
+        Thread.sleep(100);
+        assertEquals(1, onlyPool(pool).getEnvironments().size());
+        assertEquals(2, provisioner.discarded.size());
+    }
+
+    @Test
+    public void testUnfinishedProvisioningDiscardedOnResume() throws Exception {
+        FakeProvisioner blocked = new FakeProvisioner();
+        blocked.creationGate = new CountDownLatch(1);
+        EnvironmentPool stopped = newPool(blocked);
+        stopped.release(stopped.lease(newSpec(1, 4)), ReleasePolicy.DISCARD);
+        String provisioning = onlyPool(stopped).getEnvironments().get(0).getDeploymentId();
+
+        // Simulates a restart: a new pool, reading the same file.
+        FakeProvisioner provisioner = new FakeProvisioner();
+        EnvironmentPool restarted = newPool(provisioner);
+        restarted.resume();
+        assertEquals(Collections.singletonList(provisioning), provisioner.discarded);
+        await(() -> onlyPool(restarted).count(State.READY) == 1);
+        blocked.creationGate.countDown();
+    }
+
+    @Test
+    public void testOwnerKeptAcrossRestart() throws Exception {
+        FakeProvisioner blocked = new FakeProvisioner();
+        blocked.creationGate = new CountDownLatch(1);
+        EnvironmentPool stopped = newPool(blocked);
+        stopped.release(stopped.lease(newSpec(1, 4)), ReleasePolicy.DISCARD);
+
+        // Provisioning after a restart doesn't depend on the leasing build.
+        FakeProvisioner provisioner = new FakeProvisioner();
+        EnvironmentPool restarted = newPool(provisioner);
+        restarted.resume();
+        await(() -> onlyPool(restarted).count(State.READY) == 1);
+        EnvironmentOwner owner = provisioner.owners.get(0);
+        assertEquals("creds", owner.getCredentialsId());
+        assertEquals("default_tenant", owner.getTenant());
+        assertEquals("manager.example.com", owner.getHost());
+        blocked.creationGate.countDown();
+    }
+
+    @Test
+    public void testNewContentsRetireOldPool() throws Exception {
+        FakeProvisioner provisioner = new FakeProvisioner();
+        EnvironmentPool pool = newPool(provisioner);
+        EnvironmentPool.Lease oldLease = pool.lease(newSpec("digest1", 1, 4));
+        await(() -> onlyPool(pool).count(State.READY) == 1);
+        String oldBlueprintId = onlyPool(pool).getBlueprintId();
+        assertEquals(PoolSpec.getPoolBlueprintId("bp", "digest1"), oldBlueprintId);
+
+        // Changed contents: a new pool, with a blueprint of its own.
+        EnvironmentPool.Lease newLease = pool.lease(newSpec("digest2", 1, 4));
+        assertNotEquals(oldLease.getPoolKey(), newLease.getPoolKey());
+        assertEquals(2, pool.getPools().size());
+        EnvironmentPool.Pool oldPool = pool.getPools().get(0);
+        assertTrue(oldPool.isRetired());
+        assertEquals(oldPool.getLineage(), pool.getPools().get(1).getLineage());
+        // Idle environments of the old pool are discarded right away, leased
+        // ones once released.
+        assertEquals(1, provisioner.discarded.size());
+        assertEquals(1, oldPool.getEnvironments().size());
+        assertTrue(provisioner.retired.isEmpty());
+
+        pool.release(oldLease, ReleasePolicy.RECYCLE);
+        assertEquals(oldLease.getDeploymentId(), provisioner.discarded.get(1));
+        assertEquals(Collections.singletonList(oldBlueprintId), provisioner.retired);
+        assertEquals(PoolSpec.getPoolBlueprintId("bp", "digest2"), onlyPool(pool).getBlueprintId());
+        assertFalse(onlyPool(pool).isRetired());
+    }
+
+    @Test
+    public void testFingerprintCoversContents() throws Exception {
+        assertNotEquals(newSpec("digest1", 1, 4).getFingerprint(), newSpec("digest2", 1, 4).getFingerprint());
+        assertEquals(newSpec("digest1", 1, 4).getLineage(), newSpec("digest2", 1, 4).getLineage());
+        assertNotEquals(newSpec("digest1", 1, 4).getBlueprintId(), newSpec("digest2", 1, 4).getBlueprintId());
+    }
+}
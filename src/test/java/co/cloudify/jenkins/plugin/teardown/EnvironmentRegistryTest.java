@@ -0,0 +1,62 @@
+package co.cloudify.jenkins.plugin.teardown;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import hudson.XmlFile;
+
+public class EnvironmentRegistryTest {
+    private static final EnvironmentOwner OWNER = new EnvironmentOwner("manager.example.com", "default_tenant",
+            "creds", "job#1");
+
+    @TempDir
+    public File tempDir;
+
+    private EnvironmentRegistry newRegistry() {
+        return new EnvironmentRegistry(new XmlFile(new File(tempDir, "environments.xml")));
+    }
+
+    @Test
+    public void testTrackAndUntrack() {
+        EnvironmentRegistry registry = newRegistry();
+        registry.track(OWNER, "dep1", "bp");
+        registry.track(OWNER, "dep2", "bp");
+        assertEquals(2, registry.getEnvironments().size());
+
+        registry.untrack(OWNER.getHost(), OWNER.getTenant(), "dep1");
+        assertEquals(1, registry.getEnvironments().size());
+        assertEquals("dep2", registry.getEnvironments().get(0).getDeploymentId());
+    }
+
+    @Test
+    public void testTenantsDistinguished() {
+        EnvironmentRegistry registry = newRegistry();
+        registry.track(OWNER, "dep", "bp");
+        registry.untrack(OWNER.getHost(), "other_tenant", "dep");
+        assertEquals(1, registry.getEnvironments().size());
+    }
+
+    @Test
+    public void testPersisted() {
+        EnvironmentRegistry registry = newRegistry();
+        registry.track(OWNER, "dep", "bp");
+        String key = EnvironmentRegistry.key(OWNER.getHost(), OWNER.getTenant(), "dep");
+        registry.teardownQueued(key, "task1");
+
+        EnvironmentRegistry reloaded = newRegistry();
+        EnvironmentRegistry.Environment environment = reloaded.getEnvironment(key);
+        assertEquals("bp", environment.getBlueprintId());
+        assertEquals("job#1", environment.getOwner().getRunId());
+        assertEquals("task1", environment.getTeardownTaskId());
+        assertTrue(environment.getCreatedAt() > 0);
+
+        reloaded.untrack(OWNER.getHost(), OWNER.getTenant(), "dep");
+        assertNull(newRegistry().getEnvironment(key));
+    }
+}
@@ -0,0 +1,162 @@
+package co.cloudify.jenkins.plugin.teardown;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import hudson.XmlFile;
+
+public class TeardownQueueTest {
+    private static final String HOST = "manager.example.com";
+
+    @TempDir
+    public File tempDir;
+
+    private TeardownQueue newQueue(final TeardownQueue.Runner runner) {
+        return newQueue(1, runner);
+    }
+
+    private TeardownQueue newQueue(final int maxAttempts, final TeardownQueue.Runner runner) {
+        return newQueue(4, maxAttempts, runner);
+    }
+
+    private TeardownQueue newQueue(final int maxThreads, final int maxAttempts, final TeardownQueue.Runner runner) {
+        return new TeardownQueue(new XmlFile(new File(tempDir, "tasks.xml")), tempDir, 2, maxThreads, maxAttempts, 10,
+                runner);
+    }
+
+    private static TeardownTask newTask(final String host, final String deploymentId) {
+        return new TeardownTask(host, null, "creds", "job#1", deploymentId, null, null, false);
+    }
+
+    private static void awaitFinished(final TeardownQueue queue, final int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (queue.getTasks().stream().filter(TeardownTask::isFinished).count() < count) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for teardowns");
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testConcurrencyBoundedPerManager() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        TeardownQueue queue = newQueue((task, listener) -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            listener.getLogger().println("Tearing down " + task.getDeploymentId());
+            Thread.sleep(50);
+            running.decrementAndGet();
+        });
+        for (int i = 0; i < 6; i++) {
+            queue.submit(newTask(HOST, "dep" + i));
+        }
+        awaitFinished(queue, 6);
+        assertEquals(2, maxRunning.get());
+        for (TeardownTask task : queue.getTasks()) {
+            assertEquals(TeardownTask.State.SUCCEEDED, task.getState());
+            assertTrue(queue.getLog(task.getId()).contains("Tearing down " + task.getDeploymentId()));
+        }
+    }
+
+    @Test
+    public void testConcurrencyBoundedOverall() throws Exception {
+        Map<String, AtomicInteger> runningPerHost = new ConcurrentHashMap<>();
+        AtomicInteger maxRunningPerHost = new AtomicInteger();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        TeardownQueue queue = newQueue(3, 1, (task, listener) -> {
+            AtomicInteger hostRunning = runningPerHost.computeIfAbsent(task.getHost(), x -> new AtomicInteger());
+            maxRunningPerHost.accumulateAndGet(hostRunning.incrementAndGet(), Math::max);
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            Thread.sleep(50);
+            running.decrementAndGet();
+            hostRunning.decrementAndGet();
+        });
+        for (int i = 0; i < 12; i++) {
+            queue.submit(newTask("manager" + (i % 3) + ".example.com", "dep" + i));
+        }
+        awaitFinished(queue, 12);
+        assertEquals(3, maxRunning.get());
+        assertTrue(maxRunningPerHost.get() <= 2);
+        for (TeardownTask task : queue.getTasks()) {
+            assertEquals(TeardownTask.State.SUCCEEDED, task.getState());
+        }
+    }
+
+    @Test
+    public void testFailureRecorded() throws Exception {
+        TeardownQueue queue = newQueue((task, listener) -> {
+            throw new IllegalStateException("uninstall failed");
+        });
+        TeardownTask task = queue.submit(newTask(HOST, "dep"));
+        awaitFinished(queue, 1);
+        assertEquals(TeardownTask.State.FAILED, task.getState());
+        assertEquals("uninstall failed", task.getError());
+        assertTrue(queue.getLog(task.getId()).contains("uninstall failed"));
+    }
+
+    @Test
+    public void testFailureRetried() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        TeardownQueue queue = newQueue(3, (task, listener) -> {
+            if (runs.incrementAndGet() < 3) {
+                throw new IllegalStateException("uninstall failed");
+            }
+        });
+        TeardownTask task = queue.submit(newTask(HOST, "dep"));
+        awaitFinished(queue, 1);
+        assertEquals(TeardownTask.State.SUCCEEDED, task.getState());
+        assertEquals(3, task.getAttempts());
+        assertNull(task.getError());
+    }
+
+    @Test
+    public void testRetriesLimited() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        TeardownQueue queue = newQueue(3, (task, listener) -> {
+            runs.incrementAndGet();
+            throw new IllegalStateException("uninstall failed");
+        });
+        TeardownTask task = queue.submit(newTask(HOST, "dep"));
+        awaitFinished(queue, 1);
+        assertEquals(TeardownTask.State.FAILED, task.getState());
+        assertEquals(3, runs.get());
+    }
+
+    @Test
+    public void testFailureElsewhereRetried() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        TeardownQueue queue = newQueue(3, (task, listener) -> runs.incrementAndGet());
+        TeardownTask task = queue.submitRetry(newTask(HOST, "dep"), "uninstall failed");
+        awaitFinished(queue, 1);
+        assertEquals(TeardownTask.State.SUCCEEDED, task.getState());
+        assertEquals(1, runs.get());
+        assertEquals(2, task.getAttempts());
+    }
+
+    @Test
+    public void testPendingTasksResumed() throws Exception {
+        CountDownLatch never = new CountDownLatch(1);
+        TeardownQueue stopped = newQueue((task, listener) -> never.await());
+        TeardownTask task = stopped.submit(newTask(HOST, "dep"));
+
+        // Simulates a restart: a new queue, reading the same file.
+        AtomicInteger runs = new AtomicInteger();
+        TeardownQueue restarted = newQueue((t, listener) -> runs.incrementAndGet());
+        restarted.resume();
+        awaitFinished(restarted, 1);
+        assertEquals(1, runs.get());
+        assertEquals(TeardownTask.State.SUCCEEDED, restarted.getTask(task.getId()).getState());
+        never.countDown();
+    }
+}
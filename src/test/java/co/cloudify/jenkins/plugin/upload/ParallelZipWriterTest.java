@@ -0,0 +1,118 @@
+package co.cloudify.jenkins.plugin.upload;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ParallelZipWriterTest {
+    @TempDir
+    public File tempDir;
+
+    private ExecutorService executor;
+
+    @BeforeEach
+    public void initTest() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterEach
+    public void cleanup() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testArchiveContents() throws Exception {
+        Map<String, String> expected = new HashMap<>();
+        for (int i = 0; i < 500; i++) {
+            String name = String.format("dir%d/file%d.txt", i % 7, i);
+            String contents = StringUtils.repeat("line " + i + "\n", i);
+            FileUtils.write(new File(tempDir, name), contents, StandardCharsets.UTF_8);
+            expected.put("blueprint/" + name, contents);
+        }
+
+        assertEquals(expected, archive(new ParallelZipWriter(executor, 8)));
+    }
+
+    private Map<String, String> archive(final ParallelZipWriter writer) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long written = writer.write(tempDir, "blueprint/", out);
+        assertEquals(out.size(), written);
+
+        Map<String, String> actual = new HashMap<>();
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                actual.put(entry.getName(), entry.isDirectory() ? null : IOUtils.toString(zis, StandardCharsets.UTF_8));
+            }
+        }
+        return actual;
+    }
+
+    @Test
+    public void testEmptyDirectoriesKept() throws Exception {
+        FileUtils.write(new File(tempDir, "main.yaml"), "tosca_definitions_version: x", StandardCharsets.UTF_8);
+        assertTrue(new File(tempDir, "empty").mkdir());
+        assertTrue(new File(tempDir, "nested/empty").mkdirs());
+        FileUtils.write(new File(tempDir, "nested/file.txt"), "text", StandardCharsets.UTF_8);
+
+        Map<String, String> expected = new HashMap<>();
+        expected.put("blueprint/main.yaml", "tosca_definitions_version: x");
+        expected.put("blueprint/empty/", null);
+        expected.put("blueprint/nested/empty/", null);
+        expected.put("blueprint/nested/file.txt", "text");
+        assertEquals(expected, archive(new ParallelZipWriter(executor, 8)));
+    }
+
+    @Test
+    public void testLargeFilesStreamed() throws Exception {
+        Map<String, String> expected = new HashMap<>();
+        Random random = new Random(0);
+        for (int i = 0; i < 20; i++) {
+            String name = String.format("file%02d.txt", i);
+            // Every third file is over the streaming threshold.
+            StringBuilder contents = new StringBuilder();
+            int length = i % 3 == 0 ? 50000 : 500;
+            for (int j = 0; j < length; j++) {
+                contents.append((char) ('a' + random.nextInt(26)));
+            }
+            FileUtils.write(new File(tempDir, name), contents, StandardCharsets.UTF_8);
+            expected.put("blueprint/" + name, contents.toString());
+        }
+        assertTrue(new File(tempDir, "empty").mkdir());
+        expected.put("blueprint/empty/", null);
+
+        assertEquals(expected, archive(new ParallelZipWriter(executor, 8, 1000, 10000)));
+    }
+
+    @Test
+    public void testInFlightBytesLimited() throws Exception {
+        Map<String, String> expected = new HashMap<>();
+        for (int i = 0; i < 50; i++) {
+            String name = String.format("file%d.txt", i);
+            String contents = StringUtils.repeat("line " + i + "\n", 100);
+            FileUtils.write(new File(tempDir, name), contents, StandardCharsets.UTF_8);
+            expected.put("blueprint/" + name, contents);
+        }
+        // Each file on its own exceeds the limit, so files are compressed one at a time.
+        assertEquals(expected, archive(new ParallelZipWriter(executor, 8, 10, Long.MAX_VALUE)));
+    }
+}
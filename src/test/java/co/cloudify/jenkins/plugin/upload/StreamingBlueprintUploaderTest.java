@@ -0,0 +1,241 @@
+package co.cloudify.jenkins.plugin.upload;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import co.cloudify.rest.model.Blueprint;
+
+/**
+ * Runs uploads against a minimal stand-in for Cloudify Manager's blueprints
+ * API.
+ */
+public class StreamingBlueprintUploaderTest {
+    private static final String BLUEPRINT_ID = "bp";
+    private static final String TOKEN = "token-value";
+    /** Format of creation times returned by Cloudify Manager. */
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter
+            .ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+
+    @TempDir
+    public File tempDir;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private ByteArrayOutputStream log;
+    private StreamingBlueprintUploader uploader;
+    private final AtomicInteger puts = new AtomicInteger();
+    private final AtomicInteger deletes = new AtomicInteger();
+    /** Status to fail the first PUT with, if non-zero. */
+    private int firstPutFailure;
+    /** Whether a failed first PUT should still store the blueprint (lost response). */
+    private boolean storeOnFailure;
+    /** State of a blueprint stored by a failed first PUT. */
+    private String leftoverState = "uploaded";
+    private volatile byte[] stored;
+    private volatile String storedState;
+    private volatile Instant storedAt;
+    /** Whether to require token authentication for blueprint requests. */
+    private boolean requireToken;
+
+    @BeforeEach
+    public void initTest() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/api/v3.1/blueprints/" + BLUEPRINT_ID, this::handle);
+        server.createContext("/api/v3.1/tokens", exchange -> respond(exchange, 200,
+                exchange.getRequestHeaders().containsKey("Authorization")
+                        ? "{\"value\": \"" + TOKEN + "\"}"
+                        : "{}"));
+        server.start();
+        executor = Executors.newFixedThreadPool(2);
+        log = new ByteArrayOutputStream();
+        uploader = newUploader(endpoint());
+    }
+
+    private ManagerEndpoint endpoint() {
+        return new ManagerEndpoint("localhost:" + server.getAddress().getPort(), false, "default_tenant", "admin",
+                "admin");
+    }
+
+    private StreamingBlueprintUploader newUploader(final ManagerEndpoint endpoint) throws IOException {
+        StreamingBlueprintUploader newUploader = new StreamingBlueprintUploader(endpoint, executor, 4,
+                new PrintStream(log, true, StandardCharsets.UTF_8.name()));
+        newUploader.setRetryDelay(10);
+        return newUploader;
+    }
+
+    @AfterEach
+    public void cleanup() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        if (requireToken && !TOKEN.equals(exchange.getRequestHeaders().getFirst("Authentication-Token"))) {
+            respond(exchange, 401, "{\"message\": \"unauthorized\"}");
+            return;
+        }
+        if ("PUT".equals(exchange.getRequestMethod())) {
+            byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+            if (puts.incrementAndGet() == 1 && firstPutFailure != 0) {
+                if (storeOnFailure) {
+                    store(body, leftoverState, Instant.now());
+                }
+                respond(exchange, firstPutFailure, "{\"message\": \"failure\"}");
+                return;
+            }
+            store(body, "uploaded", Instant.now());
+            respond(exchange, 201, blueprintJson());
+        } else if (stored == null) {
+            respond(exchange, 404, "{\"message\": \"not found\"}");
+        } else if ("DELETE".equals(exchange.getRequestMethod())) {
+            deletes.incrementAndGet();
+            String json = blueprintJson();
+            stored = null;
+            respond(exchange, 200, json);
+        } else {
+            respond(exchange, 200, blueprintJson());
+        }
+    }
+
+    private void store(final byte[] body, final String state, final Instant createdAt) {
+        stored = body;
+        storedState = state;
+        storedAt = createdAt;
+    }
+
+    private String blueprintJson() {
+        return String.format("{\"id\": \"%s\", \"state\": \"%s\", \"created_at\": \"%s\"}", BLUEPRINT_ID,
+                storedState, TIME_FORMAT.format(storedAt));
+    }
+
+    private static void respond(final HttpExchange exchange, final int status, final String body)
+            throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private File archive() throws IOException {
+        byte[] contents = new byte[3 * 1024 * 1024];
+        new Random(0).nextBytes(contents);
+        File archive = new File(tempDir, "blueprint.zip");
+        FileUtils.writeByteArrayToFile(archive, contents);
+        return archive;
+    }
+
+    @Test
+    public void testFailedUploadRetried() throws Exception {
+        firstPutFailure = 503;
+        File archive = archive();
+        Blueprint blueprint = uploader.uploadArchive(BLUEPRINT_ID, archive, "blueprint.yaml");
+        assertEquals(BLUEPRINT_ID, blueprint.getId());
+        assertEquals(2, puts.get());
+        assertArrayEquals(FileUtils.readFileToByteArray(archive), stored);
+        String output = log.toString(StandardCharsets.UTF_8.name());
+        assertTrue(output.contains("MB/s"));
+        assertTrue(output.contains(DigestUtils.sha256Hex(FileUtils.readFileToByteArray(archive))));
+    }
+
+    @Test
+    public void testLostResponseNotUploadedAgain() throws Exception {
+        firstPutFailure = 502;
+        storeOnFailure = true;
+        Blueprint blueprint = uploader.uploadArchive(BLUEPRINT_ID, archive(), "blueprint.yaml");
+        assertEquals(BLUEPRINT_ID, blueprint.getId());
+        assertEquals(1, puts.get());
+    }
+
+    @Test
+    public void testFailedLeftoverDeletedAndRetried() throws Exception {
+        firstPutFailure = 502;
+        storeOnFailure = true;
+        leftoverState = "failed_uploading";
+        File archive = archive();
+        Blueprint blueprint = uploader.uploadArchive(BLUEPRINT_ID, archive, "blueprint.yaml");
+        assertEquals(BLUEPRINT_ID, blueprint.getId());
+        assertEquals(2, puts.get());
+        assertEquals(1, deletes.get());
+        assertArrayEquals(FileUtils.readFileToByteArray(archive), stored);
+    }
+
+    @Test
+    public void testOlderBlueprintNotTakenAsUploaded() throws Exception {
+        firstPutFailure = 502;
+        store(new byte[0], "uploaded", Instant.now().minusMillis(TimeUnit.HOURS.toMillis(1)));
+        File archive = archive();
+        ManagerResponseException ex = assertThrows(ManagerResponseException.class,
+                () -> uploader.uploadArchive(BLUEPRINT_ID, archive, "blueprint.yaml"));
+        assertEquals(409, ex.getStatus());
+        assertEquals(1, puts.get());
+        assertEquals(0, deletes.get());
+    }
+
+    @Test
+    public void testCreationTimeFormats() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        long since = Instant.parse("2020-06-01T10:00:00Z").toEpochMilli();
+        assertTrue(StreamingBlueprintUploader.isCreatedSince(
+                mapper.readTree("{\"created_at\": \"2020-06-01T10:00:00.000Z\"}"), since));
+        assertTrue(StreamingBlueprintUploader.isCreatedSince(
+                mapper.readTree("{\"created_at\": \"2020-06-01 10:00:01.470\"}"), since));
+        assertFalse(StreamingBlueprintUploader.isCreatedSince(
+                mapper.readTree("{\"created_at\": \"2020-06-01T09:00:00.000Z\"}"), since));
+        assertFalse(StreamingBlueprintUploader.isCreatedSince(mapper.readTree("{}"), since));
+    }
+
+    @Test
+    public void testClientErrorNotRetried() throws Exception {
+        firstPutFailure = 409;
+        File archive = archive();
+        ManagerResponseException ex = assertThrows(ManagerResponseException.class,
+                () -> uploader.uploadArchive(BLUEPRINT_ID, archive, "blueprint.yaml"));
+        assertEquals(409, ex.getStatus());
+        assertEquals(1, puts.get());
+    }
+
+    @Test
+    public void testTokenAuthentication() throws Exception {
+        requireToken = true;
+        File archive = archive();
+        assertThrows(ManagerResponseException.class,
+                () -> uploader.uploadArchive(BLUEPRINT_ID, archive, "blueprint.yaml"));
+
+        ManagerEndpoint tokenEndpoint = endpoint().withToken();
+        Blueprint blueprint = newUploader(tokenEndpoint).uploadArchive(BLUEPRINT_ID, archive, "blueprint.yaml");
+        assertEquals(BLUEPRINT_ID, blueprint.getId());
+        assertArrayEquals(FileUtils.readFileToByteArray(archive), stored);
+    }
+}
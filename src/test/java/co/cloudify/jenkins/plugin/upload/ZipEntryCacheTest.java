@@ -0,0 +1,89 @@
+package co.cloudify.jenkins.plugin.upload;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ZipEntryCacheTest {
+    private static final int FILES = 100;
+
+    @TempDir
+    public File tempDir;
+
+    private ExecutorService executor;
+    private ParallelZipWriter writer;
+    private File root;
+    private File cacheDir;
+
+    @BeforeEach
+    public void initTest() throws Exception {
+        executor = Executors.newFixedThreadPool(4);
+        writer = new ParallelZipWriter(executor, 8);
+        root = new File(tempDir, "blueprint");
+        cacheDir = new File(tempDir, "cache");
+        for (int i = 0; i < FILES; i++) {
+            FileUtils.write(new File(root, String.format("dir%d/file%d.txt", i % 5, i)),
+                    StringUtils.repeat("line " + i + "\n", 200), StandardCharsets.UTF_8);
+        }
+    }
+
+    @AfterEach
+    public void cleanup() {
+        executor.shutdownNow();
+    }
+
+    private byte[] write(final ZipEntryCache cache) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.write(root, "blueprint/", out, cache);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testOnlyChangedFilesCompressed() throws Exception {
+        ZipEntryCache cache = new ZipEntryCache(cacheDir);
+        write(cache);
+        cache.commit();
+        assertEquals(FILES, cache.getCompressed());
+
+        FileUtils.write(new File(root, "dir0/file0.txt"), "changed", StandardCharsets.UTF_8);
+        // Same contents, different time: reused by digest.
+        new File(root, "dir1/file1.txt").setLastModified(1_000_000_000_000L);
+
+        cache = new ZipEntryCache(cacheDir);
+        byte[] incremental = write(cache);
+        assertEquals(FILES - 1, cache.getReused());
+        assertEquals(1, cache.getCompressed());
+        assertArrayEquals(write(null), incremental);
+    }
+
+    @Test
+    public void testUncommittedChangesDiscarded() throws Exception {
+        ZipEntryCache cache = new ZipEntryCache(cacheDir);
+        write(cache);
+        cache.commit();
+
+        FileUtils.write(new File(root, "dir0/file0.txt"), "changed", StandardCharsets.UTF_8);
+        write(new ZipEntryCache(cacheDir));
+
+        // The failed "upload" didn't commit, so the manifest still refers to the
+        // old contents.
+        FileUtils.write(new File(root, "dir0/file0.txt"), "changed again", StandardCharsets.UTF_8);
+        cache = new ZipEntryCache(cacheDir);
+        write(cache);
+        assertEquals(1, cache.getCompressed());
+        cache.commit();
+        assertEquals(FILES, new File(cacheDir, "entries").list().length);
+    }
+}